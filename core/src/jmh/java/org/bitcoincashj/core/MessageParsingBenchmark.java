@@ -0,0 +1,73 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.core;
+
+import com.google.common.io.ByteStreams;
+import org.bitcoincashj.params.MainNetParams;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures deserializing a large (750 kB) block message from a buffer backed by an array of its own ("owned"), as
+ * {@link PeerSocketHandler} collects large messages in, or by an array that holds a byte of the next message as well
+ * ("shared"). Both are parsed in place. A direct buffer ("direct"), like the socket read buffer, has no array, so its
+ * payload is copied out first. Run with {@code -prof gc} to compare the bytes allocated per block.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageParsingBenchmark {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    @Param({"owned", "shared", "direct"})
+    public String buffer;
+
+    private final MessageSerializer serializer = PARAMS.getDefaultSerializer();
+    private BitcoinSerializer.BitcoinPacketHeader header;
+    private ByteBuffer payload;
+
+    @Setup
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        Block block = serializer.makeBlock(ByteStreams.toByteArray(
+                MessageParsingBenchmark.class.getResourceAsStream("block383616.dat")));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(block, bos);
+        ByteBuffer message = ByteBuffer.wrap(bos.toByteArray());
+        serializer.seekPastMagicBytes(message);
+        header = serializer.deserializeHeader(message);
+        byte[] bytes = Arrays.copyOfRange(message.array(), message.position(), message.limit());
+        if (buffer.equals("shared")) {
+            payload = ByteBuffer.wrap(Arrays.copyOf(bytes, bytes.length + 1)); // a byte of the next message
+        } else if (buffer.equals("direct")) {
+            payload = ByteBuffer.allocateDirect(bytes.length);
+            payload.put(bytes).flip();
+        } else {
+            payload = ByteBuffer.wrap(bytes);
+        }
+    }
+
+    @Benchmark
+    public Message parseBlock() {
+        return serializer.deserializePayload(header, payload.duplicate());
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.core;
+
+import org.bitcoincashj.params.UnitTestParams;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link TxConfidenceTable#seen(Sha256Hash, PeerAddress)} with several threads announcing transactions at
+ * once, the way the peers of a busy {@link PeerGroup} do. With a single shard the table behaves like the old one
+ * behind a single lock. Hashes are drawn from a pool twice the size of the table, so entries keep being evicted.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class TxConfidenceTableBenchmark {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final int TABLE_SIZE = 5000;
+    private static final int PEERS = 40;
+
+    @Param({"1", "16"})
+    public int shards;
+
+    private TxConfidenceTable table;
+    private Sha256Hash[] hashes;
+    private PeerAddress[] peers;
+
+    @Setup
+    public void setUp() throws Exception {
+        table = new TxConfidenceTable(TABLE_SIZE, shards);
+        hashes = new Sha256Hash[TABLE_SIZE * 2];
+        for (int i = 0; i < hashes.length; i++)
+            hashes[i] = Sha256Hash.of(new byte[] { (byte) i, (byte) (i >> 8) });
+        peers = new PeerAddress[PEERS];
+        for (int i = 0; i < PEERS; i++)
+            peers[i] = new PeerAddress(PARAMS, InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) i }));
+    }
+
+    @Benchmark
+    public TransactionConfidence seen() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return table.seen(hashes[random.nextInt(hashes.length)], peers[random.nextInt(PEERS)]);
+    }
+}
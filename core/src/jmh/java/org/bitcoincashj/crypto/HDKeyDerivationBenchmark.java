@@ -0,0 +1,79 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.crypto;
+
+import org.bitcoincashj.core.Sha256Hash;
+import org.bitcoincashj.wallet.DeterministicKeyChain;
+import org.bitcoincashj.wallet.DeterministicSeed;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures deriving the lookahead keys of a key chain. {@code sequential} derives one key after the other from the
+ * private parent, like the lookahead did before; {@code batched} uses
+ * {@link HDKeyDerivation#deriveChildKeysFromPublic(DeterministicKey, int, int)}; {@code chainLookahead} is the whole
+ * lookahead of a new {@link DeterministicKeyChain}, both branches, as when a wallet is restored from its seed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HDKeyDerivationBenchmark {
+    private static final byte[] ENTROPY = Sha256Hash.hash("benchmark seed".getBytes());
+
+    @Param({"10000"})
+    public int keyCount;
+
+    private DeterministicKey parent;
+
+    @Setup
+    public void setUp() {
+        DeterministicKey master = HDKeyDerivation.createMasterPrivateKey(ENTROPY);
+        parent = HDKeyDerivation.deriveChildKey(HDKeyDerivation.deriveChildKey(master, ChildNumber.ZERO_HARDENED),
+                ChildNumber.ZERO);
+    }
+
+    @Benchmark
+    public List<DeterministicKey> sequential() {
+        List<DeterministicKey> keys = new ArrayList<>(keyCount);
+        int nextChild = 0;
+        for (int i = 0; i < keyCount; i++) {
+            DeterministicKey key = HDKeyDerivation.deriveThisOrNextChildKey(parent, nextChild).dropPrivateBytes();
+            keys.add(key);
+            nextChild = key.getChildNumber().num() + 1;
+        }
+        return keys;
+    }
+
+    @Benchmark
+    public List<DeterministicKey> batched() {
+        return HDKeyDerivation.deriveChildKeysFromPublic(parent, 0, keyCount);
+    }
+
+    @Benchmark
+    public DeterministicKeyChain chainLookahead() {
+        DeterministicKeyChain chain = DeterministicKeyChain.builder()
+                .seed(new DeterministicSeed(ENTROPY, "", 0)).build();
+        chain.setLookaheadSize(keyCount / 2);
+        chain.setLookaheadThreshold(0);
+        chain.maybeLookAhead();
+        return chain;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.store;
+
+import org.bitcoincashj.core.Address;
+import org.bitcoincashj.core.Coin;
+import org.bitcoincashj.core.Context;
+import org.bitcoincashj.core.ECKey;
+import org.bitcoincashj.core.NetworkParameters;
+import org.bitcoincashj.core.Sha256Hash;
+import org.bitcoincashj.core.UTXO;
+import org.bitcoincashj.core.Utils;
+import org.bitcoincashj.params.UnitTestParams;
+import org.bitcoincashj.script.ScriptBuilder;
+import org.openjdk.jmh.annotations.*;
+
+import org.h2.tools.Server;
+
+import java.io.File;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link DatabaseFullPrunedBlockStore#getOpenTransactionOutputs(List)} for a watch-only wallet with many
+ * keys, on the H2 store. One key in ten has an output. With one address per query every key is a round trip, like
+ * before the addresses were looked up in chunks. The store talks to an H2 server over the loopback interface, as it
+ * would to a Postgres or MySQL server; an embedded database has no round trips to save.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OpenOutputsQueryBenchmark {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    @Param({"50000"})
+    public int keyCount;
+
+    @Param({"1", "100"})
+    public int addressesPerQuery;
+
+    private File directory;
+    private Server server;
+    private DatabaseFullPrunedBlockStore store;
+    private List<ECKey> keys;
+
+    @Setup
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        directory = Files.createTempDirectory("openoutputs").toFile();
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        server = Server.createTcpServer("-tcpPort", Integer.toString(port)).start();
+        String dbName = "tcp://localhost:" + port + "/" + new File(directory, "store").getAbsolutePath();
+        store = new H2FullPrunedBlockStore(PARAMS, dbName, 10) {
+            @Override
+            protected int getMaxAddressesPerQuery() {
+                return addressesPerQuery;
+            }
+        };
+        keys = new ArrayList<>();
+        store.beginDatabaseBatchWrite();
+        for (int i = 0; i < keyCount; i++) {
+            ECKey key = new ECKey();
+            keys.add(key);
+            if (i % 10 != 0)
+                continue;
+            byte[] hash = new byte[4];
+            Utils.uint32ToByteArrayLE(i, hash, 0);
+            store.addUnspentTransactionOutput(new UTXO(Sha256Hash.of(hash), 0, Coin.CENT, 1, false,
+                    ScriptBuilder.createP2PKHOutputScript(key), Address.fromKey(PARAMS, key).toString()));
+        }
+        store.commitDatabaseBatchWrite();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        store.close();
+        server.stop();
+        for (File file : directory.listFiles())
+            file.delete();
+        directory.delete();
+    }
+
+    @Benchmark
+    public List<UTXO> getOpenTransactionOutputs() throws Exception {
+        return store.getOpenTransactionOutputs(keys);
+    }
+}
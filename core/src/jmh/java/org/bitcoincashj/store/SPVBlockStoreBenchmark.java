@@ -0,0 +1,180 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.store;
+
+import org.bitcoincashj.core.Block;
+import org.bitcoincashj.core.Context;
+import org.bitcoincashj.core.NetworkParameters;
+import org.bitcoincashj.core.Sha256Hash;
+import org.bitcoincashj.core.StoredBlock;
+import org.bitcoincashj.core.Transaction;
+import org.bitcoincashj.params.UnitTestParams;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Measures header lookups on {@link SPVBlockStore}, from several threads and with a thread writing at the same time.
+ * Lookups hit random headers of a full store, so most of them miss the block cache, and one in ten asks for a hash that
+ * isn't stored, like an unconnected block during chain download.
+ *
+ * <p>To compare with another version, build its jar, e.g. from a worktree of a release tag, and run the benchmarks jar
+ * with {@code -p store=current,baseline -jvmArgsAppend -Dbaseline.jar=<path to the jar>}. The baseline store is then
+ * loaded from that jar, together with the classes it uses.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SPVBlockStoreBenchmark {
+    private static final int STORED_BLOCKS = 5000;
+    private static final int LOOKUPS = STORED_BLOCKS + STORED_BLOCKS / 9;
+
+    @Param({"current"})
+    public String store;
+
+    private Driver driver;
+    private final AtomicInteger nonce = new AtomicInteger(LOOKUPS);
+
+    /** What the benchmarks do with a store, so that they don't depend on the version the store is loaded from. */
+    public interface Driver {
+        Object get(int index) throws Exception;
+
+        void put(int nonce) throws Exception;
+
+        void close() throws Exception;
+    }
+
+    /** Runs the benchmarks on the {@link SPVBlockStore} of the class loader this class is loaded with. */
+    public static class StoreDriver implements Driver {
+        private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+        private final BlockStore blockStore;
+        private final File file;
+        private final Sha256Hash[] hashes;
+
+        public StoreDriver() throws Exception {
+            Context.propagate(new Context(PARAMS));
+            file = File.createTempFile("spvblockstore", null);
+            file.delete();
+            blockStore = new SPVBlockStore(PARAMS, file);
+            hashes = new Sha256Hash[LOOKUPS];
+            for (int i = 0; i < hashes.length; i++) {
+                StoredBlock block = createBlock(i);
+                if (i < STORED_BLOCKS)
+                    blockStore.put(block);
+                hashes[i] = block.getHeader().getHash();
+            }
+        }
+
+        private static StoredBlock createBlock(int nonce) {
+            Block block = new Block(PARAMS, 0, Sha256Hash.ZERO_HASH, Sha256Hash.ZERO_HASH, 0, 0, nonce,
+                    Collections.<Transaction>emptyList());
+            return new StoredBlock(block, BigInteger.ZERO, nonce);
+        }
+
+        @Override
+        public Object get(int index) throws Exception {
+            return blockStore.get(hashes[index]);
+        }
+
+        @Override
+        public void put(int nonce) throws Exception {
+            blockStore.put(createBlock(nonce));
+        }
+
+        @Override
+        public void close() throws Exception {
+            blockStore.close();
+            file.delete();
+        }
+    }
+
+    // Loads the classes of the library from the baseline jar rather than from the parent, everything else from the
+    // parent. The driver is loaded from the benchmarks, so it links against the baseline classes.
+    private static class BaselineClassLoader extends URLClassLoader {
+        BaselineClassLoader(URL baselineJar) {
+            super(new URL[] { baselineJar, SPVBlockStoreBenchmark.class.getProtectionDomain().getCodeSource().getLocation() },
+                    SPVBlockStoreBenchmark.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!name.startsWith("org.bitcoincashj.") || name.equals(Driver.class.getName()))
+                return super.loadClass(name, resolve);
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> c = findLoadedClass(name);
+                if (c == null)
+                    c = findClass(name);
+                if (resolve)
+                    resolveClass(c);
+                return c;
+            }
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        if (store.equals("baseline")) {
+            String jar = System.getProperty("baseline.jar");
+            checkState(jar != null, "Set baseline.jar to the jar to compare with");
+            Class<?> driverClass = new BaselineClassLoader(new File(jar).toURI().toURL())
+                    .loadClass(StoreDriver.class.getName());
+            driver = (Driver) driverClass.getConstructor().newInstance();
+        } else {
+            driver = new StoreDriver();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        driver.close();
+    }
+
+    private Object randomGet() throws Exception {
+        return driver.get(ThreadLocalRandom.current().nextInt(LOOKUPS));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object concurrentReads() throws Exception {
+        return randomGet();
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(3)
+    public Object readWhileWriting() throws Exception {
+        return randomGet();
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(1)
+    public void writeWhileReading() throws Exception {
+        driver.put(nonce.getAndIncrement());
+    }
+}
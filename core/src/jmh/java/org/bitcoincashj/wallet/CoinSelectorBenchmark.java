@@ -0,0 +1,93 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.wallet;
+
+import org.bitcoincashj.core.*;
+import org.bitcoincashj.params.UnitTestParams;
+import org.bitcoincashj.wallet.selector.BranchAndBoundCoinSelector;
+import org.bitcoincashj.wallet.selector.CoinSelector;
+import org.bitcoincashj.wallet.selector.DefaultCoinSelector;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the coin selection of one {@code completeTx}: the wallet asks its selector once for every fee it tries, with
+ * a fresh copy of the same candidates each time, see {@link Wallet#calculateFee}. {@code defaultSelector} uses the
+ * {@link DefaultCoinSelector}, which sorts the candidates by coin age every time. {@code branchAndBound} uses a new
+ * {@link BranchAndBoundCoinSelector}, which sorts them in the first round and reuses that in the others.
+ * {@code branchAndBoundReused} keeps one selector across invocations, like a wallet that keeps its selector while its
+ * outputs don't change, so every round reuses the sorted candidates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CoinSelectorBenchmark {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final int OUTPUTS_PER_TX = 10;
+    // What the wallet needs in each round, as the fee grows with the inputs selected.
+    private static final long[] TARGETS = { 123456789, 123456789 + 1000, 123456789 + 1782 };
+
+    @Param({"1000", "100000"})
+    public int outputCount;
+
+    private List<TransactionOutput> candidates;
+    private BranchAndBoundCoinSelector reusedSelector;
+
+    @Setup
+    public void setUp() {
+        Context.propagate(new Context(PARAMS));
+        Random random = new Random(1);
+        Address address = Address.fromKey(PARAMS, new ECKey());
+        candidates = new ArrayList<>(outputCount);
+        for (int i = 0; i < outputCount / OUTPUTS_PER_TX; i++) {
+            Transaction tx = new Transaction(PARAMS);
+            for (int j = 0; j < OUTPUTS_PER_TX; j++)
+                tx.addOutput(Coin.valueOf(1000 + random.nextInt(10000000)), address);
+            tx.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+            tx.getConfidence().setDepthInBlocks(1 + random.nextInt(50000));
+            candidates.addAll(tx.getOutputs());
+        }
+        reusedSelector = new BranchAndBoundCoinSelector(Transaction.DEFAULT_TX_FEE);
+    }
+
+    @Benchmark
+    public CoinSelection defaultSelector() {
+        return selectRounds(DefaultCoinSelector.get());
+    }
+
+    @Benchmark
+    public CoinSelection branchAndBound() {
+        return selectRounds(new BranchAndBoundCoinSelector(Transaction.DEFAULT_TX_FEE));
+    }
+
+    @Benchmark
+    public CoinSelection branchAndBoundReused() {
+        return selectRounds(reusedSelector);
+    }
+
+    private CoinSelection selectRounds(CoinSelector selector) {
+        CoinSelection selection = null;
+        for (long target : TARGETS)
+            selection = selector.select(Coin.valueOf(target), new ArrayList<>(candidates));
+        return selection;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.wallet;
+
+import com.google.protobuf.CodedOutputStream;
+import org.bitcoincashj.core.Address;
+import org.bitcoincashj.core.Coin;
+import org.bitcoincashj.core.Context;
+import org.bitcoincashj.core.ECKey;
+import org.bitcoincashj.core.NetworkParameters;
+import org.bitcoincashj.core.Sha256Hash;
+import org.bitcoincashj.core.Transaction;
+import org.bitcoincashj.core.Utils;
+import org.bitcoincashj.params.UnitTestParams;
+import org.bitcoincashj.script.Script;
+import org.bitcoincashj.wallet.WalletTransaction.Pool;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link Wallet#loadFromFile(File, WalletExtension...)} against
+ * {@link Wallet#loadFromFileLazily(File, WalletExtension...)} on a wallet with a long history. The wallet holds a
+ * chain of transactions that each spend the previous one, so all but the last are spent and only one is unspent, like
+ * an old wallet that is used a lot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class WalletLoadingBenchmark {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    @Param({"500000"})
+    public int txCount;
+
+    private File file;
+
+    @Setup
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        Wallet wallet = new Wallet(PARAMS, KeyChainGroup.builder(PARAMS).fromRandom(Script.ScriptType.P2PKH).build());
+        Address myAddress = wallet.freshReceiveAddress();
+        Address otherAddress = Address.fromKey(PARAMS, new ECKey());
+        int chainHeight = txCount + 10;
+        wallet.setLastBlockSeenHash(blockHash(chainHeight));
+        wallet.setLastBlockSeenHeight(chainHeight);
+        Protos.Wallet header = new WalletProtobufSerializer().walletToProto(wallet);
+
+        file = File.createTempFile("walletloading", null);
+        try (OutputStream stream = new BufferedOutputStream(new FileOutputStream(file))) {
+            CodedOutputStream output = CodedOutputStream.newInstance(stream);
+            header.writeTo(output);
+            Transaction tx = createTx(Sha256Hash.of(new byte[32]), Coin.valueOf(txCount + 1, 0), myAddress,
+                    otherAddress);
+            for (int i = 0; i < txCount; i++) {
+                Transaction next = i + 1 < txCount
+                        ? createTx(tx.getTxId(), tx.getOutput(0).getValue(), myAddress, otherAddress) : null;
+                output.writeMessage(Protos.Wallet.TRANSACTION_FIELD_NUMBER, txProto(tx, next, i + 1, chainHeight));
+                tx = next;
+            }
+            output.flush();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static Sha256Hash blockHash(int height) {
+        byte[] bytes = new byte[4];
+        Utils.uint32ToByteArrayLE(height, bytes, 0);
+        return Sha256Hash.of(bytes);
+    }
+
+    private static Transaction createTx(Sha256Hash parent, Coin value, Address myAddress, Address otherAddress) {
+        Transaction tx = new Transaction(PARAMS);
+        tx.addInput(parent, 0, new Script(new byte[0]));
+        tx.addOutput(value.subtract(Coin.valueOf(2000)), myAddress);
+        tx.addOutput(Coin.valueOf(1000), otherAddress);
+        return tx;
+    }
+
+    private static Protos.Transaction txProto(Transaction tx, Transaction spentBy, int height, int chainHeight) {
+        Pool pool = spentBy != null ? Pool.SPENT : Pool.UNSPENT;
+        Protos.Transaction.Builder builder = WalletProtobufSerializer.makeTxProto(new WalletTransaction(pool, tx))
+                .toBuilder();
+        if (spentBy != null) {
+            builder.setTransactionOutput(0, builder.getTransactionOutput(0).toBuilder()
+                    .setSpentByTransactionHash(WalletProtobufSerializer.hashToByteString(spentBy.getTxId()))
+                    .setSpentByTransactionIndex(0));
+        }
+        return builder
+                .addBlockHash(WalletProtobufSerializer.hashToByteString(blockHash(height)))
+                .addBlockRelativityOffsets(0)
+                .setConfidence(Protos.TransactionConfidence.newBuilder()
+                        .setType(Protos.TransactionConfidence.Type.BUILDING)
+                        .setAppearedAtHeight(height)
+                        .setDepth(chainHeight - height + 1)
+                        .setSource(Protos.TransactionConfidence.Source.SOURCE_NETWORK))
+                .build();
+    }
+
+    @Benchmark
+    public Wallet eager() throws Exception {
+        return Wallet.loadFromFile(file);
+    }
+
+    @Benchmark
+    public Wallet lazy() throws Exception {
+        return Wallet.loadFromFileLazily(file);
+    }
+}
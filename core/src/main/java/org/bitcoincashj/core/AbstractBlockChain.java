@@ -25,6 +25,7 @@ import org.bitcoincashj.core.listeners.ReorganizeListener;
 import org.bitcoincashj.core.listeners.TransactionReceivedInBlockListener;
 import org.bitcoincashj.pow.AbstractPowRulesChecker;
 import org.bitcoincashj.pow.AbstractRuleCheckerFactory;
+import org.bitcoincashj.pow.AncestorWindow;
 import org.bitcoincashj.pow.factory.RuleCheckerFactory;
 import org.bitcoincashj.script.ScriptException;
 import org.bitcoincashj.store.BlockStore;
@@ -117,6 +118,9 @@ public abstract class AbstractBlockChain {
 
     protected final NetworkParameters params;
     protected final AbstractRuleCheckerFactory ruleCheckerFactory;
+    // The recent blocks, which the difficulty rules look at rather than the block store. Cleared when the store is
+    // rolled back.
+    protected final AncestorWindow ancestorWindow;
     private final CopyOnWriteArrayList<ListenerRegistration<NewBestBlockListener>> newBestBlockListeners;
     private final CopyOnWriteArrayList<ListenerRegistration<ReorganizeListener>> reorganizeListeners;
     private final CopyOnWriteArrayList<ListenerRegistration<TransactionReceivedInBlockListener>> transactionReceivedListeners;
@@ -141,6 +145,15 @@ public abstract class AbstractBlockChain {
     // were downloading the block chain.
     private final LinkedHashMap<Sha256Hash, OrphanBlock> orphanBlocks = new LinkedHashMap<>();
 
+    // The most recent headers that passed the checks of verifyAndStoreHeader, which adding their blocks skips.
+    private static final int MAX_VERIFIED_HEADERS = 10000;
+    private final Set<Sha256Hash> verifiedHeaders = Collections.newSetFromMap(new LinkedHashMap<Sha256Hash, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Boolean> eldest) {
+            return size() > MAX_VERIFIED_HEADERS;
+        }
+    });
+
     /**
      * False positive estimation uses a double exponential moving average.
      */
@@ -174,6 +187,7 @@ public abstract class AbstractBlockChain {
         log.info("chain head is at height {}:\n{}", chainHead.getHeight(), chainHead.getHeader());
         this.params = context.getParams();
         this.ruleCheckerFactory = RuleCheckerFactory.create(this.params);
+        this.ancestorWindow = new AncestorWindow(blockStore);
 
         this.newBestBlockListeners = new CopyOnWriteArrayList<>();
         this.reorganizeListeners = new CopyOnWriteArrayList<>();
@@ -464,8 +478,11 @@ public abstract class AbstractBlockChain {
             // if there is a tx sending or receiving coins using an address in one of our wallets. And those transactions
             // are only lightly verified: presence in a valid connecting block is taken as proof of validity. See the
             // article here for more details: https://bitcoincashj.github.io/security-model
+            // The proof of work and difficulty of the header may have been checked already.
+            final boolean verifiedHeader = verifiedHeaders.remove(block.getHash());
             try {
-                block.verifyHeader();
+                if (!verifiedHeader)
+                    block.verifyHeader();
                 storedPrev = getStoredBlockInCurrentScope(block.getPrevBlockHash());
                 if (storedPrev != null) {
                     height = storedPrev.getHeight() + 1;
@@ -494,8 +511,10 @@ public abstract class AbstractBlockChain {
             } else {
                 checkState(lock.isHeldByCurrentThread());
                 // It connects to somewhere on the chain. Not necessarily the top of the best known chain.
-                AbstractPowRulesChecker rulesChecker = ruleCheckerFactory.getRuleChecker(storedPrev, block, blockStore);
-                rulesChecker.checkRules(storedPrev, block, blockStore, this);
+                if (!verifiedHeader) {
+                    AbstractPowRulesChecker rulesChecker = ruleCheckerFactory.getRuleChecker(storedPrev, block, ancestorWindow);
+                    rulesChecker.checkRules(storedPrev, block, ancestorWindow, this);
+                }
                 connectBlock(block, storedPrev, shouldVerifyTransactions(), filteredTxHashList, filteredTxn);
             }
 
@@ -508,6 +527,42 @@ public abstract class AbstractBlockChain {
         }
     }
 
+    /**
+     * Checks the proof of work and difficulty of a header ahead of its block, and puts it into the block store so the
+     * headers after it can be checked too. The chain head doesn't change and listeners are not told, but adding the
+     * block later skips these checks. This lets a header download run ahead of the block download. As the block store
+     * may keep only a limited number of recent blocks, callers should not get too far ahead of the chain head.
+     *
+     * @return the stored header, or null if it doesn't connect to a stored block
+     * @throws VerificationException if the header is invalid
+     */
+    @Nullable
+    public StoredBlock verifyAndStoreHeader(Block header) throws VerificationException {
+        checkState(!shouldVerifyTransactions(), "Full blocks are checked as a whole");
+        lock.lock();
+        try {
+            StoredBlock stored = blockStore.get(header.getHash());
+            if (stored != null)
+                return stored;
+            StoredBlock storedPrev = blockStore.get(header.getPrevBlockHash());
+            if (storedPrev == null)
+                return null;
+            header.verifyHeader();
+            AbstractPowRulesChecker rulesChecker = ruleCheckerFactory.getRuleChecker(storedPrev, header, ancestorWindow);
+            rulesChecker.checkRules(storedPrev, header, ancestorWindow, this);
+            if (!params.passesCheckpoint(storedPrev.getHeight() + 1, header.getHash()))
+                throw new VerificationException("Block failed checkpoint lockin at " + (storedPrev.getHeight() + 1));
+            stored = storedPrev.build(header.cloneAsHeader());
+            ancestorWindow.put(stored);
+            verifiedHeaders.add(header.getHash());
+            return stored;
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Returns the hashes of the currently stored orphan blocks and then deletes them from this objects storage.
      * Used by Peer when a filter exhaustion event has occurred and thus any orphan blocks that have been downloaded
@@ -595,7 +650,7 @@ public abstract class AbstractBlockChain {
                         block.getHashAsString(), filteredTxHashList.size(), filteredTxn.size());
                 for (Sha256Hash hash : filteredTxHashList) log.debug("  matched tx {}", hash);
             }
-            if (expensiveChecks && block.getTimeSeconds() <= getMedianTimestampOfRecentBlocks(head, blockStore))
+            if (expensiveChecks && block.getTimeSeconds() <= getMedianTimestampOfRecentBlocks(head, ancestorWindow))
                 throw new VerificationException("Block's timestamp is too early");
 
             // BIP 66 & 65: Enforce block version 3/4 once they are a supermajority of blocks
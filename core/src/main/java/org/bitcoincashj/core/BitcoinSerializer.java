@@ -25,6 +25,7 @@ import java.io.OutputStream;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
@@ -68,6 +69,7 @@ public class BitcoinSerializer extends MessageSerializer {
         names.put(GetAddrMessage.class, "getaddr");
         names.put(HeadersMessage.class, "headers");
         names.put(BloomFilter.class, "filterload");
+        names.put(FilterAddMessage.class, "filteradd");
         names.put(FilteredBlock.class, "merkleblock");
         names.put(NotFoundMessage.class, "notfound");
         names.put(MemoryPoolMessage.class, "mempool");
@@ -117,6 +119,15 @@ public class BitcoinSerializer extends MessageSerializer {
      */
     @Override
     public void serialize(String name, byte[] message, OutputStream out) throws IOException {
+        byte[] header = serializeHeader(name, message);
+        out.write(header);
+        out.write(message);
+
+        if (log.isDebugEnabled())
+            log.debug("Sending {} message: {}", name, HEX.encode(header) + HEX.encode(message));
+    }
+
+    private byte[] serializeHeader(String name, byte[] message) {
         byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
         uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
 
@@ -130,11 +141,7 @@ public class BitcoinSerializer extends MessageSerializer {
 
         byte[] hash = Sha256Hash.hashTwice(message);
         System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
-        out.write(header);
-        out.write(message);
-
-        if (log.isDebugEnabled())
-            log.debug("Sending {} message: {}", name, HEX.encode(header) + HEX.encode(message));
+        return header;
     }
 
     /**
@@ -149,6 +156,24 @@ public class BitcoinSerializer extends MessageSerializer {
         serialize(name, message.bitcoinSerialize(), out);
     }
 
+    /**
+     * Serializes the message into a header buffer and a payload buffer. The payload buffer is read only, as it may
+     * share the message's cached serialization.
+     */
+    @Override
+    public ByteBuffer[] serializeToBuffers(Message message) {
+        String name = names.get(message.getClass());
+        if (name == null) {
+            throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
+        }
+        byte[] payload = message.unsafeBitcoinSerialize();
+        byte[] header = serializeHeader(name, payload);
+
+        if (log.isDebugEnabled())
+            log.debug("Sending {} message: {}", name, HEX.encode(header) + HEX.encode(payload));
+        return new ByteBuffer[] { ByteBuffer.wrap(header), ByteBuffer.wrap(payload).asReadOnlyBuffer() };
+    }
+
     /**
      * Reads a message from the given ByteBuffer and returns it.
      */
@@ -189,12 +214,26 @@ public class BitcoinSerializer extends MessageSerializer {
      */
     @Override
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
-        byte[] payloadBytes = new byte[header.size];
-        in.get(payloadBytes, 0, header.size);
+        if (header.size > in.remaining())
+            throw new BufferUnderflowException();
+        byte[] payloadBytes;
+        int offset;
+        if (in.hasArray()) {
+            // Parse the payload in place rather than copying it first, wherever it is in the backing array, such as
+            // the buffer PeerSocketHandler collects a large message in, or a buffer holding several messages. The
+            // payload may be followed by other bytes, so makeMessage() checks that parsing stayed within it.
+            payloadBytes = in.array();
+            offset = in.arrayOffset() + in.position();
+            in.position(in.position() + header.size);
+        } else {
+            payloadBytes = new byte[header.size];
+            offset = 0;
+            in.get(payloadBytes, 0, header.size);
+        }
 
         // Verify the checksum.
         byte[] hash;
-        hash = Sha256Hash.hashTwice(payloadBytes);
+        hash = Sha256Hash.hashTwice(payloadBytes, offset, header.size);
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
@@ -204,14 +243,38 @@ public class BitcoinSerializer extends MessageSerializer {
 
         if (log.isDebugEnabled()) {
             log.debug("Received {} byte '{}' message: {}", header.size, header.command,
-                    HEX.encode(payloadBytes));
+                    HEX.encode(payloadBytes, offset, header.size));
         }
 
         try {
-            return makeMessage(header.command, header.size, payloadBytes, hash, header.checksum);
+            return makeMessage(header.command, header.size, payloadBytes, offset, hash, header.checksum);
         } catch (Exception e) {
-            throw new ProtocolException("Error deserializing message " + HEX.encode(payloadBytes) + "\n", e);
+            throw new ProtocolException("Error deserializing message " + HEX.encode(payloadBytes, offset, header.size) + "\n", e);
+        }
+    }
+
+    private Message makeMessage(String command, int length, byte[] payloadBytes, int offset, byte[] hash, byte[] checksum) throws ProtocolException {
+        // The bulky messages can be parsed from anywhere in an array, the others need one that holds just the payload.
+        Message message = null;
+        if (command.equals("block")) {
+            message = makeBlock(payloadBytes, offset, length);
+        } else if (command.equals("tx")) {
+            message = makeTransaction(payloadBytes, offset, length, hash);
+        } else if (command.equals("inv")) {
+            message = makeInventoryMessage(payloadBytes, offset, length);
+        } else if (command.equals("headers")) {
+            message = new HeadersMessage(params, payloadBytes, offset, this, length);
         }
+        if (message != null) {
+            // Parsing only stops at the end of the array, so a malformed payload could have been read into the bytes
+            // after it.
+            if (message.getMessageSize() > length)
+                throw new ProtocolException("Ran off the end of the " + command + " payload");
+            return message;
+        }
+        if (offset != 0 || payloadBytes.length != length)
+            payloadBytes = Arrays.copyOfRange(payloadBytes, offset, offset + length);
+        return makeMessage(command, length, payloadBytes, hash, checksum);
     }
 
     private Message makeMessage(String command, int length, byte[] payloadBytes, byte[] hash, byte[] checksum) throws ProtocolException {
@@ -244,6 +307,8 @@ public class BitcoinSerializer extends MessageSerializer {
             return new HeadersMessage(params, payloadBytes);
         } else if (command.equals("filterload")) {
             return makeBloomFilter(payloadBytes);
+        } else if (command.equals("filteradd")) {
+            return new FilterAddMessage(params, payloadBytes);
         } else if (command.equals("notfound")) {
             return new NotFoundMessage(params, payloadBytes);
         } else if (command.equals("mempool")) {
@@ -315,7 +380,15 @@ public class BitcoinSerializer extends MessageSerializer {
      */
     @Override
     public InventoryMessage makeInventoryMessage(byte[] payloadBytes, int length) throws ProtocolException {
-        return new InventoryMessage(params, payloadBytes, this, length);
+        return makeInventoryMessage(payloadBytes, 0, length);
+    }
+
+    /**
+     * Make an inventory message from the payload starting at the given offset. Extension point for alternative
+     * serialization format support.
+     */
+    public InventoryMessage makeInventoryMessage(byte[] payloadBytes, int offset, int length) throws ProtocolException {
+        return new InventoryMessage(params, payloadBytes, offset, this, length);
     }
 
     /**
@@ -130,6 +130,7 @@ public class BlockChain extends AbstractBlockChain {
             // Modify store directly
             blockStore.put(newChainHead);
             this.setChainHead(newChainHead);
+            ancestorWindow.clear();
         } finally {
             lock.unlock();
         }
@@ -0,0 +1,970 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.core;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import net.jcip.annotations.GuardedBy;
+import org.bitcoincashj.store.BlockStore;
+import org.bitcoincashj.store.BlockStoreException;
+import org.bitcoincashj.utils.ContextPropagatingThreadFactory;
+import org.bitcoincashj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Downloads the block chain from several peers at once, in three stages:</p>
+ *
+ * <ol>
+ * <li>{@link Stage#HEADERS}: the download peer supplies the headers. Like in the usual chain download, headers before
+ * the fast catchup time are added to the chain without their blocks. The proof of work and difficulty of the later
+ * ones are checked with {@link AbstractBlockChain#verifyAndStoreHeader(Block)}, and they lay out the plan of blocks
+ * to fetch. Headers are requested only while the plan is short, as the block store may keep few blocks. They are
+ * checked on a thread of their own rather than the network threads.</li>
+ * <li>{@link Stage#BLOCKS}: the blocks in a sliding window at the start of the plan are requested from all suitable
+ * peers, each having at most a few requests outstanding. Requests that a peer doesn't answer within the stall
+ * timeout, or that it can't serve, are cancelled and given to another peer. No more blocks are requested while those
+ * that arrived ahead of a missing one take up more than the byte budget.</li>
+ * <li>{@link Stage#APPLY}: the blocks are added to the chain strictly in order, which tells the wallets about them.
+ * This runs on a thread of its own rather than the network threads.</li>
+ * </ol>
+ *
+ * <p>No stage ever waits for space in the next one. The network threads must not block, so the plan, the window and
+ * the byte budget bound the work in progress instead, and a stage asks for more when the next one has taken some. Once the plan is
+ * done the download peer continues with the usual chain download, which also picks up blocks that were found in the
+ * meantime.</p>
+ *
+ * <p>Filtered blocks are downloaded if a Bloom filter is in use; if one of them exhausts the filter, the download
+ * pauses until the filter is recalculated and then requests the blocks again.</p>
+ *
+ * <p>A {@link PeerGroup} uses this once {@link PeerGroup#setMaxBlockDownloadPeers(int)} allows more than one peer.
+ * This class is thread safe.</p>
+ */
+public class BlockDownloadScheduler {
+    private static final Logger log = LoggerFactory.getLogger(BlockDownloadScheduler.class);
+
+    /** The number of blocks, counted from the next one to add to the chain, that may be requested at once. */
+    public static final int DEFAULT_WINDOW_SIZE = 256;
+    /** The number of blocks that may be requested from one peer at once. */
+    public static final int DEFAULT_MAX_BLOCKS_PER_PEER = 32;
+    /** How long a peer may take to deliver a block before it is requested from another peer. */
+    public static final long DEFAULT_STALL_TIMEOUT_MILLIS = 10000;
+    /** The size of the blocks that may be held after arriving ahead of a missing one before no more are requested. */
+    public static final long DEFAULT_MAX_RECEIVED_BYTES = 32 * 1024 * 1024;
+    // Headers are requested ahead only while fewer than this many planned blocks are left. They are in the block
+    // store, so this must stay well below the capacity of an SPVBlockStore.
+    private static final int MAX_PLANNED_BLOCKS = 2 * HeadersMessage.MAX_HEADERS;
+
+    /** The stages of the download. */
+    public enum Stage {
+        /** Downloading and checking headers. */
+        HEADERS,
+        /** Downloading blocks. */
+        BLOCKS,
+        /** Adding blocks to the chain and the wallets. */
+        APPLY
+    }
+
+    private final PeerGroup peerGroup;
+    private final AbstractBlockChain chain;
+    private final NetworkParameters params;
+
+    private final ReentrantLock lock = Threading.lock(BlockDownloadScheduler.class);
+    // Held while adding blocks to the chain, so they are added in order.
+    private final ReentrantLock deliveryLock = new ReentrantLock();
+    // Run the header and apply stages. Their threads go away while there is nothing to do.
+    private final ThreadPoolExecutor headerExecutor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ContextPropagatingThreadFactory("Block download: headers"));
+    private final ThreadPoolExecutor applyExecutor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ContextPropagatingThreadFactory("Block download: apply"));
+
+    @GuardedBy("lock") private boolean running, paused, headersRequested, headersDone;
+    // Bumped whenever outstanding requests are abandoned, so their answers can be told apart.
+    @GuardedBy("lock") private int generation;
+    @GuardedBy("lock") private Peer downloadPeer;
+    @GuardedBy("lock") private boolean filtered;
+    @GuardedBy("lock") private long fastCatchupTimeSecs;
+    @GuardedBy("lock") private int windowSize = DEFAULT_WINDOW_SIZE;
+    @GuardedBy("lock") private int maxBlocksPerPeer = DEFAULT_MAX_BLOCKS_PER_PEER;
+    @GuardedBy("lock") private long stallTimeoutMillis = DEFAULT_STALL_TIMEOUT_MILLIS;
+    @GuardedBy("lock") private long maxReceivedBytes = DEFAULT_MAX_RECEIVED_BYTES;
+    @GuardedBy("lock") private int maxPeers = 1;
+    // The blocks still to add to the chain, in chain order, and their heights.
+    @GuardedBy("lock") private final ArrayDeque<Sha256Hash> plan = new ArrayDeque<>();
+    @GuardedBy("lock") private final Map<Sha256Hash, Integer> heights = new HashMap<>();
+    @GuardedBy("lock") private final Map<Sha256Hash, Request> inFlight = new HashMap<>();
+    @GuardedBy("lock") private final Map<Peer, Integer> inFlightPerPeer = new HashMap<>();
+    // Blocks that arrived before the blocks preceding them, and their size.
+    @GuardedBy("lock") private final Map<Sha256Hash, Message> received = new HashMap<>();
+    @GuardedBy("lock") private long receivedBytes;
+    // The answers to requests that were given up on, to be cancelled once the lock is released.
+    @GuardedBy("lock") private final List<ListenableFuture<?>> abandoned = new ArrayList<>();
+    // The peers that failed to deliver a block, which are asked for it again only if no other peer can be.
+    @GuardedBy("lock") private final Map<Sha256Hash, Set<Peer>> excluded = new HashMap<>();
+    @GuardedBy("lock") private final Map<Peer, Counters> counters = new LinkedHashMap<>();
+    @GuardedBy("lock") private boolean stallCheckScheduled;
+    @GuardedBy("lock") private boolean applyScheduled;
+    @GuardedBy("lock") private final EnumMap<Stage, StageCounters> stageCounters = new EnumMap<>(Stage.class);
+    @GuardedBy("lock") private long startMillis;
+
+    private static class Request {
+        final Peer peer;
+        final long sentMillis;
+        // Set once the request is sent.
+        @Nullable ListenableFuture<?> future;
+
+        Request(Peer peer, long sentMillis) {
+            this.peer = peer;
+            this.sentMillis = sentMillis;
+        }
+    }
+
+    private static class Counters {
+        long blocks, bytes, stalls, failures, latencyMillis;
+    }
+
+    private static class StageCounters {
+        long items, bytes, busyMillis;
+    }
+
+    /** A snapshot of the work a stage did since the download started. */
+    public static class StageStats {
+        /** The headers checked, blocks received or blocks applied. */
+        public final long items;
+        /** The size of the blocks received, for {@link Stage#BLOCKS}. */
+        public final long bytes;
+        /** The time spent working, rather than waiting for the network or the other stages. */
+        public final long busyMillis;
+        /** The items waiting for the next stage. */
+        public final int queued;
+        /** The time since the download started. */
+        public final long elapsedMillis;
+
+        StageStats(StageCounters counters, int queued, long elapsedMillis) {
+            this.items = counters.items;
+            this.bytes = counters.bytes;
+            this.busyMillis = counters.busyMillis;
+            this.queued = queued;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /** Returns the items per second since the download started. */
+        public double getItemsPerSecond() {
+            return elapsedMillis == 0 ? 0 : items * 1000.0 / elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d items, %.1f/sec, %.2f KB, busy %d ms, %d queued", items,
+                    getItemsPerSecond(), bytes / 1024.0, busyMillis, queued);
+        }
+    }
+
+    /** A snapshot of what a peer contributed to the download. */
+    public static class PeerStats {
+        /** The blocks the peer delivered first. */
+        public final long blocks;
+        /** The size of those blocks, including the transactions sent with filtered blocks. */
+        public final long bytes;
+        /** The requests the peer didn't answer within the stall timeout. */
+        public final long stalls;
+        /** The requests the peer couldn't serve. */
+        public final long failures;
+        /** The average time between requesting a block and receiving it. */
+        public final long averageLatencyMillis;
+
+        PeerStats(Counters counters) {
+            this.blocks = counters.blocks;
+            this.bytes = counters.bytes;
+            this.stalls = counters.stalls;
+            this.failures = counters.failures;
+            this.averageLatencyMillis = counters.blocks == 0 ? 0 : counters.latencyMillis / counters.blocks;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d blocks, %.2f KB, %d ms average latency, %d stalls, %d failures",
+                    blocks, bytes / 1024.0, averageLatencyMillis, stalls, failures);
+        }
+    }
+
+    public BlockDownloadScheduler(PeerGroup peerGroup, AbstractBlockChain chain) {
+        this.peerGroup = checkNotNull(peerGroup);
+        this.chain = checkNotNull(chain);
+        this.params = peerGroup.params;
+        headerExecutor.allowCoreThreadTimeOut(true);
+        applyExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /** Sets the number of peers to download blocks from at once, including the download peer. */
+    public void setMaxPeers(int maxPeers) {
+        checkArgument(maxPeers > 0);
+        lock.lock();
+        try {
+            this.maxPeers = maxPeers;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the number of blocks, counted from the next one to add to the chain, that may be requested at once, and how
+     * many of them may be requested from a single peer.
+     */
+    public void setWindowSize(int windowSize, int maxBlocksPerPeer) {
+        checkArgument(windowSize > 0 && maxBlocksPerPeer > 0);
+        lock.lock();
+        try {
+            this.windowSize = windowSize;
+            this.maxBlocksPerPeer = maxBlocksPerPeer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Sets how long a peer may take to deliver a block before it is requested from another peer. */
+    public void setStallTimeoutMillis(long stallTimeoutMillis) {
+        checkArgument(stallTimeoutMillis > 0);
+        lock.lock();
+        try {
+            this.stallTimeoutMillis = stallTimeoutMillis;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the size of the blocks that may be held after arriving ahead of a missing one. Once they take up more, only
+     * the missing block is requested until it has been added to the chain.
+     */
+    public void setMaxReceivedBytes(long maxReceivedBytes) {
+        checkArgument(maxReceivedBytes > 0);
+        lock.lock();
+        try {
+            this.maxReceivedBytes = maxReceivedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true while the blocks of the plan are being downloaded. */
+    public boolean isRunning() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns what each peer contributed to the download so far. */
+    public Map<Peer, PeerStats> getPeerStats() {
+        lock.lock();
+        try {
+            Map<Peer, PeerStats> stats = new LinkedHashMap<>();
+            for (Map.Entry<Peer, Counters> entry : counters.entrySet())
+                stats.put(entry.getKey(), new PeerStats(entry.getValue()));
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the work each stage did since the download started. The items queued after {@link Stage#HEADERS} are the
+     * planned blocks not yet requested, and those after {@link Stage#BLOCKS} the blocks received but not yet applied.
+     */
+    public Map<Stage, StageStats> getStageStats() {
+        lock.lock();
+        try {
+            return getStageStatsLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Map<Stage, StageStats> getStageStatsLocked() {
+        long elapsed = startMillis == 0 ? 0 : Utils.currentTimeMillis() - startMillis;
+        Map<Stage, StageStats> stats = new EnumMap<>(Stage.class);
+        for (Stage stage : Stage.values()) {
+            int queued;
+            if (stage == Stage.HEADERS)
+                queued = plan.size() - inFlight.size() - received.size();
+            else if (stage == Stage.BLOCKS)
+                queued = received.size();
+            else
+                queued = 0;
+            stats.put(stage, new StageStats(stageCountersOf(stage), queued, elapsed));
+        }
+        return stats;
+    }
+
+    private StageCounters stageCountersOf(Stage stage) {
+        StageCounters counters = stageCounters.get(stage);
+        if (counters == null)
+            stageCounters.put(stage, counters = new StageCounters());
+        return counters;
+    }
+
+    // Adds the work of a stage to its counters.
+    private void countStage(Stage stage, long items, long bytes, long busyMillis) {
+        lock.lock();
+        try {
+            StageCounters counters = stageCountersOf(stage);
+            counters.items += items;
+            counters.bytes += bytes;
+            counters.busyMillis += busyMillis;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts downloading the chain, using the given peer for the headers. Anything a previous download left
+     * outstanding is abandoned. The peer should not download the chain itself in the meantime.
+     */
+    void start(Peer downloadPeer, long fastCatchupTimeSecs) {
+        lock.lock();
+        try {
+            resetLocked();
+            this.running = true;
+            this.downloadPeer = checkNotNull(downloadPeer);
+            this.fastCatchupTimeSecs = fastCatchupTimeSecs;
+            this.filtered = downloadPeer.getBloomFilter() != null;
+            this.startMillis = Utils.currentTimeMillis();
+            stageCounters.clear();
+            if (!stallCheckScheduled) {
+                peerGroup.executor.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            checkStalls();
+                        } catch (Throwable e) {
+                            log.error("Exception when checking for stalled block downloads", e);  // The executor swallows exceptions :(
+                        }
+                    }
+                }, 1, 1, TimeUnit.SECONDS);
+                stallCheckScheduled = true;
+            }
+            log.info("Downloading {} blocks from up to {} peers", filtered ? "filtered" : "full", maxPeers);
+        } finally {
+            lock.unlock();
+        }
+        cancelAbandoned();
+        requestHeaders();
+    }
+
+    /** Stops the download, abandoning all outstanding requests. */
+    void stop() {
+        lock.lock();
+        try {
+            resetLocked();
+        } finally {
+            lock.unlock();
+        }
+        cancelAbandoned();
+    }
+
+    /**
+     * Gives the requests of a disconnected peer to other peers. If it was the download peer, the download stops until
+     * it is started with another one.
+     */
+    void peerDisconnected(Peer peer) {
+        lock.lock();
+        try {
+            if (!running)
+                return;
+            if (peer == downloadPeer) {
+                resetLocked();
+                return;
+            }
+            Iterator<Request> it = inFlight.values().iterator();
+            while (it.hasNext()) {
+                Request request = it.next();
+                if (request.peer == peer) {
+                    abandonLocked(request);
+                    it.remove();
+                }
+            }
+            inFlightPerPeer.remove(peer);
+        } finally {
+            lock.unlock();
+            cancelAbandoned();
+        }
+        fill();
+    }
+
+    private void resetLocked() {
+        running = false;
+        paused = false;
+        headersRequested = false;
+        headersDone = false;
+        generation++;
+        downloadPeer = null;
+        plan.clear();
+        heights.clear();
+        abandonAllLocked();
+        excluded.clear();
+    }
+
+    // Gives up on all requests and the blocks received so far.
+    private void abandonAllLocked() {
+        for (Request request : inFlight.values())
+            abandonLocked(request);
+        inFlight.clear();
+        inFlightPerPeer.clear();
+        received.clear();
+        receivedBytes = 0;
+    }
+
+    private void abandonLocked(Request request) {
+        if (request.future != null)
+            abandoned.add(request.future);
+    }
+
+    // Cancels the requests given up on, so the peers forget them. Their callbacks run right away, so this must not be
+    // called with the lock held.
+    private void cancelAbandoned() {
+        checkState(!lock.isHeldByCurrentThread());
+        List<ListenableFuture<?>> futures;
+        lock.lock();
+        try {
+            if (abandoned.isEmpty())
+                return;
+            futures = new ArrayList<>(abandoned);
+            abandoned.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (ListenableFuture<?> future : futures)
+            future.cancel(false);
+    }
+
+    // Asks the download peer for the headers after the chain head, or after the last planned block.
+    private void requestHeaders() {
+        final Peer peer;
+        final int gen;
+        BlockLocator locator;
+        lock.lock();
+        try {
+            if (!running || paused || headersRequested || headersDone || plan.size() >= MAX_PLANNED_BLOCKS)
+                return;
+            if (plan.isEmpty())
+                locator = buildLocator();
+            else
+                locator = new BlockLocator().add(plan.peekLast()).add(params.getGenesisBlock().getHash());
+            headersRequested = true;
+            peer = downloadPeer;
+            gen = generation;
+        } finally {
+            lock.unlock();
+        }
+        // The headers are checked on the header thread, as that takes the chain lock and waits for blocks being added.
+        Futures.addCallback(peer.getBlockHeaders(locator, Sha256Hash.ZERO_HASH), new FutureCallback<List<Block>>() {
+            @Override
+            public void onSuccess(List<Block> headers) {
+                try {
+                    onHeaders(gen, peer, headers);
+                } catch (Throwable e) {
+                    log.error("Exception when checking downloaded headers", e);  // The executor swallows exceptions :(
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                log.warn("{}: Failed to download headers", peer, throwable);
+                lock.lock();
+                try {
+                    if (gen != generation)
+                        return;
+                    headersRequested = false;
+                } finally {
+                    lock.unlock();
+                }
+                // Without headers nothing more can be planned, so leave the rest to the usual chain download.
+                fallBack("headers request failed: " + throwable);
+            }
+        }, headerExecutor);
+    }
+
+    // The chain head and the 100 blocks before it, like the locator of the usual chain download.
+    private BlockLocator buildLocator() {
+        BlockLocator locator = new BlockLocator();
+        BlockStore store = chain.getBlockStore();
+        StoredBlock cursor = chain.getChainHead();
+        for (int i = 100; cursor != null && i > 0; i--) {
+            locator = locator.add(cursor.getHeader().getHash());
+            try {
+                cursor = cursor.getPrev(store);
+            } catch (BlockStoreException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        if (cursor != null)
+            locator = locator.add(params.getGenesisBlock().getHash());
+        return locator;
+    }
+
+    private void onHeaders(int gen, Peer peer, List<Block> headers) {
+        long startMillis = Utils.currentTimeMillis();
+        deliveryLock.lock();
+        try {
+            for (Block header : headers) {
+                long catchupTime;
+                boolean planned;
+                lock.lock();
+                try {
+                    if (gen != generation)
+                        return;
+                    planned = !plan.isEmpty();
+                    catchupTime = fastCatchupTimeSecs;
+                } finally {
+                    lock.unlock();
+                }
+                // Headers before the fast catchup time go straight into the chain, as long as no block is planned
+                // before them and the last one is left to download.
+                boolean reachedTop = chain.getBestChainHeight() + 1 >= peer.getBestHeight();
+                if (!planned && header.getTimeSeconds() < catchupTime && !reachedTop) {
+                    if (!chain.add(header)) {
+                        fallBack("unconnected header " + header.getHashAsString());
+                        return;
+                    }
+                    peer.invokeOnBlocksDownloaded(header, null);
+                } else {
+                    StoredBlock stored = chain.verifyAndStoreHeader(header);
+                    if (stored == null) {
+                        fallBack("unconnected header " + header.getHashAsString());
+                        return;
+                    }
+                    lock.lock();
+                    try {
+                        if (gen != generation)
+                            return;
+                        plan.addLast(header.getHash());
+                        heights.put(header.getHash(), stored.getHeight());
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }
+        } catch (VerificationException e) {
+            fallBack("header verification failed: " + e.getMessage());
+            return;
+        } catch (PrunedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            deliveryLock.unlock();
+        }
+        countStage(Stage.HEADERS, headers.size(), 0, Utils.currentTimeMillis() - startMillis);
+        lock.lock();
+        try {
+            if (gen != generation)
+                return;
+            headersRequested = false;
+            headersDone = headers.size() < HeadersMessage.MAX_HEADERS;
+        } finally {
+            lock.unlock();
+        }
+        fill();
+        requestHeaders();
+        maybeFinish();
+    }
+
+    // Requests the blocks of the window that are neither requested nor received yet.
+    private void fill() {
+        List<Peer> connected = peerGroup.getConnectedPeers();
+        Map<Peer, List<Sha256Hash>> batches = new LinkedHashMap<>();
+        final boolean filtered;
+        final int gen;
+        lock.lock();
+        try {
+            if (!running || paused || plan.isEmpty())
+                return;
+            filtered = this.filtered;
+            gen = generation;
+            List<Peer> candidates = new ArrayList<>();
+            candidates.add(downloadPeer);
+            for (Peer peer : connected) {
+                if (candidates.size() >= maxPeers)
+                    break;
+                VersionMessage version = peer.getPeerVersionMessage();
+                if (peer == downloadPeer || version == null || !version.hasBlockChain())
+                    continue;
+                if (filtered && (!version.isBloomFilteringSupported() || peer.getBloomFilter() == null))
+                    continue;
+                candidates.add(peer);
+            }
+            long now = Utils.currentTimeMillis();
+            int i = 0;
+            for (Sha256Hash hash : plan) {
+                if (i++ >= windowSize)
+                    break;
+                // The next block to add is always requested, so the blocks waiting for it can't hold up the download.
+                if (i > 1 && receivedBytes >= maxReceivedBytes)
+                    break;
+                if (inFlight.containsKey(hash) || received.containsKey(hash))
+                    continue;
+                Peer peer = choosePeer(candidates, hash, false);
+                if (peer == null)
+                    peer = choosePeer(candidates, hash, true);
+                if (peer == null)
+                    continue;
+                inFlight.put(hash, new Request(peer, now));
+                inFlightPerPeer.put(peer, countInFlight(peer) + 1);
+                List<Sha256Hash> batch = batches.get(peer);
+                if (batch == null)
+                    batches.put(peer, batch = new ArrayList<>());
+                batch.add(hash);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Map.Entry<Peer, List<Sha256Hash>> entry : batches.entrySet()) {
+            Peer peer = entry.getKey();
+            List<Sha256Hash> hashes = entry.getValue();
+            List<ListenableFuture<? extends Message>> futures = new ArrayList<>(hashes.size());
+            if (filtered) {
+                futures.addAll(peer.getFilteredBlocks(hashes));
+            } else {
+                for (Sha256Hash hash : hashes)
+                    futures.add(peer.getBlock(hash));
+            }
+            for (int i = 0; i < hashes.size(); i++)
+                addCallback(futures.get(i), gen, peer, hashes.get(i));
+            lock.lock();
+            try {
+                for (int i = 0; i < hashes.size(); i++) {
+                    Request request = inFlight.get(hashes.get(i));
+                    if (gen == generation && request != null && request.peer == peer)
+                        request.future = futures.get(i);
+                    else
+                        abandoned.add(futures.get(i));  // Given up on before it was sent, or already answered.
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        cancelAbandoned();
+    }
+
+    // The peer with the fewest requests outstanding that has the block and may be asked for it.
+    @Nullable
+    private Peer choosePeer(List<Peer> candidates, Sha256Hash hash, boolean includeExcluded) {
+        checkState(lock.isHeldByCurrentThread());
+        Set<Peer> excludedPeers = includeExcluded ? null : excluded.get(hash);
+        int height = heights.get(hash);
+        Peer best = null;
+        int bestCount = maxBlocksPerPeer;
+        for (Peer peer : candidates) {
+            int count = countInFlight(peer);
+            if (count >= bestCount || peer.getBestHeight() < height)
+                continue;
+            if (excludedPeers != null && excludedPeers.contains(peer))
+                continue;
+            best = peer;
+            bestCount = count;
+        }
+        return best;
+    }
+
+    private int countInFlight(Peer peer) {
+        Integer count = inFlightPerPeer.get(peer);
+        return count == null ? 0 : count;
+    }
+
+    private void addCallback(ListenableFuture<? extends Message> future, final int gen, final Peer peer,
+                             final Sha256Hash hash) {
+        Futures.addCallback(future, new FutureCallback<Message>() {
+            @Override
+            public void onSuccess(Message block) {
+                onBlock(gen, peer, hash, block);
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                // The peer sent notfound, or the connection closed.
+                onBlock(gen, peer, hash, null);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private void onBlock(int gen, Peer peer, Sha256Hash hash, @Nullable Message block) {
+        lock.lock();
+        try {
+            if (gen != generation)
+                return;
+            Request request = inFlight.get(hash);
+            boolean requested = request != null && request.peer == peer;
+            if (requested) {
+                inFlight.remove(hash);
+                inFlightPerPeer.put(peer, countInFlight(peer) - 1);
+            }
+            Counters peerCounters = countersOf(peer);
+            if (block == null) {
+                // Requests taken away from the peer are cancelled, which isn't the peer's failure.
+                if (requested) {
+                    peerCounters.failures++;
+                    excludeLocked(hash, peer);
+                }
+            } else if (heights.containsKey(hash) && !received.containsKey(hash)) {
+                // The first copy to arrive wins, which may be from a peer the request was taken away from.
+                received.put(hash, block);
+                long size = messageSize(block);
+                receivedBytes += size;
+                peerCounters.blocks++;
+                peerCounters.bytes += size;
+                StageCounters blocksCounters = stageCountersOf(Stage.BLOCKS);
+                blocksCounters.items++;
+                blocksCounters.bytes += size;
+                if (requested)
+                    peerCounters.latencyMillis += Utils.currentTimeMillis() - request.sentMillis;
+            }
+        } finally {
+            lock.unlock();
+        }
+        deliver();
+        fill();
+        requestHeaders();
+        maybeFinish();
+    }
+
+    private Counters countersOf(Peer peer) {
+        Counters peerCounters = counters.get(peer);
+        if (peerCounters == null)
+            counters.put(peer, peerCounters = new Counters());
+        return peerCounters;
+    }
+
+    private void excludeLocked(Sha256Hash hash, Peer peer) {
+        Set<Peer> excludedPeers = excluded.get(hash);
+        if (excludedPeers == null)
+            excluded.put(hash, excludedPeers = new HashSet<>());
+        excludedPeers.add(peer);
+    }
+
+    private static long messageSize(Message block) {
+        long size = block.getMessageSize();
+        if (block instanceof FilteredBlock)
+            for (Transaction tx : ((FilteredBlock) block).getAssociatedTransactions().values())
+                size += tx.getMessageSize();
+        return size;
+    }
+
+    // Has the blocks received at the start of the plan added to the chain, unless that is already under way.
+    private void deliver() {
+        lock.lock();
+        try {
+            if (applyScheduled || !running || paused || plan.isEmpty() || !received.containsKey(plan.peekFirst()))
+                return;
+            applyScheduled = true;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            applyExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        apply();
+                    } catch (Throwable e) {
+                        log.error("Exception when adding downloaded blocks to the chain", e);  // The executor swallows exceptions :(
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Can happen during shutdown.
+        }
+    }
+
+    // Adds the received blocks at the start of the plan to the chain, until the next one is missing.
+    private void apply() {
+        long startMillis = Utils.currentTimeMillis();
+        int applied = 0;
+        boolean done = false;
+        deliveryLock.lock();
+        try {
+            while (true) {
+                Message block;
+                Peer peer;
+                lock.lock();
+                try {
+                    block = running && !paused && !plan.isEmpty() ? received.remove(plan.peekFirst()) : null;
+                    if (block == null) {
+                        applyScheduled = false;
+                        done = true;
+                        break;
+                    }
+                    receivedBytes -= messageSize(block);
+                    peer = downloadPeer;
+                } finally {
+                    lock.unlock();
+                }
+                if (block instanceof FilteredBlock && peer.checkForFilterExhaustion((FilteredBlock) block)) {
+                    refreshFilter(block.getHash());
+                    break;
+                }
+                boolean connected = block instanceof FilteredBlock ? chain.add((FilteredBlock) block)
+                        : chain.add((Block) block);
+                if (!connected) {
+                    fallBack("block " + block.getHash() + " does not connect");
+                    break;
+                }
+                applied++;
+                lock.lock();
+                try {
+                    Sha256Hash hash = plan.removeFirst();
+                    heights.remove(hash);
+                    excluded.remove(hash);
+                } finally {
+                    lock.unlock();
+                }
+                if (block instanceof FilteredBlock)
+                    peer.invokeOnBlocksDownloaded(((FilteredBlock) block).getBlockHeader(), (FilteredBlock) block);
+                else
+                    peer.invokeOnBlocksDownloaded((Block) block, null);
+            }
+        } catch (VerificationException e) {
+            fallBack("block verification failed: " + e.getMessage());
+        } catch (PrunedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (!done) {
+                lock.lock();
+                try {
+                    applyScheduled = false;
+                } finally {
+                    lock.unlock();
+                }
+            }
+            deliveryLock.unlock();
+        }
+        countStage(Stage.APPLY, applied, 0, Utils.currentTimeMillis() - startMillis);
+        // The window moved on.
+        fill();
+        requestHeaders();
+        maybeFinish();
+    }
+
+    // The block exhausted the Bloom filter, so it and all blocks after it may lack transactions. Wait for the new
+    // filter and then request them again.
+    private void refreshFilter(Sha256Hash hash) {
+        final int gen;
+        lock.lock();
+        try {
+            log.info("Bloom filter exhausted whilst processing block {}, waiting for a new one", hash);
+            paused = true;
+            gen = ++generation;
+            abandonAllLocked();
+        } finally {
+            lock.unlock();
+        }
+        cancelAbandoned();
+        // The filter is sent to the peers on the executor before the future completes, so the blocks requested
+        // afterwards are filtered with it.
+        peerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED).addListener(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        lock.lock();
+                        try {
+                            if (gen != generation)
+                                return;
+                            paused = false;
+                        } finally {
+                            lock.unlock();
+                        }
+                        fill();
+                    }
+                }, MoreExecutors.directExecutor());
+    }
+
+    // Something went wrong that the usual chain download can deal with better, such as a reorganisation.
+    private void fallBack(String reason) {
+        Peer peer;
+        lock.lock();
+        try {
+            if (!running)
+                return;
+            peer = downloadPeer;
+            resetLocked();
+        } finally {
+            lock.unlock();
+        }
+        cancelAbandoned();
+        log.warn("Continuing chain download from {} alone: {}", peer, reason);
+        peer.startBlockChainDownload();
+    }
+
+    private void maybeFinish() {
+        Peer peer;
+        lock.lock();
+        try {
+            if (!running || paused || !headersDone || headersRequested || !plan.isEmpty())
+                return;
+            peer = downloadPeer;
+            for (Map.Entry<Stage, StageStats> entry : getStageStatsLocked().entrySet())
+                log.info("Block download stage {}: {}", entry.getKey(), entry.getValue());
+            for (Map.Entry<Peer, Counters> entry : counters.entrySet())
+                log.info("Block download from {}: {}", entry.getKey(), new PeerStats(entry.getValue()));
+            resetLocked();
+        } finally {
+            lock.unlock();
+        }
+        cancelAbandoned();
+        // Picks up the blocks found during the download and keeps following the chain.
+        peer.startBlockChainDownload();
+    }
+
+    // Requests blocks again that took their peer too long.
+    void checkStalls() {
+        lock.lock();
+        try {
+            if (!running || paused || inFlight.isEmpty())
+                return;
+            long now = Utils.currentTimeMillis();
+            Iterator<Map.Entry<Sha256Hash, Request>> it = inFlight.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Sha256Hash, Request> entry = it.next();
+                Request request = entry.getValue();
+                if (now - request.sentMillis < stallTimeoutMillis)
+                    continue;
+                log.info("{}: Stalled on block {}, requesting it elsewhere", request.peer, entry.getKey());
+                it.remove();
+                abandonLocked(request);
+                inFlightPerPeer.put(request.peer, countInFlight(request.peer) - 1);
+                countersOf(request.peer).stalls++;
+                excludeLocked(entry.getKey(), request.peer);
+            }
+        } finally {
+            lock.unlock();
+        }
+        cancelAbandoned();
+        fill();
+    }
+}
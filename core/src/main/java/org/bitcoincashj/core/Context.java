@@ -72,8 +72,23 @@ public class Context {
      * @param ensureMinRequiredFee Whether to ensure the minimum required fee by default when completing transactions. For details, see {@link SendRequest#ensureMinRequiredFee}.
      */
     public Context(NetworkParameters params, int eventHorizon, Coin feePerKb, boolean ensureMinRequiredFee) {
+        this(params, eventHorizon, feePerKb, ensureMinRequiredFee, TxConfidenceTable.MAX_SIZE);
+    }
+
+    /**
+     * Creates a new custom context object with a confidence table of the given size, e.g. a bigger one for apps
+     * that connect to many peers and watch a busy mempool.
+     *
+     * @param params               The network parameters that will be associated with this context.
+     * @param eventHorizon         Number of blocks after which the library will delete data and be unable to always process reorgs. See {@link #getEventHorizon()}.
+     * @param feePerKb             The default fee per 1000 virtual bytes of transaction data to pay when completing transactions. For details, see {@link SendRequest#feePerKb}.
+     * @param ensureMinRequiredFee Whether to ensure the minimum required fee by default when completing transactions. For details, see {@link SendRequest#ensureMinRequiredFee}.
+     * @param confidenceTableSize  Max number of transactions tracked by the {@link TxConfidenceTable}.
+     */
+    public Context(NetworkParameters params, int eventHorizon, Coin feePerKb, boolean ensureMinRequiredFee,
+                   int confidenceTableSize) {
         log.info("Creating bitcoincashj {} context.", VersionMessage.bitcoincashj_VERSION);
-        this.confidenceTable = new TxConfidenceTable();
+        this.confidenceTable = new TxConfidenceTable(confidenceTableSize);
         this.params = params;
         this.eventHorizon = eventHorizon;
         this.ensureMinRequiredFee = ensureMinRequiredFee;
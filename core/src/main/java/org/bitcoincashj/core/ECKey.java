@@ -711,6 +711,8 @@ public class ECKey implements EncryptableItem {
      * <p>When using native ECDSA verification, data must be 32 bytes, and no element may be
      * larger than 520 bytes.</p>
      *
+     * <p>Signatures that verified before are answered from the {@link SignatureCache}.</p>
+     *
      * @param data      Hash of the data to verify.
      * @param signature ASN.1 encoded signature.
      * @param pub       The public key bytes to use.
@@ -719,9 +721,20 @@ public class ECKey implements EncryptableItem {
         if (FAKE_SIGNATURES)
             return true;
 
+        SignatureCache cache = SignatureCache.get();
+        byte[] der = signature.encodeToDER();
+        if (cache.isVerifiedEcdsa(data, der, pub))
+            return true;
+        boolean valid = verifyUncached(data, signature, der, pub);
+        if (valid)
+            cache.addVerifiedEcdsa(data, der, pub);
+        return valid;
+    }
+
+    private static boolean verifyUncached(byte[] data, ECDSASignature signature, byte[] der, byte[] pub) {
         if (Secp256k1Context.isEnabled()) {
             try {
-                return NativeSecp256k1.verify(data, signature.encodeToDER(), pub);
+                return NativeSecp256k1.verify(data, der, pub);
             } catch (NativeSecp256k1Util.AssertFailException e) {
                 log.error("Caught AssertFailException inside secp256k1", e);
                 return false;
@@ -751,8 +764,14 @@ public class ECKey implements EncryptableItem {
      */
     public static boolean verify(byte[] data, byte[] signature, byte[] pub) throws SignatureDecodeException {
         if (Secp256k1Context.isEnabled()) {
+            SignatureCache cache = SignatureCache.get();
+            if (cache.isVerifiedEcdsa(data, signature, pub))
+                return true;
             try {
-                return NativeSecp256k1.verify(data, signature, pub);
+                boolean valid = NativeSecp256k1.verify(data, signature, pub);
+                if (valid)
+                    cache.addVerifiedEcdsa(data, signature, pub);
+                return valid;
             } catch (NativeSecp256k1Util.AssertFailException e) {
                 log.error("Caught AssertFailException inside secp256k1", e);
                 return false;
@@ -761,8 +780,19 @@ public class ECKey implements EncryptableItem {
         return verify(data, ECDSASignature.decodeFromDER(signature), pub);
     }
 
+    /**
+     * Verifies the given Schnorr signature against a hash using the public key bytes. Like ECDSA verification this
+     * consults the {@link SignatureCache} first.
+     */
     public static boolean verifySchnorr(byte[] sigHash, SchnorrSignature signature, byte[] pubKey) {
-        return SchnorrSignature.schnorr_verify(sigHash, pubKey, signature.getSignature());
+        SignatureCache cache = SignatureCache.get();
+        byte[] sig = signature.getSignature();
+        if (cache.isVerifiedSchnorr(sigHash, sig, pubKey))
+            return true;
+        boolean valid = SchnorrSignature.schnorr_verify(sigHash, pubKey, sig);
+        if (valid)
+            cache.addVerifiedSchnorr(sigHash, sig, pubKey);
+        return valid;
     }
 
     /**
@@ -784,7 +814,7 @@ public class ECKey implements EncryptableItem {
     }
 
     public boolean verifySchnorr(Sha256Hash sigHash, SchnorrSignature signature) {
-        return SchnorrSignature.schnorr_verify(sigHash.getBytes(), getPubKey(), signature.getSignature());
+        return ECKey.verifySchnorr(sigHash.getBytes(), signature, getPubKey());
     }
 
     /**
@@ -0,0 +1,65 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.core;
+
+import org.bitcoincashj.script.Script;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>The "filteradd" message inserts one data element into the {@link BloomFilter} loaded on the connection, so a
+ * filter can be extended with new keys without sending it again. See
+ * <a href="https://github.com/bitcoin/bips/blob/master/bip-0037.mediawiki">BIP 37</a>.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class FilterAddMessage extends Message {
+    private byte[] data;
+
+    public FilterAddMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    /**
+     * Creates a message inserting the given element, which may not be longer than a script element.
+     */
+    public FilterAddMessage(byte[] data) {
+        checkArgument(data.length <= Script.MAX_SCRIPT_ELEMENT_SIZE, "Filter element too long: %s bytes", data.length);
+        this.data = Arrays.copyOf(data, data.length);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        data = readByteArray();
+        if (data.length > Script.MAX_SCRIPT_ELEMENT_SIZE)
+            throw new ProtocolException("Filter element out of size range.");
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(new VarInt(data.length).encode());
+        stream.write(data);
+    }
+
+    /** Returns the element to insert into the filter. */
+    public byte[] getData() {
+        return Arrays.copyOf(data, data.length);
+    }
+}
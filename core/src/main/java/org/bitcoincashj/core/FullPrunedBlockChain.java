@@ -22,7 +22,6 @@ import org.bitcoincashj.script.Script.VerifyFlag;
 import org.bitcoincashj.script.ScriptPattern;
 import org.bitcoincashj.store.BlockStoreException;
 import org.bitcoincashj.store.FullPrunedBlockStore;
-import org.bitcoincashj.utils.ContextPropagatingThreadFactory;
 import org.bitcoincashj.wallet.Wallet;
 import org.bitcoincashj.wallet.WalletExtension;
 import org.slf4j.Logger;
@@ -31,8 +30,8 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nullable;
 import java.io.File;
 import java.util.*;
-import java.util.concurrent.*;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
@@ -53,6 +52,11 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 
     // Whether or not to execute scriptPubKeys before accepting a transaction (i.e. check signatures).
     private boolean runScripts = true;
+    // Whether to verify the Schnorr signatures of a block in one batch.
+    private boolean batchSchnorrVerification = true;
+    // Runs the scripts of connected blocks.
+    private ScriptVerificationScheduler scriptVerificationScheduler = ScriptVerificationScheduler.getDefault();
+    private final Context context;
 
     /**
      * Constructs a block chain connected to the given wallet and store. To obtain a {@link Wallet} you can construct
@@ -92,6 +96,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
      */
     public FullPrunedBlockChain(Context context, List<Wallet> listeners, FullPrunedBlockStore blockStore) throws BlockStoreException {
         super(context, listeners, blockStore);
+        this.context = context;
         this.blockStore = blockStore;
         // Ignore upgrading for now
         this.chainHead = blockStore.getVerifiedChainHead();
@@ -142,42 +147,29 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         this.runScripts = value;
     }
 
-    // TODO: Remove lots of duplicated code in the two connectTransactions
-
-    // TODO: execute in order of largest transaction (by input count) first
-    ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(
-            Runtime.getRuntime().availableProcessors(), new ContextPropagatingThreadFactory("Script verification"));
+    /**
+     * Whether to verify the Schnorr signatures checked by OP_CHECKSIG and OP_CHECKDATASIG of a block all at once,
+     * which is considerably cheaper than one by one. If the batch fails, the transactions of the block are checked
+     * individually to find the culprit. Defaults to true.
+     */
+    public void setBatchSchnorrVerification(boolean value) {
+        this.batchSchnorrVerification = value;
+    }
 
     /**
-     * A job submitted to the executor which verifies signatures.
+     * Sets the scheduler that runs the scripts of connected blocks. By default all chains share
+     * {@link ScriptVerificationScheduler#getDefault()}.
      */
-    private static class Verifier implements Callable<VerificationException> {
-        final Transaction tx;
-        final List<Script> prevOutScripts;
-        final Set<VerifyFlag> verifyFlags;
-
-        public Verifier(final Transaction tx, final List<Script> prevOutScripts, final Set<VerifyFlag> verifyFlags) {
-            this.tx = tx;
-            this.prevOutScripts = prevOutScripts;
-            this.verifyFlags = verifyFlags;
-        }
+    public void setScriptVerificationScheduler(ScriptVerificationScheduler scheduler) {
+        this.scriptVerificationScheduler = checkNotNull(scheduler);
+    }
 
-        @Nullable
-        @Override
-        public VerificationException call() throws Exception {
-            try {
-                ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
-                for (int index = 0; index < tx.getInputs().size(); index++) {
-                    Coin value = tx.getInput(index).getConnectedOutput() != null ? tx.getInput(index).getConnectedOutput().getValue() : Coin.ZERO;
-                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), value, verifyFlags);
-                }
-            } catch (VerificationException e) {
-                return e;
-            }
-            return null;
-        }
+    public ScriptVerificationScheduler getScriptVerificationScheduler() {
+        return scriptVerificationScheduler;
     }
 
+    // TODO: Remove lots of duplicated code in the two connectTransactions
+
     /**
      * Get the {@link Script} from the script bytes or return Script of empty byte array.
      */
@@ -221,10 +213,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         LinkedList<UTXO> txOutsCreated = new LinkedList<>();
         long sigOps = 0;
 
-        if (scriptVerificationExecutor.isShutdown())
-            scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-        List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<>(block.getTransactions().size());
+        ScriptVerificationScheduler.BlockVerification scriptVerification =
+                scriptVerificationScheduler.startBlock(context, batchSchnorrVerification);
         try {
             if (!params.isCheckpoint(height)) {
                 // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
@@ -241,13 +231,14 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         sigOps += tx.getSigOpCount();
                 }
             }
+            prefetchSpentOutputs(block.getTransactions());
             Coin totalFees = Coin.ZERO;
             Coin coinbaseValue = null;
             for (final Transaction tx : block.getTransactions()) {
                 boolean isCoinBase = tx.isCoinBase();
                 Coin valueIn = Coin.ZERO;
                 Coin valueOut = Coin.ZERO;
-                final List<Script> prevOutScripts = new LinkedList<>();
+                final List<UTXO> prevOuts = new ArrayList<>();
                 final Set<VerifyFlag> verifyFlags = params.getTransactionVerificationFlags(block, tx, getVersionTally(), height);
                 if (!isCoinBase) {
                     // For each input of the transaction remove the corresponding output from the set of unspent
@@ -275,7 +266,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                                 throw new VerificationException("Too many P2SH SigOps in block");
                         }
 
-                        prevOutScripts.add(prevOut.getScript());
+                        prevOuts.add(prevOut);
                         blockStore.removeUnspentTransactionOutput(prevOut);
                         txOutsSpent.add(prevOut);
                     }
@@ -307,35 +298,41 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 }
 
                 if (!isCoinBase && runScripts) {
-                    // Because correctlySpends modifies transactions, this must come after we are done with tx
-                    FutureTask<VerificationException> future = new FutureTask<>(new Verifier(tx, prevOutScripts, verifyFlags));
-                    scriptVerificationExecutor.execute(future);
-                    listScriptVerificationResults.add(future);
+                    // Queued after the cheap checks above, so that a transaction they reject never reaches
+                    // the verification threads. From here on those threads check the scripts and only read tx.
+                    scriptVerification.add(tx, prevOuts, verifyFlags);
                 }
             }
             if (totalFees.compareTo(params.getMaxMoney()) > 0 || block.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
                 throw new VerificationException("Transaction fees out of range");
-            for (Future<VerificationException> future : listScriptVerificationResults) {
-                VerificationException e;
-                try {
-                    e = future.get();
-                } catch (InterruptedException thrownE) {
-                    throw new RuntimeException(thrownE); // Shouldn't happen
-                } catch (ExecutionException thrownE) {
-                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                }
-                if (e != null)
-                    throw e;
-            }
+            scriptVerification.await();
         } catch (VerificationException | BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerification.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
         return new TransactionOutputChanges(txOutsCreated, txOutsSpent);
     }
 
+    /**
+     * Lets the store read the outputs spent by the given transactions before they are connected one by one. Outputs
+     * created by earlier transactions of the same block aren't in the store yet and are left out.
+     */
+    private void prefetchSpentOutputs(List<Transaction> transactions) throws BlockStoreException {
+        Set<Sha256Hash> created = new HashSet<>();
+        List<TransactionOutPoint> outPoints = new ArrayList<>();
+        for (Transaction tx : transactions) {
+            if (!tx.isCoinBase()) {
+                for (TransactionInput in : tx.getInputs()) {
+                    if (!created.contains(in.getOutpoint().getHash()))
+                        outPoints.add(in.getOutpoint());
+                }
+            }
+            created.add(tx.getTxId());
+        }
+        blockStore.prefetchTransactionOutputs(outPoints);
+    }
+
     /**
      * Used during reorgs to connect a block previously on a fork
      */
@@ -354,6 +351,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             throw new PrunedException(newBlock.getHeader().getHash());
         }
         TransactionOutputChanges txOutChanges;
+        ScriptVerificationScheduler.BlockVerification scriptVerification = null;
         try {
             List<Transaction> transactions = block.getTransactions();
             if (transactions != null) {
@@ -371,16 +369,15 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 Coin totalFees = Coin.ZERO;
                 Coin coinbaseValue = null;
 
-                if (scriptVerificationExecutor.isShutdown())
-                    scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-                List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<>(transactions.size());
+                prefetchSpentOutputs(transactions);
+                scriptVerification = scriptVerificationScheduler.startBlock(context, batchSchnorrVerification);
                 for (final Transaction tx : transactions) {
                     final Set<VerifyFlag> verifyFlags =
                             params.getTransactionVerificationFlags(newBlock.getHeader(), tx, getVersionTally(), Integer.SIZE);
                     boolean isCoinBase = tx.isCoinBase();
                     Coin valueIn = Coin.ZERO;
                     Coin valueOut = Coin.ZERO;
-                    final List<Script> prevOutScripts = new LinkedList<>();
+                    final List<UTXO> prevOuts = new ArrayList<>();
 
                     if (!isCoinBase) {
                         for (int index = 0; index < tx.getInputs().size(); index++) {
@@ -401,7 +398,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 
                             // TODO: Enforce DER signature format
 
-                            prevOutScripts.add(prevOut.getScript());
+                            prevOuts.add(prevOut);
 
                             blockStore.removeUnspentTransactionOutput(prevOut);
                             txOutsSpent.add(prevOut);
@@ -434,29 +431,16 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     }
 
                     if (!isCoinBase) {
-                        // Because correctlySpends modifies transactions, this must come after we are done with tx
-                        FutureTask<VerificationException> future = new FutureTask<>(new Verifier(tx, prevOutScripts, verifyFlags));
-                        scriptVerificationExecutor.execute(future);
-                        listScriptVerificationResults.add(future);
+                        // Queued after the cheap checks above, so that a transaction they reject never reaches
+                        // the verification threads. From here on those threads check the scripts and only read tx.
+                        scriptVerification.add(tx, prevOuts, verifyFlags);
                     }
                 }
                 if (totalFees.compareTo(params.getMaxMoney()) > 0 ||
                         newBlock.getHeader().getBlockInflation(newBlock.getHeight()).add(totalFees).compareTo(coinbaseValue) < 0)
                     throw new VerificationException("Transaction fees out of range");
                 txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-                for (Future<VerificationException> future : listScriptVerificationResults) {
-                    VerificationException e;
-                    try {
-                        e = future.get();
-                    } catch (InterruptedException thrownE) {
-                        throw new RuntimeException(thrownE); // Shouldn't happen
-                    } catch (ExecutionException thrownE) {
-                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                    }
-                    if (e != null)
-                        throw e;
-                }
+                scriptVerification.await();
             } else {
                 txOutChanges = block.getTxOutChanges();
                 if (!params.isCheckpoint(newBlock.getHeight()))
@@ -471,7 +455,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     blockStore.removeUnspentTransactionOutput(out);
             }
         } catch (VerificationException | BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            if (scriptVerification != null)
+                scriptVerification.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
@@ -45,6 +45,11 @@ public class HeadersMessage extends Message {
         super(params, payload, 0);
     }
 
+    public HeadersMessage(NetworkParameters params, byte[] payload, int offset, MessageSerializer serializer, int length)
+            throws ProtocolException {
+        super(params, payload, offset, serializer, length);
+    }
+
     public HeadersMessage(NetworkParameters params, Block... headers) throws ProtocolException {
         super(params);
         blockHeaders = Arrays.asList(headers);
@@ -83,9 +88,7 @@ public class HeadersMessage extends Message {
             blockHeaders.add(newBlockHeader);
         }
 
-        if (length == UNKNOWN_LENGTH) {
-            length = cursor - offset;
-        }
+        length = cursor - offset;
 
         if (log.isDebugEnabled()) {
             for (int i = 0; i < numHeaders; ++i) {
@@ -52,6 +52,21 @@ public class InventoryMessage extends ListMessage {
         super(params, payload, serializer, length);
     }
 
+    /**
+     * Deserializes an 'inv' message starting at the given offset of the array.
+     *
+     * @param params     NetworkParameters object.
+     * @param payload    Bitcoin protocol formatted byte array containing message content.
+     * @param offset     The location of the first payload byte within the array.
+     * @param serializer the serializer to use for this message.
+     * @param length     The length of message if known, or Message.UNKNOWN_LENGTH.
+     * @throws ProtocolException
+     */
+    public InventoryMessage(NetworkParameters params, byte[] payload, int offset, MessageSerializer serializer, int length)
+            throws ProtocolException {
+        super(params, payload, offset, serializer, length);
+    }
+
     public InventoryMessage(NetworkParameters params) {
         super(params);
     }
@@ -44,7 +44,12 @@ public abstract class ListMessage extends Message {
 
     public ListMessage(NetworkParameters params, byte[] payload, MessageSerializer serializer, int length)
             throws ProtocolException {
-        super(params, payload, 0, serializer, length);
+        this(params, payload, 0, serializer, length);
+    }
+
+    public ListMessage(NetworkParameters params, byte[] payload, int offset, MessageSerializer serializer, int length)
+            throws ProtocolException {
+        super(params, payload, offset, serializer, length);
     }
 
     public ListMessage(NetworkParameters params) {
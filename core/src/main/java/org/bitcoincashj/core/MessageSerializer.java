@@ -18,6 +18,7 @@
 
 package org.bitcoincashj.core;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.BufferUnderflowException;
@@ -167,4 +168,25 @@ public abstract class MessageSerializer {
      */
     public abstract void serialize(Message message, OutputStream out) throws IOException, UnsupportedOperationException;
 
+    /**
+     * Serializes the message into buffers ready to be handed to
+     * {@link org.bitcoincashj.net.MessageWriteTarget#writeBytes(ByteBuffer...)} without further copying. By default
+     * this is a single buffer holding what {@link #serialize(Message, OutputStream)} writes; subclasses can avoid the
+     * copy.
+     *
+     * @throws UnsupportedOperationException if this serializer/deserializer
+     *                                       does not support serialization. This can occur either because it's a dummy
+     *                                       serializer (i.e. for messages with no network parameters), or because
+     *                                       it does not support serializing the given message.
+     */
+    public ByteBuffer[] serializeToBuffers(Message message) throws UnsupportedOperationException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            serialize(message, out);
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+        return new ByteBuffer[] { ByteBuffer.wrap(out.toByteArray()) };
+    }
+
 }
@@ -153,6 +153,9 @@ public class Peer extends PeerSocketHandler {
     @Nullable
     @GuardedBy("lock")
     private LinkedList<SettableFuture<UTXOsMessage>> getutxoFutures;
+    // Outstanding requests made by getBlockHeaders, answered in order.
+    @GuardedBy("lock")
+    private LinkedList<SettableFuture<List<Block>>> getHeadersFutures;
 
     // Outstanding pings against this peer and how long the last one took to complete.
     private final ReentrantLock lastPingTimesLock = new ReentrantLock();
@@ -677,10 +680,15 @@ public class Peer extends PeerSocketHandler {
         // request the full blocks from that point on instead.
         boolean downloadBlockBodies;
         long fastCatchupTimeSecs;
+        SettableFuture<List<Block>> future = null;
 
         lock.lock();
         try {
-            if (blockChain == null) {
+            if (getHeadersFutures != null)
+                future = getHeadersFutures.pollFirst();
+            if (future != null) {
+                // Requested by getBlockHeaders, which leaves them to the caller.
+            } else if (blockChain == null) {
                 // Can happen if we are receiving unrequested data, or due to programmer error.
                 log.warn("Received headers when Peer is not configured with a chain.");
                 return;
@@ -690,6 +698,10 @@ public class Peer extends PeerSocketHandler {
         } finally {
             lock.unlock();
         }
+        if (future != null) {
+            future.set(m.getBlockHeaders());
+            return;
+        }
 
         try {
             checkState(!downloadBlockBodies, toString());
@@ -930,9 +942,8 @@ public class Peer extends PeerSocketHandler {
                 log.info("{}: Requesting {} transactions for depth {} dep resolution", getAddress(), needToRequest.size(), depth + 1);
             for (Sha256Hash hash : needToRequest) {
                 getdata.addTransaction(hash);
-                GetDataRequest req = new GetDataRequest(hash, SettableFuture.create());
+                GetDataRequest req = addGetDataRequest(hash);
                 futures.add(req.future);
-                getDataFutures.add(req);
             }
             ListenableFuture<List<Transaction>> successful = Futures.successfulAsList(futures);
             Futures.addCallback(successful, new FutureCallback<List<Transaction>>() {
@@ -1052,6 +1063,8 @@ public class Peer extends PeerSocketHandler {
     protected void endFilteredBlock(FilteredBlock m) {
         if (log.isDebugEnabled())
             log.debug("{}: Received broadcast filtered block {}", getAddress(), m.getHash().toString());
+        // Was this block requested by getFilteredBlocks()?
+        if (maybeHandleRequestedData(m)) return;
         if (!vDownloadData) {
             if (log.isDebugEnabled())
                 log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
@@ -1149,7 +1162,7 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
-    private boolean checkForFilterExhaustion(FilteredBlock m) {
+    boolean checkForFilterExhaustion(FilteredBlock m) {
         boolean exhausted = false;
         for (Wallet wallet : wallets) {
             exhausted |= wallet.checkForFilterExhaustion(m);
@@ -1171,7 +1184,7 @@ public class Peer extends PeerSocketHandler {
         return found;
     }
 
-    private void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb) {
+    void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb) {
         // It is possible for the peer block height difference to be negative when blocks have been solved and broadcast
         // since the time we first connected to the peer. However, it's weird and unexpected to receive a callback
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
@@ -1329,7 +1342,7 @@ public class Peer extends PeerSocketHandler {
     /**
      * Asks the connected peer for the block of the given hash, and returns a future representing the answer.
      * If you want the block right away and don't mind waiting for it, just call .get() on the result. Your thread
-     * will block until the peer answers.
+     * will block until the peer answers. Cancelling the future makes the peer forget the request.
      */
     @SuppressWarnings("unchecked")
     // The 'unchecked conversion' warning being suppressed here comes from the sendSingleGetData() formally returning
@@ -1343,6 +1356,46 @@ public class Peer extends PeerSocketHandler {
         return sendSingleGetData(getdata);
     }
 
+    /**
+     * Asks the connected peer for the filtered blocks of the given hashes, matched against the Bloom filter set on
+     * this connection, and returns futures for them in the same order. A future completes with the filtered block and
+     * the transactions the peer sent along with it, or is cancelled if the peer doesn't have the block. The blocks
+     * are not added to the chain. Cancelling a future makes the peer forget the request.
+     */
+    @SuppressWarnings("unchecked")
+    public List<ListenableFuture<FilteredBlock>> getFilteredBlocks(List<Sha256Hash> blockHashes) {
+        // This does not need to be locked.
+        GetDataMessage getdata = new GetDataMessage(params);
+        List<ListenableFuture<FilteredBlock>> futures = new ArrayList<>(blockHashes.size());
+        for (Sha256Hash hash : blockHashes) {
+            getdata.addFilteredBlock(hash);
+            futures.add(addGetDataRequest(hash).future);
+        }
+        sendMessage(getdata);
+        // The transactions of the last filtered block end with the pong.
+        sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+        return futures;
+    }
+
+    /**
+     * Asks the connected peer for the headers of the blocks after the first hash of the locator that it knows, up to
+     * the stop hash or {@link HeadersMessage#MAX_HEADERS} of them, and returns a future for the answer. Unlike
+     * headers received during chain download, these are not added to the chain.
+     */
+    public ListenableFuture<List<Block>> getBlockHeaders(BlockLocator locator, Sha256Hash stopHash) {
+        SettableFuture<List<Block>> future = SettableFuture.create();
+        lock.lock();
+        try {
+            if (getHeadersFutures == null)
+                getHeadersFutures = new LinkedList<>();
+            getHeadersFutures.add(future);
+            sendMessage(new GetHeadersMessage(params, locator, stopHash));
+        } finally {
+            lock.unlock();
+        }
+        return future;
+    }
+
     /**
      * Asks the connected peer for the given transaction from its memory pool. Transactions in the chain cannot be
      * retrieved this way because peers don't have a transaction ID to transaction-pos-on-disk index, and besides,
@@ -1367,12 +1420,25 @@ public class Peer extends PeerSocketHandler {
     private ListenableFuture sendSingleGetData(GetDataMessage getdata) {
         // This does not need to be locked.
         Preconditions.checkArgument(getdata.getItems().size() == 1);
-        GetDataRequest req = new GetDataRequest(getdata.getItems().get(0).hash, SettableFuture.create());
-        getDataFutures.add(req);
+        GetDataRequest req = addGetDataRequest(getdata.getItems().get(0).hash);
         sendMessage(getdata);
         return req.future;
     }
 
+    // Waits for the answer to a getdata, until it arrives or whoever asked cancels the future.
+    private GetDataRequest addGetDataRequest(Sha256Hash hash) {
+        final GetDataRequest req = new GetDataRequest(hash, SettableFuture.create());
+        getDataFutures.add(req);
+        req.future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (req.future.isCancelled())
+                    getDataFutures.remove(req);
+            }
+        }, MoreExecutors.directExecutor());
+        return req;
+    }
+
     /**
      * Sends a getaddr request to the peer and returns a future that completes with the answer once the peer has replied.
      */
@@ -1531,14 +1597,7 @@ public class Peer extends PeerSocketHandler {
         // chain even if the chain block count is lower.
         final int blocksLeft = getPeerBlockHeightDifference();
         if (blocksLeft >= 0) {
-            for (final ListenerRegistration<ChainDownloadStartedEventListener> registration : chainDownloadStartedEventListeners) {
-                registration.executor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        registration.listener.onChainDownloadStarted(Peer.this, blocksLeft);
-                    }
-                });
-            }
+            invokeOnChainDownloadStarted(blocksLeft);
             // When we just want as many blocks as possible, we can set the target hash to zero.
             lock.lock();
             try {
@@ -1549,6 +1608,17 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    void invokeOnChainDownloadStarted(final int blocksLeft) {
+        for (final ListenerRegistration<ChainDownloadStartedEventListener> registration : chainDownloadStartedEventListeners) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onChainDownloadStarted(Peer.this, blocksLeft);
+                }
+            });
+        }
+    }
+
     private class PendingPing {
         // The future that will be invoked when the pong is heard back.
         public final SettableFuture<Long> future;
@@ -1795,6 +1865,28 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    /**
+     * <p>Tells the remote peer about elements that were inserted into the given filter since it was set on this
+     * connection, using one "filteradd" message per element instead of sending the whole filter again. If the peer
+     * has a different filter, the given one is sent whole via {@link #setBloomFilter(BloomFilter, boolean)}.</p>
+     *
+     * <p>Like setting a filter, this restarts a chain download that was waiting for a filter with more keys.</p>
+     */
+    public void addToBloomFilter(BloomFilter filter, List<byte[]> elements, boolean andQueryMemPool) {
+        checkNotNull(filter);
+        if (vBloomFilter != filter) {
+            setBloomFilter(filter, andQueryMemPool);
+            return;
+        }
+        log.info("{}: Adding {} elements to Bloom filter{}", this, elements.size(),
+                andQueryMemPool ? " and querying mempool" : "");
+        for (byte[] element : elements)
+            sendMessage(new FilterAddMessage(element));
+        if (andQueryMemPool)
+            sendMessage(new MemoryPoolMessage());
+        maybeRestartChainDownload();
+    }
+
     private void maybeRestartChainDownload() {
         lock.lock();
         try {
@@ -172,6 +172,10 @@ public class PeerGroup implements TransactionBroadcaster {
     // until we reach this count.
     @GuardedBy("lock")
     private int maxConnections;
+    // How many peers the chain is downloaded from at once. With more than one, blockDownloadScheduler does it.
+    @GuardedBy("lock")
+    private int maxBlockDownloadPeers = 1;
+    @Nullable private final BlockDownloadScheduler blockDownloadScheduler;
     // Minimum protocol version we will allow ourselves to connect to: require Bloom filtering.
     private volatile int vMinRequiredProtocolVersion;
 
@@ -207,7 +211,7 @@ public class PeerGroup implements TransactionBroadcaster {
     private final KeyChainEventListener walletKeyEventListener = new KeyChainEventListener() {
         @Override
         public void onKeysAdded(List<ECKey> keys) {
-            recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+            addKeysToFilter(keys);
         }
     };
 
@@ -390,6 +394,7 @@ public class PeerGroup implements TransactionBroadcaster {
         peerFilterProviders = new CopyOnWriteArrayList<>();
 
         executor = createPrivateExecutor();
+        blockDownloadScheduler = chain == null ? null : new BlockDownloadScheduler(this, chain);
 
         // This default sentinel value will be overridden by one of two actions:
         //   - adding a peer discovery source sets it to the default
@@ -604,6 +609,44 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     }
 
+    /**
+     * Sets how many peers the block chain is downloaded from at once. With one, the default, the download peer
+     * downloads it alone. With more, the download peer provides the headers and the blocks are requested from up to
+     * this many peers, see {@link BlockDownloadScheduler}. Call this before starting block chain download.
+     */
+    public void setMaxBlockDownloadPeers(int maxBlockDownloadPeers) {
+        checkArgument(maxBlockDownloadPeers > 0);
+        lock.lock();
+        try {
+            this.maxBlockDownloadPeers = maxBlockDownloadPeers;
+            if (blockDownloadScheduler != null)
+                blockDownloadScheduler.setMaxPeers(maxBlockDownloadPeers);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The maximum number of peers the block chain is downloaded from at once.
+     */
+    public int getMaxBlockDownloadPeers() {
+        lock.lock();
+        try {
+            return maxBlockDownloadPeers;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the scheduler that downloads the block chain from several peers, which can be used to tune it or to
+     * see what each peer contributed, or null if there is no block chain.
+     */
+    @Nullable
+    public BlockDownloadScheduler getBlockDownloadScheduler() {
+        return blockDownloadScheduler;
+    }
+
     private List<Message> handleGetData(GetDataMessage m) {
         // Scans the wallets and memory pool for transactions in the getdata message and returns them.
         // Runs on peer threads.
@@ -1185,6 +1228,8 @@ public class PeerGroup implements TransactionBroadcaster {
                     Stopwatch watch = Stopwatch.createStarted();
                     // The log output this creates can be useful.
                     setDownloadPeer(null);
+                    if (blockDownloadScheduler != null)
+                        blockDownloadScheduler.stop();
                     // Blocking close of all sockets.
                     channels.stopAsync();
                     channels.awaitTerminated();
@@ -1418,6 +1463,68 @@ public class PeerGroup implements TransactionBroadcaster {
         return future;
     }
 
+    /**
+     * Inserts keys just added to a wallet into the filter given to peers, so only the new elements need to be sent to
+     * them. The filter is recalculated instead if it has no room left for the keys at the configured false positive
+     * rate, if a key is older than the fast catchup time, or if a wallet is married, because the filter of a married
+     * wallet is made of its scripts instead of its keys.
+     */
+    private void addKeysToFilter(List<ECKey> keys) {
+        final List<byte[]> elements = new ArrayList<>(keys.size() * 2);
+        long earliestKeyTimeSecs = Long.MAX_VALUE;
+        for (ECKey key : keys) {
+            // The same elements that BloomFilter.insert(ECKey) inserts.
+            elements.add(key.getPubKey());
+            elements.add(key.getPubKeyHash());
+            earliestKeyTimeSecs = Math.min(earliestKeyTimeSecs, key.getCreationTimeSeconds());
+        }
+        final long keyTimeSecs = earliestKeyTimeSecs;
+        Runnable command = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    go();
+                } catch (Throwable e) {
+                    log.error("Exception when trying to add keys to Bloom filter", e);  // The executor swallows exceptions :(
+                }
+            }
+
+            public void go() {
+                checkState(!lock.isHeldByCurrentThread());
+                if ((chain != null && chain.shouldVerifyTransactions()) || !vBloomFilteringEnabled)
+                    return;
+                boolean married = false;
+                for (Wallet wallet : wallets)
+                    married |= wallet.hasMarriedKeyChain();
+                // The fast catchup time is a week before the earliest key time, see FilterMerger.
+                if (married || keyTimeSecs - 86400 * 7 < getFastCatchupTimeSecs()) {
+                    recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+                    return;
+                }
+                // Keys looked ahead while the last filter was calculated are already in it, and so in the peers' one.
+                BloomFilter lastFilter = bloomFilterMerger.getLastFilter();
+                List<byte[]> newElements = new ArrayList<>(elements.size());
+                for (byte[] element : elements)
+                    if (lastFilter == null || !lastFilter.contains(element))
+                        newElements.add(element);
+                if (newElements.isEmpty())
+                    return;
+                if (!bloomFilterMerger.insert(newElements)) {
+                    recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+                    return;
+                }
+                BloomFilter filter = bloomFilterMerger.getLastFilter();
+                for (Peer peer : peers /* COW */)
+                    peer.addToBloomFilter(filter, newElements, true);
+            }
+        };
+        try {
+            executor.execute(command);
+        } catch (RejectedExecutionException e) {
+            // Can happen during shutdown.
+        }
+    }
+
     /**
      * <p>Sets the false positive rate of bloom filters given to peers. The default is {@link #DEFAULT_BLOOM_FILTER_FP_RATE}.</p>
      *
@@ -1792,6 +1899,8 @@ public class PeerGroup implements TransactionBroadcaster {
             PeerAddress address = peer.getAddress();
 
             log.info("{}: Peer died      ({} connected, {} pending, {} max)", address, peers.size(), pendingPeers.size(), maxConnections);
+            if (blockDownloadScheduler != null)
+                blockDownloadScheduler.peerDisconnected(peer);
             if (peer == downloadPeer) {
                 log.info("Download peer died. Picking a new one.");
                 setDownloadPeer(null);
@@ -2027,6 +2136,15 @@ public class PeerGroup implements TransactionBroadcaster {
             }
             peer.addBlocksDownloadedEventListener(Threading.SAME_THREAD, chainDownloadSpeedCalculator);
 
+            if (maxBlockDownloadPeers > 1 && blockDownloadScheduler != null) {
+                // The scheduler adds the blocks to the chain, and hands over to the peer once it is done.
+                peer.setDownloadData(false);
+                int blocksLeft = peer.getPeerBlockHeightDifference();
+                if (blocksLeft >= 0)
+                    peer.invokeOnChainDownloadStarted(blocksLeft);
+                blockDownloadScheduler.start(peer, fastCatchupTimeSecs);
+                return;
+            }
             // startBlockChainDownload will setDownloadData(true) on itself automatically.
             peer.startBlockChainDownload();
         } finally {
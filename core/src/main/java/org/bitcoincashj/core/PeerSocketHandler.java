@@ -24,7 +24,6 @@ import org.bitcoincashj.utils.Threading;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
@@ -76,6 +75,22 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
      * TODO: Maybe use something other than the unchecked NotYetConnectedException here
      */
     public ListenableFuture sendMessage(Message message) throws NotYetConnectedException {
+        return write(serializer.serializeToBuffers(message));
+    }
+
+    /**
+     * Sends a message that was already serialized with {@link MessageSerializer#serializeToBuffers(Message)}, so that
+     * a message going to many peers is serialized and checksummed once. The given buffers are left as they are: each
+     * send writes its own views of them, so they can be shared by any number of peers but must not be modified.
+     */
+    public ListenableFuture<?> sendSerializedMessage(ByteBuffer[] serialized) throws NotYetConnectedException {
+        ByteBuffer[] views = new ByteBuffer[serialized.length];
+        for (int i = 0; i < serialized.length; i++)
+            views[i] = serialized[i].duplicate();
+        return write(views);
+    }
+
+    private ListenableFuture<?> write(ByteBuffer[] buffers) throws NotYetConnectedException {
         lock.lock();
         try {
             if (writeTarget == null)
@@ -83,11 +98,8 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            serializer.serialize(message, out);
-            return writeTarget.writeBytes(out.toByteArray());
+            return writeTarget.writeBytes(buffers);
         } catch (IOException e) {
             exceptionCaught(e);
             return Futures.immediateFailedFuture(e);
@@ -0,0 +1,322 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.core;
+
+import org.bitcoincashj.crypto.SchnorrBatchVerifier;
+import org.bitcoincashj.script.Script;
+import org.bitcoincashj.script.Script.VerifyFlag;
+import org.bitcoincashj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Runs the scripts of the blocks connected by a {@link FullPrunedBlockChain} on a work-stealing pool. Inputs are
+ * grouped into chunks of a fixed size regardless of which transaction they belong to, so a block of thousands of
+ * one-input transactions doesn't turn into thousands of tiny tasks and a single huge transaction is still spread over
+ * all workers. This is safe because {@link Script#correctlySpends(Transaction, long, Script, Coin, Set)} only reads the
+ * transaction, and the inputs of a transaction share its signature hash midstates.</p>
+ *
+ * <p>A scheduler is long lived and can be shared by several chains, see {@link #getDefault()} and
+ * {@link FullPrunedBlockChain#setScriptVerificationScheduler(ScriptVerificationScheduler)}. The default scheduler
+ * belongs to all chains that use it, so it can't be shut down. Each block is verified through its own
+ * {@link BlockVerification}. The scheduler exposes the depth of its queue and the time blocks took to
+ * verify.</p>
+ */
+public class ScriptVerificationScheduler {
+    private static final Logger log = LoggerFactory.getLogger(ScriptVerificationScheduler.class);
+
+    /** Default number of inputs verified by one task. */
+    public static final int DEFAULT_CHUNK_SIZE = 16;
+
+    private static ScriptVerificationScheduler defaultScheduler;
+
+    private final ForkJoinPool pool;
+    private final boolean shared;
+    private final int chunkSize;
+    private final AtomicLong blocksVerified = new AtomicLong();
+    private final AtomicLong totalBlockNanos = new AtomicLong();
+    private volatile long lastBlockNanos;
+
+    /**
+     * Creates a scheduler with one worker per available processor and the default chunk size.
+     */
+    public ScriptVerificationScheduler() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates a scheduler with the given number of worker threads, verifying up to chunkSize inputs per task.
+     */
+    public ScriptVerificationScheduler(int threads, int chunkSize) {
+        this(threads, chunkSize, false);
+    }
+
+    private ScriptVerificationScheduler(int threads, int chunkSize, boolean shared) {
+        checkArgument(threads > 0, "threads must be positive");
+        checkArgument(chunkSize > 0, "chunkSize must be positive");
+        this.chunkSize = chunkSize;
+        this.shared = shared;
+        this.pool = new ForkJoinPool(threads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("Script verification " + thread.getPoolIndex());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, Threading.uncaughtExceptionHandler, false);
+    }
+
+    /**
+     * Returns the scheduler used by chains that weren't given one, creating it on first use. Its workers are daemon
+     * threads and {@link #shutdown()} leaves it running.
+     */
+    public static synchronized ScriptVerificationScheduler getDefault() {
+        if (defaultScheduler == null)
+            defaultScheduler = new ScriptVerificationScheduler(Runtime.getRuntime().availableProcessors(),
+                    DEFAULT_CHUNK_SIZE, true);
+        return defaultScheduler;
+    }
+
+    /**
+     * Starts verifying a new block. Scripts run in the given context. If batchSchnorr is set, Schnorr signatures are
+     * verified in one batch per block, see {@link FullPrunedBlockChain#setBatchSchnorrVerification(boolean)}.
+     */
+    public BlockVerification startBlock(Context context, boolean batchSchnorr) {
+        checkState(!pool.isShutdown(), "Scheduler has been shut down");
+        return new BlockVerification(checkNotNull(context), batchSchnorr);
+    }
+
+    /** Number of verification tasks that were submitted but haven't been picked up by a worker yet. */
+    public long getQueueDepth() {
+        return pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount();
+    }
+
+    /** Number of worker threads. */
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /** Number of blocks whose verification has completed, successfully or not. */
+    public long getBlocksVerified() {
+        return blocksVerified.get();
+    }
+
+    /** Time from start to completion of the last block verification, in milliseconds. */
+    public long getLastBlockLatencyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastBlockNanos);
+    }
+
+    /** Average time from start to completion of a block verification, in milliseconds. */
+    public double getAverageBlockLatencyMillis() {
+        long blocks = blocksVerified.get();
+        return blocks == 0 ? 0 : totalBlockNanos.get() / 1e6 / blocks;
+    }
+
+    /**
+     * Stops the worker threads. Verifications already started are allowed to finish. Does nothing for the
+     * {@link #getDefault()} scheduler, as other chains may still be using it.
+     */
+    public void shutdown() {
+        if (shared) {
+            log.debug("Not shutting down the default script verification scheduler");
+            return;
+        }
+        pool.shutdown();
+    }
+
+    private void recordBlock(long nanos) {
+        lastBlockNanos = nanos;
+        totalBlockNanos.addAndGet(nanos);
+        blocksVerified.incrementAndGet();
+    }
+
+    /**
+     * The script verification of a single block. Transactions are added as the block is connected and verified in
+     * the background; {@link #await()} waits for the result. Not thread safe, it is meant to be used by the thread
+     * connecting the block.
+     */
+    public class BlockVerification {
+        private final Context context;
+        private final boolean batchSchnorr;
+        private final long startNanos = System.nanoTime();
+        private final List<Chunk> chunks = new ArrayList<>();
+        private final List<ForkJoinTask<VerificationException>> results = new ArrayList<>();
+        private Chunk current;
+        private boolean done;
+
+        private BlockVerification(Context context, boolean batchSchnorr) {
+            this.context = context;
+            this.batchSchnorr = batchSchnorr;
+        }
+
+        /**
+         * Queues the inputs of the given transaction, which spend the given outputs in the same order.
+         */
+        public void add(Transaction tx, List<UTXO> prevOuts, Set<VerifyFlag> verifyFlags) {
+            checkState(!done, "Verification already completed");
+            checkArgument(prevOuts.size() == tx.getInputs().size(), "Need one spent output per input");
+            // Let the transaction cache its serialization and hash now, so the tasks only ever read it.
+            tx.getTxId();
+            for (int index = 0; index < prevOuts.size(); index++) {
+                if (current == null)
+                    current = new Chunk(context, batchSchnorr ? new SchnorrBatchVerifier() : null);
+                current.add(tx, index, prevOuts.get(index), verifyFlags);
+                if (current.size() >= chunkSize)
+                    submitCurrent();
+            }
+        }
+
+        private void submitCurrent() {
+            chunks.add(current);
+            results.add(pool.submit(current));
+            current = null;
+        }
+
+        /**
+         * Waits until all queued inputs have been verified and throws the first failure, if any. Then verifies the
+         * Schnorr signatures the tasks deferred in one batch, and if that fails, runs the inputs of the chunks whose
+         * signatures don't verify again without batching.
+         */
+        public void await() throws VerificationException {
+            checkState(!done, "Verification already completed");
+            if (current != null)
+                submitCurrent();
+            try {
+                for (ForkJoinTask<VerificationException> result : results) {
+                    VerificationException e;
+                    try {
+                        e = result.get();
+                    } catch (InterruptedException thrownE) {
+                        throw new RuntimeException(thrownE); // Shouldn't happen
+                    } catch (ExecutionException thrownE) {
+                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
+                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
+                    }
+                    if (e != null)
+                        throw e;
+                }
+
+                SchnorrBatchVerifier blockBatch = new SchnorrBatchVerifier();
+                for (Chunk chunk : chunks)
+                    if (chunk.schnorrBatch != null)
+                        blockBatch.addAll(chunk.schnorrBatch);
+                if (blockBatch.verify())
+                    return;
+                log.warn("Batch verification of {} Schnorr signatures failed, checking inputs individually", blockBatch.size());
+                for (Chunk chunk : chunks) {
+                    if (chunk.schnorrBatch == null || chunk.schnorrBatch.verify())
+                        continue;
+                    VerificationException e = chunk.execute(null);
+                    if (e != null)
+                        throw e;
+                }
+            } finally {
+                cancel();
+            }
+        }
+
+        /**
+         * Abandons the verification, e.g. because the block turned out to be invalid for other reasons. Tasks that
+         * haven't started yet are dropped.
+         */
+        public void cancel() {
+            if (done)
+                return;
+            done = true;
+            for (ForkJoinTask<VerificationException> result : results)
+                result.cancel(false);
+            recordBlock(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * A task verifying a run of inputs, possibly of several transactions.
+     */
+    private static class Chunk implements Callable<VerificationException> {
+        private final Context context;
+        private final List<Transaction> txs = new ArrayList<>();
+        private final List<Integer> indexes = new ArrayList<>();
+        private final List<UTXO> prevOuts = new ArrayList<>();
+        private final List<Set<VerifyFlag>> verifyFlags = new ArrayList<>();
+        // Schnorr signatures whose verification was deferred to the end of the block, if batching.
+        @Nullable
+        private final SchnorrBatchVerifier schnorrBatch;
+
+        Chunk(Context context, @Nullable SchnorrBatchVerifier schnorrBatch) {
+            this.context = context;
+            this.schnorrBatch = schnorrBatch;
+        }
+
+        void add(Transaction tx, int index, UTXO prevOut, Set<VerifyFlag> flags) {
+            txs.add(tx);
+            indexes.add(index);
+            prevOuts.add(prevOut);
+            verifyFlags.add(flags);
+        }
+
+        int size() {
+            return txs.size();
+        }
+
+        @Nullable
+        @Override
+        public VerificationException call() {
+            Context.propagate(context);
+            if (schnorrBatch != null) {
+                if (execute(schnorrBatch) == null)
+                    return null;
+                // The scripts might have failed only because a deferred signature was taken to be valid.
+                schnorrBatch.clear();
+            }
+            return execute(null);
+        }
+
+        @Nullable
+        VerificationException execute(@Nullable SchnorrBatchVerifier batch) {
+            Script.setSchnorrBatchVerifier(batch);
+            try {
+                for (int i = 0; i < txs.size(); i++) {
+                    Transaction tx = txs.get(i);
+                    int index = indexes.get(i);
+                    UTXO prevOut = prevOuts.get(i);
+                    tx.getInput(index).getScriptSig().correctlySpends(tx, index, prevOut.getScript(), prevOut.getValue(),
+                            verifyFlags.get(i));
+                }
+            } catch (VerificationException e) {
+                return e;
+            } finally {
+                Script.setSchnorrBatchVerifier(null);
+            }
+            return null;
+        }
+    }
+}
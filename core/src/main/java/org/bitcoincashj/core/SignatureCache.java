@@ -0,0 +1,148 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.core;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A bounded set of (signature hash, public key, signature) triples that have already been verified successfully.
+ * {@link ECKey#verify(byte[], ECKey.ECDSASignature, byte[])} and {@link ECKey#verifySchnorr(byte[],
+ * org.bitcoincashj.crypto.SchnorrSignature, byte[])} consult it before doing any elliptic curve work, so a transaction
+ * whose inputs were checked when it was relayed doesn't have its signatures checked again when its block is
+ * connected.</p>
+ *
+ * <p>Only valid signatures are remembered. Entries are keyed by a SHA-256 of the length prefixed parts of the triple,
+ * salted with a random value picked per cache, so nobody can craft entries that collide with each other. The least
+ * recently used entries are evicted once the cache is full.</p>
+ *
+ * <p>This class is thread safe. There is one shared instance, see {@link #get()}.</p>
+ */
+public class SignatureCache {
+    /** Default number of entries, enough for the inputs of several full blocks. */
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+    private static final byte TYPE_ECDSA = 0;
+    private static final byte TYPE_SCHNORR = 1;
+
+    private static volatile SignatureCache instance = new SignatureCache(DEFAULT_MAX_ENTRIES);
+
+    private final Cache<Sha256Hash, Boolean> entries;
+    private final byte[] salt = new byte[32];
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a cache that holds at most the given number of verified signatures. A size of zero disables caching.
+     */
+    public SignatureCache(int maxEntries) {
+        checkArgument(maxEntries >= 0, "maxEntries must not be negative");
+        new SecureRandom().nextBytes(salt);
+        entries = CacheBuilder.newBuilder().maximumSize(maxEntries).concurrencyLevel(8).build();
+    }
+
+    /** Returns the cache used by {@link ECKey} for all signature verifications. */
+    public static SignatureCache get() {
+        return instance;
+    }
+
+    /** Replaces the shared cache, e.g. with a differently sized one or with one of size zero to disable caching. */
+    public static void set(SignatureCache cache) {
+        instance = checkNotNull(cache);
+    }
+
+    /** Returns true if the given DER encoded ECDSA signature was already verified for the hash and public key. */
+    public boolean isVerifiedEcdsa(byte[] sigHash, byte[] derSignature, byte[] pubKey) {
+        return isVerified(key(TYPE_ECDSA, sigHash, derSignature, pubKey));
+    }
+
+    /** Records a DER encoded ECDSA signature that was verified successfully. */
+    public void addVerifiedEcdsa(byte[] sigHash, byte[] derSignature, byte[] pubKey) {
+        entries.put(key(TYPE_ECDSA, sigHash, derSignature, pubKey), Boolean.TRUE);
+    }
+
+    /** Returns true if the given 64 byte Schnorr signature was already verified for the hash and public key. */
+    public boolean isVerifiedSchnorr(byte[] sigHash, byte[] signature, byte[] pubKey) {
+        return isVerified(key(TYPE_SCHNORR, sigHash, signature, pubKey));
+    }
+
+    /** Records a 64 byte Schnorr signature that was verified successfully. */
+    public void addVerifiedSchnorr(byte[] sigHash, byte[] signature, byte[] pubKey) {
+        entries.put(key(TYPE_SCHNORR, sigHash, signature, pubKey), Boolean.TRUE);
+    }
+
+    private boolean isVerified(Sha256Hash key) {
+        if (entries.getIfPresent(key) != null) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    private Sha256Hash key(byte type, byte[] sigHash, byte[] signature, byte[] pubKey) {
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(salt);
+        digest.update(type);
+        // Every part is prefixed with its length, so that no two triples are hashed as the same bytes.
+        updateWithLength(digest, sigHash);
+        updateWithLength(digest, pubKey);
+        updateWithLength(digest, signature);
+        return Sha256Hash.wrap(digest.digest());
+    }
+
+    private static void updateWithLength(MessageDigest digest, byte[] part) {
+        byte[] length = new byte[4];
+        Utils.uint32ToByteArrayLE(part.length, length, 0);
+        digest.update(length);
+        digest.update(part);
+    }
+
+    /** Number of verifications that were answered from the cache. */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** Number of verifications that had to be done because the signature wasn't in the cache. */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /** Number of signatures currently held. */
+    public long size() {
+        return entries.size();
+    }
+
+    /** Removes all entries and resets the counters. */
+    public void clear() {
+        entries.invalidateAll();
+        hits.set(0);
+        misses.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this).add("size", size()).add("hits", getHitCount())
+                .add("misses", getMissCount()).toString();
+    }
+}
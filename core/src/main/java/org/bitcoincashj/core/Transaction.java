@@ -134,7 +134,7 @@ public class Transaction extends ChildMessage {
 
     // These are bitcoin serialized.
     private long version;
-    private ArrayList<TransactionInput> inputs;
+    private InputList inputs;
     private ArrayList<TransactionOutput> outputs;
 
     private long lockTime;
@@ -148,6 +148,11 @@ public class Transaction extends ChildMessage {
     // These are in memory helpers only. They contain the transaction hashes without and with witness.
     private Sha256Hash cachedTxId;
 
+    // Signature hash midstates shared by all inputs, see hashForSignatureWitness. Dropped whenever the transaction
+    // changes, except for input scripts which they don't cover, so signing one input keeps them for the next.
+    @Nullable
+    private volatile SigHashCache sigHashCache;
+
     // Data about how confirmed this tx is. Serialized, may be null.
     @Nullable
     private TransactionConfidence confidence;
@@ -224,7 +229,7 @@ public class Transaction extends ChildMessage {
     public Transaction(NetworkParameters params) {
         super(params);
         version = 1;
-        inputs = new ArrayList<>();
+        inputs = new InputList();
         outputs = new ArrayList<>();
         // We don't initialize appearsIn deliberately as it's only useful for transactions stored in the wallet.
         length = 8; // 8 for std fields
@@ -555,6 +560,17 @@ public class Transaction extends ChildMessage {
     protected void unCache() {
         super.unCache();
         cachedTxId = null;
+        sigHashCache = null;
+    }
+
+    /**
+     * Uncaches the given input after its script changed. Input scripts aren't covered by the signature hash midstates,
+     * so unlike other changes this keeps them for signing the remaining inputs.
+     */
+    void unCacheInputScript(TransactionInput input) {
+        SigHashCache cache = sigHashCache;
+        input.unCache();
+        sigHashCache = cache;
     }
 
     protected static int calcLength(byte[] buf, int offset) {
@@ -615,7 +631,7 @@ public class Transaction extends ChildMessage {
     private void parseInputs() {
         long numInputs = readVarInt();
         optimalEncodingMessageSize += VarInt.sizeOf(numInputs);
-        inputs = new ArrayList<>(Math.min((int) numInputs, Utils.MAX_INITIAL_ARRAY_LENGTH));
+        inputs = new InputList(Math.min((int) numInputs, Utils.MAX_INITIAL_ARRAY_LENGTH));
         for (long i = 0; i < numInputs; i++) {
             TransactionInput input = new TransactionInput(params, this, payload, cursor, serializer);
             inputs.add(input);
@@ -1305,7 +1321,7 @@ public class Transaction extends ChildMessage {
             if ((sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value) {
                 // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
                 // of other inputs. For example, this is useful for building assurance contracts.
-                tx.inputs = new ArrayList<>();
+                tx.inputs = new InputList(1);
                 tx.inputs.add(input);
             }
 
@@ -1376,41 +1392,27 @@ public class Transaction extends ChildMessage {
             boolean anyoneCanPay,
             boolean useForkId) {
         byte sigHashType = (byte) TransactionSignature.calcSigHashValue(type, anyoneCanPay, useForkId);
-        ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(length == UNKNOWN_LENGTH ? 256 : length + 4);
+        ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(connectedScript.length + 160);
         try {
             byte[] hashPrevouts = new byte[32];
             byte[] hashSequence = new byte[32];
             byte[] hashOutputs = new byte[32];
             anyoneCanPay = (sigHashType & SIGHASH_ANYONECANPAY_VALUE) == SIGHASH_ANYONECANPAY_VALUE;
 
-            if (!anyoneCanPay) {
-                ByteArrayOutputStream bosHashPrevouts = new UnsafeByteArrayOutputStream(256);
-                for (TransactionInput input : this.inputs) {
-                    bosHashPrevouts.write(input.getOutpoint().getHash().getReversedBytes());
-                    uint32ToByteStreamLE(input.getOutpoint().getIndex(), bosHashPrevouts);
-                }
-                hashPrevouts = Sha256Hash.hashTwice(bosHashPrevouts.toByteArray());
+            SigHashCache cache = sigHashCache;
+            if (cache == null || !cache.isFor(this)) {
+                cache = new SigHashCache(this);
+                sigHashCache = cache;
             }
 
-            if (!anyoneCanPay && type != SigHash.SINGLE && type != SigHash.NONE) {
-                ByteArrayOutputStream bosSequence = new UnsafeByteArrayOutputStream(256);
-                for (TransactionInput input : this.inputs) {
-                    uint32ToByteStreamLE(input.getSequenceNumber(), bosSequence);
-                }
-                hashSequence = Sha256Hash.hashTwice(bosSequence.toByteArray());
-            }
+            if (!anyoneCanPay)
+                hashPrevouts = cache.hashPrevouts;
+
+            if (!anyoneCanPay && type != SigHash.SINGLE && type != SigHash.NONE)
+                hashSequence = cache.hashSequence;
 
             if (type != SigHash.SINGLE && type != SigHash.NONE) {
-                ByteArrayOutputStream bosHashOutputs = new UnsafeByteArrayOutputStream(256);
-                for (TransactionOutput output : this.outputs) {
-                    uint64ToByteStreamLE(
-                            BigInteger.valueOf(output.getValue().getValue()),
-                            bosHashOutputs
-                    );
-                    bosHashOutputs.write(new VarInt(output.getScriptBytes().length).encode());
-                    bosHashOutputs.write(output.getScriptBytes());
-                }
-                hashOutputs = Sha256Hash.hashTwice(bosHashOutputs.toByteArray());
+                hashOutputs = cache.hashOutputs;
             } else if (type == SigHash.SINGLE && inputIndex < outputs.size()) {
                 ByteArrayOutputStream bosHashOutputs = new UnsafeByteArrayOutputStream(256);
                 uint64ToByteStreamLE(
@@ -1440,6 +1442,72 @@ public class Transaction extends ChildMessage {
         return Sha256Hash.twiceOf(bos.toByteArray());
     }
 
+    /**
+     * The parts of a BIP143 style signature hash that are the same for every input of a transaction: the hashes of all
+     * outpoints, all sequence numbers and all outputs. They are computed once, so that signing or verifying all inputs
+     * of a transaction hashes it once instead of once per input, and never change afterwards, so verifiers on other
+     * threads can share them.
+     */
+    private static class SigHashCache {
+        private final Transaction tx;
+        private final int inputModifications;
+        private final byte[] hashPrevouts;
+        private final byte[] hashSequence;
+        private final byte[] hashOutputs;
+
+        SigHashCache(Transaction tx) throws IOException {
+            this.tx = tx;
+            this.inputModifications = tx.inputs.modifications();
+            ByteArrayOutputStream prevouts = new UnsafeByteArrayOutputStream(tx.inputs.size() * 36);
+            ByteArrayOutputStream sequences = new UnsafeByteArrayOutputStream(tx.inputs.size() * 4);
+            for (TransactionInput input : tx.inputs) {
+                prevouts.write(input.getOutpoint().getHash().getReversedBytes());
+                uint32ToByteStreamLE(input.getOutpoint().getIndex(), prevouts);
+                uint32ToByteStreamLE(input.getSequenceNumber(), sequences);
+            }
+            this.hashPrevouts = Sha256Hash.hashTwice(prevouts.toByteArray());
+            this.hashSequence = Sha256Hash.hashTwice(sequences.toByteArray());
+            ByteArrayOutputStream outputs = new UnsafeByteArrayOutputStream(tx.outputs.size() * 34);
+            for (TransactionOutput output : tx.outputs) {
+                uint64ToByteStreamLE(BigInteger.valueOf(output.getValue().getValue()), outputs);
+                outputs.write(new VarInt(output.getScriptBytes().length).encode());
+                outputs.write(output.getScriptBytes());
+            }
+            this.hashOutputs = Sha256Hash.hashTwice(outputs.toByteArray());
+        }
+
+        // Changes to the inputs and outputs themselves drop the cache through unCache(), but getInputs() hands out the
+        // list, so inputs added, removed or replaced through it are caught here.
+        boolean isFor(Transaction tx) {
+            return this.tx == tx && inputModifications == tx.inputs.modifications();
+        }
+    }
+
+    /**
+     * The list of inputs. It counts all changes made to it, including those through {@link #getInputs()}, which plain
+     * {@link ArrayList}s only do for changes of their size.
+     */
+    private static class InputList extends ArrayList<TransactionInput> {
+        private static final long serialVersionUID = 1L;
+
+        InputList() {
+        }
+
+        InputList(int initialCapacity) {
+            super(initialCapacity);
+        }
+
+        @Override
+        public TransactionInput set(int index, TransactionInput element) {
+            modCount++;
+            return super.set(index, element);
+        }
+
+        int modifications() {
+            return modCount;
+        }
+    }
+
     @Override
     protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
         // version
@@ -1534,6 +1602,7 @@ public class Transaction extends ChildMessage {
      * Randomly re-orders the transaction outputs: good for privacy
      */
     public void shuffleOutputs() {
+        unCache();
         Collections.shuffle(outputs);
     }
 
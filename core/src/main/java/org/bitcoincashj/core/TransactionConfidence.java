@@ -17,7 +17,6 @@
 
 package org.bitcoincashj.core;
 
-import com.google.common.collect.Iterators;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import org.bitcoincashj.utils.ListenerRegistration;
@@ -73,9 +72,14 @@ public class TransactionConfidence {
     /**
      * The peers that have announced the transaction to us. Network nodes don't have stable identities, so we use
      * IP address as an approximation. It's obviously vulnerable to being gamed if we allow arbitrary people to connect
-     * to us, so only peers we explicitly connected to should go here.
+     * to us, so only peers we explicitly connected to should go here. The first numBroadcastPeers entries are used;
+     * the array is only replaced when it fills up, rather than copied on every announcement.
      */
-    private CopyOnWriteArrayList<PeerAddress> broadcastBy;
+    private PeerAddress[] broadcastBy;
+    private static final PeerAddress[] NO_PEERS = new PeerAddress[0];
+    // Number of entries used in broadcastBy.
+    private int numBroadcastPeers;
+
     /**
      * The time the transaction was last announced to us.
      */
@@ -170,8 +174,7 @@ public class TransactionConfidence {
     private Source source = Source.UNKNOWN;
 
     public TransactionConfidence(Sha256Hash hash) {
-        // Assume a default number of peers for our set.
-        broadcastBy = new CopyOnWriteArrayList<>();
+        broadcastBy = NO_PEERS;
         listeners = new CopyOnWriteArrayList<>();
         this.hash = hash;
     }
@@ -319,9 +322,12 @@ public class TransactionConfidence {
      */
     public boolean markBroadcastBy(PeerAddress address) {
         lastBroadcastedAt = Utils.now();
-        if (!broadcastBy.addIfAbsent(address))
-            return false;  // Duplicate.
         synchronized (this) {
+            if (indexOfBroadcastBy(address) >= 0)
+                return false;  // Duplicate.
+            if (numBroadcastPeers == broadcastBy.length)
+                broadcastBy = Arrays.copyOf(broadcastBy, Math.max(4, numBroadcastPeers * 2));
+            broadcastBy[numBroadcastPeers++] = address;
             if (getConfidenceType() == ConfidenceType.UNKNOWN) {
                 this.confidenceType = ConfidenceType.PENDING;
             }
@@ -329,27 +335,35 @@ public class TransactionConfidence {
         return true;
     }
 
+    private int indexOfBroadcastBy(PeerAddress address) {
+        for (int i = 0; i < numBroadcastPeers; i++)
+            if (broadcastBy[i].equals(address))
+                return i;
+        return -1;
+    }
+
     /**
      * Returns how many peers have been passed to {@link TransactionConfidence#markBroadcastBy}.
      */
-    public int numBroadcastPeers() {
-        return broadcastBy.size();
+    public synchronized int numBroadcastPeers() {
+        return numBroadcastPeers;
     }
 
     /**
      * Returns a snapshot of {@link PeerAddress}es that announced the transaction.
      */
-    public Set<PeerAddress> getBroadcastBy() {
+    public synchronized Set<PeerAddress> getBroadcastBy() {
         Set<PeerAddress> broadcastBySet = new HashSet<>();
-        Iterators.addAll(broadcastBySet, broadcastBy.listIterator());
+        for (int i = 0; i < numBroadcastPeers; i++)
+            broadcastBySet.add(broadcastBy[i]);
         return broadcastBySet;
     }
 
     /**
      * Returns true if the given address has been seen via markBroadcastBy()
      */
-    public boolean wasBroadcastBy(PeerAddress address) {
-        return broadcastBy.contains(address);
+    public synchronized boolean wasBroadcastBy(PeerAddress address) {
+        return indexOfBroadcastBy(address) >= 0;
     }
 
     /**
@@ -436,7 +450,10 @@ public class TransactionConfidence {
      */
     public void clearBroadcastBy() {
         checkState(getConfidenceType() != ConfidenceType.PENDING);
-        broadcastBy.clear();
+        synchronized (this) {
+            broadcastBy = NO_PEERS;
+            numBroadcastPeers = 0;
+        }
         lastBroadcastedAt = null;
     }
 
@@ -471,9 +488,10 @@ public class TransactionConfidence {
      */
     public TransactionConfidence duplicate() {
         TransactionConfidence c = new TransactionConfidence(hash);
-        c.broadcastBy.addAll(broadcastBy);
         c.lastBroadcastedAt = lastBroadcastedAt;
         synchronized (this) {
+            c.broadcastBy = Arrays.copyOf(broadcastBy, numBroadcastPeers);
+            c.numBroadcastPeers = numBroadcastPeers;
             c.confidenceType = confidenceType;
             c.overridingTransaction = overridingTransaction;
             c.appearedAtChainHeight = appearedAtChainHeight;
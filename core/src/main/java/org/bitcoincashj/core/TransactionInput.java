@@ -98,6 +98,7 @@ public class TransactionInput extends ChildMessage {
         super(params);
         this.scriptBytes = scriptBytes;
         this.outpoint = outpoint;
+        this.outpoint.setParent(this);
         this.sequence = NO_SEQUENCE;
         this.value = value;
         setParent(parentTransaction);
@@ -115,6 +116,7 @@ public class TransactionInput extends ChildMessage {
         } else {
             outpoint = new TransactionOutPoint(params, output);
         }
+        outpoint.setParent(this);
         scriptBytes = EMPTY_ARRAY;
         sequence = NO_SEQUENCE;
         setParent(parentTransaction);
@@ -258,7 +260,11 @@ public class TransactionInput extends ChildMessage {
      * @param scriptBytes the scriptBytes to set
      */
     void setScriptBytes(byte[] scriptBytes) {
-        unCache();
+        Transaction parentTransaction = getParentTransaction();
+        if (parentTransaction != null)
+            parentTransaction.unCacheInputScript(this);
+        else
+            unCache();
         this.scriptSig = null;
         int oldLength = length;
         this.scriptBytes = scriptBytes;
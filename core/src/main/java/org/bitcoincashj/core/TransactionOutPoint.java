@@ -204,6 +204,7 @@ public class TransactionOutPoint extends ChildMessage {
     }
 
     void setHash(Sha256Hash hash) {
+        unCache();
         this.hash = hash;
     }
 
@@ -212,6 +213,7 @@ public class TransactionOutPoint extends ChildMessage {
     }
 
     public void setIndex(long index) {
+        unCache();
         this.index = index;
     }
 
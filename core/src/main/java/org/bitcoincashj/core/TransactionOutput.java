@@ -282,6 +282,11 @@ public class TransactionOutput extends ChildMessage {
         return frozen;
     }
 
+    /**
+     * Marks this output as frozen, so that wallets don't select it for spending. For an output that is already in a
+     * wallet use {@link org.bitcoincashj.wallet.Wallet#setOutputFrozen(TransactionOutput, boolean)}, which keeps the
+     * balances of the wallet up to date.
+     */
     public void setFrozen(boolean frozen) {
         this.frozen = frozen;
     }
@@ -19,6 +19,7 @@ package org.bitcoincashj.core;
 import org.bitcoincashj.utils.Threading;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
@@ -26,6 +27,7 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.locks.ReentrantLock;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -38,8 +40,16 @@ import static com.google.common.base.Preconditions.checkNotNull;
  *
  * <p>It is <b>not</b> at this time directly equivalent to the Bitcoin Core memory pool, which tracks
  * all transactions not currently included in the best chain - it's simply a cache.</p>
+ *
+ * <p>Every peer reports every transaction it hears about, so the table is split into shards by transaction hash,
+ * each with its own lock, so that peers announcing different transactions don't wait for each other.</p>
  */
 public class TxConfidenceTable {
+    /**
+     * @deprecated The table is guarded by the locks of its shards, this lock no longer guards anything. Taking it
+     * doesn't stop other threads from changing the table.
+     */
+    @Deprecated
     protected final ReentrantLock lock = Threading.lock(TxConfidenceTable.class);
 
     private static class WeakConfidenceReference extends WeakReference<TransactionConfidence> {
@@ -51,21 +61,74 @@ public class TxConfidenceTable {
         }
     }
 
-    private final Map<Sha256Hash, WeakConfidenceReference> table;
-    private final TransactionConfidence.Factory confidenceFactory;
+    private static class Shard {
+        private final ReentrantLock lock = Threading.lock("TxConfidenceTable shard");
+        private final Map<Sha256Hash, WeakConfidenceReference> table;
+
+        // This ReferenceQueue gets entries added to it when they are only weakly reachable, ie, the TxConfidenceTable
+        // is the only thing that is tracking the confidence data anymore. We check it from time to time and delete
+        // table entries corresponding to expired transactions. In this way memory usage of the system is in line with
+        // however many transactions you actually care to track the confidence of. We can still end up with lots of
+        // hashes being stored if our peers flood us with invs but the size param caps this.
+        private final ReferenceQueue<TransactionConfidence> referenceQueue = new ReferenceQueue<>();
+
+        Shard(final int size) {
+            table = new LinkedHashMap<Sha256Hash, WeakConfidenceReference>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Sha256Hash, WeakConfidenceReference> entry) {
+                    // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the
+                    // event of some kind of DoS attack.
+                    return size() > size;
+                }
+            };
+        }
+
+        /**
+         * If any transactions have expired due to being only weakly reachable through us, go ahead and delete their
+         * table entries - it means we downloaded the transaction and sent it to various event listeners, none of
+         * which bothered to keep a reference. Typically, this is because the transaction does not involve any keys
+         * that are relevant to any of our wallets.
+         */
+        @GuardedBy("lock")
+        private void cleanTable() {
+            Reference<? extends TransactionConfidence> ref;
+            while ((ref = referenceQueue.poll()) != null) {
+                // Find which transaction got deleted by the GC.
+                WeakConfidenceReference txRef = (WeakConfidenceReference) ref;
+                // And remove the associated map entry so the other bits of memory can also be reclaimed. Unless the
+                // hash was tracked again since, in which case the entry holds a different reference.
+                if (table.get(txRef.hash) == txRef)
+                    table.remove(txRef.hash);
+            }
+        }
+
+        @GuardedBy("lock")
+        private TransactionConfidence getOrCreate(Sha256Hash hash, TransactionConfidence.Factory confidenceFactory) {
+            WeakConfidenceReference reference = table.get(hash);
+            if (reference != null) {
+                TransactionConfidence confidence = reference.get();
+                if (confidence != null)
+                    return confidence;
+            }
+            TransactionConfidence newConfidence = confidenceFactory.createConfidence(hash);
+            table.put(hash, new WeakConfidenceReference(newConfidence, referenceQueue));
+            return newConfidence;
+        }
+    }
 
-    // This ReferenceQueue gets entries added to it when they are only weakly reachable, ie, the TxConfidenceTable is the
-    // only thing that is tracking the confidence data anymore. We check it from time to time and delete table entries
-    // corresponding to expired transactions. In this way memory usage of the system is in line with however many
-    // transactions you actually care to track the confidence of. We can still end up with lots of hashes being stored
-    // if our peers flood us with invs but the MAX_SIZE param caps this.
-    private ReferenceQueue<TransactionConfidence> referenceQueue;
+    private final Shard[] shards;
+    private final TransactionConfidence.Factory confidenceFactory;
 
     /**
      * The max size of a table created with the no-args constructor.
      */
     public static final int MAX_SIZE = 1000;
 
+    /**
+     * The number of shards a table is split into, unless given otherwise.
+     */
+    public static final int DEFAULT_SHARDS = 16;
+
     /**
      * Creates a table that will track at most the given number of transactions (allowing you to bound memory
      * usage).
@@ -73,19 +136,32 @@ public class TxConfidenceTable {
      * @param size Max number of transactions to track. The table will fill up to this size then stop growing.
      */
     public TxConfidenceTable(final int size) {
-        this(size, new TransactionConfidence.Factory());
+        this(size, DEFAULT_SHARDS);
+    }
+
+    /**
+     * Creates a table that will track at most the given number of transactions, split into the given number of
+     * independently locked shards. The number of shards is rounded down to a power of two no larger than the size.
+     * As each shard evicts its own oldest entries, the table may start evicting before it is completely full.
+     *
+     * @param size   Max number of transactions to track.
+     * @param shards Number of shards, more shards allow more concurrent updates.
+     */
+    public TxConfidenceTable(final int size, final int shards) {
+        this(size, shards, new TransactionConfidence.Factory());
     }
 
     TxConfidenceTable(final int size, TransactionConfidence.Factory confidenceFactory) {
-        table = new LinkedHashMap<Sha256Hash, WeakConfidenceReference>() {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, WeakConfidenceReference> entry) {
-                // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the event
-                // of some kind of DoS attack.
-                return size() > size;
-            }
-        };
-        referenceQueue = new ReferenceQueue<>();
+        this(size, DEFAULT_SHARDS, confidenceFactory);
+    }
+
+    TxConfidenceTable(final int size, final int shards, TransactionConfidence.Factory confidenceFactory) {
+        checkArgument(size > 0, "size must be positive");
+        checkArgument(shards > 0, "shards must be positive");
+        int count = Integer.highestOneBit(Math.min(size, shards));
+        this.shards = new Shard[count];
+        for (int i = 0; i < count; i++)
+            this.shards[i] = new Shard(size / count + (i < size % count ? 1 : 0));
         this.confidenceFactory = confidenceFactory;
     }
 
@@ -97,49 +173,34 @@ public class TxConfidenceTable {
         this(MAX_SIZE);
     }
 
-    /**
-     * If any transactions have expired due to being only weakly reachable through us, go ahead and delete their
-     * table entries - it means we downloaded the transaction and sent it to various event listeners, none of
-     * which bothered to keep a reference. Typically, this is because the transaction does not involve any keys that
-     * are relevant to any of our wallets.
-     */
-    private void cleanTable() {
-        lock.lock();
-        try {
-            Reference<? extends TransactionConfidence> ref;
-            while ((ref = referenceQueue.poll()) != null) {
-                // Find which transaction got deleted by the GC.
-                WeakConfidenceReference txRef = (WeakConfidenceReference) ref;
-                // And remove the associated map entry so the other bits of memory can also be reclaimed.
-                table.remove(txRef.hash);
-            }
-        } finally {
-            lock.unlock();
-        }
+    private Shard shard(Sha256Hash hash) {
+        int h = hash.hashCode();
+        return shards[(h ^ (h >>> 16)) & (shards.length - 1)];
     }
 
     /**
      * Returns the number of peers that have seen the given hash recently.
      */
     public int numBroadcastPeers(Sha256Hash txHash) {
-        lock.lock();
+        Shard shard = shard(txHash);
+        shard.lock.lock();
         try {
-            cleanTable();
-            WeakConfidenceReference entry = table.get(txHash);
+            shard.cleanTable();
+            WeakConfidenceReference entry = shard.table.get(txHash);
             if (entry == null) {
                 return 0;  // No such TX known.
             } else {
                 TransactionConfidence confidence = entry.get();
                 if (confidence == null) {
                     // Such a TX hash was seen, but nothing seemed to care so we ended up throwing away the data.
-                    table.remove(txHash);
+                    shard.table.remove(txHash);
                     return 0;
                 } else {
                     return confidence.numBroadcastPeers();
                 }
             }
         } finally {
-            lock.unlock();
+            shard.lock.unlock();
         }
     }
 
@@ -152,13 +213,14 @@ public class TxConfidenceTable {
     public TransactionConfidence seen(Sha256Hash hash, PeerAddress byPeer) {
         TransactionConfidence confidence;
         boolean fresh = false;
-        lock.lock();
+        Shard shard = shard(hash);
+        shard.lock.lock();
         try {
-            cleanTable();
-            confidence = getOrCreate(hash);
+            shard.cleanTable();
+            confidence = shard.getOrCreate(hash, confidenceFactory);
             fresh = confidence.markBroadcastBy(byPeer);
         } finally {
-            lock.unlock();
+            shard.lock.unlock();
         }
         if (fresh)
             confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
@@ -171,19 +233,12 @@ public class TxConfidenceTable {
      */
     public TransactionConfidence getOrCreate(Sha256Hash hash) {
         checkNotNull(hash);
-        lock.lock();
+        Shard shard = shard(hash);
+        shard.lock.lock();
         try {
-            WeakConfidenceReference reference = table.get(hash);
-            if (reference != null) {
-                TransactionConfidence confidence = reference.get();
-                if (confidence != null)
-                    return confidence;
-            }
-            TransactionConfidence newConfidence = confidenceFactory.createConfidence(hash);
-            table.put(hash, new WeakConfidenceReference(newConfidence, referenceQueue));
-            return newConfidence;
+            return shard.getOrCreate(hash, confidenceFactory);
         } finally {
-            lock.unlock();
+            shard.lock.unlock();
         }
     }
 
@@ -193,15 +248,33 @@ public class TxConfidenceTable {
      */
     @Nullable
     public TransactionConfidence get(Sha256Hash hash) {
-        lock.lock();
+        Shard shard = shard(hash);
+        shard.lock.lock();
         try {
-            WeakConfidenceReference ref = table.get(hash);
+            WeakConfidenceReference ref = shard.table.get(hash);
             if (ref == null)
                 return null;
             TransactionConfidence confidence = ref.get();
             return confidence;
         } finally {
-            lock.unlock();
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of hashes currently tracked, including ones whose confidence has just been garbage
+     * collected.
+     */
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                size += shard.table.size();
+            } finally {
+                shard.lock.unlock();
+            }
         }
+        return size;
     }
 }
@@ -242,7 +242,8 @@ public class SlpOpReturn {
         }
 
         int utxoChunkLocation = slpUtxoIndex + chunkOffset;
-        return Long.parseLong(new String(Hex.encode(Objects.requireNonNull(opReturn.getChunks().get(utxoChunkLocation).data))), 16);
+        // Amounts are unsigned, those of 2^63 and above come out negative.
+        return Long.parseUnsignedLong(new String(Hex.encode(Objects.requireNonNull(opReturn.getChunks().get(utxoChunkLocation).data))), 16);
     }
 
     public String getTokenId() {
@@ -0,0 +1,181 @@
+package org.bitcoincashj.core.slp;
+
+import org.bitcoincashj.core.TransactionOutPoint;
+import org.bitcoincashj.utils.Threading;
+
+import javax.annotation.Nullable;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Tracks the token UTXOs owned by a wallet, keyed by outpoint and by token id, together with the exact raw
+ * (undivided) balance of every token. Adding or removing an output costs O(1), so the index can be kept up to date
+ * from wallet events one transaction at a time instead of being rebuilt from every dust output in the wallet.</p>
+ *
+ * <p>Balances are kept as integers in base units; callers convert them to display amounts using the token decimals.</p>
+ */
+public class SlpTokenIndex {
+    private final ReentrantLock lock = Threading.lock(SlpTokenIndex.class);
+
+    private final Map<TransactionOutPoint, SlpUTXO> utxos = new LinkedHashMap<>();
+    private final Map<String, Map<TransactionOutPoint, SlpUTXO>> utxosByToken = new HashMap<>();
+    private final Map<String, BigInteger> rawBalances = new LinkedHashMap<>();
+
+    /**
+     * Adds the given token output to the index. Returns false if the outpoint was already indexed.
+     */
+    public boolean add(SlpUTXO utxo) {
+        TransactionOutPoint outPoint = utxo.getTxUtxo().getOutPointFor();
+        lock.lock();
+        try {
+            if (utxos.containsKey(outPoint))
+                return false;
+            utxos.put(outPoint, utxo);
+            String tokenId = utxo.getTokenId();
+            Map<TransactionOutPoint, SlpUTXO> tokenUtxos = utxosByToken.get(tokenId);
+            if (tokenUtxos == null) {
+                tokenUtxos = new LinkedHashMap<>();
+                utxosByToken.put(tokenId, tokenUtxos);
+            }
+            tokenUtxos.put(outPoint, utxo);
+            BigInteger balance = rawBalances.get(tokenId);
+            BigInteger amount = utxo.getTokenAmountRawUnsigned();
+            rawBalances.put(tokenId, balance == null ? amount : balance.add(amount));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the token output at the given outpoint, returning it, or null if it wasn't indexed.
+     */
+    @Nullable
+    public SlpUTXO remove(TransactionOutPoint outPoint) {
+        lock.lock();
+        try {
+            SlpUTXO utxo = utxos.remove(outPoint);
+            if (utxo == null)
+                return null;
+            String tokenId = utxo.getTokenId();
+            Map<TransactionOutPoint, SlpUTXO> tokenUtxos = utxosByToken.get(tokenId);
+            tokenUtxos.remove(outPoint);
+            if (tokenUtxos.isEmpty()) {
+                utxosByToken.remove(tokenId);
+                rawBalances.remove(tokenId);
+            } else {
+                rawBalances.put(tokenId, rawBalances.get(tokenId).subtract(utxo.getTokenAmountRawUnsigned()));
+            }
+            return utxo;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean contains(TransactionOutPoint outPoint) {
+        lock.lock();
+        try {
+            return utxos.containsKey(outPoint);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if at least one output of the given token is indexed.
+     */
+    public boolean hasToken(String tokenId) {
+        lock.lock();
+        try {
+            return utxosByToken.containsKey(tokenId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the sum of the raw amounts of all indexed outputs of the given token, or zero if there are none.
+     */
+    public BigInteger getRawBalance(String tokenId) {
+        lock.lock();
+        try {
+            BigInteger balance = rawBalances.get(tokenId);
+            return balance != null ? balance : BigInteger.ZERO;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the raw balances of all tokens that have at least one indexed output.
+     */
+    public Map<String, BigInteger> getRawBalances() {
+        lock.lock();
+        try {
+            return new LinkedHashMap<>(rawBalances);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Set<String> getTokenIds() {
+        lock.lock();
+        try {
+            return new LinkedHashSet<>(rawBalances.keySet());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a snapshot of all indexed outputs, in the order they were added.
+     */
+    public List<SlpUTXO> getUtxos() {
+        lock.lock();
+        try {
+            return new ArrayList<>(utxos.values());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the indexed outputs of the given token, in the order they were added.
+     */
+    public List<SlpUTXO> getUtxos(String tokenId) {
+        lock.lock();
+        try {
+            Map<TransactionOutPoint, SlpUTXO> tokenUtxos = utxosByToken.get(tokenId);
+            return tokenUtxos != null ? new ArrayList<>(tokenUtxos.values()) : new ArrayList<SlpUTXO>();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return utxos.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            utxos.clear();
+            utxosByToken.clear();
+            rawBalances.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -11,6 +11,7 @@ import org.bitcoincashj.wallet.WalletTransaction;
 import org.bouncycastle.util.encoders.Hex;
 
 import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
@@ -55,7 +56,7 @@ public class SlpTransaction {
         for (int x = 0; x < tokenUtxosCount; x++) {
             int tokenUtxoChunkLocation = x + chunkOffset;
             TransactionOutput utxo = utxos.get(x + 1);
-            long tokenAmountRaw = Long.parseLong(new String(Hex.encode(Objects.requireNonNull(opReturn.getChunks().get(tokenUtxoChunkLocation).data))), 16);
+            long tokenAmountRaw = Long.parseUnsignedLong(new String(Hex.encode(Objects.requireNonNull(opReturn.getChunks().get(tokenUtxoChunkLocation).data))), 16);
             SlpUTXO slpUtxo = new SlpUTXO(this.slpOpReturn.getTokenId(), tokenAmountRaw, utxo, SlpUTXO.SlpUtxoType.NORMAL);
             slpUtxos.add(slpUtxo);
         }
@@ -87,7 +88,7 @@ public class SlpTransaction {
 
     public BigDecimal getRawTokensSentFromMe(Wallet wallet) throws ScriptException {
         // This is tested in WalletTest.
-        long value = 0L;
+        BigInteger value = BigInteger.ZERO;
         for (TransactionInput input : this.tx.getInputs()) {
             // This input is taking value from a transaction in our wallet. To discover the value,
             // we must find the connected transaction.
@@ -108,23 +109,23 @@ public class SlpTransaction {
                 SlpTransaction parentSlpTransaction = new SlpTransaction(parentTransaction);
                 for (SlpUTXO slpUTXO : parentSlpTransaction.getSlpUtxos()) {
                     if (slpUTXO.getTxUtxo() == connected) {
-                        value += slpUTXO.getTokenAmountRaw();
+                        value = value.add(slpUTXO.getTokenAmountRawUnsigned());
                     }
                 }
             }
         }
 
-        return BigDecimal.valueOf(value);
+        return new BigDecimal(value);
     }
 
     public BigDecimal getRawTokensSentToMe(Wallet wallet) {
         // This is tested in WalletTest.
-        long value = 0L;
+        BigInteger value = BigInteger.ZERO;
         for (SlpUTXO slpUTXO : this.getSlpUtxos()) {
             if (!slpUTXO.getTxUtxo().isMineOrWatched(wallet)) continue;
-            value += slpUTXO.getTokenAmountRaw();
+            value = value.add(slpUTXO.getTokenAmountRawUnsigned());
         }
-        return BigDecimal.valueOf(value);
+        return new BigDecimal(value);
     }
 
     public BigDecimal getRawValue(Wallet wallet) throws ScriptException {
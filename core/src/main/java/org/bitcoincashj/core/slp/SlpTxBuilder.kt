@@ -246,7 +246,7 @@ class SlpTxBuilder {
                 val selectedUtxos = slpUtxos
                     .asSequence()
                     .filter { it.tokenId == tokenId }
-                    .sortedBy { it.tokenAmountRaw }
+                    .sortedBy { it.tokenAmountRaw.toULong() }
                     .takeWhile {
                         val amountTooLow = inputTokensRaw < sendTokensRaw
                         if (amountTooLow) {
@@ -2,6 +2,8 @@ package org.bitcoincashj.core.slp;
 
 import org.bitcoincashj.core.TransactionOutput;
 
+import java.math.BigInteger;
+
 public class SlpUTXO {
     public enum SlpUtxoType {
         NORMAL,
@@ -24,10 +26,22 @@ public class SlpUTXO {
         return this.tokenId;
     }
 
+    /**
+     * Returns the raw amount. SLP amounts are unsigned 64 bit integers, so amounts of 2^63 and above come out
+     * negative: compare them with {@link Long#compareUnsigned(long, long)}, or use {@link #getTokenAmountRawUnsigned()}.
+     */
     public long getTokenAmountRaw() {
         return this.tokenAmount;
     }
 
+    /**
+     * Returns the raw amount as the unsigned 64 bit integer it is, for summing amounts without overflowing.
+     */
+    public BigInteger getTokenAmountRawUnsigned() {
+        BigInteger amount = BigInteger.valueOf(this.tokenAmount);
+        return this.tokenAmount < 0 ? amount.add(BigInteger.ONE.shiftLeft(64)) : amount;
+    }
+
     public TransactionOutput getTxUtxo() {
         return this.txUtxo;
     }
@@ -0,0 +1,119 @@
+package org.bitcoincashj.core.slp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Set of transaction ids that SLPDB has confirmed to be valid SLP transactions, backed by an append-only file with
+ * one txid per line (the format of the kits' <code>.txs</code> files). Lookups are answered from an in-memory hash set
+ * and can be made from any thread; newly validated txids are appended to the file instead of rewriting it.</p>
+ *
+ * <p>The file is only read on the first lookup, so opening the cache doesn't delay starting up however many txids it
+ * holds. The kits look up txids on their indexing thread, which is where that cost ends up.</p>
+ *
+ * <p>Only positive results are stored, since a transaction SLPDB hasn't indexed yet may still turn out to be valid.</p>
+ */
+public class SlpValidationCache implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(SlpValidationCache.class);
+
+    private final Set<String> validTxIds = ConcurrentHashMap.newKeySet();
+    private final File file;
+    private volatile boolean loaded;
+    private Writer writer;
+
+    /**
+     * Opens the cache stored in the given file, creating it if it doesn't exist yet. The txids in the file are read
+     * when they are first needed.
+     */
+    public SlpValidationCache(File file) throws IOException {
+        this.file = file;
+        this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+
+    // Reads the txids stored so far. A file that can't be read only costs lookups, as the txids are validated again.
+    private void load() {
+        if (loaded)
+            return;
+        synchronized (this) {
+            if (loaded)
+                return;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (!line.isEmpty())
+                        validTxIds.add(line);
+                }
+            } catch (IOException e) {
+                log.warn("Could not read SLP validation cache {}, transactions will be validated again", file, e);
+            }
+            loaded = true;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public boolean contains(String txId) {
+        load();
+        return validTxIds.contains(txId);
+    }
+
+    /**
+     * Records the given txid as valid. Returns false if it was already known.
+     */
+    public boolean add(String txId) throws IOException {
+        return addAll(Collections.singleton(txId)) > 0;
+    }
+
+    /**
+     * Records all given txids as valid, appending the new ones to the file with a single flush. Returns the number
+     * of txids that weren't known before.
+     */
+    public synchronized int addAll(Collection<String> txIds) throws IOException {
+        if (writer == null)
+            throw new IOException("Cache has been closed: " + file);
+        load();
+        int added = 0;
+        for (String txId : txIds) {
+            if (validTxIds.add(txId)) {
+                writer.write(txId);
+                writer.write('\n');
+                added++;
+            }
+        }
+        if (added > 0)
+            writer.flush();
+        return added;
+    }
+
+    public int size() {
+        load();
+        return validTxIds.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+}
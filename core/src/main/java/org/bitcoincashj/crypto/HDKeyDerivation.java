@@ -23,7 +23,11 @@ import org.bouncycastle.math.ec.ECPoint;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
@@ -53,6 +57,9 @@ public final class HDKeyDerivation {
      */
     public static final int MAX_CHILD_DERIVATION_ATTEMPTS = 100;
 
+    // Batched derivations are split into tasks of this many keys, enough for a task to be worth its overhead.
+    private static final int DERIVATIONS_PER_TASK = 16;
+
     /**
      * Generates a new deterministic key from the given seed, which can be any arbitrary byte array. However resist
      * the temptation to use a string as the seed - any key derived from a password is likely to be weak and easily
@@ -126,6 +133,131 @@ public final class HDKeyDerivation {
 
     }
 
+    /**
+     * <p>Derives {@code count} consecutive non-hardened children of the given parent from its public key, starting at
+     * {@code firstChild}, on {@link ForkJoinPool#commonPool()}. See
+     * {@link #deriveChildKeysFromPublic(DeterministicKey, int, int, ForkJoinPool)}.</p>
+     *
+     * <p>The common pool is shared with everything else in the JVM that uses it, such as parallel streams. The calling
+     * thread waits for the batch, so while the common pool is busy with other work the derivation waits for it as well.
+     * Applications that keep the common pool busy should pass a pool of their own to the other overload.</p>
+     */
+    public static List<DeterministicKey> deriveChildKeysFromPublic(DeterministicKey parent, int firstChild, int count) {
+        return deriveChildKeysFromPublic(parent, firstChild, count, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * <p>Derives {@code count} consecutive non-hardened children of the given parent from its public key, starting at
+     * {@code firstChild}. Like a privately derived key after {@link DeterministicKey#dropPrivateBytes()}, the keys
+     * hold no private key bytes of their own and have the given parent as their parent.</p>
+     *
+     * <p>Each derivation is an EC point multiply, so larger batches are split across the given pool. The keys are
+     * returned in the order of their child numbers whatever the pool does. Like
+     * {@link #deriveThisOrNextChildKey(DeterministicKey, int)}, a child number whose derivation fails is skipped and
+     * the batch takes the next one instead.</p>
+     */
+    public static List<DeterministicKey> deriveChildKeysFromPublic(DeterministicKey parent, int firstChild, int count,
+                                                                   ForkJoinPool pool) {
+        checkArgument(count >= 0, "count must not be negative");
+        checkArgument(!new ChildNumber(firstChild).isHardened(), "Hardened derivation is unsupported (%s).", firstChild);
+        DeterministicKey[] keys = new DeterministicKey[count];
+        if (count <= DERIVATIONS_PER_TASK)
+            new DeriveChildKeysTask(parent, firstChild, keys, 0, count).compute();
+        else
+            pool.invoke(new DeriveChildKeysTask(parent, firstChild, keys, 0, count));
+        List<DeterministicKey> result = new ArrayList<>(count);
+        for (DeterministicKey key : keys)
+            if (key != null)
+                result.add(key);
+        int nextChild = firstChild + count;
+        while (result.size() < count) {
+            DeterministicKey key = deriveThisOrNextChildKeyFromPublic(parent, nextChild);
+            result.add(key);
+            nextChild = key.getChildNumber().num() + 1;
+        }
+        return result;
+    }
+
+    private static class DeriveChildKeysTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final DeterministicKey parent;
+        private final int firstChild;
+        private final DeterministicKey[] keys;
+        private final int from, to;
+
+        private DeriveChildKeysTask(DeterministicKey parent, int firstChild, DeterministicKey[] keys, int from, int to) {
+            this.parent = parent;
+            this.firstChild = firstChild;
+            this.keys = keys;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= DERIVATIONS_PER_TASK) {
+                byte[] parentPublicKey = parent.getPubKeyPoint().getEncoded(true);
+                ECPoint[] points = new ECPoint[to - from];
+                byte[][] chainCodes = new byte[to - from][];
+                int[] indexes = new int[to - from];
+                int derived = 0;
+                for (int i = from; i < to; i++) {
+                    byte[] chainCode = new byte[32];
+                    try {
+                        points[derived] = deriveChildPointFromPublic(parent, parentPublicKey,
+                                new ChildNumber(firstChild + i, false), chainCode);
+                    } catch (HDDerivationException ignore) {
+                        // Left out, the caller derives a replacement after the batch.
+                        continue;
+                    }
+                    chainCodes[derived] = chainCode;
+                    indexes[derived++] = i;
+                }
+                // The points are normalized together, with one field inversion for the task.
+                List<LazyECPoint> pubs = LazyECPoint.fromPoints(Arrays.copyOf(points, derived), true);
+                for (int j = 0; j < derived; j++) {
+                    ChildNumber childNumber = new ChildNumber(firstChild + indexes[j], false);
+                    keys[indexes[j]] = new DeterministicKey(parent.getPath().extend(childNumber), chainCodes[j],
+                            pubs.get(j), null, parent);
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new DeriveChildKeysTask(parent, firstChild, keys, from, middle),
+                        new DeriveChildKeysTask(parent, firstChild, keys, middle, to));
+            }
+        }
+    }
+
+    // Like deriveChildKeyBytesFromPublic in NORMAL mode, but leaves the point unnormalized and the encoding to the
+    // caller. The chain code is written to the given array.
+    private static ECPoint deriveChildPointFromPublic(DeterministicKey parent, byte[] parentPublicKey,
+                                                      ChildNumber childNumber, byte[] chainCode)
+            throws HDDerivationException {
+        ByteBuffer data = ByteBuffer.allocate(37);
+        data.put(parentPublicKey);
+        data.putInt(childNumber.i());
+        byte[] i = HDUtils.hmacSha512(parent.getChainCode(), data.array());
+        System.arraycopy(i, 32, chainCode, 0, 32);
+        BigInteger ilInt = new BigInteger(1, Arrays.copyOfRange(i, 0, 32));
+        assertLessThanN(ilInt, "Illegal derived key: I_L >= n");
+        ECPoint Ki = ECKey.publicPointFromPrivate(ilInt).add(parent.getPubKeyPoint());
+        if (Ki.isInfinity())
+            throw new HDDerivationException("Illegal derived key: derived public key equals infinity.");
+        return Ki;
+    }
+
+    private static DeterministicKey deriveThisOrNextChildKeyFromPublic(DeterministicKey parent, int childNumber) {
+        for (int nAttempts = 0; nAttempts < MAX_CHILD_DERIVATION_ATTEMPTS; nAttempts++) {
+            try {
+                return deriveChildKeyFromPublic(parent, new ChildNumber(childNumber + nAttempts, false),
+                        PublicDeriveMode.NORMAL);
+            } catch (HDDerivationException ignore) {
+            }
+        }
+        throw new HDDerivationException("Maximum number of child derivation attempts reached, this is probably an indication of a bug.");
+    }
+
     /**
      * @throws HDDerivationException if private derivation is attempted for a public-only parent key, or
      *                               if the resulting derived key is invalid (eg. private key == 0).
@@ -16,6 +16,9 @@
 
 package org.bitcoincashj.crypto;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.protobuf.ByteString;
 import org.bitcoincashj.core.ECKey;
 import org.bouncycastle.math.ec.ECCurve;
 import org.bouncycastle.math.ec.ECFieldElement;
@@ -23,26 +26,40 @@ import org.bouncycastle.math.ec.ECPoint;
 
 import javax.annotation.Nullable;
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
- * A wrapper around ECPoint that delays decoding of the point for as long as possible. This is useful because point
- * encode/decode in Bouncy Castle is quite slow especially on Dalvik, as it often involves decompression/recompression.
+ * <p>A wrapper around ECPoint that delays decoding of the point for as long as possible. This is useful because point
+ * encode/decode in Bouncy Castle is quite slow especially on Dalvik, as it often involves decompression/recompression.</p>
+ *
+ * <p>Both forms are kept once computed. Points decoded from secp256k1 encodings are also kept in a cache shared by
+ * all instances, because the same public keys are decoded again and again, for example by
+ * {@link org.bitcoincashj.script.Script#getPubKeys()} or when a wallet is loaded.</p>
  */
 public class LazyECPoint {
-    // If curve is set, bits is also set. If curve is unset, point is set and bits is unset. Point can be set along
-    // with curve and bits when the cached form has been accessed and thus must have been converted.
+    /** Number of decoded points kept in the shared cache. */
+    public static final int DECODED_POINT_CACHE_SIZE = 10000;
+
+    private static final Cache<ByteString, ECPoint> decodedPoints = CacheBuilder.newBuilder()
+            .maximumSize(DECODED_POINT_CACHE_SIZE).build();
+
+    // If curve is set, bits is also set. If curve is unset, point is set and bits is computed on first use. Point can
+    // be set along with curve and bits when the cached form has been accessed and thus must have been converted.
 
     private final ECCurve curve;
-    private final byte[] bits;
     private final boolean compressed;
 
-    // This field is effectively final - once set it won't change again. However it can be set after
+    // These fields are effectively final - once set they won't change again. However they can be set after
     // construction.
     @Nullable
-    private ECPoint point;
+    private volatile byte[] bits;
+    @Nullable
+    private volatile ECPoint point;
 
     public LazyECPoint(ECCurve curve, byte[] bits) {
         this.curve = curve;
@@ -57,17 +74,55 @@ public class LazyECPoint {
         this.bits = null;
     }
 
+    /**
+     * <p>Wraps many points at once. Points that aren't normalized yet, such as the results of point additions, are
+     * normalized together with one shared field inversion (Montgomery's trick) instead of one inversion each.</p>
+     *
+     * <p>The points must be on the same curve and none may be the point at infinity.</p>
+     */
+    public static List<LazyECPoint> fromPoints(ECPoint[] points, boolean compressed) {
+        List<LazyECPoint> result = new ArrayList<>(points.length);
+        if (points.length == 0)
+            return result;
+        ECPoint[] normalized = points.clone();
+        ECCurve curve = normalized[0].getCurve();
+        for (ECPoint point : normalized)
+            checkArgument(!point.isInfinity(), "Can't wrap the point at infinity");
+        curve.normalizeAll(normalized);
+        for (ECPoint point : normalized)
+            result.add(new LazyECPoint(point, compressed));
+        return result;
+    }
+
     public ECPoint get() {
-        if (point == null)
+        ECPoint point = this.point;
+        if (point == null) {
+            point = decode(curve, bits);
+            this.point = point;
+        }
+        return point;
+    }
+
+    private static ECPoint decode(ECCurve curve, byte[] bits) {
+        // Only points of our own curve can share the cache.
+        if (curve != ECKey.CURVE.getCurve())
+            return curve.decodePoint(bits);
+        ByteString key = ByteString.copyFrom(bits);
+        ECPoint point = decodedPoints.getIfPresent(key);
+        if (point == null) {
             point = curve.decodePoint(bits);
+            decodedPoints.put(key, point);
+        }
         return point;
     }
 
     public byte[] getEncoded() {
-        if (bits != null)
-            return Arrays.copyOf(bits, bits.length);
-        else
-            return get().getEncoded(compressed);
+        byte[] bits = this.bits;
+        if (bits == null) {
+            bits = get().getEncoded(compressed);
+            this.bits = bits;
+        }
+        return Arrays.copyOf(bits, bits.length);
     }
 
     // Delegated methods.
@@ -141,8 +196,8 @@ public class LazyECPoint {
     }
 
     public byte[] getEncoded(boolean compressed) {
-        if (compressed == isCompressed() && bits != null)
-            return Arrays.copyOf(bits, bits.length);
+        if (compressed == isCompressed())
+            return getEncoded();
         else
             return get().getEncoded(compressed);
     }
@@ -0,0 +1,140 @@
+package org.bitcoincashj.crypto;
+
+import org.bitcoincashj.core.ECKey;
+import org.bitcoincashj.core.Sha256Hash;
+import org.bitcoincashj.core.SignatureCache;
+import org.bouncycastle.math.ec.ECAlgorithms;
+import org.bouncycastle.math.ec.ECCurve;
+import org.bouncycastle.math.ec.ECPoint;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Collects Schnorr signatures and verifies all of them with a single multi-scalar multiplication, which is much
+ * cheaper than checking them one by one with {@link SchnorrSignature#schnorr_verify(byte[], byte[], byte[])}.</p>
+ *
+ * <p>A signature (r, s) over message m by public key P is valid iff sG - eP is the point R with x coordinate r and a
+ * quadratic residue as y coordinate, where e = H(r || P || m). For a batch, R is lifted from r and the sum of
+ * a<sub>i</sub>(s<sub>i</sub>G - e<sub>i</sub>P<sub>i</sub> - R<sub>i</sub>) is checked to be the point at infinity,
+ * with random a<sub>i</sub> so that invalid signatures can't cancel each other out. If the batch fails, at least one
+ * signature is invalid but it's unknown which; callers then have to fall back to checking them individually.</p>
+ *
+ * <p>Instances are not thread safe.</p>
+ */
+public class SchnorrBatchVerifier {
+    private static final SecureRandom random = new SecureRandom();
+    private static final ECCurve curve = ECKey.CURVE.getCurve();
+    private static final BigInteger p = SchnorrSignature.p;
+    private static final BigInteger n = SchnorrSignature.n;
+    private static final BigInteger LIFT_EXPONENT = p.add(BigInteger.ONE).shiftRight(2);
+    private static final BigInteger SEVEN = BigInteger.valueOf(7);
+
+    private final List<byte[]> messages = new ArrayList<>();
+    private final List<byte[]> pubKeys = new ArrayList<>();
+    private final List<byte[]> signatures = new ArrayList<>();
+
+    /**
+     * Adds a signature to the batch. Returns false, without adding it, if it is malformed in a way that makes
+     * {@link SchnorrSignature#schnorr_verify(byte[], byte[], byte[])} throw; such signatures have to be checked
+     * individually. Signatures that are already in the {@link SignatureCache} are accepted but not added again.
+     */
+    public boolean add(byte[] msg, byte[] pubKey, byte[] sig) {
+        if (msg.length != 32 || pubKey.length != 33 || sig.length != 64)
+            return false;
+        if (SignatureCache.get().isVerifiedSchnorr(msg, sig, pubKey))
+            return true;
+        messages.add(msg);
+        pubKeys.add(pubKey);
+        signatures.add(sig);
+        return true;
+    }
+
+    /** Adds all signatures of the given batch to this one. */
+    public void addAll(SchnorrBatchVerifier other) {
+        messages.addAll(other.messages);
+        pubKeys.addAll(other.pubKeys);
+        signatures.addAll(other.signatures);
+    }
+
+    public int size() {
+        return signatures.size();
+    }
+
+    public void clear() {
+        messages.clear();
+        pubKeys.clear();
+        signatures.clear();
+    }
+
+    /**
+     * Returns true if all signatures in the batch are valid, and adds them to the {@link SignatureCache}. An empty
+     * batch is valid.
+     */
+    public boolean verify() {
+        int size = signatures.size();
+        if (size == 0)
+            return true;
+        ECPoint[] points = new ECPoint[2 * size + 1];
+        BigInteger[] scalars = new BigInteger[2 * size + 1];
+        BigInteger sumS = BigInteger.ZERO;
+        try {
+            for (int i = 0; i < size; i++) {
+                byte[] sig = signatures.get(i);
+                BigInteger r = SchnorrSignature.toBigInteger(sig, 0, 32);
+                BigInteger s = SchnorrSignature.toBigInteger(sig, 32, 32);
+                if (r.compareTo(p) >= 0 || s.compareTo(n) >= 0)
+                    return false;
+                ECPoint pubKey = curve.decodePoint(pubKeys.get(i));
+                ECPoint rPoint = liftX(r);
+                if (rPoint == null)
+                    return false;
+
+                byte[] eData = new byte[32 + 33 + 32];
+                System.arraycopy(sig, 0, eData, 0, 32);
+                System.arraycopy(pubKey.getEncoded(true), 0, eData, 32, 33);
+                System.arraycopy(messages.get(i), 0, eData, 65, 32);
+                BigInteger e = SchnorrSignature.toBigInteger(Sha256Hash.hash(eData)).mod(n);
+
+                // The first signature gets a factor of one, which is as secure as a random one and saves a multiplication.
+                BigInteger a = i == 0 ? BigInteger.ONE : randomFactor();
+                sumS = sumS.add(a.multiply(s)).mod(n);
+                points[2 * i] = pubKey;
+                scalars[2 * i] = n.subtract(a.multiply(e).mod(n)).mod(n);
+                points[2 * i + 1] = rPoint;
+                scalars[2 * i + 1] = n.subtract(a);
+            }
+        } catch (IllegalArgumentException x) {
+            return false; // Public key not on the curve.
+        }
+        points[2 * size] = ECKey.CURVE.getG();
+        scalars[2 * size] = sumS;
+        if (!ECAlgorithms.sumOfMultiplies(points, scalars).isInfinity())
+            return false;
+
+        SignatureCache cache = SignatureCache.get();
+        for (int i = 0; i < size; i++)
+            cache.addVerifiedSchnorr(messages.get(i), signatures.get(i), pubKeys.get(i));
+        return true;
+    }
+
+    /** Returns the point with the given x coordinate whose y coordinate is a quadratic residue, or null if none. */
+    private static ECPoint liftX(BigInteger x) {
+        BigInteger c = x.pow(3).add(SEVEN).mod(p);
+        // As p = 3 mod 4 this is a square root of c if there is one, and as (p + 1) / 4 is even it is a square itself.
+        BigInteger y = c.modPow(LIFT_EXPONENT, p);
+        if (!y.multiply(y).mod(p).equals(c))
+            return null;
+        return curve.createPoint(x, y);
+    }
+
+    private static BigInteger randomFactor() {
+        BigInteger a;
+        do {
+            a = new BigInteger(128, random);
+        } while (a.signum() == 0);
+        return a;
+    }
+}
@@ -29,6 +29,7 @@ import org.bitcoincashj.net.SlpDbNftDetails;
 import org.bitcoincashj.net.SlpDbProcessor;
 import org.bitcoincashj.net.SlpDbTokenDetails;
 import org.bitcoincashj.net.SlpDbValidTransaction;
+import org.bitcoincashj.net.SlpValidationService;
 import org.bitcoincashj.protocols.payments.slp.SlpPaymentSession;
 import org.bitcoincashj.script.Script;
 import org.bitcoincashj.store.SPVBlockStore;
@@ -97,10 +98,6 @@ public class SlpBIP47AppKit extends BIP47AppKit {
     @Override
     protected void startUp() throws Exception {
         super.startUp();
-        File txsDataFile = new File(this.directory(), this.filePrefix + ".txs");
-        if (txsDataFile.exists()) {
-            this.loadRecordedTxs();
-        }
         File tokenDataFile = new File(this.directory(), this.filePrefix + ".tokens");
         this.tokensFile = tokenDataFile;
         if (tokenDataFile.exists()) {
@@ -113,6 +110,9 @@ public class SlpBIP47AppKit extends BIP47AppKit {
         }
 
         this.slpDbProcessor = new SlpDbProcessor();
+        SlpValidationCache validationCache = new SlpValidationCache(new File(this.directory(), this.filePrefix + ".txs"));
+        this.slpValidationService = new SlpValidationService(this.slpDbProcessor, validationCache);
+        this.startSlpIndexing();
     }
 
     /**
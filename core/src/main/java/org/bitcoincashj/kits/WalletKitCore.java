@@ -5,6 +5,7 @@ import com.google.common.io.Closeables;
 import com.google.common.util.concurrent.*;
 import org.bitcoincashj.core.*;
 import org.bitcoincashj.core.listeners.DownloadProgressTracker;
+import org.bitcoincashj.core.listeners.TransactionConfidenceEventListener;
 import org.bitcoincashj.core.slp.*;
 import org.bitcoincashj.core.slp.nft.NonFungibleSlpToken;
 import org.bitcoincashj.core.slp.opreturn.NftOpReturnOutputGenesis;
@@ -19,7 +20,11 @@ import org.bitcoincashj.script.Script;
 import org.bitcoincashj.store.BlockStore;
 import org.bitcoincashj.store.BlockStoreException;
 import org.bitcoincashj.store.SPVBlockStore;
+import org.bitcoincashj.utils.ContextPropagatingThreadFactory;
 import org.bitcoincashj.wallet.*;
+import org.bitcoincashj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.bitcoincashj.wallet.listeners.WalletCoinsSentEventListener;
+import org.bitcoincashj.wallet.listeners.WalletReorganizeEventListener;
 import org.bouncycastle.crypto.params.KeyParameter;
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -29,13 +34,24 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nullable;
 import java.io.*;
 import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.channels.FileLock;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -78,19 +94,50 @@ public class WalletKitCore extends AbstractIdleService {
     /** SLP common stuff **/
     protected File tokensFile;
     protected File nftsFile;
-    protected ArrayList<SlpUTXO> slpUtxos = new ArrayList<>();
     protected ArrayList<SlpToken> slpTokens = new ArrayList<>();
-    protected ArrayList<SlpTokenBalance> slpBalances = new ArrayList<>();
-    protected ArrayList<String> verifiedSlpTxs = new ArrayList<>();
-    protected ArrayList<SlpUTXO> nftUtxos = new ArrayList<>();
     protected ArrayList<NonFungibleSlpToken> nfts = new ArrayList<>();
-    protected ArrayList<SlpTokenBalance> nftBalances = new ArrayList<>();
-    protected ArrayList<SlpUTXO> nftParentUtxos = new ArrayList<>();
-    protected ArrayList<SlpTokenBalance> nftParentBalances = new ArrayList<>();
+    // Token outputs currently owned by the wallet, kept up to date by the listeners added in startSlpIndexing().
+    protected final SlpTokenIndex slpIndex = new SlpTokenIndex();
+    protected final SlpTokenIndex nftIndex = new SlpTokenIndex();
+    protected final SlpTokenIndex nftParentIndex = new SlpTokenIndex();
+    /** @deprecated Copy of {@link #getSlpUtxos()}, replaced after every update. Changing it has no effect. */
+    @Deprecated
+    protected volatile ArrayList<SlpUTXO> slpUtxos = new ArrayList<>();
+    /** @deprecated Copy of {@link #getSlpBalances()}, replaced after every update. Changing it has no effect. */
+    @Deprecated
+    protected volatile ArrayList<SlpTokenBalance> slpBalances = new ArrayList<>();
+    /** @deprecated Copy of {@link #getNftUtxos()}, replaced after every update. Changing it has no effect. */
+    @Deprecated
+    protected volatile ArrayList<SlpUTXO> nftUtxos = new ArrayList<>();
+    /** @deprecated Copy of {@link #getNftBalances()}, replaced after every update. Changing it has no effect. */
+    @Deprecated
+    protected volatile ArrayList<SlpTokenBalance> nftBalances = new ArrayList<>();
+    /** @deprecated Copy of {@link #getNftParentUtxos()}, replaced after every update. Changing it has no effect. */
+    @Deprecated
+    protected volatile ArrayList<SlpUTXO> nftParentUtxos = new ArrayList<>();
+    /** @deprecated Copy of {@link #getNftParentBalances()}, replaced after every update. Changing it has no effect. */
+    @Deprecated
+    protected volatile ArrayList<SlpTokenBalance> nftParentBalances = new ArrayList<>();
 
     protected SlpDbProcessor slpDbProcessor;
-    protected boolean recalculatingTokens = false;
-    protected boolean recalculatingNfts = false;
+    protected SlpValidationService slpValidationService;
+    protected volatile boolean recalculatingTokens = false;
+    protected volatile boolean recalculatingNfts = false;
+    /**
+     * How long to wait before indexing a transaction again that SLPDB didn't validate or whose token details it didn't
+     * return, as it may not have indexed them yet. The delay doubles with every try, up to ten minutes.
+     */
+    protected long slpRetryDelayMillis = 10000;
+    private static final long SLP_MAX_RETRY_DELAY_MS = 10 * 60 * 1000;
+    private static final int SLP_MAX_RETRIES = 10;
+    // Tries so far of the transactions waiting to be indexed again.
+    private final Map<Sha256Hash, Integer> slpRetries = new ConcurrentHashMap<>();
+    // Runs the initial scan and the wallet events for the token indexes one at a time and in order. Both may wait for
+    // SLPDB, so they are kept off the startup and wallet threads. Tasks arriving after stopSlpIndexing(), such as late
+    // answers from SLPDB, are dropped.
+    private final ScheduledThreadPoolExecutor slpExecutor = new ScheduledThreadPoolExecutor(1,
+            new ContextPropagatingThreadFactory("SLP indexing"), new ThreadPoolExecutor.DiscardPolicy());
+    private final SlpIndexingListener slpIndexingListener = new SlpIndexingListener();
 
     /**
      * Sets a wallet factory which will be used when the kit creates a new wallet.
@@ -137,19 +184,19 @@ public class WalletKitCore extends AbstractIdleService {
     }
 
     public ArrayList<SlpTokenBalance> getSlpBalances() {
-        return this.slpBalances;
+        return this.toTokenBalances(this.slpIndex, SlpOpReturn.SlpTokenType.SLP);
     }
 
     public ArrayList<SlpTokenBalance> getNftBalances() {
-        return this.nftBalances;
+        return this.toTokenBalances(this.nftIndex, SlpOpReturn.SlpTokenType.NFT);
     }
 
     public ArrayList<SlpUTXO> getNftParentUtxos() {
-        return this.nftParentUtxos;
+        return new ArrayList<>(this.nftParentIndex.getUtxos());
     }
 
     public ArrayList<SlpTokenBalance> getNftParentBalances() {
-        return this.nftParentBalances;
+        return this.toTokenBalances(this.nftParentIndex, SlpOpReturn.SlpTokenType.SLP);
     }
 
     public ArrayList<SlpToken> getSlpTokens() {
@@ -157,11 +204,11 @@ public class WalletKitCore extends AbstractIdleService {
     }
 
     public ArrayList<SlpUTXO> getSlpUtxos() {
-        return this.slpUtxos;
+        return new ArrayList<>(this.slpIndex.getUtxos());
     }
 
     public ArrayList<SlpUTXO> getNftUtxos() {
-        return this.nftUtxos;
+        return new ArrayList<>(this.nftIndex.getUtxos());
     }
 
     public SlpAddress currentSlpReceiveAddress() {
@@ -474,6 +521,8 @@ public class WalletKitCore extends AbstractIdleService {
             vPeerGroup.stop();
             vWallet.saveToFile(vWalletFile);
             vStore.close();
+            if (slpValidationService != null)
+                stopSlpIndexing();
 
             vPeerGroup = null;
             vWallet = null;
@@ -518,22 +567,18 @@ public class WalletKitCore extends AbstractIdleService {
 
     private Wallet loadWallet(boolean shouldReplayWallet) throws Exception {
         Wallet wallet;
-        FileInputStream walletStream = new FileInputStream(vWalletFile);
-        try {
-            List<WalletExtension> extensions = provideWalletExtensions();
-            WalletExtension[] extArray = extensions.toArray(new WalletExtension[extensions.size()]);
-            Protos.Wallet proto = WalletProtobufSerializer.parseToProto(walletStream);
-            final WalletProtobufSerializer serializer;
-            if (walletFactory != null)
-                serializer = new WalletProtobufSerializer(walletFactory);
-            else
-                serializer = new WalletProtobufSerializer();
-            wallet = serializer.readWallet(params, extArray, proto);
-            if (shouldReplayWallet)
-                wallet.reset();
-        } finally {
-            walletStream.close();
-        }
+        List<WalletExtension> extensions = provideWalletExtensions();
+        WalletExtension[] extArray = extensions.toArray(new WalletExtension[extensions.size()]);
+        // Also applies the journal, should a subclass have enabled journaling in setupAutoSave().
+        Protos.Wallet proto = WalletJournal.readProto(vWalletFile);
+        final WalletProtobufSerializer serializer;
+        if (walletFactory != null)
+            serializer = new WalletProtobufSerializer(walletFactory);
+        else
+            serializer = new WalletProtobufSerializer();
+        wallet = serializer.readWallet(params, extArray, proto);
+        if (shouldReplayWallet)
+            wallet.reset();
         return wallet;
     }
 
@@ -599,80 +644,56 @@ public class WalletKitCore extends AbstractIdleService {
         });
     }
 
-    public void calculateTokenBalance(SlpOpReturn.SlpTokenType tokenType, SlpUTXO utxo, SlpToken token) {
-        String tokenId = token.getTokenId();
-        double tokenAmount = BigDecimal.valueOf(utxo.getTokenAmountRaw()).scaleByPowerOfTen(-token.getDecimals()).doubleValue();
-        if (this.isBalanceRecorded(tokenType, tokenId)) {
-            Objects.requireNonNull(this.getTokenBalance(tokenType, tokenId)).addToBalance(tokenAmount);
-        } else {
-            if(tokenType == SlpOpReturn.SlpTokenType.SLP) {
-                this.slpBalances.add(new SlpTokenBalance(tokenId, tokenAmount));
-            } else if(tokenType == SlpOpReturn.SlpTokenType.NFT) {
-                this.nftBalances.add(new SlpTokenBalance(tokenId, tokenAmount));
-            }
+    private ArrayList<SlpTokenBalance> toTokenBalances(SlpTokenIndex index, SlpOpReturn.SlpTokenType tokenType) {
+        ArrayList<SlpTokenBalance> balances = new ArrayList<>();
+        for (Map.Entry<String, BigInteger> entry : index.getRawBalances().entrySet()) {
+            balances.add(this.toTokenBalance(tokenType, entry.getKey(), entry.getValue()));
         }
+        return balances;
     }
 
-    public void calculateNftParentBalance(SlpUTXO slpUTXO, SlpToken nftParentToken) {
-        String tokenId = nftParentToken.getTokenId();
-        double tokenAmount = BigDecimal.valueOf(slpUTXO.getTokenAmountRaw()).scaleByPowerOfTen(-nftParentToken.getDecimals()).doubleValue();
-        if (this.isNftParentBalanceRecorded(tokenId)) {
-            Objects.requireNonNull(this.getNftParentBalance(tokenId)).addToBalance(tokenAmount);
-        } else {
-            this.nftParentBalances.add(new SlpTokenBalance(tokenId, tokenAmount));
-        }
+    private SlpTokenBalance toTokenBalance(SlpOpReturn.SlpTokenType tokenType, String tokenId, BigInteger rawBalance) {
+        SlpToken token = tokenType == SlpOpReturn.SlpTokenType.SLP ? this.getSlpToken(tokenId) : this.getNft(tokenId);
+        int decimals = token != null ? token.getDecimals() : 0;
+        return new SlpTokenBalance(tokenId, new BigDecimal(rawBalance).scaleByPowerOfTen(-decimals).doubleValue());
     }
 
     public boolean isBalanceRecorded(SlpOpReturn.SlpTokenType tokenType, String tokenId) {
-        ArrayList<SlpTokenBalance> balancesArray = new ArrayList<SlpTokenBalance>(tokenType == SlpOpReturn.SlpTokenType.SLP ? this.slpBalances : this.nftBalances);
-        for(SlpTokenBalance balance : balancesArray) {
-            String slpTokenId = balance.getTokenId();
-            return slpTokenId != null && slpTokenId.equals(tokenId);
-        }
-        return false;
+        return (tokenType == SlpOpReturn.SlpTokenType.SLP ? this.slpIndex : this.nftIndex).hasToken(tokenId);
     }
 
+    @Nullable
     public SlpTokenBalance getTokenBalance(SlpOpReturn.SlpTokenType tokenType, String tokenId) {
-        ArrayList<SlpTokenBalance> tokensArray = new ArrayList<SlpTokenBalance>(tokenType == SlpOpReturn.SlpTokenType.SLP ? this.slpBalances : this.nftBalances);
-        for(SlpTokenBalance tokenBalance : tokensArray) {
-            if(tokenBalance.getTokenId().equals(tokenId)) {
-                return tokenBalance;
-            }
-        }
-        return null;
+        SlpTokenIndex index = tokenType == SlpOpReturn.SlpTokenType.SLP ? this.slpIndex : this.nftIndex;
+        if (!index.hasToken(tokenId))
+            return null;
+        return this.toTokenBalance(tokenType, tokenId, index.getRawBalance(tokenId));
     }
 
-    public boolean isNftParentBalanceRecorded(String tokenId) {
-        for (SlpTokenBalance tokenBalance : this.nftParentBalances) {
-            if (tokenBalance.getTokenId().equals(tokenId)) {
-                return true;
-            }
-        }
+    /**
+     * Returns the exact balance of the given token in base units, without applying its decimals.
+     */
+    public BigInteger getRawTokenBalance(SlpOpReturn.SlpTokenType tokenType, String tokenId) {
+        return (tokenType == SlpOpReturn.SlpTokenType.SLP ? this.slpIndex : this.nftIndex).getRawBalance(tokenId);
+    }
 
-        return false;
+    public boolean isNftParentBalanceRecorded(String tokenId) {
+        return this.nftParentIndex.hasToken(tokenId);
     }
 
+    @Nullable
     public SlpTokenBalance getNftParentBalance(String tokenId) {
-        for (SlpTokenBalance tokenBalance : this.nftParentBalances) {
-            if (tokenBalance.getTokenId().equals(tokenId)) {
-                return tokenBalance;
-            }
-        }
-
-        return null;
+        if (!this.nftParentIndex.hasToken(tokenId))
+            return null;
+        return this.toTokenBalance(SlpOpReturn.SlpTokenType.SLP, tokenId, this.nftParentIndex.getRawBalance(tokenId));
     }
 
     public boolean isTokenMapped(SlpOpReturn.SlpTokenType tokenType, String tokenId) {
-        ArrayList<SlpToken> tokensArray = new ArrayList<SlpToken>(tokenType == SlpOpReturn.SlpTokenType.SLP ? this.slpTokens : this.nfts);
-        for(SlpToken token : tokensArray) {
-            String slpTokenId = token.getTokenId();
-            return slpTokenId != null && slpTokenId.equals(tokenId);
-        }
-        return false;
+        return (tokenType == SlpOpReturn.SlpTokenType.SLP ? this.getSlpToken(tokenId) : this.getNft(tokenId)) != null;
     }
 
     public boolean hasTransactionBeenRecorded(String txid) {
-        return this.verifiedSlpTxs.contains(txid);
+        return this.slpValidationService != null && this.slpValidationService.isKnownValid(txid);
     }
 
     public Transaction createSlpTransaction(String slpDestinationAddress, String tokenId, double numTokens, @Nullable KeyParameter aesKey) throws InsufficientMoneyException {
@@ -724,127 +745,365 @@ public class WalletKitCore extends AbstractIdleService {
         return new SlpUTXO(slpOpReturn.getTokenId(), tokenRawAmount, utxo, SlpUTXO.SlpUtxoType.NORMAL);
     }
 
-    public void recalculateSlpUtxos() {
-        if (!recalculatingTokens) {
-            boolean addedVerifiedTx = false;
-            boolean addedToken = false;
-            recalculatingTokens = true;
-            this.slpUtxos.clear();
-            this.slpBalances.clear();
-            this.nftParentUtxos.clear();
-            this.nftParentBalances.clear();
-            List<TransactionOutput> utxos = this.wallet().getAllDustUtxos(true, true);
-            ArrayList<SlpUTXO> slpUtxosToAdd = new ArrayList<>();
-            ArrayList<SlpUTXO> nftParentUtxosToAdd = new ArrayList<>();
-            ArrayList<SlpToken> tokensToAdd = new ArrayList<>();
-
-            for (TransactionOutput utxo : utxos) {
-                Transaction tx = utxo.getParentTransaction();
-                if (tx != null) {
-                    if (SlpOpReturn.isSlpTx(tx)) {
-                        if (hasTransactionBeenRecorded(tx.getTxId().toString())) {
-                            SlpOpReturn slpOpReturn = new SlpOpReturn(tx);
-                            String tokenId = slpOpReturn.getTokenId();
-
-                            if (!this.isTokenMapped(SlpOpReturn.SlpTokenType.SLP, tokenId)) {
-                                SlpToken slpToken = this.tryCacheToken(tokenId);
-                                if(slpToken != null) {
-                                    tokensToAdd.add(slpToken);
-                                    addedToken = true;
-                                }
-                            } else {
-                                SlpUTXO slpUTXO = processSlpUtxo(slpOpReturn, utxo);
-                                SlpToken slpToken = this.getSlpToken(tokenId);
-
-                                if(slpOpReturn.getSlpTxType() == SlpOpReturn.SlpTxType.SEND || slpOpReturn.getSlpTxType() == SlpOpReturn.SlpTxType.GENESIS || slpOpReturn.getSlpTxType() == SlpOpReturn.SlpTxType.MINT) {
-                                    this.calculateTokenBalance(SlpOpReturn.SlpTokenType.SLP, slpUTXO, slpToken);
-                                    slpUtxosToAdd.add(slpUTXO);
-                                } else if(slpOpReturn.getSlpTxType() == SlpOpReturn.SlpTxType.NFT_PARENT_SEND || slpOpReturn.getSlpTxType() == SlpOpReturn.SlpTxType.NFT_PARENT_GENESIS || slpOpReturn.getSlpTxType() == SlpOpReturn.SlpTxType.NFT_PARENT_MINT) {
-                                    this.calculateNftParentBalance(slpUTXO, slpToken);
-                                    nftParentUtxosToAdd.add(slpUTXO);
-                                }
-                            }
-                        } else {
-                            SlpDbValidTransaction validTxQuery = new SlpDbValidTransaction(tx.getTxId().toString());
-                            boolean valid = this.slpDbProcessor.isValidSlpTx(validTxQuery.getEncoded());
-                            if (valid) {
-                                this.verifiedSlpTxs.add(tx.getTxId().toString());
-                                addedVerifiedTx = true;
-                            }
-                        }
-                    }
+    /**
+     * @deprecated Balances are kept by the token indexes. This adds the output to the index of the given token type.
+     */
+    @Deprecated
+    public void calculateTokenBalance(SlpOpReturn.SlpTokenType tokenType, SlpUTXO utxo, SlpToken token) {
+        (tokenType == SlpOpReturn.SlpTokenType.SLP ? this.slpIndex : this.nftIndex).add(utxo);
+        this.publishSlpSnapshots();
+    }
+
+    /**
+     * @deprecated Balances are kept by the token indexes. This adds the output to the NFT parent index.
+     */
+    @Deprecated
+    public void calculateNftParentBalance(SlpUTXO slpUTXO, SlpToken nftParentToken) {
+        this.nftParentIndex.add(slpUTXO);
+        this.publishSlpSnapshots();
+    }
+
+    /**
+     * Registers the wallet listeners that keep the token indexes up to date and starts an initial full scan in the
+     * background. After this, each new transaction only costs work proportional to its own inputs and outputs.
+     * Reorganizations fall back to a full rescan.
+     */
+    protected void startSlpIndexing() {
+        // Listen before scanning, so that nothing the wallet receives meanwhile is missed. The scan and the events run
+        // on the indexing thread in order, so every event is applied after the scan or is seen by it.
+        Wallet wallet = this.wallet();
+        wallet.addCoinsReceivedEventListener(slpExecutor, slpIndexingListener);
+        wallet.addCoinsSentEventListener(slpExecutor, slpIndexingListener);
+        wallet.addTransactionConfidenceEventListener(slpExecutor, slpIndexingListener);
+        wallet.addReorganizeEventListener(slpExecutor, slpIndexingListener);
+        slpExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                recalculateSlpUtxos();
+                recalculateNftUtxos();
+            }
+        });
+    }
+
+    /**
+     * Removes the listeners added by {@link #startSlpIndexing()} and stops indexing and validating.
+     */
+    protected void stopSlpIndexing() throws IOException {
+        vWallet.removeCoinsReceivedEventListener(slpIndexingListener);
+        vWallet.removeCoinsSentEventListener(slpIndexingListener);
+        vWallet.removeTransactionConfidenceEventListener(slpIndexingListener);
+        vWallet.removeReorganizeEventListener(slpIndexingListener);
+        slpExecutor.shutdownNow();
+        slpValidationService.shutdown();
+        try {
+            // Let the indexing thread finish what it's doing, so that nothing changes once we return.
+            if (!slpExecutor.awaitTermination(10, TimeUnit.SECONDS))
+                log.warn("SLP indexing thread did not stop");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        slpValidationService.getCache().close();
+    }
+
+    private class SlpIndexingListener implements WalletCoinsReceivedEventListener, WalletCoinsSentEventListener,
+            TransactionConfidenceEventListener, WalletReorganizeEventListener {
+        @Override
+        public void onCoinsReceived(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+            applySlpTransaction(tx);
+        }
+
+        @Override
+        public void onCoinsSent(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+            applySlpTransaction(tx);
+        }
+
+        @Override
+        public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+            if (tx.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.DEAD)
+                removeSlpTransaction(tx);
+        }
+
+        @Override
+        public void onReorganize(Wallet wallet) {
+            recalculateSlpUtxos();
+            recalculateNftUtxos();
+        }
+    }
+
+    /**
+     * Updates the token indexes with a single wallet transaction: outputs it spends are dropped, and its own token
+     * outputs that belong to the wallet are added.
+     */
+    public void applySlpTransaction(final Transaction tx) {
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutPoint outPoint = input.getOutpoint();
+            this.slpIndex.remove(outPoint);
+            this.nftIndex.remove(outPoint);
+            this.nftParentIndex.remove(outPoint);
+        }
+        this.indexSlpTransaction(tx);
+        this.publishSlpSnapshots();
+    }
+
+    /**
+     * Adds the token outputs of the transaction that the wallet can spend to the indexes. If the transaction isn't
+     * known to be valid yet it is validated in the background, and if SLPDB doesn't know the token yet it is tried
+     * again later.
+     */
+    private void indexSlpTransaction(final Transaction tx) {
+        boolean isSlpTx = SlpOpReturn.isSlpTx(tx);
+        boolean isNftChildTx = !isSlpTx && SlpOpReturn.isNftChildTx(tx);
+        if (!isSlpTx && !isNftChildTx)
+            return;
+        List<TransactionOutput> tokenOutputs = new ArrayList<>();
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (this.isSpendableTokenOutput(output))
+                tokenOutputs.add(output);
+        }
+        if (tokenOutputs.isEmpty())
+            return;
+        final String txId = tx.getTxId().toString();
+        if (this.hasTransactionBeenRecorded(txId)) {
+            boolean indexed = isSlpTx ? this.indexSlpOutputs(tx, tokenOutputs) : this.indexNftOutputs(tx, tokenOutputs);
+            if (indexed)
+                this.slpRetries.remove(tx.getTxId());
+            else
+                this.retrySlpTransaction(tx);
+            return;
+        }
+
+        // Validate in the background and index the transaction once it's known to be valid. Its outputs are
+        // re-checked then, as they may have been spent in the meantime. SLPDB may not have seen a new transaction yet,
+        // so one that isn't valid is asked about again later.
+        Futures.addCallback(this.slpValidationService.validate(Collections.singletonList(txId)), new FutureCallback<Set<String>>() {
+            @Override
+            public void onSuccess(Set<String> validTxIds) {
+                if (validTxIds.contains(txId)) {
+                    indexSlpTransaction(tx);
+                    publishSlpSnapshots();
+                } else {
+                    retrySlpTransaction(tx);
                 }
             }
 
-            this.slpUtxos.addAll(slpUtxosToAdd);
-            this.nftParentUtxos.addAll(nftParentUtxosToAdd);
+            @Override
+            public void onFailure(Throwable t) {
+                if (!(t instanceof CancellationException))
+                    log.warn("Could not validate SLP transaction {}", txId, t);
+            }
+        }, slpExecutor);
+    }
 
-            if(addedVerifiedTx) {
-                this.saveVerifiedTxs(this.verifiedSlpTxs);
+    /**
+     * Indexes the transaction again after a delay that grows with every try, until it works or
+     * SLP_MAX_RETRIES tries have been made.
+     */
+    private void retrySlpTransaction(final Transaction tx) {
+        Integer tries = this.slpRetries.get(tx.getTxId());
+        tries = tries == null ? 1 : tries + 1;
+        if (tries > SLP_MAX_RETRIES) {
+            log.warn("Giving up on SLP transaction {}", tx.getTxId());
+            this.slpRetries.remove(tx.getTxId());
+            return;
+        }
+        this.slpRetries.put(tx.getTxId(), tries);
+        long delay = Math.min(this.slpRetryDelayMillis << (tries - 1), SLP_MAX_RETRY_DELAY_MS);
+        log.info("SLP transaction {} not indexed yet, trying again in {} ms", tx.getTxId(), delay);
+        this.slpExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                indexSlpTransaction(tx);
+                publishSlpSnapshots();
             }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Drops the outputs of a transaction that died, and indexes again the outputs it spent, as they can be spent again.
+     */
+    private void removeSlpTransaction(Transaction tx) {
+        for (TransactionOutput output : tx.getOutputs()) {
+            TransactionOutPoint outPoint = output.getOutPointFor();
+            this.slpIndex.remove(outPoint);
+            this.nftIndex.remove(outPoint);
+            this.nftParentIndex.remove(outPoint);
+        }
+        Set<Sha256Hash> spent = new HashSet<>();
+        for (TransactionInput input : tx.getInputs()) {
+            Sha256Hash hash = input.getOutpoint().getHash();
+            if (!spent.add(hash))
+                continue;
+            Transaction parent = this.wallet().getTransaction(hash);
+            if (parent != null && parent.getConfidence().getConfidenceType() != TransactionConfidence.ConfidenceType.DEAD)
+                this.indexSlpTransaction(parent);
+        }
+        this.publishSlpSnapshots();
+    }
+
+    // Replaces the deprecated copies of the indexes.
+    @SuppressWarnings("deprecation")
+    private void publishSlpSnapshots() {
+        this.slpUtxos = this.getSlpUtxos();
+        this.slpBalances = this.getSlpBalances();
+        this.nftUtxos = this.getNftUtxos();
+        this.nftBalances = this.getNftBalances();
+        this.nftParentUtxos = this.getNftParentUtxos();
+        this.nftParentBalances = this.getNftParentBalances();
+    }
 
-            if(addedToken) {
-                this.slpTokens.addAll(tokensToAdd);
-                this.saveTokens(this.slpTokens);
+    /** Mirrors the filtering done by {@link Wallet#getAllDustUtxos(boolean, boolean)} for a single output. */
+    private boolean isSpendableTokenOutput(TransactionOutput output) {
+        Wallet wallet = this.wallet();
+        return output.getValue().value == 546L && output.isAvailableForSpending() && !output.isFrozen()
+                && output.isMine(wallet) && wallet.canSignFor(output.getScriptPubKey())
+                && output.getParentTransaction().isMature();
+    }
+
+    /**
+     * Validates every transaction that isn't known to be valid yet with batched SLPDB queries, waiting for the
+     * results. Used by the full rescans, which need all answers before they can rebuild the indexes.
+     */
+    private void awaitSlpValidation(Collection<Transaction> txs) {
+        List<String> unverified = new ArrayList<>();
+        for (Transaction tx : txs) {
+            String txId = tx.getTxId().toString();
+            if (!this.hasTransactionBeenRecorded(txId))
+                unverified.add(txId);
+        }
+        if (unverified.isEmpty())
+            return;
+        try {
+            this.slpValidationService.validate(unverified).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.warn("Could not validate SLP transactions", e);
+        } catch (CancellationException e) {
+            // Shutting down.
+        }
+    }
+
+    /**
+     * Adds the given outputs of an SLP transaction to the index of its token type. Returns false if the token's details
+     * couldn't be looked up, so nothing was added.
+     */
+    private boolean indexSlpOutputs(Transaction tx, List<TransactionOutput> outputs) {
+        SlpOpReturn slpOpReturn = new SlpOpReturn(tx);
+        String tokenId = slpOpReturn.getTokenId();
+        if (!this.isTokenMapped(SlpOpReturn.SlpTokenType.SLP, tokenId)) {
+            SlpToken slpToken = this.tryCacheToken(tokenId);
+            if (slpToken == null)
+                return false;
+            this.slpTokens.add(slpToken);
+            this.saveTokens(this.slpTokens);
+        }
+
+        SlpOpReturn.SlpTxType txType = slpOpReturn.getSlpTxType();
+        SlpTokenIndex index;
+        if (txType == SlpOpReturn.SlpTxType.SEND || txType == SlpOpReturn.SlpTxType.GENESIS || txType == SlpOpReturn.SlpTxType.MINT) {
+            index = this.slpIndex;
+        } else if (txType == SlpOpReturn.SlpTxType.NFT_PARENT_SEND || txType == SlpOpReturn.SlpTxType.NFT_PARENT_GENESIS || txType == SlpOpReturn.SlpTxType.NFT_PARENT_MINT) {
+            index = this.nftParentIndex;
+        } else {
+            return true;
+        }
+        this.indexTokenOutputs(index, slpOpReturn, outputs);
+        return true;
+    }
+
+    /**
+     * Adds the given outputs of an NFT child transaction to the NFT index. Returns false if the token's details
+     * couldn't be looked up, so nothing was added.
+     */
+    private boolean indexNftOutputs(Transaction tx, List<TransactionOutput> outputs) {
+        SlpOpReturn slpOpReturn = new SlpOpReturn(tx);
+        String tokenId = slpOpReturn.getTokenId();
+        if (!this.isTokenMapped(SlpOpReturn.SlpTokenType.NFT, tokenId)) {
+            NonFungibleSlpToken nft = this.tryCacheNft(tokenId);
+            if (nft == null)
+                return false;
+            this.nfts.add(nft);
+            this.saveNfts(this.nfts);
+        }
+        this.indexTokenOutputs(this.nftIndex, slpOpReturn, outputs);
+        return true;
+    }
+
+    private void indexTokenOutputs(SlpTokenIndex index, SlpOpReturn slpOpReturn, List<TransactionOutput> outputs) {
+        for (TransactionOutput output : outputs) {
+            int slpUtxoIndex = output.getIndex() - 1;
+            // Outputs without a token amount, such as the minting baton, carry no balance.
+            if (slpUtxoIndex < 0 || slpUtxoIndex >= slpOpReturn.getSlpUtxos())
+                continue;
+            index.add(this.processSlpUtxo(slpOpReturn, output));
+        }
+    }
+
+    /**
+     * Groups the wallet's spendable dust outputs of SLP (or NFT child) transactions by their parent transaction, so
+     * each OP_RETURN is parsed and validated once no matter how many of its outputs we own.
+     */
+    private Map<Transaction, List<TransactionOutput>> groupDustUtxosByTransaction(boolean nftChildren) {
+        Map<Transaction, List<TransactionOutput>> grouped = new LinkedHashMap<>();
+        for (TransactionOutput utxo : this.wallet().getAllDustUtxos(true, true)) {
+            Transaction tx = utxo.getParentTransaction();
+            if (tx == null)
+                continue;
+            if (!grouped.containsKey(tx) && !(nftChildren ? SlpOpReturn.isNftChildTx(tx) : SlpOpReturn.isSlpTx(tx)))
+                continue;
+            List<TransactionOutput> outputs = grouped.get(tx);
+            if (outputs == null) {
+                outputs = new ArrayList<>();
+                grouped.put(tx, outputs);
             }
-            recalculatingTokens = false;
+            outputs.add(utxo);
         }
+        return grouped;
     }
 
+    /**
+     * Rebuilds the SLP and NFT parent token indexes from scratch. This is done once when indexing starts and after
+     * a reorganize; in between, {@link #applySlpTransaction(Transaction)} keeps them up to date.
+     */
+    public void recalculateSlpUtxos() {
+        if (!recalculatingTokens) {
+            recalculatingTokens = true;
+            try {
+                this.slpIndex.clear();
+                this.nftParentIndex.clear();
+                Map<Transaction, List<TransactionOutput>> slpTxs = this.groupDustUtxosByTransaction(false);
+                this.awaitSlpValidation(slpTxs.keySet());
+                for (Map.Entry<Transaction, List<TransactionOutput>> entry : slpTxs.entrySet()) {
+                    if (!this.hasTransactionBeenRecorded(entry.getKey().getTxId().toString())
+                            || !this.indexSlpOutputs(entry.getKey(), entry.getValue()))
+                        this.retrySlpTransaction(entry.getKey());
+                }
+            } finally {
+                recalculatingTokens = false;
+                this.publishSlpSnapshots();
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the NFT child token index from scratch.
+     */
     public void recalculateNftUtxos() {
         if (!recalculatingNfts) {
-            boolean addedVerifiedTx = false;
-            boolean addedNft = false;
             recalculatingNfts = true;
-            this.nftUtxos.clear();
-            this.nftBalances.clear();
-            List<TransactionOutput> utxos = this.wallet().getAllDustUtxos(true, true);
-            ArrayList<SlpUTXO> nftUtxosToAdd = new ArrayList<>();
-            ArrayList<NonFungibleSlpToken> nftsToAdd = new ArrayList<>();
-
-            for (TransactionOutput utxo : utxos) {
-                Transaction tx = utxo.getParentTransaction();
-                if (tx != null) {
-                    if (SlpOpReturn.isNftChildTx(tx)) {
-                        if (hasTransactionBeenRecorded(tx.getTxId().toString())) {
-                            SlpOpReturn slpOpReturn = new SlpOpReturn(tx);
-                            String tokenId = slpOpReturn.getTokenId();
-
-                            if (!this.isTokenMapped(SlpOpReturn.SlpTokenType.NFT, tokenId)) {
-                                NonFungibleSlpToken nft = this.tryCacheNft(tokenId);
-                                if(nft != null) {
-                                    nftsToAdd.add(nft);
-                                    addedNft = true;
-                                }
-                            } else {
-                                SlpUTXO slpUTXO = processSlpUtxo(slpOpReturn, utxo);
-                                NonFungibleSlpToken slpToken = this.getNft(tokenId);
-                                this.calculateTokenBalance(SlpOpReturn.SlpTokenType.NFT, slpUTXO, slpToken);
-                                nftUtxosToAdd.add(slpUTXO);
-                            }
-                        } else {
-                            SlpDbValidTransaction validTxQuery = new SlpDbValidTransaction(tx.getTxId().toString());
-                            boolean valid = this.slpDbProcessor.isValidSlpTx(validTxQuery.getEncoded());
-                            if (valid) {
-                                this.verifiedSlpTxs.add(tx.getTxId().toString());
-                                addedVerifiedTx = true;
-                            }
-                        }
-                    }
+            try {
+                this.nftIndex.clear();
+                Map<Transaction, List<TransactionOutput>> nftTxs = this.groupDustUtxosByTransaction(true);
+                this.awaitSlpValidation(nftTxs.keySet());
+                for (Map.Entry<Transaction, List<TransactionOutput>> entry : nftTxs.entrySet()) {
+                    if (!this.hasTransactionBeenRecorded(entry.getKey().getTxId().toString())
+                            || !this.indexNftOutputs(entry.getKey(), entry.getValue()))
+                        this.retrySlpTransaction(entry.getKey());
                 }
+            } finally {
+                recalculatingNfts = false;
+                this.publishSlpSnapshots();
             }
-
-            this.nftUtxos.addAll(nftUtxosToAdd);
-
-            if(addedVerifiedTx) {
-                this.saveVerifiedTxs(this.verifiedSlpTxs);
-            }
-
-            if(addedNft) {
-                this.nfts.addAll(nftsToAdd);
-                this.saveNfts(this.nfts);
-            }
-            recalculatingNfts = false;
         }
     }
 
@@ -1005,39 +1264,4 @@ public class WalletKitCore extends AbstractIdleService {
             }
         }
     }
-
-    protected void saveVerifiedTxs(ArrayList<String> recordedSlpTxs) {
-        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(this.directory(), this.filePrefix + ".txs")), StandardCharsets.UTF_8))) {
-            StringBuilder text = new StringBuilder();
-            for (String txHash : recordedSlpTxs) {
-                text.append(txHash).append("\n");
-            }
-            writer.write(text.toString());
-            writer.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    protected void loadRecordedTxs() {
-        BufferedReader br = null;
-        try {
-            br = new BufferedReader(new FileReader(new File(this.directory(), this.filePrefix + ".txs")));
-            String line = br.readLine();
-            while (line != null) {
-                String txHash = line;
-                this.verifiedSlpTxs.add(txHash);
-                line = br.readLine();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                assert br != null;
-                br.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-    }
 }
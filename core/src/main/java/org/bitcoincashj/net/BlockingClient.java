@@ -162,6 +162,29 @@ public class BlockingClient implements MessageWriteTarget {
         }
     }
 
+    @Override
+    public synchronized ListenableFuture<?> writeBytes(ByteBuffer... buffers) throws IOException {
+        try {
+            OutputStream stream = socket.getOutputStream();
+            for (ByteBuffer buffer : buffers) {
+                if (buffer.hasArray()) {
+                    stream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                    buffer.position(buffer.limit());
+                } else {
+                    byte[] bytes = new byte[buffer.remaining()];
+                    buffer.get(bytes);
+                    stream.write(bytes);
+                }
+            }
+            stream.flush();
+            return Futures.immediateFuture(null);
+        } catch (IOException e) {
+            log.error("Error writing message to connection, closing connection", e);
+            closeConnection();
+            throw e;
+        }
+    }
+
     /**
      * Returns a future that completes once connection has occurred at the socket level or with an exception if failed to connect.
      */
@@ -55,6 +55,8 @@ class ConnectionHandler implements MessageWriteTarget {
     private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
 
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
+    // Most buffers handed to a single gathering write, well below the IOV_MAX of common platforms.
+    private static final int MAX_GATHERED_BUFFERS = 64;
 
     @GuardedBy("lock")
     private final ByteBuffer readBuff;
@@ -71,15 +73,25 @@ class ConnectionHandler implements MessageWriteTarget {
     private long bytesToWriteRemaining = 0;
     @GuardedBy("lock")
     private final LinkedList<BytesAndFuture> bytesToWrite = new LinkedList<>();
+    // Reused for every gathering write, to not allocate an array each time the socket becomes writable.
+    @GuardedBy("lock")
+    private final ByteBuffer[] gatheredBuffers = new ByteBuffer[MAX_GATHERED_BUFFERS];
 
     private static class BytesAndFuture {
-        public final ByteBuffer bytes;
-        public final SettableFuture future;
+        public final ByteBuffer[] buffers;
+        public final SettableFuture<Object> future;
 
-        public BytesAndFuture(ByteBuffer bytes, SettableFuture future) {
-            this.bytes = bytes;
+        public BytesAndFuture(ByteBuffer[] buffers, SettableFuture<Object> future) {
+            this.buffers = buffers;
             this.future = future;
         }
+
+        public boolean hasRemaining() {
+            for (ByteBuffer buffer : buffers)
+                if (buffer.hasRemaining())
+                    return true;
+            return false;
+        }
     }
 
     private Set<ConnectionHandler> connectedHandlers;
@@ -131,15 +143,35 @@ class ConnectionHandler implements MessageWriteTarget {
     private void tryWriteBytes() throws IOException {
         lock.lock();
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<BytesAndFuture> iterator = bytesToWrite.iterator();
-            while (iterator.hasNext()) {
-                BytesAndFuture bytesAndFuture = iterator.next();
-                bytesToWriteRemaining -= channel.write(bytesAndFuture.bytes);
-                if (!bytesAndFuture.bytes.hasRemaining()) {
+            // Push as much of the outbound queue as possible into the OS' network buffer. The buffers of several
+            // messages are handed over in one gathering write, so relaying many small messages costs few syscalls.
+            while (!bytesToWrite.isEmpty()) {
+                int count = 0;
+                long bytesOffered = 0;
+                gather:
+                for (BytesAndFuture bytesAndFuture : bytesToWrite) {
+                    for (ByteBuffer buffer : bytesAndFuture.buffers) {
+                        if (count == gatheredBuffers.length)
+                            break gather;
+                        if (buffer.hasRemaining()) {
+                            gatheredBuffers[count++] = buffer;
+                            bytesOffered += buffer.remaining();
+                        }
+                    }
+                }
+                long bytesWritten = count == 0 ? 0 : channel.write(gatheredBuffers, 0, count);
+                Arrays.fill(gatheredBuffers, 0, count, null);
+                bytesToWriteRemaining -= bytesWritten;
+                Iterator<BytesAndFuture> iterator = bytesToWrite.iterator();
+                while (iterator.hasNext()) {
+                    BytesAndFuture bytesAndFuture = iterator.next();
+                    if (bytesAndFuture.hasRemaining())
+                        break;
                     iterator.remove();
                     bytesAndFuture.future.set(null);
-                } else {
+                }
+                if (bytesWritten < bytesOffered) {
+                    // The OS' network buffer is full, continue once it has room again
                     setWriteOps();
                     break;
                 }
@@ -155,6 +187,12 @@ class ConnectionHandler implements MessageWriteTarget {
 
     @Override
     public ListenableFuture writeBytes(byte[] message) throws IOException {
+        // The caller is free to reuse the array once we return, so we have to write a copy
+        return writeBytes(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
+    }
+
+    @Override
+    public ListenableFuture<?> writeBytes(ByteBuffer... buffers) throws IOException {
         boolean andUnlock = true;
         lock.lock();
         try {
@@ -162,14 +200,15 @@ class ConnectionHandler implements MessageWriteTarget {
             // thus we have to buffer outbound messages sometimes. To do this, we use a queue of ByteBuffers and just
             // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
             // register our SelectionKey to wakeup when we have free outbound buffer space available.
-
-            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
+            long length = 0;
+            for (ByteBuffer buffer : buffers)
+                length += buffer.remaining();
+            if (bytesToWriteRemaining + length > OUTBOUND_BUFFER_BYTE_COUNT)
                 throw new IOException("Outbound buffer overflowed");
-            // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
+            // Just queue the buffers as they are and call tryWriteBytes
             final SettableFuture<Object> future = SettableFuture.create();
-            bytesToWrite.offer(new BytesAndFuture(ByteBuffer.wrap(Arrays.copyOf(message, message.length)), future));
-            bytesToWriteRemaining += message.length;
+            bytesToWrite.offer(new BytesAndFuture(buffers, future));
+            bytesToWriteRemaining += length;
             setWriteOps();
             return future;
         } catch (IOException e) {
@@ -21,9 +21,9 @@ import org.bitcoincashj.core.BloomFilter;
 import org.bitcoincashj.core.PeerFilterProvider;
 import org.bitcoincashj.core.PeerGroup;
 
-import java.util.LinkedList;
+import java.util.List;
 
-// This code is unit tested by the PeerGroup tests.
+// This code is unit tested by FilterMergerTest and the PeerGroup tests.
 
 /**
  * <p>A reusable object that will calculate, given a list of {@link PeerFilterProvider}s, a merged
@@ -31,11 +31,17 @@ import java.util.LinkedList;
  * Used by the {@link PeerGroup} class internally.</p>
  *
  * <p>Thread safety: threading here can be complicated. Each filter provider is given a begin event, which may acquire
- * a lock (and is guaranteed to receive an end event). This class is mostly thread unsafe and is meant to be used from a
- * single thread only, PeerGroup ensures this by only accessing it from the dedicated PeerGroup thread. PeerGroup does
- * not hold any locks whilst this object is used, relying on the single thread to prevent multiple filters being
- * calculated in parallel, thus a filter provider can do things like make blocking calls into PeerGroup from a separate
- * thread. However the bloomFilterFPRate property IS thread safe, for convenience.</p>
+ * a lock (and is guaranteed to receive an end event). Providers are begun one at a time, and only for as long as it
+ * takes to count and build their own part of the filter: the parts are merged without holding any provider locks, so
+ * a wallet isn't blocked while the filters of the others are built. This class is mostly thread unsafe and is meant to
+ * be used from a single thread only, PeerGroup ensures this by only accessing it from the dedicated PeerGroup thread.
+ * PeerGroup does not hold any locks whilst this object is used, relying on the single thread to prevent multiple
+ * filters being calculated in parallel, thus a filter provider can do things like make blocking calls into PeerGroup
+ * from a separate thread. However the bloomFilterFPRate property IS thread safe, for convenience.</p>
+ *
+ * <p>The last filter is sized with room for more elements than it was built with, so elements added later, such as
+ * the keys of a lookahead, can be inserted into it with {@link #insert(List)} and sent to peers without building and
+ * sending a new filter. Once that room is used up, the filter has to be calculated again.</p>
  */
 public class FilterMerger {
     // We use a constant tweak to avoid giving up privacy when we regenerate our filter with new keys
@@ -44,6 +50,8 @@ public class FilterMerger {
     private volatile double vBloomFilterFPRate;
     private int lastBloomFilterElementCount;
     private BloomFilter lastFilter;
+    // Number of elements in the last filter, those it was built with plus the ones inserted since.
+    private int lastFilterElements;
 
     public FilterMerger(double bloomFilterFPRate) {
         this.vBloomFilterFPRate = bloomFilterFPRate;
@@ -56,50 +64,82 @@ public class FilterMerger {
     }
 
     public Result calculate(ImmutableList<PeerFilterProvider> providers) {
-        LinkedList<PeerFilterProvider> begunProviders = new LinkedList<>();
-        try {
-            // All providers must be in a consistent, unchanging state because the filter is a merged one that's
-            // large enough for all providers elements: if a provider were to get more elements in the middle of the
-            // calculation, we might assert or calculate the filter wrongly. Most providers use a lock here but
-            // snapshotting required state is also a legitimate strategy.
-            for (PeerFilterProvider provider : providers) {
-                provider.beginBloomFilterCalculation();
-                begunProviders.add(provider);
-            }
-            Result result = new Result();
+        // All elements of a provider must be counted and inserted in a consistent, unchanging state, because its part
+        // of the filter must be large enough for the whole filter. Most providers use a lock here but snapshotting
+        // required state is also a legitimate strategy. If a provider turns out to have more elements than there is
+        // room for, the parts are built again for the larger size. As the size only grows in steps, the size of the
+        // previous calculation is usually large enough and each part is built once.
+        int[] counts = new int[providers.size()];
+        BloomFilter[] parts = new BloomFilter[providers.size()];
+        double fpRate = vBloomFilterFPRate;
+        Result result = new Result();
+        int elements;
+        boolean complete;
+        do {
+            elements = 0;
+            for (int count : counts)
+                elements += count;
+            // We stair-step our element count so that we avoid creating a filter with different parameters
+            // as much as possible as that results in a loss of privacy.
+            // The constant 100 here is somewhat arbitrary, but makes sense for small to medium wallets -
+            // it will likely mean we never need to create a filter with different parameters.
+            if (elements > lastBloomFilterElementCount)
+                lastBloomFilterElementCount = elements + 100;
             result.earliestKeyTimeSecs = Long.MAX_VALUE;
-            int elements = 0;
-            for (PeerFilterProvider p : providers) {
-                result.earliestKeyTimeSecs = Math.min(result.earliestKeyTimeSecs, p.getEarliestKeyCreationTime());
-                elements += p.getBloomFilterElementCount();
+            complete = true;
+            for (int i = 0; i < providers.size() && complete; i++) {
+                PeerFilterProvider p = providers.get(i);
+                p.beginBloomFilterCalculation();
+                try {
+                    result.earliestKeyTimeSecs = Math.min(result.earliestKeyTimeSecs, p.getEarliestKeyCreationTime());
+                    int count = p.getBloomFilterElementCount();
+                    elements += count - counts[i];
+                    counts[i] = count;
+                    if (elements > lastBloomFilterElementCount)
+                        complete = false;
+                    else if (count > 0)
+                        parts[i] = p.getBloomFilter(lastBloomFilterElementCount, fpRate, bloomFilterTweak);
+                    else
+                        parts[i] = null;
+                } finally {
+                    p.endBloomFilterCalculation();
+                }
             }
+        } while (!complete);
 
-            if (elements > 0) {
-                // We stair-step our element count so that we avoid creating a filter with different parameters
-                // as much as possible as that results in a loss of privacy.
-                // The constant 100 here is somewhat arbitrary, but makes sense for small to medium wallets -
-                // it will likely mean we never need to create a filter with different parameters.
-                lastBloomFilterElementCount = elements > lastBloomFilterElementCount ? elements + 100 : lastBloomFilterElementCount;
-                double fpRate = vBloomFilterFPRate;
-                // We now always use UPDATE_ALL because with SegWit there is hardly any wallet that can do without.
-                BloomFilter filter = new BloomFilter(lastBloomFilterElementCount, fpRate, bloomFilterTweak,
-                        BloomFilter.BloomUpdate.UPDATE_ALL);
-                for (PeerFilterProvider p : providers)
-                    filter.merge(p.getBloomFilter(lastBloomFilterElementCount, fpRate, bloomFilterTweak));
+        if (elements > 0) {
+            // We now always use UPDATE_ALL because with SegWit there is hardly any wallet that can do without.
+            BloomFilter filter = new BloomFilter(lastBloomFilterElementCount, fpRate, bloomFilterTweak,
+                    BloomFilter.BloomUpdate.UPDATE_ALL);
+            for (BloomFilter part : parts)
+                if (part != null)
+                    filter.merge(part);
 
-                result.changed = !filter.equals(lastFilter);
-                result.filter = lastFilter = filter;
-            }
-            // Now adjust the earliest key time backwards by a week to handle the case of clock drift. This can occur
-            // both in block header timestamps and if the users clock was out of sync when the key was first created
-            // (to within a small amount of tolerance).
-            result.earliestKeyTimeSecs -= 86400 * 7;
-            return result;
-        } finally {
-            for (PeerFilterProvider provider : begunProviders) {
-                provider.endBloomFilterCalculation();
-            }
+            result.changed = !filter.equals(lastFilter);
+            result.filter = lastFilter = filter;
+            lastFilterElements = elements;
         }
+        // Now adjust the earliest key time backwards by a week to handle the case of clock drift. This can occur
+        // both in block header timestamps and if the users clock was out of sync when the key was first created
+        // (to within a small amount of tolerance).
+        result.earliestKeyTimeSecs -= 86400 * 7;
+        return result;
+    }
+
+    /**
+     * Inserts the given elements into the last calculated filter, if it still has room for them at the configured
+     * false positive rate. The elements can then be sent to peers that have the filter, instead of the whole filter.
+     *
+     * @return true if the elements were inserted, false if there is no filter yet or it is saturated, in which case
+     * it has to be calculated again with {@link #calculate(ImmutableList)}
+     */
+    public boolean insert(List<byte[]> elements) {
+        if (lastFilter == null || lastFilterElements + elements.size() > lastBloomFilterElementCount)
+            return false;
+        for (byte[] element : elements)
+            lastFilter.insert(element);
+        lastFilterElements += elements.size();
+        return true;
     }
 
     public void setBloomFilterFPRate(double bloomFilterFPRate) {
@@ -19,6 +19,7 @@ package org.bitcoincashj.net;
 import com.google.common.util.concurrent.ListenableFuture;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * A target to which messages can be written/connection can be closed
@@ -30,6 +31,26 @@ public interface MessageWriteTarget {
      */
     ListenableFuture writeBytes(byte[] message) throws IOException;
 
+    /**
+     * Writes the remaining bytes of the given buffers, in order, to the remote server. Implementations may use the
+     * buffers as they are rather than copy them, so they must not be modified until the returned future completes,
+     * which happens when all bytes have been written to the OS network buffer. By default the bytes are copied into
+     * one array for {@link #writeBytes(byte[])}.
+     */
+    default ListenableFuture<?> writeBytes(ByteBuffer... buffers) throws IOException {
+        int length = 0;
+        for (ByteBuffer buffer : buffers)
+            length += buffer.remaining();
+        byte[] message = new byte[length];
+        int offset = 0;
+        for (ByteBuffer buffer : buffers) {
+            int remaining = buffer.remaining();
+            buffer.get(message, offset, remaining);
+            offset += remaining;
+        }
+        return writeBytes(message);
+    }
+
     /**
      * Closes the connection to the server, triggering the {@link StreamConnection#connectionClosed()}
      * event on the network-handling thread where all callbacks occur.
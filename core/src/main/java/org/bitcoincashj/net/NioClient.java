@@ -128,4 +128,9 @@ public class NioClient implements MessageWriteTarget {
     public synchronized ListenableFuture writeBytes(byte[] message) throws IOException {
         return handler.writeTarget.writeBytes(message);
     }
+
+    @Override
+    public synchronized ListenableFuture<?> writeBytes(ByteBuffer... buffers) throws IOException {
+        return handler.writeTarget.writeBytes(buffers);
+    }
 }
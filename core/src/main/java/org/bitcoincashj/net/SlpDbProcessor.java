@@ -6,14 +6,27 @@ import org.json.JSONObject;
 import java.io.*;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 public class SlpDbProcessor {
-    private final String[] slpDbInstances = new String[]{"slpdb.fountainhead.cash", "slpdb.bitcoin.com"};
+    private final String[] slpDbInstances;
     private final String slpDbEndpoint = "/q/";
 
     public SlpDbProcessor() {
+        this("https://slpdb.fountainhead.cash", "https://slpdb.bitcoin.com");
+    }
 
+    /**
+     * Creates a processor that queries the given SLPDB instances, e.g. "https://slpdb.fountainhead.cash". One is
+     * picked at random for every request.
+     */
+    public SlpDbProcessor(String... slpDbInstances) {
+        this.slpDbInstances = slpDbInstances;
     }
 
     private String readData(Reader rd) throws IOException {
@@ -33,7 +46,7 @@ public class SlpDbProcessor {
             int randServer = new Random().nextInt(slpDbInstances.length);
             String slpDbServer = slpDbInstances[randServer];
 
-            try (InputStream is = new URL("https://" + slpDbServer + slpDbEndpoint + base64Query).openStream()) {
+            try (InputStream is = new URL(slpDbServer + slpDbEndpoint + base64Query).openStream()) {
                 BufferedReader rd = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
                 String jsonText = readData(rd);
                 JSONArray tokenArray = new JSONObject(jsonText).getJSONArray("t");
@@ -48,7 +61,8 @@ public class SlpDbProcessor {
                     Thread.sleep(backOff);
                     backOff *= 2;
                 } catch (InterruptedException ex) {
-                    ex.printStackTrace();
+                    Thread.currentThread().interrupt();
+                    break;
                 }
             }
         }
@@ -64,7 +78,7 @@ public class SlpDbProcessor {
         for (int x = tries; x > 0; x--) {
             int randServer = new Random().nextInt(slpDbInstances.length);
             String slpDbServer = slpDbInstances[randServer];
-            try (InputStream is = new URL("https://" + slpDbServer + slpDbEndpoint + base64Query).openStream()) {
+            try (InputStream is = new URL(slpDbServer + slpDbEndpoint + base64Query).openStream()) {
                 BufferedReader rd = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
                 String jsonText = readData(rd);
                 JSONArray confirmedArray = new JSONObject(jsonText).getJSONArray("c");
@@ -90,4 +104,52 @@ public class SlpDbProcessor {
 
         return valid;
     }
+
+    /**
+     * Looks up many transactions with a single query and returns the txids that SLPDB reports as valid. Transactions
+     * that are invalid or that SLPDB doesn't know about yet are simply absent from the result.
+     *
+     * @throws IOException if no SLPDB instance could be reached after all retries.
+     */
+    public Set<String> getValidSlpTxs(List<String> txIds, int tries) throws IOException {
+        checkArgument(tries > 0, "tries must be positive");
+        String base64Query = new SlpDbValidTransaction(txIds).getEncoded();
+        int backOff = 1000;
+        IOException lastError = null;
+        for (int x = tries; x > 0; x--) {
+            int randServer = new Random().nextInt(slpDbInstances.length);
+            String slpDbServer = slpDbInstances[randServer];
+            try (InputStream is = new URL(slpDbServer + slpDbEndpoint + base64Query).openStream()) {
+                BufferedReader rd = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+                JSONObject result = new JSONObject(readData(rd));
+                Set<String> validTxIds = new HashSet<>();
+                collectValidTxIds(result.optJSONArray("c"), validTxIds);
+                collectValidTxIds(result.optJSONArray("u"), validTxIds);
+                return validTxIds;
+            } catch (Exception e) {
+                lastError = e instanceof IOException ? (IOException) e : new IOException(e);
+                if (x > 1) {
+                    try {
+                        Thread.sleep(backOff);
+                        backOff *= 2;
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+        }
+
+        throw lastError;
+    }
+
+    private static void collectValidTxIds(JSONArray results, Set<String> validTxIds) {
+        if (results == null)
+            return;
+        for (int i = 0; i < results.length(); i++) {
+            JSONObject entry = results.getJSONObject(i);
+            if (entry.optBoolean("valid", false))
+                validTxIds.add(entry.getString("txid"));
+        }
+    }
 }
@@ -5,6 +5,7 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 public class SlpDbValidTransaction {
     private String json;
@@ -32,6 +33,34 @@ public class SlpDbValidTransaction {
         this.json = json.toString();
     }
 
+    /**
+     * Builds a single query that returns the txid of every transaction in the given list that SLPDB considers valid.
+     */
+    public SlpDbValidTransaction(List<String> txIds) {
+        JSONObject json = new JSONObject();
+        json.put("v", 3);
+        JSONObject q = new JSONObject();
+        q.put("db", new JSONArray().put("c").put("u"));
+        JSONObject findJson = new JSONObject();
+        JSONObject inJson = new JSONObject();
+        inJson.put("$in", new JSONArray(txIds));
+        findJson.put("tx.h", inJson);
+        findJson.put("slp.valid", true);
+        q.put("find", findJson);
+        JSONObject project = new JSONObject();
+        project.put("tx.h", 1);
+        project.put("slp.valid", 1);
+        project.put("_id", 0);
+        q.put("project", project);
+        q.put("limit", txIds.size());
+        json.put("q", q);
+        JSONObject r = new JSONObject();
+        r.put("f", "[.[] | {txid: .tx.h, valid: .slp.valid}]");
+        json.put("r", r);
+
+        this.json = json.toString();
+    }
+
     public String getJson() {
         return this.json;
     }
@@ -39,4 +68,4 @@ public class SlpDbValidTransaction {
     public String getEncoded() {
         return new String(Base64.encode(this.json.getBytes()), StandardCharsets.UTF_8);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,179 @@
+package org.bitcoincashj.net;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.bitcoincashj.core.slp.SlpValidationCache;
+import org.bitcoincashj.utils.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Validates SLP transactions against SLPDB off the calling thread. Txids that are already in the
+ * {@link SlpValidationCache} are answered immediately; the rest are split into batches that are each resolved with a
+ * single SLPDB query, several batches in parallel. Valid results are appended to the cache.</p>
+ *
+ * <p>Concurrent requests for the same txid share one lookup. Once the service is shut down, lookups that haven't been
+ * answered are cancelled.</p>
+ */
+public class SlpValidationService {
+    private static final Logger log = LoggerFactory.getLogger(SlpValidationService.class);
+
+    /** Number of txids sent to SLPDB in one query. */
+    public static final int DEFAULT_BATCH_SIZE = 50;
+    /** Number of queries that may be in flight at the same time. */
+    public static final int DEFAULT_THREADS = 4;
+    /** How often a failing query is retried, with exponential back-off, before its txids are reported as not valid. */
+    public static final int DEFAULT_TRIES = 6;
+
+    private final SlpDbProcessor slpDbProcessor;
+    private final SlpValidationCache cache;
+    private final ListeningExecutorService executor;
+    private final int batchSize;
+    private final int tries;
+    private final ConcurrentHashMap<String, SettableFuture<Boolean>> pending = new ConcurrentHashMap<>();
+
+    public SlpValidationService(SlpDbProcessor slpDbProcessor, SlpValidationCache cache) {
+        this(slpDbProcessor, cache, DEFAULT_BATCH_SIZE, DEFAULT_THREADS, DEFAULT_TRIES);
+    }
+
+    public SlpValidationService(SlpDbProcessor slpDbProcessor, SlpValidationCache cache, int batchSize, int threads, int tries) {
+        checkArgument(batchSize > 0, "batchSize must be positive");
+        checkArgument(threads > 0, "threads must be positive");
+        checkArgument(tries > 0, "tries must be positive");
+        this.slpDbProcessor = slpDbProcessor;
+        this.cache = cache;
+        this.batchSize = batchSize;
+        this.tries = tries;
+        this.executor = MoreExecutors.listeningDecorator(
+                Executors.newFixedThreadPool(threads, new DaemonThreadFactory("SLP validation")));
+    }
+
+    public SlpValidationCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Returns true if the txid has already been validated. Never blocks on the network.
+     */
+    public boolean isKnownValid(String txId) {
+        return cache.contains(txId);
+    }
+
+    /**
+     * Validates the given transactions, returning a future for the subset of them that SLPDB reports as valid.
+     * Transactions that could not be checked because SLPDB was unreachable are left out of the result and not cached,
+     * so they will be looked up again next time. The future is cancelled if the service is shut down first, and fails
+     * if the valid results can't be recorded in the cache.
+     */
+    public ListenableFuture<Set<String>> validate(Collection<String> txIds) {
+        final Map<String, ListenableFuture<Boolean>> results = new LinkedHashMap<>();
+        List<String> toQuery = new ArrayList<>();
+        for (String txId : new LinkedHashSet<>(txIds)) {
+            if (cache.contains(txId)) {
+                results.put(txId, Futures.immediateFuture(true));
+                continue;
+            }
+            SettableFuture<Boolean> future = SettableFuture.create();
+            SettableFuture<Boolean> existing = pending.putIfAbsent(txId, future);
+            if (existing != null) {
+                results.put(txId, existing);
+            } else {
+                results.put(txId, future);
+                toQuery.add(txId);
+            }
+        }
+
+        for (int i = 0; i < toQuery.size(); i += batchSize) {
+            final List<String> batch = new ArrayList<>(toQuery.subList(i, Math.min(i + batchSize, toQuery.size())));
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        queryBatch(batch);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Shut down, nobody is going to answer.
+                cancel(batch);
+            }
+        }
+
+        return Futures.transform(Futures.allAsList(results.values()), new Function<List<Boolean>, Set<String>>() {
+            @Override
+            public Set<String> apply(List<Boolean> valid) {
+                Set<String> validTxIds = new HashSet<>();
+                int i = 0;
+                for (String txId : results.keySet()) {
+                    if (valid.get(i++))
+                        validTxIds.add(txId);
+                }
+                return validTxIds;
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private void queryBatch(List<String> batch) {
+        Set<String> validTxIds = new HashSet<>();
+        try {
+            validTxIds = slpDbProcessor.getValidSlpTxs(batch, tries);
+        } catch (Exception e) {
+            log.warn("Could not validate {} SLP transactions: {}", batch.size(), e.toString());
+        }
+        if (executor.isShutdown()) {
+            cancel(batch);
+            return;
+        }
+        try {
+            cache.addAll(validTxIds);
+        } catch (Exception e) {
+            // A result that isn't recorded would be asked about again after every restart, so don't report it either.
+            log.warn("Could not record {} valid SLP transactions: {}", validTxIds.size(), e.toString());
+            for (String txId : batch) {
+                SettableFuture<Boolean> future = pending.remove(txId);
+                if (future != null)
+                    future.setException(e);
+            }
+            return;
+        }
+        for (String txId : batch) {
+            SettableFuture<Boolean> future = pending.remove(txId);
+            if (future != null)
+                future.set(validTxIds.contains(txId));
+        }
+    }
+
+    private void cancel(Collection<String> txIds) {
+        for (String txId : txIds) {
+            SettableFuture<Boolean> future = pending.remove(txId);
+            if (future != null)
+                future.cancel(false);
+        }
+    }
+
+    /**
+     * Stops looking up transactions. Queries in flight are interrupted and all lookups that haven't been answered are
+     * cancelled, so their callers don't hear back after this returns.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        cancel(new ArrayList<>(pending.keySet()));
+    }
+}
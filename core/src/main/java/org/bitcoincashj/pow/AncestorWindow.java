@@ -0,0 +1,121 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.pow;
+
+import org.bitcoincashj.core.NetworkParameters;
+import org.bitcoincashj.core.Sha256Hash;
+import org.bitcoincashj.core.StoredBlock;
+import org.bitcoincashj.store.BlockStore;
+import org.bitcoincashj.store.BlockStoreException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A view of a {@link BlockStore} that keeps the most recently added or looked up blocks in a ring buffer. The
+ * difficulty rules look at up to a day of ancestors of every new block, through {@link StoredBlock#getPrev(BlockStore)}
+ * and the median time past. When the blocks are checked one after the other, nearly all of these are among the last
+ * few hundred blocks, so {@link org.bitcoincashj.core.AbstractBlockChain} passes this view to the
+ * {@link AbstractPowRulesChecker}s instead of its store, and checking a block costs a constant number of store
+ * lookups.</p>
+ *
+ * <p>Everything but {@link #get(Sha256Hash)} goes to the underlying store. Blocks never change once stored, so the
+ * window can't go stale, though it may still return blocks the store has since dropped. This class is not thread
+ * safe; the block chain uses it under its lock.</p>
+ */
+public class AncestorWindow implements BlockStore {
+    /**
+     * Twice the number of ancestors that the rules look at: a day of blocks plus the median time past. Blocks looked
+     * up while the window fills can then be evicted before they are needed again.
+     */
+    public static final int DEFAULT_CAPACITY = 512;
+
+    private final BlockStore store;
+    private final StoredBlock[] ring;
+    private final Map<Sha256Hash, StoredBlock> blocks;
+    private int next;
+
+    public AncestorWindow(BlockStore store) {
+        this(store, DEFAULT_CAPACITY);
+    }
+
+    public AncestorWindow(BlockStore store, int capacity) {
+        checkArgument(capacity > 0);
+        this.store = checkNotNull(store);
+        this.ring = new StoredBlock[capacity];
+        this.blocks = new HashMap<>(capacity * 2);
+    }
+
+    /** Adds a block to the window, evicting the one that was added longest ago if it is full. */
+    public void add(StoredBlock block) {
+        Sha256Hash hash = block.getHeader().getHash();
+        if (blocks.containsKey(hash))
+            return;
+        StoredBlock evicted = ring[next];
+        if (evicted != null)
+            blocks.remove(evicted.getHeader().getHash());
+        ring[next] = block;
+        blocks.put(hash, block);
+        next = (next + 1) % ring.length;
+    }
+
+    /** Forgets all blocks, for example after the store was rolled back. */
+    public void clear() {
+        for (int i = 0; i < ring.length; i++)
+            ring[i] = null;
+        blocks.clear();
+        next = 0;
+    }
+
+    @Override
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        StoredBlock block = blocks.get(hash);
+        if (block == null) {
+            block = store.get(hash);
+            if (block != null)
+                add(block);
+        }
+        return block;
+    }
+
+    @Override
+    public void put(StoredBlock block) throws BlockStoreException {
+        store.put(block);
+        add(block);
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        return store.getChainHead();
+    }
+
+    @Override
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        store.setChainHead(chainHead);
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        store.close();
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return store.getParams();
+    }
+}
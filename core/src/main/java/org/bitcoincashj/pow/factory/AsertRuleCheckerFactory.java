@@ -26,14 +26,17 @@ import org.bitcoincashj.store.BlockStore;
 
 public class AsertRuleCheckerFactory extends AbstractRuleCheckerFactory {
 
+    // Shared, so the reference block the checker finds is kept.
+    private final RulesPoolChecker rulesChecker;
+
     public AsertRuleCheckerFactory(NetworkParameters parameters) {
         super(parameters);
+        this.rulesChecker = new RulesPoolChecker(networkParameters);
+        this.rulesChecker.addRule(new AsertDifficultyRuleChecker(networkParameters));
     }
 
     @Override
     public RulesPoolChecker getRuleChecker(StoredBlock storedPrev, Block nextBlock, BlockStore blockStore) {
-        RulesPoolChecker rulesChecker = new RulesPoolChecker(networkParameters);
-        rulesChecker.addRule(new AsertDifficultyRuleChecker(networkParameters));
         return rulesChecker;
     }
 
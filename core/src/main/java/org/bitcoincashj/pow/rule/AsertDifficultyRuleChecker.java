@@ -22,7 +22,16 @@ import org.bitcoincashj.pow.AbstractPowRulesChecker;
 import org.bitcoincashj.store.BlockStore;
 import org.bitcoincashj.store.BlockStoreException;
 
+import javax.annotation.concurrent.GuardedBy;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkState;
 
 /**
  * The new DAA algorithm seeks to accomplish the following objectives:
@@ -36,6 +45,31 @@ import java.math.BigInteger;
  */
 public class AsertDifficultyRuleChecker extends AbstractPowRulesChecker {
 
+    // Blocks remembered to descend from the reference, so that a block building on one of them is known to use it
+    // after looking at its parent only.
+    private static final int MAX_DESCENDANTS = 1024;
+
+    // The reference block of the chain, once found. It is the first block of every chain using ASERT, so finding it,
+    // which walks back to the activation, is needed only once per fork that activated ASERT on its own.
+    @GuardedBy("this") private Reference reference;
+    @GuardedBy("this") private final Set<Sha256Hash> descendants = Collections.newSetFromMap(
+            new LinkedHashMap<Sha256Hash, Boolean>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Boolean> eldest) {
+                    return size() > MAX_DESCENDANTS;
+                }
+            });
+
+    private static class Reference {
+        final StoredBlock block;
+        final long ancestorTime;
+
+        Reference(StoredBlock block, long ancestorTime) {
+            this.block = block;
+            this.ancestorTime = ancestorTime;
+        }
+    }
+
     public AsertDifficultyRuleChecker(NetworkParameters networkParameters) {
         super(networkParameters);
     }
@@ -57,10 +91,10 @@ public class AsertDifficultyRuleChecker extends AbstractPowRulesChecker {
                 referenceBlockHeight = networkParameters.getAsertReferenceBlockHeight();
                 referenceBlockBits = Utils.decodeCompactBits(networkParameters.getAsertReferenceBlockBits());
             } else {
-                StoredBlock asertReferenceBlock = getAsertReferenceBlock(storedPrev, blockStore);
-                referenceBlockAncestorTime = BigInteger.valueOf(asertReferenceBlock.getPrev(blockStore).getHeader().getTimeSeconds());
-                referenceBlockHeight = BigInteger.valueOf(asertReferenceBlock.getHeight());
-                referenceBlockBits = asertReferenceBlock.getHeader().getDifficultyTargetAsInteger();
+                Reference reference = getReference(storedPrev, blockStore);
+                referenceBlockAncestorTime = BigInteger.valueOf(reference.ancestorTime);
+                referenceBlockHeight = BigInteger.valueOf(reference.block.getHeight());
+                referenceBlockBits = reference.block.getHeader().getDifficultyTargetAsInteger();
             }
             BigInteger nextTarget = AbstractBitcoinNetParams.computeAsertTarget(networkParameters, referenceBlockBits, referenceBlockAncestorTime, referenceBlockHeight, evalBlockTime, evalBlockHeight, storedPrev, nextBlock);
             networkParameters.verifyAsertDifficulty(nextTarget, nextBlock);
@@ -69,6 +103,38 @@ public class AsertDifficultyRuleChecker extends AbstractPowRulesChecker {
         }
     }
 
+    private synchronized Reference getReference(StoredBlock storedPrev, BlockStore blockStore) throws BlockStoreException {
+        if (reference == null || !descendsFromReference(storedPrev, blockStore)) {
+            StoredBlock asertReferenceBlock = getAsertReferenceBlock(storedPrev, blockStore);
+            reference = new Reference(asertReferenceBlock,
+                    asertReferenceBlock.getPrev(blockStore).getHeader().getTimeSeconds());
+            descendants.clear();
+            descendants.add(storedPrev.getHeader().getHash());
+        }
+        return reference;
+    }
+
+    // Walks back from the given block until it reaches the reference or a block known to descend from it. On a fork
+    // from below the reference, which only happens on test networks without a fixed reference, this walks back to the
+    // height of the reference and fails.
+    private boolean descendsFromReference(StoredBlock storedPrev, BlockStore blockStore) throws BlockStoreException {
+        checkState(Thread.holdsLock(this));
+        Sha256Hash referenceHash = reference.block.getHeader().getHash();
+        List<Sha256Hash> walked = new ArrayList<>();
+        StoredBlock block = storedPrev;
+        while (block != null && block.getHeight() >= reference.block.getHeight()) {
+            Sha256Hash hash = block.getHeader().getHash();
+            if (hash.equals(referenceHash) || descendants.contains(hash)) {
+                for (int i = walked.size() - 1; i >= 0; i--)
+                    descendants.add(walked.get(i));
+                return true;
+            }
+            walked.add(hash);
+            block = block.getPrev(blockStore);
+        }
+        return false;
+    }
+
     private StoredBlock getAsertReferenceBlock(StoredBlock storedPrev, BlockStore blockStore) throws BlockStoreException {
         StoredBlock bestAsertCandidate = storedPrev;
         StoredBlock prev = storedPrev;
@@ -20,6 +20,7 @@
 package org.bitcoincashj.script;
 
 import org.bitcoincashj.core.*;
+import org.bitcoincashj.crypto.SchnorrBatchVerifier;
 import org.bitcoincashj.crypto.SchnorrSignature;
 import org.bitcoincashj.crypto.TransactionSignature;
 import org.bouncycastle.crypto.digests.RIPEMD160Digest;
@@ -106,6 +107,9 @@ public class Script {
      */
     public static final int MAX_P2SH_SIGOPS = 15;
 
+    // Where OP_CHECKSIG and OP_CHECKDATASIG on this thread defer their Schnorr signatures to, if anywhere.
+    private static final ThreadLocal<SchnorrBatchVerifier> schnorrBatchVerifier = new ThreadLocal<>();
+
     // The program is a set of chunks where each element is either [opcode] or [data, data, data ...]
     protected List<ScriptChunk> chunks;
     // Unfortunately, scripts are not ever re-serialized or canonicalized when used in signature hashing. Thus we
@@ -1499,6 +1503,28 @@ public class Script {
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, "Relative locktime requirement not satisfied");
     }
 
+    /**
+     * <p>Makes OP_CHECKSIG(VERIFY) and OP_CHECKDATASIG(VERIFY) executed on the calling thread add Schnorr signatures
+     * to the given batch and treat them as valid, instead of verifying them one by one. Pass null to verify them
+     * immediately again.</p>
+     *
+     * <p>The outcome of a script run this way is only meaningful once the batch has verified. If it fails, the script
+     * must be run again without a batch, because it may depend on a signature being invalid.</p>
+     */
+    public static void setSchnorrBatchVerifier(@Nullable SchnorrBatchVerifier batch) {
+        if (batch != null)
+            schnorrBatchVerifier.set(batch);
+        else
+            schnorrBatchVerifier.remove();
+    }
+
+    private static boolean verifySchnorr(byte[] sigHash, SchnorrSignature sig, byte[] pubKey) {
+        SchnorrBatchVerifier batch = schnorrBatchVerifier.get();
+        if (batch != null && batch.add(sigHash, pubKey, sig.getSignature()))
+            return true;
+        return ECKey.verifySchnorr(sigHash, sig, pubKey);
+    }
+
     // https://github.com/bitcoincashorg/bitcoincash.org/blob/master/spec/op_checkdatasig.md
     private static void executeCheckDataSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
                                             int lastCodeSepLocation, int opcode,
@@ -1527,7 +1553,7 @@ public class Script {
 
                 Sha256Hash hash = Sha256Hash.of(messageByte);
 
-                sigValid = ECKey.verifySchnorr(hash.getBytes(), sig, pubKey);
+                sigValid = verifySchnorr(hash.getBytes(), sig, pubKey);
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -1590,7 +1616,7 @@ public class Script {
                 Sha256Hash hash = sig.useForkId() ?
                         txContainingThis.hashForSignatureWitness(index, connectedScript, value, sig.sigHashMode(), sig.anyoneCanPay()) :
                         txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-                sigValid = ECKey.verifySchnorr(hash.getBytes(), sig, pubKey);
+                sigValid = verifySchnorr(hash.getBytes(), sig, pubKey);
             } catch (Exception e1) {
                 e1.printStackTrace();
             }
@@ -1726,7 +1752,9 @@ public class Script {
      * validation rules.
      *
      * @param txContainingThis The transaction in which this input scriptSig resides.
-     *                         Accessing txContainingThis from another thread while this method runs results in undefined behavior.
+     *                         It is only read, so the inputs of a transaction can be verified on several threads at
+     *                         once, but changing it from another thread while this method runs results in undefined
+     *                         behavior.
      * @param scriptSigIndex   The index in txContainingThis of the scriptSig (note: NOT the index of the scriptPubKey).
      * @param scriptPubKey     The connected scriptPubKey containing the conditions needed to claim the value.
      */
@@ -1745,20 +1773,17 @@ public class Script {
      * Verifies that this script (interpreted as a scriptSig) correctly spends the given scriptPubKey.
      *
      * @param txContainingThis The transaction in which this input scriptSig resides.
-     *                         Accessing txContainingThis from another thread while this method runs results in undefined behavior.
+     *                         It is only read, so the inputs of a transaction can be verified on several threads at
+     *                         once, but changing it from another thread while this method runs results in undefined
+     *                         behavior.
      * @param scriptSigIndex   The index in txContainingThis of the scriptSig (note: NOT the index of the scriptPubKey).
      * @param scriptPubKey     The connected scriptPubKey containing the conditions needed to claim the value.
      * @param verifyFlags      Each flag enables one validation rule.
      */
     public void correctlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey, Coin value,
                                 Set<VerifyFlag> verifyFlags) throws ScriptException {
-        // Clone the transaction because executing the script involves editing it, and if we die, we'll leave
-        // the tx half broken (also it's not so thread safe to work on it directly.
-        try {
-            txContainingThis = txContainingThis.getParams().getDefaultSerializer().makeTransaction(txContainingThis.bitcoinSerialize());
-        } catch (ProtocolException e) {
-            throw new RuntimeException(e);   // Should not happen unless we were given a totally broken transaction.
-        }
+        // The transaction is only read: legacy signature hashes are computed on a copy of it, and the BIP143 style ones
+        // share its cached midstates, which a copy per input would have to compute all over again.
         if (getProgram().length > MAX_SCRIPT_SIZE || scriptPubKey.getProgram().length > MAX_SCRIPT_SIZE)
             throw new ScriptException(ScriptError.SCRIPT_ERR_SCRIPT_SIZE, "Script larger than 10,000 bytes");
 
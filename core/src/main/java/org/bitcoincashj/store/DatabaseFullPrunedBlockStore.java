@@ -31,6 +31,9 @@ import java.io.IOException;
 import java.math.BigInteger;
 import java.sql.*;
 import java.util.*;
+import java.util.function.Consumer;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * <p>A generic full pruned block store for a relational database.  This generic class requires
@@ -123,6 +126,15 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     // Tables exist SQL.
     private static final String SELECT_CHECK_TABLES_EXIST_SQL = "SELECT * FROM settings WHERE 1 = 2";
 
+    // Number of addresses looked up by one query of getOpenTransactionOutputs, and the number of rows fetched at once.
+    private static final int MAX_ADDRESSES_PER_QUERY = 100;
+    private static final int OPEN_OUTPUTS_FETCH_SIZE = 1000;
+
+    /** Default number of blocks whose unspent output changes are kept in memory before they are written. */
+    public static final int DEFAULT_WRITE_BEHIND_BLOCKS = 100;
+    /** Default size of the unspent output changes kept in memory before they are written. */
+    public static final long DEFAULT_WRITE_BEHIND_BYTES = 32 * 1024 * 1024;
+
     // Compatibility SQL.
     private static final String SELECT_COMPATIBILITY_COINBASE_SQL = "SELECT coinbase FROM openoutputs WHERE 1 = 2";
 
@@ -139,6 +151,18 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     protected String password;
     protected String schemaName;
 
+    // Output changes of committed blocks that aren't written to the database yet, and those of the batch the current
+    // thread is writing. Reads look through both before the database. Guarded by unflushedOutputs.
+    private final UTXOChangeSet unflushedOutputs = new UTXOChangeSet();
+    private final ThreadLocal<UTXOChangeSet> batchOutputs = new ThreadLocal<>();
+    private int unflushedBlocks;
+    // The verified chain head setting is only written together with the outputs it belongs to.
+    private boolean verifiedChainHeadUnflushed;
+    private int writeBehindBlocks = DEFAULT_WRITE_BEHIND_BLOCKS;
+    private long writeBehindBytes = DEFAULT_WRITE_BEHIND_BYTES;
+    private long coalescedOutputs;
+    private long flushes;
+
     /**
      * <p>Create a new DatabaseFullPrunedBlockStore, using the full connection URL instead of a hostname and password,
      * and optionally allowing a schema to be specified.</p>
@@ -259,6 +283,34 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         return SELECT_TRANSACTION_OUTPUTS_SQL;
     }
 
+    /**
+     * Get the SQL to select the transaction outputs for any of the given number of addresses. By default this turns
+     * the address comparison of {@link #getTransactionOutputSelectSQL()} into an {@code IN} list.
+     *
+     * @param addresses The number of address parameters.
+     * @return The SQL prepared statement.
+     */
+    protected String getTransactionOutputSelectSQL(int addresses) {
+        String sql = getTransactionOutputSelectSQL();
+        int comparison = sql.lastIndexOf("= ?");
+        if (comparison < 0)
+            throw new IllegalStateException("No address parameter in " + sql);
+        StringBuilder builder = new StringBuilder(sql.substring(0, comparison)).append("IN (");
+        for (int i = 0; i < addresses; i++)
+            builder.append(i == 0 ? "?" : ", ?");
+        return builder.append(')').append(sql.substring(comparison + 3)).toString();
+    }
+
+    /**
+     * Get the maximum number of addresses looked up by a single query of
+     * {@link #getOpenTransactionOutputs(List)}, see {@link #getTransactionOutputSelectSQL(int)}.
+     *
+     * @return The maximum number of address parameters of one query.
+     */
+    protected int getMaxAddressesPerQuery() {
+        return MAX_ADDRESSES_PER_QUERY;
+    }
+
     /**
      * Get the SQL to drop all the tables (DDL).
      *
@@ -471,6 +523,14 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     @Override
     public synchronized void close() {
+        // A batch still open on this thread is rolled back below, but the blocks committed before are kept.
+        if (batchOutputs.get() == null && !allConnections.isEmpty()) {
+            try {
+                flushUnspentOutputs();
+            } catch (BlockStoreException e) {
+                throw new RuntimeException(e);
+            }
+        }
         for (Connection conn : allConnections) {
             try {
                 if (!conn.getAutoCommit()) {
@@ -883,18 +943,32 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         this.verifiedChainHeadHash = hash;
         this.verifiedChainHeadBlock = chainHead;
         maybeConnect();
+        UTXOChangeSet batch = batchOutputs.get();
+        boolean deferred;
+        synchronized (unflushedOutputs) {
+            // While output changes wait in memory, the database keeps the head they were last written at, so after a
+            // crash the blocks since are verified again.
+            deferred = !unflushedOutputs.isEmpty() || (batch != null && !batch.isEmpty());
+            if (deferred)
+                verifiedChainHeadUnflushed = true;
+        }
+        if (!deferred)
+            writeVerifiedChainHead(chainHead);
+        if (this.chainHeadBlock.getHeight() < chainHead.getHeight())
+            setChainHead(chainHead);
+    }
+
+    private void writeVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
         try {
             PreparedStatement s = conn.get()
                     .prepareStatement(getUpdateSettingsSLQ());
             s.setString(2, VERIFIED_CHAIN_HEAD_SETTING);
-            s.setBytes(1, hash.getBytes());
+            s.setBytes(1, chainHead.getHeader().getHash().getBytes());
             s.executeUpdate();
             s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
-        if (this.chainHeadBlock.getHeight() < chainHead.getHeight())
-            setChainHead(chainHead);
         removeUndoableBlocksWhereHeightIsLessThan(chainHead.getHeight() - fullStoreDepth);
     }
 
@@ -914,6 +988,17 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     @Override
     public UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        UTXOChangeSet batch = batchOutputs.get();
+        if (batch != null && batch.isChanged(hash, index))
+            return batch.getAdded(hash, index);
+        synchronized (unflushedOutputs) {
+            if (unflushedOutputs.isChanged(hash, index))
+                return unflushedOutputs.getAdded(hash, index);
+            return selectTransactionOutput(hash, index);
+        }
+    }
+
+    private UTXO selectTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
         maybeConnect();
         PreparedStatement s = null;
         try {
@@ -955,55 +1040,181 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     @Override
     public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        UTXOChangeSet batch = batchOutputs.get();
+        if (batch != null) {
+            batch.add(out);
+            return;
+        }
+        synchronized (unflushedOutputs) {
+            unflushedOutputs.add(out);
+            flushUnspentOutputs();
+        }
+    }
+
+    @Override
+    public void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        UTXO existing = getTransactionOutput(out.getHash(), out.getIndex());
+        if (existing == null)
+            throw new BlockStoreException("Tried to remove a UTXO from DatabaseFullPrunedBlockStore that it didn't have!");
+        UTXOChangeSet batch = batchOutputs.get();
+        if (batch != null) {
+            if (batch.remove(existing))
+                synchronized (unflushedOutputs) {
+                    coalescedOutputs++;
+                }
+            return;
+        }
+        synchronized (unflushedOutputs) {
+            if (unflushedOutputs.remove(existing))
+                coalescedOutputs++;
+            flushUnspentOutputs();
+        }
+    }
+
+    /**
+     * <p>Sets how long unspent output changes are kept in memory. The changes of committed blocks are written to the
+     * database once there are changes of the given number of blocks, or once they take about the given number of
+     * bytes. Outputs that are created and spent in between never reach the database.</p>
+     *
+     * <p>The verified chain head in the database is only moved when the changes are written, so a crash loses at most
+     * the blocks since, which are then verified again. One block writes every block as it is committed.</p>
+     *
+     * @param blocks Number of blocks, at least one.
+     * @param bytes Approximate size in bytes.
+     */
+    public void setWriteBehindLimits(int blocks, long bytes) {
+        checkArgument(blocks >= 1, "blocks must be at least 1");
+        synchronized (unflushedOutputs) {
+            this.writeBehindBlocks = blocks;
+            this.writeBehindBytes = bytes;
+        }
+    }
+
+    /**
+     * Writes the unspent output changes of committed blocks to the database, together with the verified chain head
+     * they belong to. Called when the limits of {@link #setWriteBehindLimits(int, long)} are reached and when the
+     * store is closed.
+     *
+     * @throws BlockStoreException If the changes couldn't be written.
+     */
+    public void flushUnspentOutputs() throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
-        try {
-            s = conn.get().prepareStatement(getInsertOpenoutputsSQL());
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int) out.getIndex());
-            s.setInt(3, out.getHeight());
-            s.setLong(4, out.getValue().value);
-            s.setBytes(5, out.getScript().getProgram());
-            s.setString(6, out.getAddress());
-            ScriptType scriptType = out.getScript().getScriptType();
-            s.setInt(7, scriptType != null ? scriptType.id : 0);
-            s.setBoolean(8, out.isCoinbase());
-            s.executeUpdate();
-            s.close();
-        } catch (SQLException e) {
-            if (!(e.getSQLState().equals(getDuplicateKeyErrorCode())))
-                throw new BlockStoreException(e);
-        } finally {
-            if (s != null) {
+        Connection connection = conn.get();
+        synchronized (unflushedOutputs) {
+            try {
+                if (!connection.getAutoCommit())
+                    throw new BlockStoreException("Can't flush during a batch write");
+                connection.setAutoCommit(false);
                 try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException(e);
+                    writeUnflushedOutputs();
+                    connection.commit();
+                } catch (SQLException | BlockStoreException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(true);
                 }
+            } catch (SQLException e) {
+                throw new BlockStoreException(e);
             }
+            clearUnflushedOutputs();
         }
     }
 
-    @Override
-    public void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
-        maybeConnect();
-        // TODO: This should only need one query (maybe a stored procedure)
-        if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
-            throw new BlockStoreException("Tried to remove a UTXO from DatabaseFullPrunedBlockStore that it didn't have!");
+    /** Number of outputs that were spent before they were written, so never reached the database. */
+    public long getCoalescedOutputCount() {
+        synchronized (unflushedOutputs) {
+            return coalescedOutputs;
+        }
+    }
+
+    /** Number of times unspent output changes were written to the database. */
+    public long getFlushCount() {
+        synchronized (unflushedOutputs) {
+            return flushes;
+        }
+    }
+
+    // Writes the unflushed changes as part of the current transaction. The caller holds the lock on unflushedOutputs
+    // and calls clearUnflushedOutputs once the transaction is committed.
+    private void writeUnflushedOutputs() throws SQLException, BlockStoreException {
+        if (unflushedOutputs.isEmpty() && !verifiedChainHeadUnflushed)
+            return;
+        Connection connection = conn.get();
+        List<UTXO> removed = unflushedOutputs.getRemoved();
+        if (!removed.isEmpty()) {
+            PreparedStatement s = connection.prepareStatement(getDeleteOpenoutputsSQL());
+            try {
+                for (UTXO out : removed) {
+                    s.setBytes(1, out.getHash().getBytes());
+                    // index is actually an unsigned int
+                    s.setInt(2, (int) out.getIndex());
+                    s.addBatch();
+                }
+                s.executeBatch();
+            } finally {
+                s.close();
+            }
+        }
+        // Deletes go first, an output that is both removed and added is replaced.
+        List<UTXO> added = unflushedOutputs.getAdded();
+        if (!added.isEmpty()) {
+            PreparedStatement s = connection.prepareStatement(getInsertOpenoutputsSQL());
+            try {
+                for (UTXO out : added) {
+                    setInsertOpenoutputsParameters(s, out);
+                    s.addBatch();
+                }
+                s.executeBatch();
+            } catch (BatchUpdateException e) {
+                if (!getDuplicateKeyErrorCode().equals(e.getSQLState()))
+                    throw e;
+                // Outputs that are already there are skipped like in addUnspentTransactionOutput, which takes one
+                // statement per output.
+                for (UTXO out : added)
+                    insertOpenoutputIgnoringDuplicate(connection, out);
+            } finally {
+                s.close();
+            }
+        }
+        if (verifiedChainHeadUnflushed)
+            writeVerifiedChainHead(verifiedChainHeadBlock);
+    }
+
+    private void clearUnflushedOutputs() {
+        if (!unflushedOutputs.isEmpty() || verifiedChainHeadUnflushed)
+            flushes++;
+        unflushedOutputs.clear();
+        unflushedBlocks = 0;
+        verifiedChainHeadUnflushed = false;
+    }
+
+    private void insertOpenoutputIgnoringDuplicate(Connection connection, UTXO out) throws SQLException {
+        PreparedStatement s = connection.prepareStatement(getInsertOpenoutputsSQL());
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getDeleteOpenoutputsSQL());
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int) out.getIndex());
+            setInsertOpenoutputsParameters(s, out);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
-            throw new BlockStoreException(e);
+            if (!getDuplicateKeyErrorCode().equals(e.getSQLState()))
+                throw e;
+        } finally {
+            s.close();
         }
     }
 
+    private void setInsertOpenoutputsParameters(PreparedStatement s, UTXO out) throws SQLException {
+        s.setBytes(1, out.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int) out.getIndex());
+        s.setInt(3, out.getHeight());
+        s.setLong(4, out.getValue().value);
+        s.setBytes(5, out.getScript().getProgram());
+        s.setString(6, out.getAddress());
+        ScriptType scriptType = out.getScript().getScriptType();
+        s.setInt(7, scriptType != null ? scriptType.id : 0);
+        s.setBoolean(8, out.isCoinbase());
+    }
+
     @Override
     public void beginDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
@@ -1014,6 +1225,9 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+        // Reorgs begin again while a batch is open, its changes are kept.
+        if (batchOutputs.get() == null)
+            batchOutputs.set(new UTXOChangeSet());
     }
 
     @Override
@@ -1021,11 +1235,25 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         maybeConnect();
         if (log.isDebugEnabled())
             log.debug("Committing database batch write with connection: " + conn.get().toString());
-        try {
-            conn.get().commit();
-            conn.get().setAutoCommit(true);
-        } catch (SQLException e) {
-            throw new BlockStoreException(e);
+        UTXOChangeSet batch = batchOutputs.get();
+        batchOutputs.remove();
+        synchronized (unflushedOutputs) {
+            boolean flush;
+            try {
+                if (batch != null) {
+                    coalescedOutputs += batch.mergeInto(unflushedOutputs);
+                    unflushedBlocks++;
+                }
+                flush = unflushedBlocks >= writeBehindBlocks || unflushedOutputs.getSizeInBytes() >= writeBehindBytes;
+                if (flush)
+                    writeUnflushedOutputs();
+                conn.get().commit();
+                conn.get().setAutoCommit(true);
+            } catch (SQLException e) {
+                throw new BlockStoreException(e);
+            }
+            if (flush)
+                clearUnflushedOutputs();
         }
     }
 
@@ -1034,6 +1262,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         maybeConnect();
         if (log.isDebugEnabled())
             log.debug("Rollback database batch write with connection: " + conn.get().toString());
+        batchOutputs.remove();
         try {
             if (!conn.get().getAutoCommit()) {
                 conn.get().rollback();
@@ -1048,6 +1277,23 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     @Override
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        UTXOChangeSet batch = batchOutputs.get();
+        int batchRemoved = 0;
+        if (batch != null) {
+            if (batch.getAddedCount(hash) > 0)
+                return true;
+            batchRemoved = batch.getRemovedCount(hash);
+        }
+        synchronized (unflushedOutputs) {
+            // Removed outputs are all present in the layer below, so they can be subtracted from its count.
+            int added = unflushedOutputs.getAddedCount(hash);
+            if (added > batchRemoved)
+                return true;
+            return added - unflushedOutputs.getRemovedCount(hash) - batchRemoved + countTransactionOutputs(hash) > 0;
+        }
+    }
+
+    private int countTransactionOutputs(Sha256Hash hash) throws BlockStoreException {
         maybeConnect();
         PreparedStatement s = null;
         try {
@@ -1057,8 +1303,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             if (!results.next()) {
                 throw new BlockStoreException("Got no results from a COUNT(*) query");
             }
-            int count = results.getInt(1);
-            return count != 0;
+            return results.getInt(1);
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
@@ -1109,6 +1354,12 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      */
     public void deleteStore() throws BlockStoreException {
         maybeConnect();
+        batchOutputs.remove();
+        synchronized (unflushedOutputs) {
+            unflushedOutputs.clear();
+            unflushedBlocks = 0;
+            verifiedChainHeadUnflushed = false;
+        }
         try {
             Statement s = conn.get().createStatement();
             for (String sql : getDropTablesSQL()) {
@@ -1135,17 +1386,39 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      * @throws BlockStoreException If there is an error getting the balance.
      */
     public BigInteger calculateBalanceForAddress(Address address) throws BlockStoreException {
+        String toAddress = address.toString();
+        UTXOChangeSet batch = batchOutputs.get();
+        synchronized (unflushedOutputs) {
+            // Each layer removes outputs of the one below and adds its own.
+            long balance = selectBalance(toAddress) + balanceChange(unflushedOutputs, toAddress);
+            if (batch != null)
+                balance += balanceChange(batch, toAddress);
+            return BigInteger.valueOf(balance);
+        }
+    }
+
+    private static long balanceChange(UTXOChangeSet changes, String toAddress) {
+        long change = 0;
+        for (UTXO out : changes.getRemoved())
+            if (toAddress.equals(out.getAddress()))
+                change -= out.getValue().value;
+        for (UTXO out : changes.getAdded())
+            if (toAddress.equals(out.getAddress()))
+                change += out.getValue().value;
+        return change;
+    }
+
+    private long selectBalance(String toAddress) throws BlockStoreException {
         maybeConnect();
         PreparedStatement s = null;
         try {
             s = conn.get().prepareStatement(getBalanceSelectSQL());
-            s.setString(1, address.toString());
+            s.setString(1, toAddress);
             ResultSet rs = s.executeQuery();
-            BigInteger balance = BigInteger.ZERO;
             if (rs.next()) {
-                return BigInteger.valueOf(rs.getLong(1));
+                return rs.getLong(1);
             }
-            return balance;
+            return 0;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
@@ -1161,43 +1434,99 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     @Override
     public List<UTXO> getOpenTransactionOutputs(List<ECKey> keys) throws UTXOProviderException {
+        final List<UTXO> outputs = new ArrayList<>();
+        forEachOpenTransactionOutput(keys, new Consumer<UTXO>() {
+            @Override
+            public void accept(UTXO output) {
+                outputs.add(output);
+            }
+        });
+        return outputs;
+    }
+
+    /**
+     * <p>Passes the open transaction outputs of the given keys to the consumer as they are read from the database,
+     * without collecting them first.</p>
+     *
+     * <p>The addresses of the keys are looked up in chunks of up to {@link #getMaxAddressesPerQuery()} per query, so
+     * a wallet with many keys takes a few round trips instead of one per key.</p>
+     *
+     * @param keys The keys whose outputs to read.
+     * @param consumer Called with each output, on the calling thread.
+     * @throws UTXOProviderException If there is an error reading the outputs.
+     */
+    public void forEachOpenTransactionOutput(List<ECKey> keys, Consumer<UTXO> consumer) throws UTXOProviderException {
+        Set<String> uniqueAddresses = new LinkedHashSet<>();
+        for (ECKey key : keys)
+            uniqueAddresses.add(Address.fromKey(params, key).toString());
+        List<String> addresses = new ArrayList<>(uniqueAddresses);
+        int chunkSize = getMaxAddressesPerQuery();
+        UTXOChangeSet batch = batchOutputs.get();
         PreparedStatement s = null;
-        List<UTXO> outputs = new ArrayList<>();
-        try {
-            maybeConnect();
-            s = conn.get().prepareStatement(getTransactionOutputSelectSQL());
-            for (ECKey key : keys) {
-                s.setString(1, Address.fromKey(params, key).toString());
-                ResultSet rs = s.executeQuery();
-                while (rs.next()) {
-                    Sha256Hash hash = Sha256Hash.wrap(rs.getBytes(1));
-                    Coin amount = Coin.valueOf(rs.getLong(2));
-                    byte[] scriptBytes = rs.getBytes(3);
-                    int height = rs.getInt(4);
-                    int index = rs.getInt(5);
-                    boolean coinbase = rs.getBoolean(6);
-                    String toAddress = rs.getString(7);
-                    UTXO output = new UTXO(hash,
-                            index,
-                            amount,
-                            height,
-                            coinbase,
-                            new Script(scriptBytes),
-                            toAddress);
-                    outputs.add(output);
+        synchronized (unflushedOutputs) {
+            try {
+                maybeConnect();
+                for (int start = 0; start < addresses.size(); start += chunkSize) {
+                    int end = Math.min(start + chunkSize, addresses.size());
+                    // All chunks but the last one have the same size and share a statement.
+                    if (s == null || end - start < chunkSize) {
+                        if (s != null)
+                            s.close();
+                        s = conn.get().prepareStatement(getTransactionOutputSelectSQL(end - start));
+                        s.setFetchSize(OPEN_OUTPUTS_FETCH_SIZE);
+                    }
+                    for (int i = start; i < end; i++)
+                        s.setString(i - start + 1, addresses.get(i));
+                    ResultSet rs = s.executeQuery();
+                    try {
+                        while (rs.next()) {
+                            UTXO output = readTransactionOutput(rs);
+                            // Outputs changed in memory are passed on below, if they are still unspent.
+                            if (!unflushedOutputs.isChanged(output.getHash(), output.getIndex())
+                                    && (batch == null || !batch.isChanged(output.getHash(), output.getIndex())))
+                                consumer.accept(output);
+                        }
+                    } finally {
+                        rs.close();
+                    }
                 }
+            } catch (SQLException | BlockStoreException ex) {
+                throw new UTXOProviderException(ex);
+            } finally {
+                if (s != null)
+                    try {
+                        s.close();
+                    } catch (SQLException e) {
+                        throw new UTXOProviderException("Could not close statement", e);
+                    }
             }
-            return outputs;
-        } catch (SQLException | BlockStoreException ex) {
-            throw new UTXOProviderException(ex);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new UTXOProviderException("Could not close statement", e);
-                }
+            for (UTXO output : unflushedOutputs.getAdded())
+                if (uniqueAddresses.contains(output.getAddress())
+                        && (batch == null || !batch.isChanged(output.getHash(), output.getIndex())))
+                    consumer.accept(output);
         }
+        if (batch != null)
+            for (UTXO output : batch.getAdded())
+                if (uniqueAddresses.contains(output.getAddress()))
+                    consumer.accept(output);
+    }
+
+    // Reads a row selected by getTransactionOutputSelectSQL.
+    private UTXO readTransactionOutput(ResultSet rs) throws SQLException {
+        Sha256Hash hash = Sha256Hash.wrap(rs.getBytes(1));
+        Coin amount = Coin.valueOf(rs.getLong(2));
+        byte[] scriptBytes = rs.getBytes(3);
+        int height = rs.getInt(4);
+        int index = rs.getInt(5);
+        boolean coinbase = rs.getBoolean(6);
+        String toAddress = rs.getString(7);
+        return new UTXO(hash,
+                index,
+                amount,
+                height,
+                coinbase,
+                new Script(scriptBytes),
+                toAddress);
     }
 
     /**
@@ -18,6 +18,8 @@ package org.bitcoincashj.store;
 
 import org.bitcoincashj.core.*;
 
+import java.util.List;
+
 
 /**
  * <p>An implementor of FullPrunedBlockStore saves StoredBlock objects to some storage mechanism.</p>
@@ -76,6 +78,15 @@ public interface FullPrunedBlockStore extends BlockStore, UTXOProvider {
      */
     UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException;
 
+    /**
+     * Tells the store that the outputs at the given outpoints are about to be looked up with
+     * {@link #getTransactionOutput(Sha256Hash, long)}, because a block spending them is being connected. A store can
+     * read them ahead of time, in bulk or in parallel. Outpoints that aren't in the store are ignored. The default
+     * implementation does nothing.
+     */
+    default void prefetchTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException {
+    }
+
     /**
      * Adds a {@link UTXO} to the list of unspent TransactionOutputs
      */
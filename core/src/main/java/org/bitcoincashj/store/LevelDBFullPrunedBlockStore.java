@@ -20,18 +20,27 @@ import com.google.common.base.Stopwatch;
 import org.bitcoincashj.core.*;
 import org.bitcoincashj.script.Script;
 import org.bitcoincashj.script.ScriptException;
+import org.bitcoincashj.utils.DaemonThreadFactory;
 import org.iq80.leveldb.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static org.fusesource.leveldbjni.JniDBFactory.bytes;
 import static org.fusesource.leveldbjni.JniDBFactory.factory;
 
@@ -66,6 +75,9 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     Stopwatch totalStopwatch;
     protected long hit;
     protected long miss;
+    // Output lookups of the block being connected, and of the last block committed.
+    protected BlockCacheStats blockStats = new BlockCacheStats();
+    protected volatile BlockCacheStats lastBlockStats;
     Map<String, Stopwatch> methodStartTime;
     Map<String, Long> methodCalls;
     Map<String, Long> methodTotalTime;
@@ -79,6 +91,9 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     // e.g. when block fails to verify.
     protected Map<ByteBuffer, UTXO> utxoUncommittedCache;
     protected Set<ByteBuffer> utxoUncommittedDeletedCache;
+    // Outputs read ahead by prefetchTransactionOutputs for the block being connected. Filled by the prefetch
+    // threads, so it has to be concurrent, and cleared when the block is committed or aborted.
+    protected final Map<ByteBuffer, UTXO> prefetchCache = new ConcurrentHashMap<>();
 
     // Database folder
     protected String filename;
@@ -98,13 +113,22 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     // Size of cache for getTransactionOutput
     protected int openOutCache;
-    // Bloomfilter for caching calls to hasUnspentOutputs
-    protected BloomFilter bloom;
+    // Number of threads reading outputs ahead of a block, and the pool they run in, created on first use.
+    protected int prefetchThreads = PREFETCH_THREADS_DEFAULT;
+    private ExecutorService prefetchExecutor;
+    // Bloomfilter for caching calls to hasUnspentOutputs, kept in a file next to the database.
+    UTXOBloomFilter bloom;
+    // Change in the number of unspent outputs by the batch being written.
+    private long uncommittedOutputs;
+    private long bloomRebuilds;
 
     // Defaults for cache sizes
     static final long LEVELDB_READ_CACHE_DEFAULT = 100 * 1048576; // 100 meg
     static final int LEVELDB_WRITE_CACHE_DEFAULT = 10 * 1048576; // 10 meg
     static final int OPENOUT_CACHE_DEFAULT = 100000;
+    static final int PREFETCH_THREADS_DEFAULT = Math.max(2, Runtime.getRuntime().availableProcessors());
+    // Number of outputs read by one prefetch task.
+    static final int PREFETCH_CHUNK_SIZE = 64;
 
     // LRUCache
     public class LRUCache extends LinkedHashMap<ByteBuffer, UTXO> {
@@ -122,109 +146,129 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
-    // Simple bloomfilter. We take advantage of fact that a Transaction Hash
-    // can be split into 3 30bit numbers that are all random and uncorrelated
-    // so ideal to use as the input to a 3 function bloomfilter. No has function
-    // needed.
-    private class BloomFilter {
-        private byte[] cache;
-        public long returnedTrue;
-        public long returnedFalse;
-        public long added;
-
-        public BloomFilter() {
-            // 2^27 so since 8 bits in a byte this is
-            // 1,073,741,824 bits
-            cache = new byte[134217728];
-            // This size chosen as with 3 functions we should only get 4% errors
-            // with 150m entries.
-        }
-
-        // Called to prime cache.
-        // Might be idea to call periodically to flush out removed keys.
-        // Would need to benchmark 1st though.
-        public void reloadCache(DB db) {
-            // LevelDB is great at scanning consecutive keys.
-            // This take seconds even with 20m keys to add.
-            log.info("Loading Bloom Filter");
-            DBIterator iterator = db.iterator();
-            byte[] key = getKey(KeyType.OPENOUT_ALL);
-            for (iterator.seek(key); iterator.hasNext(); iterator.next()) {
-                ByteBuffer bbKey = ByteBuffer.wrap(iterator.peekNext().getKey());
-                byte firstByte = bbKey.get(); // remove the KeyType.OPENOUT_ALL
-                // byte.
-                if (key[0] != firstByte) {
-                    printStat();
-                    return;
-                }
+    /**
+     * Statistics of the output lookups made while connecting a single block. Lookups are answered by the caches of
+     * recently created and changed outputs, by the outputs read ahead by
+     * {@link #prefetchTransactionOutputs(List)}, or by reading the database.
+     */
+    public static class BlockCacheStats {
+        private int prefetchRequested;
+        private int prefetchRead;
+        private long prefetchNanos;
+        private int cacheHits;
+        private int prefetchHits;
+        private int misses;
+
+        /** Number of outputs the block asked to prefetch. */
+        public int getPrefetchRequested() {
+            return prefetchRequested;
+        }
 
-                byte[] hash = new byte[32];
-                bbKey.get(hash);
-                add(hash);
-            }
-            try {
-                iterator.close();
-            } catch (IOException e) {
-                log.error("Error closing iterator", e);
-            }
-            printStat();
+        /** Number of outputs the prefetch read from the database, the others were cached already. */
+        public int getPrefetchRead() {
+            return prefetchRead;
         }
 
-        public void printStat() {
-            log.info("Bloom Added: " + added + " T: " + returnedTrue + " F: " + returnedFalse);
+        /** Time the prefetch took, in milliseconds. */
+        public double getPrefetchMillis() {
+            return prefetchNanos / 1e6;
         }
 
-        // Add a txhash to the filter.
-        public void add(byte[] hash) {
-            byte[] firstHash = new byte[4];
-            added++;
-            for (int i = 0; i < 3; i++) {
-                System.arraycopy(hash, i * 4, firstHash, 0, 4);
-                setBit(firstHash);
-            }
+        /** Number of lookups answered by the output caches. */
+        public int getCacheHits() {
+            return cacheHits;
+        }
+
+        /** Number of lookups answered by prefetched outputs. */
+        public int getPrefetchHits() {
+            return prefetchHits;
         }
 
-        public void add(Sha256Hash hash) {
-            add(hash.getBytes());
+        /** Number of lookups that had to read the database. */
+        public int getMisses() {
+            return misses;
         }
 
-        // check if hash was added.
-        // if returns false then 100% sure never added
-        // if returns true need to check what state is in DB as can
-        // not be 100% sure.
-        public boolean wasAdded(Sha256Hash hash) {
+        @Override
+        public String toString() {
+            return "prefetch requested:" + prefetchRequested + " read:" + prefetchRead + " time:"
+                    + String.format("%.2f", getPrefetchMillis()) + "ms lookups cache:" + cacheHits + " prefetched:"
+                    + prefetchHits + " miss:" + misses;
+        }
+    }
 
-            byte[] firstHash = new byte[4];
-            for (int i = 0; i < 3; i++) {
-                System.arraycopy(hash.getBytes(), i * 4, firstHash, 0, 4);
-                boolean result = getBit(firstHash);
-                if (!result) {
-                    returnedFalse++;
-                    return false;
-                }
-            }
-            returnedTrue++;
-            return true;
+    /**
+     * Statistics of the Bloom filter that answers {@link #hasUnspentOutputs(Sha256Hash, int)} for transactions
+     * without unspent outputs. False positives are lookups the filter let through although the database had no
+     * outputs of the transaction.
+     */
+    public static class BloomFilterStats {
+        private final long sizeInBytes;
+        private final long outputs;
+        private final double estimatedFalsePositiveRate;
+        private final long queries;
+        private final long filtered;
+        private final long falsePositives;
+        private final long rebuilds;
+
+        BloomFilterStats(long sizeInBytes, long outputs, double estimatedFalsePositiveRate, long queries,
+                         long filtered, long falsePositives, long rebuilds) {
+            this.sizeInBytes = sizeInBytes;
+            this.outputs = outputs;
+            this.estimatedFalsePositiveRate = estimatedFalsePositiveRate;
+            this.queries = queries;
+            this.filtered = filtered;
+            this.falsePositives = falsePositives;
+            this.rebuilds = rebuilds;
         }
 
-        private void setBit(byte[] entry) {
-            int arrayIndex = (entry[0] & 0x3F) << 21 | (entry[1] & 0xFF) << 13 | (entry[2] & 0xFF) << 5
-                    | (entry[3] & 0xFF) >> 3;
-            int bit = (entry[3] & 0x07);
-            int orBit = (0x1 << bit);
-            byte newEntry = (byte) ((int) cache[arrayIndex] | orBit);
-            cache[arrayIndex] = newEntry;
+        /** Size of the filter's bit array. */
+        public long getSizeInBytes() {
+            return sizeInBytes;
         }
 
-        private boolean getBit(byte[] entry) {
-            int arrayIndex = (entry[0] & 0x3F) << 21 | (entry[1] & 0xFF) << 13 | (entry[2] & 0xFF) << 5
-                    | (entry[3] & 0xFF) >> 3;
-            int bit = (entry[3] & 0x07);
-            int orBit = (0x1 << bit);
-            byte arrayEntry = cache[arrayIndex];
+        /** Number of unspent outputs the filter is sized for. */
+        public long getOutputs() {
+            return outputs;
+        }
+
+        /** False positive rate estimated from the share of bits that are set. */
+        public double getEstimatedFalsePositiveRate() {
+            return estimatedFalsePositiveRate;
+        }
+
+        /** Number of lookups since the store was opened. */
+        public long getQueries() {
+            return queries;
+        }
 
-            int result = arrayEntry & orBit;
-            return result != 0;
+        /** Number of lookups the filter answered without reading the database. */
+        public long getFiltered() {
+            return filtered;
+        }
+
+        /** Number of lookups the filter let through for transactions without unspent outputs. */
+        public long getFalsePositives() {
+            return falsePositives;
+        }
+
+        /** Share of lookups for transactions without unspent outputs that still read the database. */
+        public double getObservedFalsePositiveRate() {
+            long negatives = filtered + falsePositives;
+            return negatives == 0 ? 0 : (double) falsePositives / negatives;
+        }
+
+        /** Number of times the filter was built from the database since the store was opened. */
+        public long getRebuilds() {
+            return rebuilds;
+        }
+
+        @Override
+        public String toString() {
+            return "Bloom size:" + sizeInBytes + " outputs:" + outputs + " estimated fp:"
+                    + String.format("%.4f", estimatedFalsePositiveRate) + " queries:" + queries + " filtered:"
+                    + filtered + " fp:" + falsePositives + " observed fp:"
+                    + String.format("%.4f", getObservedFalsePositiveRate()) + " rebuilds:" + rebuilds;
         }
     }
 
@@ -247,10 +291,9 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         this.leveldbReadCache = leveldbReadCache;
         this.leveldbWriteCache = leveldbWriteCache;
         this.openOutCache = openOutCache;
-        bloom = new BloomFilter();
         totalStopwatch = Stopwatch.createStarted();
         openDB();
-        bloom.reloadCache(db);
+        openBloomFilter();
 
         // Reset after bloom filter loaded
         totalStopwatch = Stopwatch.createStarted();
@@ -322,6 +365,64 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    private File getBloomFilterFile() {
+        return new File(filename, UTXOBloomFilter.FILE_NAME);
+    }
+
+    // Uses the Bloom filter saved when the store was last closed, or builds it if it doesn't match the database.
+    private void openBloomFilter() {
+        try {
+            bloom = UTXOBloomFilter.load(getBloomFilterFile(), verifiedChainHeadHash);
+            if (bloom != null)
+                log.info("Loaded Bloom filter for {} outputs", bloom.getOutputs());
+            else
+                rebuildBloomFilter(0);
+        } catch (IOException e) {
+            throw new RuntimeException("Can not open Bloom filter", e);
+        }
+    }
+
+    // Builds the Bloom filter from the unspent outputs in the database, which also drops transactions that were spent
+    // since the last build. The filter is sized for expectedOutputs, and built once more if the database turns out to
+    // hold too many outputs for that size.
+    private void rebuildBloomFilter(long expectedOutputs) throws IOException {
+        Stopwatch watch = Stopwatch.createStarted();
+        if (bloom != null)
+            bloom.close(null);
+        bloom = UTXOBloomFilter.create(getBloomFilterFile(), expectedOutputs);
+        // LevelDB is great at scanning consecutive keys.
+        // This take seconds even with 20m keys to add.
+        long outputs = 0;
+        byte[] key = getKey(KeyType.OPENOUT_ALL);
+        byte[] hash = new byte[32];
+        DBIterator iterator = db.iterator();
+        try {
+            for (iterator.seek(key); iterator.hasNext(); iterator.next()) {
+                byte[] outKey = iterator.peekNext().getKey();
+                if (outKey[0] != key[0])
+                    break;
+                System.arraycopy(outKey, 1, hash, 0, 32);
+                bloom.add(hash);
+                outputs++;
+            }
+        } finally {
+            iterator.close();
+        }
+        bloom.setOutputs(outputs);
+        bloomRebuilds++;
+        if (bloom.needsRebuild() && outputs > expectedOutputs) {
+            rebuildBloomFilter(outputs);
+            return;
+        }
+        log.info("Built Bloom filter for {} outputs in {}", outputs, watch);
+    }
+
+    /** Returns statistics of the Bloom filter used by {@link #hasUnspentOutputs(Sha256Hash, int)}. */
+    public BloomFilterStats getBloomFilterStats() {
+        return new BloomFilterStats(bloom.getSizeInBytes(), bloom.getOutputs(), bloom.estimatedFalsePositiveRate(),
+                hasCall, bloomFiltered, bloomFalsePositives, bloomRebuilds);
+    }
+
     void beginMethod(String name) {
         methodStartTime.put(name, Stopwatch.createStarted());
     }
@@ -354,7 +455,9 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         double hitrate = (hit + 0.0) / (hit + miss + 0.0);
         log.info("Cache size:" + utxoCache.size() + " hit:" + hit + " miss:" + miss + " rate:"
                 + String.format("%.2f", hitrate));
-        bloom.printStat();
+        if (lastBlockStats != null)
+            log.info("Last block " + lastBlockStats);
+        log.info(getBloomFilterStats().toString());
         log.info("hasTxOut call:" + hasCall + " True:" + hasTrue + " False:" + hasFalse);
         log.info("Wall:" + totalStopwatch + " percent:" + String.format("%.2f", dbproportion));
         String stats = db.getProperty("leveldb.stats");
@@ -386,7 +489,10 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     @Override
     public void close() throws BlockStoreException {
+        if (prefetchExecutor != null)
+            prefetchExecutor.shutdown();
         try {
+            bloom.close(verifiedChainHeadHash);
             db.close();
         } catch (IOException e) {
             throw new BlockStoreException("Could not close db", e);
@@ -693,6 +799,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
                 if (utxoUncommittedDeletedCache.contains(ByteBuffer.wrap(key))) {
                     // has been deleted so return null;
                     hit++;
+                    blockStats.cacheHits++;
                     if (instrument)
                         endMethod("getTransactionOutput");
                     return result;
@@ -706,11 +813,22 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             }
             if (result != null) {
                 hit++;
+                blockStats.cacheHits++;
+                if (instrument)
+                    endMethod("getTransactionOutput");
+                return result;
+            }
+            // Outputs read ahead for this block. Outputs spent or created in the block since are found above.
+            result = prefetchCache.get(ByteBuffer.wrap(key));
+            if (result != null) {
+                hit++;
+                blockStats.prefetchHits++;
                 if (instrument)
                     endMethod("getTransactionOutput");
                 return result;
             }
             miss++;
+            blockStats.misses++;
             // If we get here have to hit the database.
             byte[] inbytes = batchGet(key);
             if (inbytes == null) {
@@ -732,6 +850,103 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         throw new BlockStoreException("problem");
     }
 
+    /**
+     * Reads the outputs that aren't cached yet in parallel, see {@link #setPrefetchThreads(int)}, and keeps them
+     * until the block is committed or aborted. Cached outputs are touched so they aren't evicted while the block is
+     * connected.
+     */
+    @Override
+    public void prefetchTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException {
+        if (instrument)
+            beginMethod("prefetchTransactionOutputs");
+        Stopwatch watch = Stopwatch.createStarted();
+        List<byte[]> keys = new ArrayList<>();
+        for (TransactionOutPoint outPoint : outPoints) {
+            byte[] key = getTxKey(KeyType.OPENOUT_ALL, outPoint.getHash(), (int) outPoint.getIndex());
+            ByteBuffer bbKey = ByteBuffer.wrap(key);
+            if (!autoCommit && (utxoUncommittedDeletedCache.contains(bbKey) || utxoUncommittedCache.containsKey(bbKey)))
+                continue;
+            if (utxoCache.get(bbKey) != null || prefetchCache.containsKey(bbKey))
+                continue;
+            keys.add(key);
+        }
+        int read;
+        if (keys.size() <= PREFETCH_CHUNK_SIZE || prefetchThreads <= 1) {
+            read = new PrefetchTask(keys).call();
+        } else {
+            if (prefetchExecutor == null)
+                prefetchExecutor = Executors.newFixedThreadPool(prefetchThreads,
+                        new DaemonThreadFactory("LevelDB output prefetch"));
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < keys.size(); i += PREFETCH_CHUNK_SIZE)
+                futures.add(prefetchExecutor.submit(
+                        new PrefetchTask(keys.subList(i, Math.min(i + PREFETCH_CHUNK_SIZE, keys.size())))));
+            read = 0;
+            try {
+                for (Future<Integer> future : futures)
+                    read += future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BlockStoreException("Interrupted while prefetching outputs", e);
+            } catch (ExecutionException e) {
+                throw new BlockStoreException("Could not prefetch outputs", e.getCause());
+            } finally {
+                for (Future<Integer> future : futures)
+                    future.cancel(false);
+            }
+        }
+        blockStats.prefetchRequested += outPoints.size();
+        blockStats.prefetchRead += read;
+        blockStats.prefetchNanos += watch.elapsed(TimeUnit.NANOSECONDS);
+        if (instrument)
+            endMethod("prefetchTransactionOutputs");
+    }
+
+    /**
+     * Sets the number of threads reading outputs ahead of a block, see {@link #prefetchTransactionOutputs(List)}. With
+     * one thread the outputs are read by the thread connecting the block. Takes effect before the first prefetch.
+     */
+    public void setPrefetchThreads(int threads) {
+        checkArgument(threads > 0, "threads must be positive");
+        this.prefetchThreads = threads;
+    }
+
+    /**
+     * Returns the output lookups made while connecting the last committed block, or null if no block was committed
+     * yet.
+     */
+    @Nullable
+    public BlockCacheStats getLastBlockCacheStats() {
+        return lastBlockStats;
+    }
+
+    // Reads a chunk of outputs into the prefetch cache. Reads the committed state of the database only, outputs
+    // changed in the current batch are already in the uncommitted caches.
+    private class PrefetchTask implements Callable<Integer> {
+        private final List<byte[]> keys;
+
+        PrefetchTask(List<byte[]> keys) {
+            this.keys = keys;
+        }
+
+        @Override
+        public Integer call() throws BlockStoreException {
+            int read = 0;
+            try {
+                for (byte[] key : keys) {
+                    byte[] value = db.get(key);
+                    if (value == null)
+                        continue;
+                    prefetchCache.put(ByteBuffer.wrap(key), new UTXO(new ByteArrayInputStream(value)));
+                    read++;
+                }
+            } catch (DBException | IOException e) {
+                throw new BlockStoreException("Could not prefetch outputs", e);
+            }
+            return read;
+        }
+    }
+
     @Override
     public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
 
@@ -740,6 +955,10 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
         // Add to bloom filter - is very fast to add.
         bloom.add(out.getHash());
+        if (autoCommit)
+            bloom.setOutputs(bloom.getOutputs() + 1);
+        else
+            uncommittedOutputs++;
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         try {
             out.serializeToStream(bos);
@@ -752,6 +971,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
         if (autoCommit) {
             utxoCache.put(ByteBuffer.wrap(key), out);
+            prefetchCache.remove(ByteBuffer.wrap(key));
         } else {
             utxoUncommittedCache.put(ByteBuffer.wrap(key), out);
             // leveldb just stores the last key/value added.
@@ -843,7 +1063,10 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
         if (autoCommit) {
             utxoCache.remove(ByteBuffer.wrap(key));
+            prefetchCache.remove(ByteBuffer.wrap(key));
+            bloom.setOutputs(bloom.getOutputs() - 1);
         } else {
+            uncommittedOutputs--;
             utxoUncommittedDeletedCache.add(ByteBuffer.wrap(key));
             utxoUncommittedCache.remove(ByteBuffer.wrap(key));
         }
@@ -887,16 +1110,19 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     long hasCall;
     long hasTrue;
     long hasFalse;
+    long bloomFiltered;
+    long bloomFalsePositives;
 
     @Override
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
         if (instrument)
             beginMethod("hasUnspentOutputs");
         hasCall++;
-        if (!bloom.wasAdded(hash)) {
+        if (!bloom.mightContain(hash)) {
             if (instrument)
                 endMethod("hasUnspentOutputs");
             hasFalse++;
+            bloomFiltered++;
             return false;
         }
         // no index is fine as will find any entry with any index...
@@ -919,6 +1145,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
                 return true;
             } else {
                 hasFalse++;
+                bloomFalsePositives++;
                 try {
                     iterator.close();
                 } catch (IOException e) {
@@ -935,6 +1162,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             log.error("Error closing iterator", e);
         }
         hasFalse++;
+        bloomFalsePositives++;
         if (instrument)
             endMethod("hasUnspentOutputs");
         return false;
@@ -1010,6 +1238,8 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         uncommitedDeletes = new HashSet<>();
         utxoUncommittedCache = new HashMap<>();
         utxoUncommittedDeletedCache = new HashSet<>();
+        blockStats = new BlockCacheStats();
+        uncommittedOutputs = 0;
         autoCommit = false;
         if (instrument)
             endMethod("beginDatabaseBatchWrite");
@@ -1035,6 +1265,12 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             utxoCache.remove(entry);
         }
         utxoUncommittedDeletedCache = null;
+        prefetchCache.clear();
+        lastBlockStats = blockStats;
+        // A new database commits its genesis block before the filter is opened.
+        if (bloom != null)
+            bloom.setOutputs(bloom.getOutputs() + uncommittedOutputs);
+        uncommittedOutputs = 0;
 
         autoCommit = true;
 
@@ -1046,6 +1282,15 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             throw new BlockStoreException("could not close batch.");
         }
 
+        // Spent transactions stay in the filter, so build it again once they push up the false positive rate.
+        if (bloom != null && bloom.needsRebuild()) {
+            try {
+                rebuildBloomFilter(bloom.getOutputs());
+            } catch (IOException e) {
+                throw new BlockStoreException("Could not rebuild Bloom filter", e);
+            }
+        }
+
         if (instrument)
             endMethod("commitDatabaseBatchWrite");
 
@@ -1066,6 +1311,8 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             uncommitedDeletes = null;
             utxoUncommittedCache = null;
             utxoUncommittedDeletedCache = null;
+            prefetchCache.clear();
+            uncommittedOutputs = 0;
             autoCommit = true;
             if (batch != null) {
                 batch.close();
@@ -1081,11 +1328,13 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         // bit dangerous and deletes files!
         try {
             db.close();
+            bloom.close(null);
+            bloom = null;
             uncommited = null;
             uncommitedDeletes = null;
             autoCommit = true;
-            bloom = new BloomFilter();
             utxoCache = new LRUCache(openOutCache, 0.75f);
+            prefetchCache.clear();
         } catch (IOException e) {
             log.error("Exception in resetStore.", e);
         }
@@ -1096,5 +1345,6 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
                 c.delete();
         }
         openDB();
+        openBloomFilter();
     }
 }
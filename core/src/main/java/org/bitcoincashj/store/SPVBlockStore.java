@@ -16,6 +16,8 @@
 
 package org.bitcoincashj.store;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.bitcoincashj.core.*;
 import org.bitcoincashj.utils.Threading;
 import org.slf4j.Logger;
@@ -32,8 +34,9 @@ import java.nio.channels.FileLock;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -62,27 +65,32 @@ public class SPVBlockStore implements BlockStore {
     //
     // MMapping a file in Java does not give us a byte[] as you may expect but rather a ByteBuffer, and whilst on
     // the OpenJDK/Oracle JVM calls into the get() methods are compiled down to inlined native code on Android each
-    // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The caches
-    // below let us stay in the JIT-compiled Java world without expensive JNI transitions and make a 10x difference!
-    protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
-            return size() > 2050;  // Slightly more than the difficulty transition period.
-        }
-    };
-    // Use a separate cache to track get() misses. This is to efficiently handle the case of an unconnected block
-    // during chain download. Each new block will do a get() on the unconnected block so if we haven't seen it yet we
-    // must efficiently respond.
-    //
-    // We don't care about the value in this cache. It is always notFoundMarker. Unfortunately LinkedHashSet does not
-    // provide the removeEldestEntry control.
-    private static final Object NOT_FOUND_MARKER = new Object();
-    protected LinkedHashMap<Sha256Hash, Object> notFoundCache = new LinkedHashMap<Sha256Hash, Object>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Object> entry) {
-            return size() > 100;  // This was chosen arbitrarily.
-        }
-    };
+    // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The cache
+    // below lets us stay in the JIT-compiled Java world without expensive JNI transitions and make a 10x difference!
+    // It is safe for concurrent use, so readers don't need to take the lock.
+    private final Cache<Sha256Hash, StoredBlock> recentBlocks = CacheBuilder.newBuilder()
+            .maximumSize(2050)  // Slightly more than the difficulty transition period.
+            .build();
+    /**
+     * @deprecated Always empty: the store neither fills nor reads this map, so subclasses that look blocks up in it
+     * find nothing and blocks put into it are ignored. Use {@link #get(Sha256Hash)} instead, which is answered from a
+     * cache that can be read without the lock and from an index of the stored hashes. This map will be removed.
+     */
+    @Deprecated
+    protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<>();
+    /**
+     * @deprecated Always empty: the store neither fills nor reads this map, as misses are answered from an index of
+     * the stored hashes. Use {@link #get(Sha256Hash)} instead. This map will be removed.
+     */
+    @Deprecated
+    protected LinkedHashMap<Sha256Hash, Object> notFoundCache = new LinkedHashMap<>();
+    // Offset of the most recent record for every hash in the ring buffer. This replaces scanning the ring backwards
+    // on every cache miss, and also answers misses for unconnected blocks during chain download in O(1).
+    private final ConcurrentHashMap<Sha256Hash, Integer> slotIndex = new ConcurrentHashMap<>();
+    // Guards the contents of the ring buffer. Writers, which also hold the lock above, take it exclusively. Readers
+    // don't take any lock at all: they read optimistically and only retry under the read lock if a write happened
+    // concurrently, in the style of a seqlock.
+    private final StampedLock ringLock = new StampedLock();
     // Used to stop other applications/processes from opening the store.
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
@@ -155,6 +163,7 @@ public class SPVBlockStore implements BlockStore {
                 buffer.get(header);
                 if (!new String(header, StandardCharsets.US_ASCII).equals(HEADER_MAGIC))
                     throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                buildSlotIndex();
             } else {
                 initNewStore(params);
             }
@@ -198,20 +207,28 @@ public class SPVBlockStore implements BlockStore {
         if (buffer == null) throw new BlockStoreException("Store closed");
 
         lock.lock();
+        long stamp = ringLock.writeLock();
         try {
             int cursor = getRingCursor(buffer);
             if (cursor == fileLength) {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
+            // Forget the record we're about to overwrite, unless the same hash was stored again more recently.
+            byte[] overwrittenHash = new byte[32];
+            buffer.position(cursor);
+            buffer.get(overwrittenHash);
+            slotIndex.remove(Sha256Hash.wrap(overwrittenHash), cursor);
+
             buffer.position(cursor);
             Sha256Hash hash = block.getHeader().getHash();
-            notFoundCache.remove(hash);
             buffer.put(hash.getBytes());
             block.serializeCompact(buffer);
             setRingCursor(buffer, buffer.position());
-            blockCache.put(hash, block);
+            slotIndex.put(hash, cursor);
+            recentBlocks.put(hash, block);
         } finally {
+            ringLock.unlockWrite(stamp);
             lock.unlock();
         }
     }
@@ -222,53 +239,90 @@ public class SPVBlockStore implements BlockStore {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
-        try {
-            StoredBlock cacheHit = blockCache.get(hash);
-            if (cacheHit != null)
-                return cacheHit;
-            if (notFoundCache.get(hash) != null)
-                return null;
-
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileLength - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
-                    return storedBlock;
-                }
-            } while (cursor != startingPoint);
-            // Not found.
-            notFoundCache.put(hash, NOT_FOUND_MARKER);
+        StoredBlock cacheHit = recentBlocks.getIfPresent(hash);
+        if (cacheHit != null)
+            return cacheHit;
+        Integer slot = slotIndex.get(hash);
+        if (slot == null)
             return null;
-        } catch (ProtocolException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        } finally {
-            lock.unlock();
+
+        StoredBlock storedBlock;
+        long stamp = ringLock.tryOptimisticRead();
+        try {
+            storedBlock = readRecord(buffer, slot, hash);
+        } catch (RuntimeException e) {
+            // A concurrent write may have left us reading a torn record. If it didn't, this is a real error.
+            if (ringLock.validate(stamp))
+                throw e;
+            storedBlock = null;
+        }
+        if (!ringLock.validate(stamp)) {
+            stamp = ringLock.readLock();
+            try {
+                storedBlock = readRecord(buffer, slot, hash);
+            } finally {
+                ringLock.unlockRead(stamp);
+            }
         }
+        if (storedBlock != null)
+            recentBlocks.put(hash, storedBlock);
+        return storedBlock;
     }
 
-    protected StoredBlock lastChainHead = null;
+    /**
+     * Reads the record at the given offset without touching the shared buffer position. Returns null if the record
+     * there is no longer the one for the given hash, because it has been overwritten.
+     */
+    @Nullable
+    private StoredBlock readRecord(ByteBuffer buffer, int slot, Sha256Hash hash) {
+        ByteBuffer record = buffer.duplicate();
+        record.position(slot);
+        byte[] scratch = new byte[32];
+        record.get(scratch);
+        if (!Arrays.equals(scratch, hash.getBytes()))
+            return null;
+        return StoredBlock.deserializeCompact(params, record);
+    }
+
+    /**
+     * Populates the hash to offset index by walking the ring once, from the oldest record to the newest, so that if a
+     * hash was stored more than once the most recent record wins.
+     */
+    private void buildSlotIndex() {
+        slotIndex.clear();
+        int cursor = getRingCursor(buffer);
+        if (cursor == fileLength)
+            cursor = FILE_PROLOGUE_BYTES;
+        final int startingPoint = cursor;
+        byte[] scratch = new byte[32];
+        do {
+            buffer.position(cursor);
+            buffer.get(scratch);
+            if (!isZero(scratch))
+                slotIndex.put(Sha256Hash.wrap(scratch.clone()), cursor);
+            cursor += RECORD_SIZE;
+            if (cursor + RECORD_SIZE > fileLength)
+                cursor = FILE_PROLOGUE_BYTES;
+        } while (cursor != startingPoint);
+    }
+
+    private static boolean isZero(byte[] bytes) {
+        for (byte b : bytes)
+            if (b != 0)
+                return false;
+        return true;
+    }
+
+    protected volatile StoredBlock lastChainHead = null;
 
     @Override
     public StoredBlock getChainHead() throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
+        StoredBlock chainHead = lastChainHead;
+        if (chainHead != null)
+            return chainHead;
         lock.lock();
         try {
             if (lastChainHead == null) {
@@ -293,12 +347,14 @@ public class SPVBlockStore implements BlockStore {
         if (buffer == null) throw new BlockStoreException("Store closed");
 
         lock.lock();
+        long stamp = ringLock.writeLock();
         try {
             lastChainHead = chainHead;
             byte[] headHash = chainHead.getHeader().getHash().getBytes();
             buffer.position(8);
             buffer.put(headHash);
         } finally {
+            ringLock.unlockWrite(stamp);
             lock.unlock();
         }
     }
@@ -310,7 +366,8 @@ public class SPVBlockStore implements BlockStore {
             buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
             fileLock.release();
             randomAccessFile.close();
-            blockCache.clear();
+            recentBlocks.invalidateAll();
+            slotIndex.clear();
         } catch (IOException e) {
             throw new BlockStoreException(e);
         }
@@ -352,14 +409,20 @@ public class SPVBlockStore implements BlockStore {
     public void clear() throws Exception {
         lock.lock();
         try {
-            // Clear caches
-            blockCache.clear();
-            notFoundCache.clear();
-            // Clear file content
-            buffer.position(0);
-            long fileLength = randomAccessFile.length();
-            for (int i = 0; i < fileLength; i++) {
-                buffer.put((byte) 0);
+            long stamp = ringLock.writeLock();
+            try {
+                // Clear caches
+                recentBlocks.invalidateAll();
+                slotIndex.clear();
+                lastChainHead = null;
+                // Clear file content
+                buffer.position(0);
+                long fileLength = randomAccessFile.length();
+                for (int i = 0; i < fileLength; i++) {
+                    buffer.put((byte) 0);
+                }
+            } finally {
+                ringLock.unlockWrite(stamp);
             }
             // Initialize store again
             buffer.position(0);
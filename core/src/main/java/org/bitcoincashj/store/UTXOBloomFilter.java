@@ -0,0 +1,217 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.store;
+
+import org.bitcoincashj.core.Sha256Hash;
+import org.bitcoincashj.core.Utils;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * <p>A Bloom filter over the hashes of transactions with unspent outputs, used by {@link LevelDBFullPrunedBlockStore}
+ * to answer most {@link FullPrunedBlockStore#hasUnspentOutputs(Sha256Hash, int)} calls without reading the database.
+ * Transaction hashes are random already, so the bit positions are taken straight from the hash with double
+ * hashing.</p>
+ *
+ * <p>The bits live in a memory-mapped file next to the database, sized for the number of unspent outputs. The file is
+ * marked clean together with the verified chain head when the store is closed, so the next start can use it without
+ * scanning the outputs. A Bloom filter can't forget spent transactions, so its false positive rate rises as outputs
+ * are spent and created; the store builds it again from the database once the rate passes
+ * {@link #REBUILD_FALSE_POSITIVE_RATE}.</p>
+ */
+class UTXOBloomFilter {
+    static final String FILE_NAME = "utxo.bloom";
+    /** Bits per unspent output, with {@link #HASH_FUNCTIONS} this gives a false positive rate below 1%. */
+    static final int BITS_PER_OUTPUT = 10;
+    static final int HASH_FUNCTIONS = 7;
+    /** The filter is rebuilt once its estimated false positive rate passes this. */
+    static final double REBUILD_FALSE_POSITIVE_RATE = 0.03;
+
+    private static final int MAGIC = 0x55544246; // "UTBF"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 128;
+    private static final int MIN_LOG2_BITS = 20;
+    // Keeps the mapping below the 2 GB a buffer can address.
+    private static final int MAX_LOG2_BITS = 33;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int LOG2_BITS_OFFSET = 8;
+    private static final int HASH_FUNCTIONS_OFFSET = 12;
+    private static final int OUTPUTS_OFFSET = 16;
+    private static final int BITS_SET_OFFSET = 24;
+    private static final int CLEAN_OFFSET = 32;
+    private static final int CHAIN_HEAD_OFFSET = 33;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int log2Bits;
+    private final long bitMask;
+    private long bitsSet;
+    private long outputs;
+
+    private UTXOBloomFilter(RandomAccessFile file, MappedByteBuffer buffer, int log2Bits, long bitsSet, long outputs) {
+        this.file = file;
+        this.buffer = buffer;
+        this.log2Bits = log2Bits;
+        this.bitMask = (1L << log2Bits) - 1;
+        this.bitsSet = bitsSet;
+        this.outputs = outputs;
+    }
+
+    /**
+     * Creates an empty filter for about the given number of unspent outputs, leaving room for the set to double
+     * before the false positive rate calls for a rebuild. An existing file is overwritten.
+     */
+    static UTXOBloomFilter create(File path, long expectedOutputs) throws IOException {
+        int log2Bits = MIN_LOG2_BITS;
+        while (log2Bits < MAX_LOG2_BITS && (1L << log2Bits) < expectedOutputs * BITS_PER_OUTPUT * 2)
+            log2Bits++;
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            // Truncating first clears the bits of a previous filter.
+            file.setLength(0);
+            file.setLength(HEADER_SIZE + (1L << log2Bits) / 8);
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+            buffer.putInt(MAGIC_OFFSET, MAGIC);
+            buffer.putInt(VERSION_OFFSET, VERSION);
+            buffer.putInt(LOG2_BITS_OFFSET, log2Bits);
+            buffer.putInt(HASH_FUNCTIONS_OFFSET, HASH_FUNCTIONS);
+            return new UTXOBloomFilter(file, buffer, log2Bits, 0, 0);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the filter saved by {@link #close(Sha256Hash)}. Returns null if there is no usable filter: the file is
+     * missing or damaged, it wasn't closed cleanly, or it was saved at another chain head than the database's.
+     */
+    @Nullable
+    static UTXOBloomFilter load(File path, Sha256Hash chainHead) throws IOException {
+        if (!path.isFile() || path.length() < HEADER_SIZE)
+            return null;
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+            int log2Bits = buffer.getInt(LOG2_BITS_OFFSET);
+            byte[] savedChainHead = new byte[32];
+            buffer.position(CHAIN_HEAD_OFFSET);
+            buffer.get(savedChainHead);
+            boolean usable = buffer.getInt(MAGIC_OFFSET) == MAGIC && buffer.getInt(VERSION_OFFSET) == VERSION
+                    && log2Bits >= MIN_LOG2_BITS && log2Bits <= MAX_LOG2_BITS
+                    && buffer.getInt(HASH_FUNCTIONS_OFFSET) == HASH_FUNCTIONS
+                    && file.length() == HEADER_SIZE + (1L << log2Bits) / 8
+                    && buffer.get(CLEAN_OFFSET) == 1 && Arrays.equals(savedChainHead, chainHead.getBytes());
+            if (!usable) {
+                file.close();
+                return null;
+            }
+            // Until the next clean close, the bits may run ahead of the database.
+            buffer.put(CLEAN_OFFSET, (byte) 0);
+            buffer.force();
+            return new UTXOBloomFilter(file, buffer, log2Bits, buffer.getLong(BITS_SET_OFFSET),
+                    buffer.getLong(OUTPUTS_OFFSET));
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /** Adds a transaction hash, given as its 32 bytes. */
+    void add(byte[] hash) {
+        long h1 = Utils.readInt64(hash, 0);
+        long h2 = Utils.readInt64(hash, 8) | 1;
+        for (int i = 0; i < HASH_FUNCTIONS; i++) {
+            long bit = (h1 + i * h2) & bitMask;
+            int index = HEADER_SIZE + (int) (bit >>> 3);
+            byte b = buffer.get(index);
+            byte set = (byte) (b | (1 << (bit & 7)));
+            if (set != b) {
+                buffer.put(index, set);
+                bitsSet++;
+            }
+        }
+    }
+
+    void add(Sha256Hash hash) {
+        add(hash.getBytes());
+    }
+
+    /**
+     * Returns false if the transaction certainly has no unspent outputs. True means it may have some, the database
+     * has to tell.
+     */
+    boolean mightContain(Sha256Hash hash) {
+        byte[] bytes = hash.getBytes();
+        long h1 = Utils.readInt64(bytes, 0);
+        long h2 = Utils.readInt64(bytes, 8) | 1;
+        for (int i = 0; i < HASH_FUNCTIONS; i++) {
+            long bit = (h1 + i * h2) & bitMask;
+            if ((buffer.get(HEADER_SIZE + (int) (bit >>> 3)) & (1 << (bit & 7))) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /** Estimates the false positive rate from the share of bits that are set. */
+    double estimatedFalsePositiveRate() {
+        return Math.pow((double) bitsSet / (1L << log2Bits), HASH_FUNCTIONS);
+    }
+
+    boolean needsRebuild() {
+        return estimatedFalsePositiveRate() > REBUILD_FALSE_POSITIVE_RATE;
+    }
+
+    /** Number of unspent outputs in the database, as last counted or tracked by the store. */
+    long getOutputs() {
+        return outputs;
+    }
+
+    void setOutputs(long outputs) {
+        this.outputs = Math.max(0, outputs);
+    }
+
+    long getSizeInBytes() {
+        return (1L << log2Bits) / 8;
+    }
+
+    /**
+     * Saves the filter as matching the database at the given verified chain head and closes the file. The filter
+     * can't be used afterwards.
+     */
+    void close(@Nullable Sha256Hash chainHead) throws IOException {
+        try {
+            buffer.putLong(OUTPUTS_OFFSET, outputs);
+            buffer.putLong(BITS_SET_OFFSET, bitsSet);
+            if (chainHead != null) {
+                buffer.position(CHAIN_HEAD_OFFSET);
+                buffer.put(chainHead.getBytes());
+                buffer.force();
+                buffer.put(CLEAN_OFFSET, (byte) 1);
+            }
+            buffer.force();
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.store;
+
+import org.bitcoincashj.core.Sha256Hash;
+import org.bitcoincashj.core.UTXO;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Unspent output changes that are not in the database yet, used by {@link DatabaseFullPrunedBlockStore} to write
+ * outputs behind the blocks that change them. A change set sits on top of a layer below it, which is either the
+ * database or another change set.</p>
+ *
+ * <p>Added outputs are to be inserted into the layer below. Removed outputs are present in the layer below and are to
+ * be deleted from it. Removing an output that was added here cancels the addition, so an output created and spent
+ * before the changes are written never reaches the database. An output can be both removed and added, when it is
+ * spent and then created again by a reorg.</p>
+ */
+class UTXOChangeSet {
+    // Rough size of an entry on the heap besides its script, used to decide when to write the changes out.
+    private static final int ENTRY_OVERHEAD = 200;
+
+    private final Map<Sha256Hash, Map<Long, UTXO>> added = new HashMap<>();
+    private final Map<Sha256Hash, Map<Long, UTXO>> removed = new HashMap<>();
+    private long sizeInBytes;
+
+    @Nullable
+    UTXO getAdded(Sha256Hash hash, long index) {
+        Map<Long, UTXO> outputs = added.get(hash);
+        return outputs != null ? outputs.get(index) : null;
+    }
+
+    boolean isRemoved(Sha256Hash hash, long index) {
+        Map<Long, UTXO> outputs = removed.get(hash);
+        return outputs != null && outputs.containsKey(index);
+    }
+
+    /** Returns true if the output is added or removed here, so the layer below doesn't tell its state. */
+    boolean isChanged(Sha256Hash hash, long index) {
+        return getAdded(hash, index) != null || isRemoved(hash, index);
+    }
+
+    int getAddedCount(Sha256Hash hash) {
+        Map<Long, UTXO> outputs = added.get(hash);
+        return outputs != null ? outputs.size() : 0;
+    }
+
+    int getRemovedCount(Sha256Hash hash) {
+        Map<Long, UTXO> outputs = removed.get(hash);
+        return outputs != null ? outputs.size() : 0;
+    }
+
+    void add(UTXO out) {
+        if (put(added, out) == null)
+            sizeInBytes += sizeOf(out);
+    }
+
+    /**
+     * Removes an output, which must be either added here or present in the layer below. Returns true if it was added
+     * here, so both changes cancel out.
+     */
+    boolean remove(UTXO out) {
+        Map<Long, UTXO> outputs = added.get(out.getHash());
+        UTXO cancelled = outputs != null ? outputs.remove(out.getIndex()) : null;
+        if (cancelled != null) {
+            if (outputs.isEmpty())
+                added.remove(out.getHash());
+            sizeInBytes -= sizeOf(cancelled);
+            return true;
+        }
+        if (put(removed, out) == null)
+            sizeInBytes += sizeOf(out);
+        return false;
+    }
+
+    /**
+     * Applies these changes to the given change set, which must be the layer below. Returns the number of outputs
+     * whose addition below was cancelled.
+     */
+    int mergeInto(UTXOChangeSet below) {
+        int cancelled = 0;
+        for (Map<Long, UTXO> outputs : removed.values())
+            for (UTXO out : outputs.values())
+                if (below.remove(out))
+                    cancelled++;
+        for (Map<Long, UTXO> outputs : added.values())
+            for (UTXO out : outputs.values())
+                below.add(out);
+        return cancelled;
+    }
+
+    List<UTXO> getAdded() {
+        return flatten(added);
+    }
+
+    List<UTXO> getRemoved() {
+        return flatten(removed);
+    }
+
+    boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty();
+    }
+
+    long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    void clear() {
+        added.clear();
+        removed.clear();
+        sizeInBytes = 0;
+    }
+
+    private static UTXO put(Map<Sha256Hash, Map<Long, UTXO>> map, UTXO out) {
+        Map<Long, UTXO> outputs = map.get(out.getHash());
+        if (outputs == null) {
+            outputs = new HashMap<>(4);
+            map.put(out.getHash(), outputs);
+        }
+        return outputs.put(out.getIndex(), out);
+    }
+
+    private static List<UTXO> flatten(Map<Sha256Hash, Map<Long, UTXO>> map) {
+        List<UTXO> list = new ArrayList<>();
+        for (Map<Long, UTXO> outputs : map.values())
+            list.addAll(outputs.values());
+        return list;
+    }
+
+    private static long sizeOf(UTXO out) {
+        return ENTRY_OVERHEAD + out.getScript().getProgram().length;
+    }
+}
@@ -221,6 +221,8 @@ public class KeyChainGroup implements KeyBag {
     // P2SH addresses. They're mutually exclusive.
     private final EnumMap<KeyChain.KeyPurpose, DeterministicKey> currentKeys;
     private final EnumMap<KeyChain.KeyPurpose, Address> currentAddresses;
+    // All keys of the basic and deterministic chains, for lookups that don't depend on the number of chains.
+    private final KeyIndex keyIndex = new KeyIndex();
     @Nullable
     private KeyCrypter keyCrypter;
     private int lookaheadSize = -1;
@@ -271,6 +273,7 @@ public class KeyChainGroup implements KeyBag {
                 ? new EnumMap<KeyChain.KeyPurpose, DeterministicKey>(KeyChain.KeyPurpose.class)
                 : currentKeys;
         this.currentAddresses = new EnumMap<>(KeyChain.KeyPurpose.class);
+        keyIndex.rebuild(basic, this.chains);
 
         if (isMarried()) {
             maybeLookaheadScripts();
@@ -305,12 +308,14 @@ public class KeyChainGroup implements KeyBag {
         checkState(isSupportsDeterministicChains(), "doesn't support deterministic chains");
         log.info("Activating a new HD chain: {}", chain);
         for (ListenerRegistration<KeyChainEventListener> registration : basic.getListeners())
-            chain.addEventListener(registration.listener, registration.executor);
+            if (!KeyIndex.isIndexer(registration.listener))
+                chain.addEventListener(registration.listener, registration.executor);
         if (lookaheadSize >= 0)
             chain.setLookaheadSize(lookaheadSize);
         if (lookaheadThreshold >= 0)
             chain.setLookaheadThreshold(lookaheadThreshold);
         chains.add(chain);
+        keyIndex.addChain(chain);
         currentKeys.clear();
         currentAddresses.clear();
         queueOnCurrentKeyChanged();
@@ -319,6 +324,7 @@ public class KeyChainGroup implements KeyBag {
     public void removeHDChainByIndex(int index) {
         log.info("Removing HD chain: {}", index);
         chains.remove(index);
+        keyIndex.rebuild(basic, chains);
     }
 
     /**
@@ -562,14 +568,12 @@ public class KeyChainGroup implements KeyBag {
     @Override
     @Nullable
     public RedeemData findRedeemDataFromScriptHash(byte[] scriptHash) {
-        if (chains != null) {
-            // Iterate in reverse order, since the active keychain is the one most likely to have the hit
-            for (Iterator<DeterministicKeyChain> iter = chains.descendingIterator(); iter.hasNext(); ) {
-                DeterministicKeyChain chain = iter.next();
-                RedeemData redeemData = chain.findRedeemDataByScriptHash(ByteString.copyFrom(scriptHash));
-                if (redeemData != null)
-                    return redeemData;
-            }
+        // Iterate in reverse order, since the active keychain is the one most likely to have the hit
+        List<DeterministicKeyChain> scriptChains = keyIndex.getScriptChains();
+        for (int i = scriptChains.size() - 1; i >= 0; i--) {
+            RedeemData redeemData = scriptChains.get(i).findRedeemDataByScriptHash(ByteString.copyFrom(scriptHash));
+            if (redeemData != null)
+                return redeemData;
         }
         return null;
     }
@@ -580,10 +584,8 @@ public class KeyChainGroup implements KeyBag {
         if (data == null)
             return;   // Not our P2SH address.
         for (ECKey key : data.keys) {
-            for (DeterministicKeyChain chain : chains) {
-                DeterministicKey k = chain.findKeyFromPubKey(key.getPubKey());
-                if (k == null) continue;
-                chain.markKeyAsUsed(k);
+            for (KeyIndex.Entry entry : keyIndex.findDeterministicByPubKey(key.getPubKey())) {
+                entry.chain.markKeyAsUsed((DeterministicKey) entry.key);
                 maybeMarkCurrentAddressAsUsed(address);
             }
         }
@@ -592,20 +594,10 @@ public class KeyChainGroup implements KeyBag {
     @Nullable
     @Override
     public ECKey findKeyFromPubKeyHash(byte[] pubKeyHash, @Nullable Script.ScriptType scriptType) {
-        ECKey result;
-        // BasicKeyChain can mix output script types.
-        if ((result = basic.findKeyFromPubHash(pubKeyHash)) != null)
-            return result;
-        if (chains != null) {
-            for (DeterministicKeyChain chain : chains) {
-                // This check limits DeterministicKeyChain to specific output script usage.
-                if (scriptType != null && scriptType != chain.getOutputScriptType())
-                    continue;
-                if ((result = chain.findKeyFromPubHash(pubKeyHash)) != null)
-                    return result;
-            }
-        }
-        return null;
+        // BasicKeyChain can mix output script types, the index limits DeterministicKeyChain to specific output script
+        // usage.
+        KeyIndex.Entry entry = keyIndex.findByPubKeyHash(pubKeyHash, scriptType);
+        return entry != null ? entry.key : null;
     }
 
     /**
@@ -613,13 +605,11 @@ public class KeyChainGroup implements KeyBag {
      * See {@link DeterministicKeyChain#markKeyAsUsed(DeterministicKey)} for more info on this.
      */
     public void markPubKeyHashAsUsed(byte[] pubKeyHash) {
-        if (chains != null) {
-            for (DeterministicKeyChain chain : chains) {
-                DeterministicKey key;
-                if ((key = chain.markPubHashAsUsed(pubKeyHash)) != null) {
-                    maybeMarkCurrentKeyAsUsed(key);
-                    return;
-                }
+        for (KeyIndex.Entry entry : keyIndex.findDeterministicByPubKeyHash(pubKeyHash)) {
+            DeterministicKey key;
+            if ((key = entry.chain.markPubHashAsUsed(pubKeyHash)) != null) {
+                maybeMarkCurrentKeyAsUsed(key);
+                return;
             }
         }
     }
@@ -656,26 +646,14 @@ public class KeyChainGroup implements KeyBag {
     }
 
     public boolean hasKey(ECKey key) {
-        if (basic.hasKey(key))
-            return true;
-        if (chains != null)
-            for (DeterministicKeyChain chain : chains)
-                if (chain.hasKey(key))
-                    return true;
-        return false;
+        return keyIndex.findByPubKey(key.getPubKey()) != null;
     }
 
     @Nullable
     @Override
     public ECKey findKeyFromPubKey(byte[] pubKey) {
-        ECKey result;
-        if ((result = basic.findKeyFromPubKey(pubKey)) != null)
-            return result;
-        if (chains != null)
-            for (DeterministicKeyChain chain : chains)
-                if ((result = chain.findKeyFromPubKey(pubKey)) != null)
-                    return result;
-        return null;
+        KeyIndex.Entry entry = keyIndex.findByPubKey(pubKey);
+        return entry != null ? entry.key : null;
     }
 
     /**
@@ -683,13 +661,11 @@ public class KeyChainGroup implements KeyBag {
      * See {@link DeterministicKeyChain#markKeyAsUsed(DeterministicKey)} for more info on this.
      */
     public void markPubKeyAsUsed(byte[] pubkey) {
-        if (chains != null) {
-            for (DeterministicKeyChain chain : chains) {
-                DeterministicKey key;
-                if ((key = chain.markPubKeyAsUsed(pubkey)) != null) {
-                    maybeMarkCurrentKeyAsUsed(key);
-                    return;
-                }
+        for (KeyIndex.Entry entry : keyIndex.findDeterministicByPubKey(pubkey)) {
+            DeterministicKey key;
+            if ((key = entry.chain.markPubKeyAsUsed(pubkey)) != null) {
+                maybeMarkCurrentKeyAsUsed(key);
+                return;
             }
         }
     }
@@ -713,7 +689,10 @@ public class KeyChainGroup implements KeyBag {
     public boolean removeImportedKey(ECKey key) {
         checkNotNull(key);
         checkArgument(!(key instanceof DeterministicKey));
-        return basic.removeKey(key);
+        if (!basic.removeKey(key))
+            return false;
+        keyIndex.removeImportedKey(key);
+        return true;
     }
 
     /**
@@ -753,6 +732,7 @@ public class KeyChainGroup implements KeyBag {
             this.chains.clear();
             this.chains.addAll(newChains);
         }
+        keyIndex.rebuild(basic, chains);
     }
 
     /**
@@ -776,6 +756,7 @@ public class KeyChainGroup implements KeyBag {
         }
         this.basic = newBasic;
         this.keyCrypter = null;
+        keyIndex.rebuild(basic, chains);
     }
 
     /**
@@ -1042,6 +1023,7 @@ public class KeyChainGroup implements KeyBag {
                 .outputScriptType(Script.ScriptType.P2PKH)
                 .accountPath(DeterministicKeyChain.BIP44_ACCOUNT_2016_PATH).build();
         chains.add(fusionChain);
+        keyIndex.addChain(fusionChain);
     }
     /**
      * <p>This method will upgrade the wallet along the following path: {@code Basic --> P2PKH --> P2WPKH}</p>
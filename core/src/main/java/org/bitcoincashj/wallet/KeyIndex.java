@@ -0,0 +1,229 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.wallet;
+
+import com.google.protobuf.ByteString;
+import org.bitcoincashj.core.ECKey;
+import org.bitcoincashj.script.Script;
+import org.bitcoincashj.utils.Threading;
+import org.bitcoincashj.wallet.listeners.KeyChainEventListener;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * <p>An index over the keys of all chains of a {@link KeyChainGroup}, so looking up a key by its pubkey or pubkey hash
+ * takes one hash lookup however many chains there are. The index can be read concurrently without locks.</p>
+ *
+ * <p>It is kept up to date by a listener on each chain that runs on the thread adding the keys, so keys issued by the
+ * lookahead or imported are found as soon as they are added. When the group replaces its chains, for example when
+ * it is encrypted, it rebuilds the index.</p>
+ */
+class KeyIndex {
+    /** A key and the chain it belongs to. */
+    static final class Entry {
+        final ECKey key;
+        // Null for the basic chain of imported keys.
+        @Nullable final DeterministicKeyChain chain;
+
+        private Entry(ECKey key, @Nullable DeterministicKeyChain chain) {
+            this.key = key;
+            this.chain = chain;
+        }
+    }
+
+    // Keys are rarely in more than one chain, so each maps to a small array in the order the chains were added.
+    private final ConcurrentHashMap<ByteString, Entry[]> byPubKeyHash = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<ByteString, Entry[]> byPubKey = new ConcurrentHashMap<>();
+    // Only married chains have redeem scripts to look up by script hash.
+    private final List<DeterministicKeyChain> scriptChains = new CopyOnWriteArrayList<>();
+    // The listeners of the current chains, so they can be removed again. Guarded by this.
+    private final List<Indexer> indexers = new ArrayList<>();
+    private final List<KeyChain> indexedChains = new ArrayList<>();
+    // Listeners of an earlier generation were copied along with their chain and are ignored.
+    private volatile int generation;
+
+    private class Indexer implements KeyChainEventListener {
+        private final int generation;
+        @Nullable private final DeterministicKeyChain chain;
+
+        private Indexer(int generation, @Nullable DeterministicKeyChain chain) {
+            this.generation = generation;
+            this.chain = chain;
+        }
+
+        @Override
+        public void onKeysAdded(List<ECKey> keys) {
+            if (generation != KeyIndex.this.generation)
+                return;
+            for (ECKey key : keys)
+                add(key, chain);
+        }
+    }
+
+    static boolean isIndexer(KeyChainEventListener listener) {
+        return listener instanceof Indexer;
+    }
+
+    /** Forgets all keys and indexes the given chains, in order. */
+    synchronized void rebuild(BasicKeyChain basic, @Nullable List<DeterministicKeyChain> chains) {
+        generation++;
+        for (KeyChain chain : indexedChains)
+            for (Indexer indexer : indexers)
+                chain.removeEventListener(indexer);
+        // The current chains may have copied listeners of the chains they replace.
+        List<KeyChain> current = new ArrayList<>();
+        current.add(basic);
+        if (chains != null)
+            current.addAll(chains);
+        for (KeyChain chain : current)
+            for (Indexer indexer : indexers)
+                chain.removeEventListener(indexer);
+        indexers.clear();
+        indexedChains.clear();
+        byPubKeyHash.clear();
+        byPubKey.clear();
+        scriptChains.clear();
+
+        Indexer indexer = new Indexer(generation, null);
+        register(basic, indexer);
+        for (ECKey key : basic.getKeys())
+            add(key, null);
+        if (chains != null)
+            for (DeterministicKeyChain chain : chains)
+                addChain(chain);
+    }
+
+    /** Indexes a chain added to the group, and the keys it will get. */
+    synchronized void addChain(DeterministicKeyChain chain) {
+        register(chain, new Indexer(generation, chain));
+        // Keys added between registering and this are indexed twice, which add() ignores.
+        for (ECKey key : chain.getKeys(true, true))
+            add(key, chain);
+        if (chain.isMarried())
+            scriptChains.add(chain);
+    }
+
+    private void register(KeyChain chain, Indexer indexer) {
+        chain.addEventListener(indexer, Threading.SAME_THREAD);
+        indexers.add(indexer);
+        indexedChains.add(chain);
+    }
+
+    private void add(ECKey key, @Nullable DeterministicKeyChain chain) {
+        Entry entry = new Entry(key, chain);
+        add(byPubKeyHash, ByteString.copyFrom(key.getPubKeyHash()), entry);
+        add(byPubKey, ByteString.copyFrom(key.getPubKey()), entry);
+    }
+
+    private static void add(ConcurrentHashMap<ByteString, Entry[]> map, ByteString bytes, Entry entry) {
+        while (true) {
+            Entry[] entries = map.get(bytes);
+            if (entries == null) {
+                if (map.putIfAbsent(bytes, new Entry[] { entry }) == null)
+                    return;
+                continue;
+            }
+            for (Entry e : entries)
+                if (e.chain == entry.chain)
+                    return;
+            Entry[] updated = Arrays.copyOf(entries, entries.length + 1);
+            updated[entries.length] = entry;
+            if (map.replace(bytes, entries, updated))
+                return;
+        }
+    }
+
+    /** Removes a key that was removed from the basic chain. */
+    void removeImportedKey(ECKey key) {
+        remove(byPubKeyHash, ByteString.copyFrom(key.getPubKeyHash()));
+        remove(byPubKey, ByteString.copyFrom(key.getPubKey()));
+    }
+
+    private static void remove(ConcurrentHashMap<ByteString, Entry[]> map, ByteString bytes) {
+        while (true) {
+            Entry[] entries = map.get(bytes);
+            if (entries == null)
+                return;
+            List<Entry> kept = new ArrayList<>(entries.length);
+            for (Entry e : entries)
+                if (e.chain != null)
+                    kept.add(e);
+            if (kept.size() == entries.length)
+                return;
+            if (kept.isEmpty() ? map.remove(bytes, entries)
+                    : map.replace(bytes, entries, kept.toArray(new Entry[kept.size()])))
+                return;
+        }
+    }
+
+    /**
+     * Finds a key by its pubkey hash. Imported keys come first, then keys of deterministic chains with the given
+     * output script type, or any type if it is null.
+     */
+    @Nullable
+    Entry findByPubKeyHash(byte[] pubKeyHash, @Nullable Script.ScriptType scriptType) {
+        Entry[] entries = byPubKeyHash.get(ByteString.copyFrom(pubKeyHash));
+        if (entries == null)
+            return null;
+        for (Entry e : entries)
+            if (e.chain == null)
+                return e;
+        for (Entry e : entries)
+            if (scriptType == null || scriptType == e.chain.getOutputScriptType())
+                return e;
+        return null;
+    }
+
+    /** Finds a key by its pubkey. Imported keys come first. */
+    @Nullable
+    Entry findByPubKey(byte[] pubKey) {
+        Entry[] entries = byPubKey.get(ByteString.copyFrom(pubKey));
+        if (entries == null)
+            return null;
+        for (Entry e : entries)
+            if (e.chain == null)
+                return e;
+        return entries[0];
+    }
+
+    /** Returns the keys of deterministic chains with the given pubkey hash, in the order of their chains. */
+    List<Entry> findDeterministicByPubKeyHash(byte[] pubKeyHash) {
+        return deterministic(byPubKeyHash.get(ByteString.copyFrom(pubKeyHash)));
+    }
+
+    /** Returns the keys of deterministic chains with the given pubkey, in the order of their chains. */
+    List<Entry> findDeterministicByPubKey(byte[] pubKey) {
+        return deterministic(byPubKey.get(ByteString.copyFrom(pubKey)));
+    }
+
+    private static List<Entry> deterministic(@Nullable Entry[] entries) {
+        List<Entry> result = new ArrayList<>(1);
+        if (entries != null)
+            for (Entry e : entries)
+                if (e.chain != null)
+                    result.add(e);
+        return result;
+    }
+
+    /** Returns the chains that can have redeem scripts, in the order they were added. */
+    List<DeterministicKeyChain> getScriptChains() {
+        return scriptChains;
+    }
+}
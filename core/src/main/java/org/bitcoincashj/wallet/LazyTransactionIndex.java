@@ -0,0 +1,685 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.wallet;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+import org.bitcoincashj.core.Coin;
+import org.bitcoincashj.core.NetworkParameters;
+import org.bitcoincashj.core.Sha256Hash;
+import org.bitcoincashj.core.Transaction;
+import org.bitcoincashj.core.TransactionConfidence;
+import org.bitcoincashj.core.TransactionInput;
+import org.bitcoincashj.core.TransactionOutPoint;
+import org.bitcoincashj.core.TransactionOutput;
+import org.bitcoincashj.core.Utils;
+import org.bitcoincashj.wallet.WalletTransaction.Pool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>The transactions of a wallet file that is loaded lazily, see
+ * {@link WalletProtobufSerializer#readWalletLazily(File, WalletExtension...)}. The file is memory mapped and scanned
+ * once for the position, hash and pool of each transaction. Spent and dead transactions stay in the file until they are
+ * asked for through the pools of the wallet, which are {@link LazyTransactionMap}s, everything else is read
+ * right away.</p>
+ *
+ * <p>A transaction read later is connected to the loaded transactions it spends and that spend it. Outputs of loaded
+ * transactions that are spent by a transaction still in the file are marked as spent by nobody until the spender is
+ * loaded, and keep their spender when saved. Depth in blocks is taken forward from the last seen block of the file to
+ * that of the wallet.</p>
+ *
+ * <p>All methods must be called with the wallet lock held.</p>
+ */
+class LazyTransactionIndex {
+    private static final Logger log = LoggerFactory.getLogger(LazyTransactionIndex.class);
+
+    // Entry states.
+    private static final byte EAGER = 0; // read when the wallet is loaded
+    private static final byte UNLOADED = 1;
+    private static final byte LOADING = 2;
+    private static final byte LOADED = 3;
+    private static final byte DROPPED = 4; // replaced by the journal or cleared from the wallet
+
+    // Field numbers of wallet.proto.
+    private static final int WALLET_TRANSACTION = 4;
+    private static final int TRANSACTION_HASH = 2;
+    private static final int TRANSACTION_POOL = 3;
+    private static final int TRANSACTION_INPUT = 6;
+    private static final int INPUT_OUT_POINT_HASH = 1;
+    private static final int INPUT_OUT_POINT_INDEX = 2;
+
+    private static final Pool[] POOLS = Pool.values();
+    private static final String TRUNCATED = "Wallet file ends in the middle of a field";
+
+    private final ByteBuffer buffer;
+    private final Protos.Wallet header;
+    private final int snapshotHeight;
+    private int position; // Of the scanner.
+
+    // Entries, in order of the file.
+    private int size;
+    private long[] prefixes = new long[16]; // First eight bytes of the hash.
+    private int[] hashOffsets = new int[16];
+    private int[] offsets = new int[16];
+    private int[] lengths = new int[16];
+    private byte[] pools = new byte[16];
+    private byte[] states = new byte[16];
+    private final int[] unloadedCounts = new int[POOLS.length];
+    // Open addressing by hash prefix, holds entry + 1.
+    private int[] table;
+
+    // Outpoints spent by unloaded transactions, open addressing by outpointKey(), built when first needed.
+    private long[] outPointKeys;
+    private int[] outPointEntries;
+
+    // Outputs of loaded transactions that are spent by a transaction that isn't loaded yet.
+    private final Map<TransactionOutput, Protos.TransactionOutput> unloadedSpenders = new IdentityHashMap<>();
+
+    private Wallet wallet;
+    private NetworkParameters params;
+    private WalletProtobufSerializer serializer;
+    private LazyTransactionMap transactions;
+
+    private LazyTransactionIndex(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        Protos.Wallet.Builder header = Protos.Wallet.newBuilder();
+        int fieldsStart = 0;
+        while (position < buffer.limit()) {
+            int fieldStart = position;
+            int tag = (int) readVarint();
+            if (WireFormat.getTagFieldNumber(tag) != WALLET_TRANSACTION) {
+                skipField(tag);
+                continue;
+            }
+            if (WireFormat.getTagWireType(tag) != WireFormat.WIRETYPE_LENGTH_DELIMITED)
+                throw new InvalidProtocolBufferException("Transaction is not a message");
+            // All other fields are parsed as usual, in runs.
+            if (fieldStart > fieldsStart)
+                header.mergeFrom(CodedInputStream.newInstance(slice(fieldsStart, fieldStart - fieldsStart)));
+            int length = readLength();
+            int offset = position;
+            addEntry(offset, length);
+            position = offset + length;
+            fieldsStart = position;
+        }
+        if (buffer.limit() > fieldsStart)
+            header.mergeFrom(CodedInputStream.newInstance(slice(fieldsStart, buffer.limit() - fieldsStart)));
+        this.header = header.buildPartial();
+        this.snapshotHeight = this.header.hasLastSeenBlockHeight() ? this.header.getLastSeenBlockHeight() : -1;
+        buildTable();
+    }
+
+    /** Maps the given wallet file, or on Windows reads it, and indexes its transactions. */
+    static LazyTransactionIndex open(File file) throws IOException {
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            long size = channel.size();
+            if (size > WalletProtobufSerializer.WALLET_SIZE_LIMIT)
+                throw new IOException("Wallet file is too large: " + size + " bytes");
+            ByteBuffer buffer;
+            if (Utils.isWindows()) {
+                // Windows can't replace a file that is mapped, which saving the wallet does.
+                buffer = ByteBuffer.allocate((int) size);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0)
+                        throw new EOFException("Wallet file was truncated whilst reading");
+                }
+                buffer.flip();
+            } else {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            long start = System.nanoTime();
+            LazyTransactionIndex index = new LazyTransactionIndex(buffer);
+            log.info("Indexed {} transactions of {} in {} ms, {} of them not loaded", index.size, file,
+                    (System.nanoTime() - start) / 1000000, index.unloadedCount(null));
+            return index;
+        }
+    }
+
+    /** Returns everything in the file except the transactions. */
+    Protos.Wallet getHeader() {
+        return header;
+    }
+
+    /** Returns the SHA-256 of the file, see {@link WalletJournal}. */
+    byte[] digest() {
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(buffer.duplicate());
+        return digest.digest();
+    }
+
+    /**
+     * Ties the index to the wallet being loaded and installs the lazy pools. The given transactions, read from the
+     * journal, replace those of the file.
+     */
+    void initialize(Wallet wallet, WalletProtobufSerializer serializer, List<Protos.Transaction> journaled) {
+        this.wallet = wallet;
+        this.params = wallet.getParams();
+        this.serializer = serializer;
+        for (Protos.Transaction tx : journaled) {
+            int entry = find(tx.getHash().toByteArray());
+            if (entry >= 0)
+                drop(entry);
+        }
+        this.transactions = wallet.installLazyTransactions(this);
+    }
+
+    /**
+     * Returns the transactions that are read right away: all those that aren't spent or dead, with their depth brought
+     * up to the given height of the last block seen by the wallet, which isn't set on the wallet yet.
+     */
+    List<Protos.Transaction> eagerProtos(int lastSeenBlockHeight) throws UnreadableWalletException {
+        List<Protos.Transaction> protos = new ArrayList<>();
+        for (int entry = 0; entry < size; entry++) {
+            if (states[entry] == EAGER) {
+                try {
+                    protos.add(updateDepth(parse(entry), lastSeenBlockHeight));
+                } catch (InvalidProtocolBufferException e) {
+                    throw new UnreadableWalletException("Could not read transaction " + hashOf(entry), e);
+                }
+                states[entry] = LOADED;
+            }
+        }
+        return protos;
+    }
+
+    /** Returns whether the given transaction is still in the file, in the given pool or any pool if null. */
+    boolean isUnloaded(Sha256Hash hash, @Nullable Pool pool) {
+        int entry = find(hash.getBytes());
+        return entry >= 0 && states[entry] == UNLOADED && (pool == null || pools[entry] == pool.ordinal());
+    }
+
+    /** Returns the number of transactions still in the file, in the given pool or any pool if null. */
+    int unloadedCount(@Nullable Pool pool) {
+        if (pool != null)
+            return unloadedCounts[pool.ordinal()];
+        int count = 0;
+        for (int poolCount : unloadedCounts)
+            count += poolCount;
+        return count;
+    }
+
+    /** Reads the given transaction into the wallet if it is still in the file. */
+    void load(Sha256Hash hash) {
+        int entry = find(hash.getBytes());
+        if (entry >= 0)
+            load(entry);
+    }
+
+    /** Reads all transactions of the given pool, or of all pools if null, into the wallet. */
+    void loadAll(@Nullable Pool pool) {
+        int count = unloadedCount(pool);
+        if (count == 0)
+            return;
+        log.info("Loading {} transactions from the wallet file", count);
+        for (int entry = 0; entry < size; entry++)
+            if (pool == null || pools[entry] == pool.ordinal())
+                load(entry);
+    }
+
+    /** Reads the transaction spending the given output of a loaded transaction into the wallet if it is still in the file. */
+    void loadSpenderOf(TransactionOutput output) {
+        Protos.TransactionOutput outputProto = unloadedSpenders.get(output);
+        if (outputProto != null)
+            load(WalletProtobufSerializer.byteStringToHash(outputProto.getSpentByTransactionHash()));
+    }
+
+    /**
+     * Reads the transactions of the given pool, or of all pools if null, that spend any of the given outpoints into
+     * the wallet.
+     */
+    void loadSpendersOf(Set<TransactionOutPoint> outPoints, @Nullable Pool pool) {
+        if (unloadedCount(pool) == 0)
+            return;
+        if (outPointKeys == null)
+            buildOutPointTable();
+        int mask = outPointKeys.length - 1;
+        for (TransactionOutPoint outPoint : outPoints) {
+            long key = outPointKey(prefix(outPoint.getHash().getBytes()), outPoint.getIndex());
+            for (int slot = mix(key) & mask; outPointEntries[slot] != 0; slot = (slot + 1) & mask) {
+                int entry = outPointEntries[slot] - 1;
+                // Prefix collisions only cost a needless load.
+                if (outPointKeys[slot] == key && (pool == null || pools[entry] == pool.ordinal()))
+                    load(entry);
+            }
+        }
+    }
+
+    /**
+     * Drops the transactions of the given pool, or of all pools if null, that are still in the file, as the wallet
+     * was cleared.
+     */
+    void drop(@Nullable Pool pool) {
+        for (int entry = 0; entry < size; entry++)
+            if (pool == null || pools[entry] == pool.ordinal())
+                drop(entry);
+        if (pool == null)
+            unloadedSpenders.clear();
+    }
+
+    /** Returns the transactions still in the file, with their depth brought up to date, for saving the wallet. */
+    List<Protos.Transaction> unloadedProtos() {
+        List<Protos.Transaction> protos = new ArrayList<>(unloadedCount(null));
+        for (int entry = 0; entry < size; entry++)
+            if (states[entry] == UNLOADED)
+                protos.add(updateDepth(parseUnchecked(entry)));
+        return protos;
+    }
+
+    /**
+     * Returns the outpoints of the outputs of unloaded spent transactions that pass
+     * {@link Wallet#isTxOutputBloomFilterable(TransactionOutput)}, without loading the transactions.
+     */
+    List<TransactionOutPoint> unloadedBloomOutPoints() {
+        List<TransactionOutPoint> outPoints = new ArrayList<>();
+        for (int entry = 0; entry < size; entry++) {
+            if (states[entry] != UNLOADED || pools[entry] != Pool.SPENT.ordinal())
+                continue;
+            Protos.Transaction proto = parseUnchecked(entry);
+            Sha256Hash hash = null;
+            for (int i = 0; i < proto.getTransactionOutputCount(); i++) {
+                Protos.TransactionOutput outputProto = proto.getTransactionOutput(i);
+                TransactionOutput output = new TransactionOutput(params, null, Coin.valueOf(outputProto.getValue()),
+                        outputProto.getScriptBytes().toByteArray());
+                if (wallet.isTxOutputBloomFilterable(output)) {
+                    if (hash == null)
+                        hash = WalletProtobufSerializer.byteStringToHash(proto.getHash());
+                    outPoints.add(new TransactionOutPoint(params, i, hash));
+                }
+            }
+        }
+        return outPoints;
+    }
+
+    /**
+     * If the given output of a loaded transaction is spent by a transaction that is still in the file, marks it as
+     * spent until the spender is loaded and returns true.
+     */
+    boolean markSpentByUnloaded(TransactionOutput output, Protos.TransactionOutput outputProto) {
+        int entry = find(outputProto.getSpentByTransactionHash().toByteArray());
+        if (entry < 0 || (states[entry] != UNLOADED && states[entry] != LOADING))
+            return false;
+        output.markAsSpent(null);
+        unloadedSpenders.put(output, outputProto);
+        return true;
+    }
+
+    /** Sets the spender of the given output on the builder if it is a transaction that is still in the file. */
+    void writeUnloadedSpender(TransactionOutput output, Protos.TransactionOutput.Builder outputBuilder) {
+        Protos.TransactionOutput outputProto = unloadedSpenders.get(output);
+        if (outputProto != null)
+            outputBuilder.setSpentByTransactionHash(outputProto.getSpentByTransactionHash())
+                    .setSpentByTransactionIndex(outputProto.getSpentByTransactionIndex());
+    }
+
+    private void load(int entry) {
+        if (states[entry] != UNLOADED)
+            return;
+        checkState(wallet.lock.isHeldByCurrentThread());
+        states[entry] = LOADING;
+        unloadedCounts[pools[entry]]--;
+        Protos.Transaction proto = updateDepth(parseUnchecked(entry));
+        Transaction tx;
+        try {
+            tx = WalletProtobufSerializer.txFromProto(proto, params);
+            if (proto.hasConfidence())
+                readConfidence(tx, proto.getConfidence());
+        } catch (UnreadableWalletException e) {
+            throw new IllegalStateException("Could not read transaction " + hashOf(entry) + " from wallet file", e);
+        }
+
+        // Connect the outputs to the loaded transactions spending them.
+        for (int i = 0; i < proto.getTransactionOutputCount(); i++) {
+            Protos.TransactionOutput outputProto = proto.getTransactionOutput(i);
+            TransactionOutput output = tx.getOutput(i);
+            if (outputProto.hasFrozen())
+                output.setFrozen(outputProto.getFrozen());
+            if (!outputProto.hasSpentByTransactionHash())
+                continue;
+            Transaction spender = transactions.getLoaded(
+                    WalletProtobufSerializer.byteStringToHash(outputProto.getSpentByTransactionHash()));
+            if (spender != null) {
+                TransactionInput input = spender.getInput(outputProto.getSpentByTransactionIndex());
+                if (input.getConnectedOutput() == null)
+                    input.connect(output);
+            } else if (!markSpentByUnloaded(output, outputProto)) {
+                log.warn("Could not connect {} to {}", tx.getTxId(),
+                        WalletProtobufSerializer.byteStringToHash(outputProto.getSpentByTransactionHash()));
+            }
+        }
+        // And the inputs to the loaded transactions they spend.
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutPoint outPoint = input.getOutpoint();
+            Transaction parent = transactions.getLoaded(outPoint.getHash());
+            if (parent == null || outPoint.getIndex() >= parent.getOutputs().size())
+                continue;
+            TransactionOutput output = parent.getOutput(outPoint.getIndex());
+            Protos.TransactionOutput outputProto = unloadedSpenders.get(output);
+            if (outputProto != null && outputProto.getSpentByTransactionIndex() == input.getIndex()
+                    && outputProto.getSpentByTransactionHash().equals(proto.getHash())) {
+                unloadedSpenders.remove(output);
+                output.markAsUnspent();
+                input.connect(output);
+            }
+        }
+
+        wallet.addWalletTransaction(new WalletTransaction(POOLS[pools[entry]], tx));
+        states[entry] = LOADED;
+    }
+
+    private void readConfidence(Transaction tx, Protos.TransactionConfidence confidenceProto)
+            throws UnreadableWalletException {
+        if (confidenceProto.hasOverridingTransaction()) {
+            // The overriding transaction may have to be loaded too.
+            Transaction overriding = transactions.get(
+                    WalletProtobufSerializer.byteStringToHash(confidenceProto.getOverridingTransaction()));
+            if (overriding != null)
+                serializer.txMap.put(confidenceProto.getOverridingTransaction(), overriding);
+        }
+        try {
+            serializer.readConfidence(params, tx, confidenceProto, tx.getConfidence());
+        } finally {
+            serializer.txMap.clear();
+        }
+        TransactionConfidence confidence = tx.getConfidence();
+        if (confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING
+                && confidence.getDepthInBlocks() > wallet.getContext().getEventHorizon())
+            confidence.clearBroadcastBy();
+    }
+
+    // Adds the blocks seen by the wallet since the file was written to the depth of the transaction.
+    private Protos.Transaction updateDepth(Protos.Transaction proto) {
+        return updateDepth(proto, wallet.getLastBlockSeenHash() != null ? wallet.getLastBlockSeenHeight() : -1);
+    }
+
+    private Protos.Transaction updateDepth(Protos.Transaction proto, int height) {
+        if (snapshotHeight < 0 || height < 0 || height == snapshotHeight)
+            return proto;
+        Protos.TransactionConfidence confidence = proto.getConfidence();
+        if (confidence.getType() != Protos.TransactionConfidence.Type.BUILDING || !confidence.hasDepth())
+            return proto;
+        return proto.toBuilder().setConfidence(confidence.toBuilder()
+                .setDepth(confidence.getDepth() + height - snapshotHeight)).build();
+    }
+
+    private void drop(int entry) {
+        if (states[entry] == UNLOADED)
+            unloadedCounts[pools[entry]]--;
+        states[entry] = DROPPED;
+    }
+
+    private Protos.Transaction parse(int entry) throws InvalidProtocolBufferException {
+        return Protos.Transaction.parseFrom(slice(offsets[entry], lengths[entry]));
+    }
+
+    private Protos.Transaction parseUnchecked(int entry) {
+        try {
+            return parse(entry);
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalStateException("Could not read transaction " + hashOf(entry) + " from wallet file", e);
+        }
+    }
+
+    private Sha256Hash hashOf(int entry) {
+        byte[] hash = new byte[32];
+        slice(hashOffsets[entry], 32).get(hash);
+        return Sha256Hash.wrap(hash);
+    }
+
+    private ByteBuffer slice(int offset, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(offset);
+        slice.limit(offset + length);
+        return slice.slice();
+    }
+
+    private int find(byte[] hash) {
+        if (hash.length != 32)
+            return -1;
+        long prefix = prefix(hash);
+        int mask = table.length - 1;
+        for (int slot = mix(prefix) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int entry = table[slot] - 1;
+            if (prefixes[entry] == prefix && hashEquals(entry, hash))
+                return entry;
+        }
+        return -1;
+    }
+
+    private boolean hashEquals(int entry, byte[] hash) {
+        int offset = hashOffsets[entry];
+        for (int i = 8; i < 32; i++)
+            if (buffer.get(offset + i) != hash[i])
+                return false;
+        return true;
+    }
+
+    private static long prefix(byte[] hash) {
+        long prefix = 0;
+        for (int i = 0; i < 8; i++)
+            prefix = (prefix << 8) | (hash[i] & 0xff);
+        return prefix;
+    }
+
+    private static long outPointKey(long hashPrefix, long index) {
+        return hashPrefix ^ (index * 0x9E3779B97F4A7C15L);
+    }
+
+    private static int mix(long key) {
+        return (int) (key ^ (key >>> 32));
+    }
+
+    private static int tableSize(int entries) {
+        return Math.max(16, Integer.highestOneBit(Math.max(1, entries) * 2) * 2);
+    }
+
+    private void addEntry(int offset, int length) throws IOException {
+        int end = offset + length;
+        int hashOffset = -1;
+        int pool = -1;
+        position = offset;
+        while (position < end && (hashOffset < 0 || pool < 0)) {
+            int tag = (int) readVarint();
+            int field = WireFormat.getTagFieldNumber(tag);
+            if (field == TRANSACTION_HASH && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                if (readLength() != 32)
+                    throw new InvalidProtocolBufferException("Transaction hash is not 32 bytes");
+                hashOffset = position;
+                position += 32;
+            } else if (field == TRANSACTION_POOL && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_VARINT) {
+                pool = (int) readVarint();
+            } else {
+                skipField(tag);
+            }
+        }
+        if (hashOffset < 0 || pool < 0)
+            throw new InvalidProtocolBufferException("Transaction without hash or pool");
+
+        if (size == offsets.length) {
+            int capacity = size * 2;
+            prefixes = Arrays.copyOf(prefixes, capacity);
+            hashOffsets = Arrays.copyOf(hashOffsets, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            pools = Arrays.copyOf(pools, capacity);
+            states = Arrays.copyOf(states, capacity);
+        }
+        Pool walletPool = toPool(pool);
+        prefixes[size] = buffer.getLong(hashOffset);
+        hashOffsets[size] = hashOffset;
+        offsets[size] = offset;
+        lengths[size] = length;
+        pools[size] = (byte) walletPool.ordinal();
+        if (walletPool == Pool.SPENT || walletPool == Pool.DEAD) {
+            states[size] = UNLOADED;
+            unloadedCounts[walletPool.ordinal()]++;
+        } else {
+            states[size] = EAGER;
+        }
+        size++;
+    }
+
+    // Must match WalletProtobufSerializer.connectTransactionOutputs().
+    private static Pool toPool(int pool) throws InvalidProtocolBufferException {
+        Protos.Transaction.Pool protoPool = Protos.Transaction.Pool.forNumber(pool);
+        if (protoPool == null)
+            throw new InvalidProtocolBufferException("Unknown transaction pool: " + pool);
+        switch (protoPool) {
+            case DEAD:
+                return Pool.DEAD;
+            case SPENT:
+                return Pool.SPENT;
+            case UNSPENT:
+                return Pool.UNSPENT;
+            default:
+                return Pool.PENDING;
+        }
+    }
+
+    private void buildTable() throws InvalidProtocolBufferException {
+        table = new int[tableSize(size)];
+        int mask = table.length - 1;
+        byte[] hash = new byte[32];
+        for (int entry = 0; entry < size; entry++) {
+            slice(hashOffsets[entry], 32).get(hash);
+            if (find(hash) >= 0)
+                throw new InvalidProtocolBufferException("Wallet contained duplicate transaction " + hashOf(entry));
+            int slot = mix(prefixes[entry]) & mask;
+            while (table[slot] != 0)
+                slot = (slot + 1) & mask;
+            table[slot] = entry + 1;
+        }
+    }
+
+    private void buildOutPointTable() {
+        long start = System.nanoTime();
+        long[] keys = new long[Math.max(16, unloadedCount(null) * 2)];
+        int[] entries = new int[keys.length];
+        int count = 0;
+        try {
+            for (int entry = 0; entry < size; entry++) {
+                if (states[entry] != UNLOADED)
+                    continue;
+                int end = offsets[entry] + lengths[entry];
+                position = offsets[entry];
+                while (position < end) {
+                    int tag = (int) readVarint();
+                    if (WireFormat.getTagFieldNumber(tag) != TRANSACTION_INPUT) {
+                        skipField(tag);
+                        continue;
+                    }
+                    int inputLength = readLength();
+                    int inputEnd = position + inputLength;
+                    long hashPrefix = 0, index = 0;
+                    while (position < inputEnd) {
+                        int inputTag = (int) readVarint();
+                        int field = WireFormat.getTagFieldNumber(inputTag);
+                        if (field == INPUT_OUT_POINT_HASH) {
+                            int length = readLength();
+                            if (length >= 8)
+                                hashPrefix = buffer.getLong(position);
+                            position += length;
+                        } else if (field == INPUT_OUT_POINT_INDEX) {
+                            index = readVarint() & 0xffffffffL;
+                        } else {
+                            skipField(inputTag);
+                        }
+                    }
+                    if (count == keys.length) {
+                        keys = Arrays.copyOf(keys, count * 2);
+                        entries = Arrays.copyOf(entries, count * 2);
+                    }
+                    keys[count] = outPointKey(hashPrefix, index);
+                    entries[count] = entry;
+                    count++;
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read wallet file", e);
+        }
+        outPointKeys = new long[tableSize(count)];
+        outPointEntries = new int[outPointKeys.length];
+        int mask = outPointKeys.length - 1;
+        for (int i = 0; i < count; i++) {
+            int slot = mix(keys[i]) & mask;
+            while (outPointEntries[slot] != 0)
+                slot = (slot + 1) & mask;
+            outPointKeys[slot] = keys[i];
+            outPointEntries[slot] = entries[i] + 1;
+        }
+        log.info("Indexed {} outpoints spent by unloaded transactions in {} ms", count,
+                (System.nanoTime() - start) / 1000000);
+    }
+
+    private long readVarint() throws InvalidProtocolBufferException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position >= buffer.limit())
+                throw new InvalidProtocolBufferException(TRUNCATED);
+            byte b = buffer.get(position++);
+            result |= (long) (b & 0x7f) << shift;
+            if (b >= 0)
+                return result;
+        }
+        throw new InvalidProtocolBufferException("Malformed varint in wallet file");
+    }
+
+    private int readLength() throws InvalidProtocolBufferException {
+        long length = readVarint();
+        if (length < 0 || length > buffer.limit() - position)
+            throw new InvalidProtocolBufferException(TRUNCATED);
+        return (int) length;
+    }
+
+    private void skipField(int tag) throws InvalidProtocolBufferException {
+        switch (WireFormat.getTagWireType(tag)) {
+            case WireFormat.WIRETYPE_VARINT:
+                readVarint();
+                break;
+            case WireFormat.WIRETYPE_FIXED64:
+                position += 8;
+                break;
+            case WireFormat.WIRETYPE_LENGTH_DELIMITED:
+                int length = readLength();
+                position += length;
+                break;
+            case WireFormat.WIRETYPE_FIXED32:
+                position += 4;
+                break;
+            default:
+                throw new InvalidProtocolBufferException("Invalid wire type in wallet file");
+        }
+        if (position > buffer.limit())
+            throw new InvalidProtocolBufferException(TRUNCATED);
+    }
+}
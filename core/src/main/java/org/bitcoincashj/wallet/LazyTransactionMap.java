@@ -0,0 +1,147 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.wallet;
+
+import org.bitcoincashj.core.Sha256Hash;
+import org.bitcoincashj.core.Transaction;
+import org.bitcoincashj.core.TransactionOutPoint;
+import org.bitcoincashj.wallet.WalletTransaction.Pool;
+
+import javax.annotation.Nullable;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * A pool of a wallet, which can be loaded lazily, see {@link LazyTransactionIndex}. Until an index is installed it is an
+ * ordinary map. After that it behaves like a map of all transactions in the pool, reading the transactions that are
+ * still in the wallet file when they are looked up, removed or replaced. Iterating it reads all of them, so the wallet
+ * uses {@link #loadedValues()} where the transactions in the file don't matter.
+ */
+class LazyTransactionMap extends AbstractMap<Sha256Hash, Transaction> {
+    private final Map<Sha256Hash, Transaction> loaded = new HashMap<>();
+    // Null for the map of all transactions.
+    @Nullable
+    private final Pool pool;
+    // Null unless the wallet was loaded lazily.
+    @Nullable
+    private LazyTransactionIndex index;
+
+    LazyTransactionMap(@Nullable Pool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Makes this still empty map read the transactions of its pool from the given index as needed.
+     */
+    void installIndex(LazyTransactionIndex index) {
+        checkState(loaded.isEmpty() && this.index == null, "Pool already has transactions");
+        this.index = checkNotNull(index);
+    }
+
+    private boolean isUnloaded(Object key) {
+        return index != null && key instanceof Sha256Hash && index.isUnloaded((Sha256Hash) key, pool);
+    }
+
+    private void loadAll() {
+        if (index != null)
+            index.loadAll(pool);
+    }
+
+    @Override
+    public Transaction get(Object key) {
+        Transaction tx = loaded.get(key);
+        if (tx == null && isUnloaded(key)) {
+            index.load((Sha256Hash) key);
+            tx = loaded.get(key);
+        }
+        return tx;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return loaded.containsKey(key) || isUnloaded(key);
+    }
+
+    @Override
+    public Transaction put(Sha256Hash key, Transaction value) {
+        if (isUnloaded(key))
+            index.load(key);
+        return loaded.put(key, value);
+    }
+
+    @Override
+    public Transaction remove(Object key) {
+        if (isUnloaded(key))
+            index.load((Sha256Hash) key);
+        return loaded.remove(key);
+    }
+
+    @Override
+    public int size() {
+        return loaded.size() + (index != null ? index.unloadedCount(pool) : 0);
+    }
+
+    @Override
+    public void clear() {
+        loaded.clear();
+        if (index != null)
+            index.drop(pool);
+    }
+
+    @Override
+    public Set<Sha256Hash> keySet() {
+        loadAll();
+        return loaded.keySet();
+    }
+
+    @Override
+    public Collection<Transaction> values() {
+        loadAll();
+        return loaded.values();
+    }
+
+    @Override
+    public Set<Entry<Sha256Hash, Transaction>> entrySet() {
+        loadAll();
+        return loaded.entrySet();
+    }
+
+    /** Returns the given transaction if it was loaded already, without reading it from the wallet file. */
+    @Nullable
+    Transaction getLoaded(Sha256Hash hash) {
+        return loaded.get(hash);
+    }
+
+    /** Returns the transactions that were loaded already. */
+    Collection<Transaction> loadedValues() {
+        return loaded.values();
+    }
+
+    /**
+     * Loads the transactions in this pool that spend any of the given outpoints, and returns all loaded transactions
+     * of the pool, which then include all spenders of the outpoints.
+     */
+    Collection<Transaction> loadSpendersOf(Set<TransactionOutPoint> outPoints) {
+        if (index != null)
+            index.loadSpendersOf(outPoints, pool);
+        return loaded.values();
+    }
+}
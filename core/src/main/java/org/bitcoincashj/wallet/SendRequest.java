@@ -420,7 +420,7 @@ public class SendRequest {
         String base64Payload = Base64.toBase64String(json.getBytes());
 
         txIn.verify(output);
-        output.setFrozen(true);
+        wallet.setOutputFrozen(output, true);
         wallet.saveNow();
         return new MutablePair<>(pledgeInputReq.tx, base64Payload);
     }
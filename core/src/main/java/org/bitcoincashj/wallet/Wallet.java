@@ -52,11 +52,14 @@ import javax.annotation.Nullable;
 import java.io.*;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.*;
@@ -130,16 +133,41 @@ public class Wallet extends BaseTaggableObject
 
     private final Map<Sha256Hash, Transaction> pending;
     private final Map<Sha256Hash, Transaction> unspent;
-    private final Map<Sha256Hash, Transaction> spent;
-    private final Map<Sha256Hash, Transaction> dead;
+    // Spent, dead and all transactions read from the wallet file as needed if it was loaded lazily, see
+    // installLazyTransactions().
+    private final LazyTransactionMap spent;
+    private final LazyTransactionMap dead;
 
     // All transactions together.
     protected final Map<Sha256Hash, Transaction> transactions;
 
+    // The transactions still in the wallet file, if the wallet was loaded lazily.
+    @Nullable
+    private LazyTransactionIndex lazyTransactions;
+
     // All the TransactionOutput objects that we could spend (ignoring whether we have the private key or not).
-    // Used to speed up various calculations.
+    // Used to speed up various calculations. Subclasses may read it, but must only change it through addUnspent(),
+    // removeUnspent() and clearUnspents(), which keep the index below in step. Changing the set directly leaves the
+    // cached balances and the coin selection candidates stale.
     protected final HashSet<TransactionOutput> myUnspents = new HashSet<>();
 
+    // An index over myUnspents: the outputs we can sign for, the frozen ones, and the value of those that count towards
+    // the ESTIMATED balances, so that the balances aren't summed up and keys aren't looked up on every query. Whether
+    // we can sign for an output depends on our keys, so the index is rebuilt when the key chains tell us about new
+    // keys, when a key was removed, and, for keys imported without an event, when their number changes.
+    @GuardedBy("lock") private final HashSet<TransactionOutput> mySignableUnspents = new HashSet<>();
+    @GuardedBy("lock") private final HashSet<TransactionOutput> myFrozenUnspents = new HashSet<>();
+    @GuardedBy("lock") private long unspentValue, signableUnspentValue;
+    @GuardedBy("lock") private int unspentIndexKeys = -1;
+    private volatile boolean unspentIndexStale;
+
+    // The AVAILABLE balances of the built-in coin selectors also depend on the confidence of transactions and the height
+    // of the chain, so they are remembered until anything changes that could affect them, as counted by balanceVersion.
+    private final AtomicLong balanceVersion = new AtomicLong();
+    @GuardedBy("lock") private final EnumMap<BalanceType, Coin> cachedBalances = new EnumMap<>(BalanceType.class);
+    @GuardedBy("lock") private long cachedBalancesVersion = -1;
+    @GuardedBy("lock") @Nullable private CoinSelector cachedBalancesSelector;
+
     // Transactions that were dropped by the risk analysis system. These are not in any pools and not serialized
     // to disk. We have to keep them around because if we ignore a tx because we think it will never confirm, but
     // then it actually does confirm and does so within the same network session, remote peers will not resend us
@@ -450,15 +478,21 @@ public class Wallet extends BaseTaggableObject
         this.keyChainGroup = checkNotNull(keyChainGroup);
         watchedScripts = new HashSet<>();
         unspent = new HashMap<>();
-        spent = new HashMap<>();
+        spent = new LazyTransactionMap(Pool.SPENT);
         pending = new HashMap<>();
-        dead = new HashMap<>();
-        transactions = new HashMap<>();
+        dead = new LazyTransactionMap(Pool.DEAD);
+        transactions = new LazyTransactionMap(null);
         extensions = new HashMap<>();
         // Use a linked hash map to ensure ordering of event listeners is correct.
         confidenceChanged = new LinkedHashMap<>();
         signers = new ArrayList<>();
         addTransactionSigner(new LocalSchnorrTransactionSigner());
+        keyChainGroup.addEventListener(new KeyChainEventListener() {
+            @Override
+            public void onKeysAdded(List<ECKey> keys) {
+                unspentIndexStale = true;
+            }
+        }, Threading.SAME_THREAD);
         createTransientState();
     }
 
@@ -473,6 +507,7 @@ public class Wallet extends BaseTaggableObject
                 // doesn't necessarily know at that point which wallets contain which transactions, so it's up
                 // to us to listen for that. Other types of confidence changes (type, etc) are triggered by us,
                 // so we'll queue up a wallet change event in other parts of the code.
+                balanceVersion.incrementAndGet();
                 if (reason == ChangeReason.SEEN_PEERS) {
                     lock.lock();
                     try {
@@ -522,6 +557,23 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Returns true if any key chain of this wallet is married, so its Bloom filter holds P2SH scripts rather than keys.
+     */
+    public boolean hasMarriedKeyChain() {
+        keyChainGroupLock.lock();
+        try {
+            if (!keyChainGroup.isSupportsDeterministicChains())
+                return false;
+            for (DeterministicKeyChain chain : keyChainGroup.getDeterministicKeyChains())
+                if (chain.isMarried())
+                    return true;
+            return false;
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
     /**
      * <p>Adds given transaction signer to the list of signers. It will be added to the end of the signers list, so if
      * this wallet already has some signers added, given signer will be executed after all of them.</p>
@@ -785,6 +837,7 @@ public class Wallet extends BaseTaggableObject
     public boolean removeKey(ECKey key) {
         keyChainGroupLock.lock();
         try {
+            unspentIndexStale = true;
             return keyChainGroup.removeImportedKey(key);
         } finally {
             keyChainGroupLock.unlock();
@@ -1506,11 +1559,19 @@ public class Wallet extends BaseTaggableObject
      * Saves the wallet first to the given temp file, then renames to the dest file.
      */
     public void saveToFile(File temp, File destFile) throws IOException {
+        saveToFile(temp, destFile, null);
+    }
+
+    /**
+     * Saves the wallet first to the given temp file, then renames to the dest file. If a digest is given, the bytes
+     * written are fed into it as well.
+     */
+    void saveToFile(File temp, File destFile, @Nullable MessageDigest digest) throws IOException {
         FileOutputStream stream = null;
         lock.lock();
         try {
             stream = new FileOutputStream(temp);
-            saveToFileStream(stream);
+            saveToFileStream(digest != null ? new DigestOutputStream(stream, digest) : stream);
             // Attempt to force the bits to hit the disk. In reality the OS or hard disk itself may still decide
             // to not write through to physical media for at least a few seconds, but this is the best we can do.
             stream.flush();
@@ -1728,6 +1789,8 @@ public class Wallet extends BaseTaggableObject
      * @param walletExtensions extensions possibly added to the wallet.
      */
     public static Wallet loadFromFile(File file, @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
+        if (WalletJournal.getJournalFile(file).exists())
+            return loadFromFileAndJournal(file, walletExtensions);
         try {
             try (FileInputStream stream = new FileInputStream(file)) {
                 return loadFromFileStream(stream, walletExtensions);
@@ -1737,6 +1800,37 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    private static Wallet loadFromFileAndJournal(File file, @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
+        Wallet wallet;
+        try {
+            Protos.Wallet walletProto = WalletJournal.readProto(file);
+            final String paramsID = walletProto.getNetworkIdentifier();
+            NetworkParameters params = NetworkParameters.fromID(paramsID);
+            if (params == null)
+                throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+            wallet = new WalletProtobufSerializer().readWallet(params, walletExtensions, walletProto);
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            throw new UnreadableWalletException("Could not read wallet file and journal", e);
+        }
+        if (!wallet.isConsistent()) {
+            log.error("Loaded an inconsistent wallet");
+        }
+        return wallet;
+    }
+
+    /**
+     * <p>Returns a wallet deserialized from the given file, reading only the transactions needed to know the balance
+     * and spend from it. The history, i.e. the spent and dead transactions, is read from the file as it is asked for.
+     * This makes loading a wallet with many transactions much faster, see
+     * {@link WalletProtobufSerializer#readWalletLazily(File, WalletExtension...)} for the details.</p>
+     *
+     * <p>Unlike {@link #loadFromFile(File, WalletExtension...)} this doesn't check the consistency of the wallet, as
+     * that would need all transactions.</p>
+     */
+    public static Wallet loadFromFileLazily(File file, @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
+        return new WalletProtobufSerializer().readWalletLazily(file, walletExtensions);
+    }
+
     /**
      * Returns if this wallet is structurally consistent, so e.g. no duplicate transactions. First inconsistency and a
      * dump of the wallet will be logged.
@@ -2042,8 +2136,10 @@ public class Wallet extends BaseTaggableObject
             outpoints.add(input.getOutpoint());
         }
         // Now for each pending transaction, see if it shares any outpoints with this tx.
+        Collection<Transaction> candidateTxns = candidates instanceof LazyTransactionMap ?
+                ((LazyTransactionMap) candidates).loadSpendersOf(outpoints) : candidates.values();
         Set<Transaction> doubleSpendTxns = new HashSet<>();
-        for (Transaction p : candidates.values()) {
+        for (Transaction p : candidateTxns) {
             if (p.equals(tx))
                 continue;
             for (TransactionInput input : p.getInputs()) {
@@ -2162,10 +2258,11 @@ public class Wallet extends BaseTaggableObject
             if (wasPending) {
                 // Was pending and is now confirmed. Disconnect the outputs in case we spent any already: they will be
                 // re-connected by processTxFromBestChain below.
+                loadConnectedTransactions(tx);
                 for (TransactionOutput output : tx.getOutputs()) {
                     final TransactionInput spentBy = output.getSpentBy();
                     if (spentBy != null) {
-                        checkState(myUnspents.add(output));
+                        checkState(addUnspent(output));
                         spentBy.disconnect();
                     }
                 }
@@ -2207,14 +2304,14 @@ public class Wallet extends BaseTaggableObject
                 // Consider dependency chains.
                 Set<Transaction> currentTxDependencies = new HashSet<>();
                 currentTxDependencies.add(tx);
-                addTransactionsDependingOn(currentTxDependencies, getTransactions(true));
+                addTransactionsDependingOn(currentTxDependencies, getLoadedTransactions());
                 currentTxDependencies.remove(tx);
                 List<Transaction> currentTxDependenciesSorted = sortTxnsByDependency(currentTxDependencies);
                 for (Transaction txDependency : currentTxDependenciesSorted) {
                     if (txDependency.getConfidence().getConfidenceType().equals(ConfidenceType.IN_CONFLICT)) {
                         if (isNotSpendingTxnsInConfidenceType(txDependency, ConfidenceType.IN_CONFLICT)) {
                             txDependency.getConfidence().setConfidenceType(ConfidenceType.PENDING);
-                            confidenceChanged.put(txDependency, TransactionConfidence.Listener.ChangeReason.TYPE);
+                            markConfidenceChanged(txDependency, TransactionConfidence.Listener.ChangeReason.TYPE);
                         }
                     }
                 }
@@ -2226,7 +2323,7 @@ public class Wallet extends BaseTaggableObject
         // Side chains don't affect confidence.
         if (bestChain) {
             // notifyNewBestBlock will be invoked next and will then call maybeQueueOnWalletChanged for us.
-            confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+            markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
         } else {
             maybeQueueOnWalletChanged();
         }
@@ -2312,6 +2409,12 @@ public class Wallet extends BaseTaggableObject
         return false;
     }
 
+    // Records that we changed the confidence of a transaction, which may change the AVAILABLE balances right away.
+    private void markConfidenceChanged(Transaction tx, TransactionConfidence.Listener.ChangeReason reason) {
+        confidenceChanged.put(tx, reason);
+        balanceVersion.incrementAndGet();
+    }
+
     private void informConfidenceListenersIfNotReorganizing() {
         if (insideReorg)
             return;
@@ -2343,9 +2446,11 @@ public class Wallet extends BaseTaggableObject
             setLastBlockSeenHash(newBlockHash);
             setLastBlockSeenHeight(block.getHeight());
             setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
+            balanceVersion.incrementAndGet();
             // Notify all the BUILDING transactions of the new block.
-            // This is so that they can update their depth.
-            Set<Transaction> transactions = getTransactions(true);
+            // This is so that they can update their depth. Transactions still in the wallet file get their depth
+            // when they are loaded.
+            Set<Transaction> transactions = getLoadedTransactions();
             for (Transaction tx : transactions) {
                 if (ignoreNextNewBlock.contains(tx.getTxId())) {
                     // tx was already processed in receive() due to it appearing in this block, so we don't want to
@@ -2363,7 +2468,7 @@ public class Wallet extends BaseTaggableObject
                         // wouldn't mean anything different to just remembering peers anyway.
                         if (confidence.incrementDepthInBlocks() > context.getEventHorizon())
                             confidence.clearBroadcastBy();
-                        confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+                        markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
                     }
                 }
             }
@@ -2521,7 +2626,7 @@ public class Wallet extends BaseTaggableObject
                 maybeMovePool(connected, "prevtx");
                 // Just because it's connected doesn't mean it's actually ours: sometimes we have total visibility.
                 if (output.isMineOrWatched(this)) {
-                    checkState(myUnspents.remove(output));
+                    checkState(removeUnspent(output));
                 }
             }
         }
@@ -2544,7 +2649,7 @@ public class Wallet extends BaseTaggableObject
                             pendingTx.getTxId(), pendingTx.getInputs().indexOf(input));
                     // The unspents map might not have it if we never saw this tx until it was included in the chain
                     // and thus becomes spent the moment we become aware of it.
-                    if (myUnspents.remove(input.getConnectedOutput()))
+                    if (removeUnspent(input.getConnectedOutput()))
                         log.info("Removed from UNSPENTS: {}", input.getConnectedOutput());
                 }
             }
@@ -2570,21 +2675,22 @@ public class Wallet extends BaseTaggableObject
             unspent.remove(tx.getTxId());
             spent.remove(tx.getTxId());
             addWalletTransaction(Pool.DEAD, tx);
+            loadConnectedTransactions(tx);
             for (TransactionInput deadInput : tx.getInputs()) {
                 Transaction connected = deadInput.getConnectedTransaction();
                 if (connected == null) continue;
                 if (connected.getConfidence().getConfidenceType() != ConfidenceType.DEAD && deadInput.getConnectedOutput().getSpentBy() != null && deadInput.getConnectedOutput().getSpentBy().equals(deadInput)) {
-                    checkState(myUnspents.add(deadInput.getConnectedOutput()));
+                    checkState(addUnspent(deadInput.getConnectedOutput()));
                     log.info("Added to UNSPENTS: {} in {}", deadInput.getConnectedOutput(), deadInput.getConnectedOutput().getParentTransaction().getTxId());
                 }
                 deadInput.disconnect();
                 maybeMovePool(connected, "kill");
             }
             tx.getConfidence().setOverridingTransaction(overridingTx);
-            confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+            markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
             // Now kill any transactions we have that depended on this one.
             for (TransactionOutput deadOutput : tx.getOutputs()) {
-                if (myUnspents.remove(deadOutput))
+                if (removeUnspent(deadOutput))
                     log.info("XX Removed from UNSPENTS: {}", deadOutput);
                 TransactionInput connected = deadOutput.getSpentBy();
                 if (connected == null) continue;
@@ -2600,13 +2706,13 @@ public class Wallet extends BaseTaggableObject
             TransactionInput.ConnectionResult result = input.connect(unspent, TransactionInput.ConnectMode.DISCONNECT_ON_CONFLICT);
             if (result == TransactionInput.ConnectionResult.SUCCESS) {
                 maybeMovePool(input.getConnectedTransaction(), "kill");
-                myUnspents.remove(input.getConnectedOutput());
+                removeUnspent(input.getConnectedOutput());
                 log.info("Removing from UNSPENTS: {}", input.getConnectedOutput());
             } else {
                 result = input.connect(spent, TransactionInput.ConnectMode.DISCONNECT_ON_CONFLICT);
                 if (result == TransactionInput.ConnectionResult.SUCCESS) {
                     maybeMovePool(input.getConnectedTransaction(), "kill");
-                    myUnspents.remove(input.getConnectedOutput());
+                    removeUnspent(input.getConnectedOutput());
                     log.info("Removing from UNSPENTS: {}", input.getConnectedOutput());
                 }
             }
@@ -2681,7 +2787,7 @@ public class Wallet extends BaseTaggableObject
                 // Add tx to the dead pool and schedule confidence listener notifications.
                 log.info("->dead: {}", tx.getTxId());
                 tx.getConfidence().setConfidenceType(ConfidenceType.DEAD);
-                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+                markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
                 addWalletTransaction(Pool.DEAD, tx);
             } else if (!doubleSpendPendingTxns.isEmpty() ||
                     !isNotSpendingTxnsInConfidenceType(tx, ConfidenceType.IN_CONFLICT)) {
@@ -2691,17 +2797,17 @@ public class Wallet extends BaseTaggableObject
                 log.info("->pending (IN_CONFLICT): {}", tx.getTxId());
                 addWalletTransaction(Pool.PENDING, tx);
                 doubleSpendPendingTxns.add(tx);
-                addTransactionsDependingOn(doubleSpendPendingTxns, getTransactions(true));
+                addTransactionsDependingOn(doubleSpendPendingTxns, getLoadedTransactions());
                 for (Transaction doubleSpendTx : doubleSpendPendingTxns) {
                     doubleSpendTx.getConfidence().setConfidenceType(ConfidenceType.IN_CONFLICT);
-                    confidenceChanged.put(doubleSpendTx, TransactionConfidence.Listener.ChangeReason.TYPE);
+                    markConfidenceChanged(doubleSpendTx, TransactionConfidence.Listener.ChangeReason.TYPE);
                 }
             } else {
                 // No conflict detected.
                 // Add to the pending pool and schedule confidence listener notifications.
                 log.info("->pending: {}", tx.getTxId());
                 tx.getConfidence().setConfidenceType(ConfidenceType.PENDING);
-                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+                markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
                 addWalletTransaction(Pool.PENDING, tx);
             }
             if (log.isInfoEnabled())
@@ -2993,6 +3099,7 @@ public class Wallet extends BaseTaggableObject
         // transactions due to a new block arriving. It will be called later instead.
         checkState(lock.isHeldByCurrentThread());
         checkState(onWalletChangedSuppressions >= 0);
+        balanceVersion.incrementAndGet();
         if (onWalletChangedSuppressions > 0) return;
         for (final ListenerRegistration<WalletChangeEventListener> registration : changeListeners) {
             registration.executor.execute(new Runnable() {
@@ -3095,6 +3202,79 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Like {@link #getWalletTransactions()}, but if the wallet was loaded lazily without the transactions that are
+     * still in the wallet file.
+     */
+    Iterable<WalletTransaction> getLoadedWalletTransactions() {
+        lock.lock();
+        try {
+            Set<WalletTransaction> all = new HashSet<>();
+            addWalletTransactionsToSet(all, Pool.UNSPENT, unspent.values());
+            addWalletTransactionsToSet(all, Pool.SPENT, loadedValues(spent));
+            addWalletTransactionsToSet(all, Pool.DEAD, loadedValues(dead));
+            addWalletTransactionsToSet(all, Pool.PENDING, pending.values());
+            return all;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Like getTransactions(true), but without the transactions still in the wallet file.
+    private Set<Transaction> getLoadedTransactions() {
+        checkState(lock.isHeldByCurrentThread());
+        Set<Transaction> all = new HashSet<>();
+        all.addAll(unspent.values());
+        all.addAll(loadedValues(spent));
+        all.addAll(pending.values());
+        all.addAll(loadedValues(dead));
+        return all;
+    }
+
+    private static Collection<Transaction> loadedValues(Map<Sha256Hash, Transaction> pool) {
+        return pool instanceof LazyTransactionMap ? ((LazyTransactionMap) pool).loadedValues() : pool.values();
+    }
+
+    /**
+     * Makes the spent, dead and all transactions maps of this still empty wallet read the transactions from the given
+     * index as needed, and returns the map of all transactions. Used by
+     * {@link WalletProtobufSerializer#readWalletLazily(File, WalletExtension...)}.
+     */
+    LazyTransactionMap installLazyTransactions(LazyTransactionIndex index) {
+        lock.lock();
+        try {
+            checkState(transactions.isEmpty(), "Wallet already has transactions");
+            LazyTransactionMap all = (LazyTransactionMap) transactions;
+            all.installIndex(index);
+            spent.installIndex(index);
+            dead.installIndex(index);
+            lazyTransactions = index;
+            return all;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the transactions still in the wallet file, if the wallet was loaded lazily. */
+    @Nullable
+    LazyTransactionIndex getLazyTransactionIndex() {
+        return lazyTransactions;
+    }
+
+    /**
+     * Loads the transactions the given one spends from and those spending it, if they are still in the wallet file, so
+     * that its inputs and outputs are connected before they are disconnected.
+     */
+    private void loadConnectedTransactions(Transaction tx) {
+        if (lazyTransactions == null)
+            return;
+        for (TransactionInput input : tx.getInputs())
+            if (input.getConnectedOutput() == null)
+                transactions.get(input.getOutpoint().getHash());
+        for (TransactionOutput output : tx.getOutputs())
+            lazyTransactions.loadSpenderOf(output);
+    }
+
     private static void addWalletTransactionsToSet(Set<WalletTransaction> txns,
                                                    Pool poolType, Collection<Transaction> pool) {
         for (Transaction tx : pool) {
@@ -3141,7 +3321,7 @@ public class Wallet extends BaseTaggableObject
         if (pool == Pool.UNSPENT || pool == Pool.PENDING) {
             for (TransactionOutput output : tx.getOutputs()) {
                 if (output.isAvailableForSpending() && output.isMineOrWatched(this))
-                    myUnspents.add(output);
+                    addUnspent(output);
             }
         }
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
@@ -3264,7 +3444,7 @@ public class Wallet extends BaseTaggableObject
         pending.clear();
         dead.clear();
         transactions.clear();
-        myUnspents.clear();
+        clearUnspents();
     }
 
     /**
@@ -3312,15 +3492,16 @@ public class Wallet extends BaseTaggableObject
                     log.debug("Found risky transaction {} in wallet during cleanup.", tx.getTxId());
                     if (!tx.isAnyOutputSpent()) {
                         // Sync myUnspents with the change.
+                        loadConnectedTransactions(tx);
                         for (TransactionInput input : tx.getInputs()) {
                             TransactionOutput output = input.getConnectedOutput();
                             if (output == null) continue;
                             if (output.isMineOrWatched(this))
-                                checkState(myUnspents.add(output));
+                                checkState(addUnspent(output));
                             input.disconnect();
                         }
                         for (TransactionOutput output : tx.getOutputs())
-                            myUnspents.remove(output);
+                            removeUnspent(output);
 
                         i.remove();
                         transactions.remove(tx.getTxId());
@@ -3419,6 +3600,92 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Freezes or unfreezes an output of this wallet, so that it is not or again selected for spending and counted in
+     * the balances. Use this rather than {@link TransactionOutput#setFrozen(boolean)} for outputs that are already in
+     * the wallet, so that the balances follow.
+     */
+    public void setOutputFrozen(TransactionOutput output, boolean frozen) {
+        lock.lock();
+        try {
+            boolean unspent = removeUnspent(output);
+            output.setFrozen(frozen);
+            if (unspent)
+                addUnspent(output);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Adds the output to {@link #myUnspents} and its index. The wallet lock must be held. */
+    protected boolean addUnspent(TransactionOutput output) {
+        checkState(lock.isHeldByCurrentThread());
+        if (!myUnspents.add(output))
+            return false;
+        indexUnspent(output);
+        balanceVersion.incrementAndGet();
+        return true;
+    }
+
+    /** Removes the output from {@link #myUnspents} and its index. The wallet lock must be held. */
+    protected boolean removeUnspent(@Nullable TransactionOutput output) {
+        checkState(lock.isHeldByCurrentThread());
+        if (!myUnspents.remove(output))
+            return false;
+        boolean frozen = myFrozenUnspents.remove(output);
+        boolean signable = mySignableUnspents.remove(output);
+        if (!frozen && output.getValue().value != 546L) {
+            long value = output.getValue().value;
+            unspentValue -= value;
+            if (signable)
+                signableUnspentValue -= value;
+        }
+        balanceVersion.incrementAndGet();
+        return true;
+    }
+
+    /** Empties {@link #myUnspents} and its index. The wallet lock must be held. */
+    protected void clearUnspents() {
+        checkState(lock.isHeldByCurrentThread());
+        myUnspents.clear();
+        mySignableUnspents.clear();
+        myFrozenUnspents.clear();
+        unspentValue = signableUnspentValue = 0;
+        balanceVersion.incrementAndGet();
+    }
+
+    private void indexUnspent(TransactionOutput output) {
+        // Until the index is first needed there is nothing to keep in step.
+        if (unspentIndexKeys < 0)
+            return;
+        boolean signable = canSignFor(output.getScriptPubKey());
+        if (signable)
+            mySignableUnspents.add(output);
+        if (output.isFrozen()) {
+            myFrozenUnspents.add(output);
+        } else if (output.getValue().value != 546L) {
+            long value = output.getValue().value;
+            unspentValue += value;
+            if (signable)
+                signableUnspentValue += value;
+        }
+    }
+
+    private void maybeRebuildUnspentIndex() {
+        checkState(lock.isHeldByCurrentThread());
+        int keys = getKeyChainGroupSize();
+        if (keys == unspentIndexKeys && !unspentIndexStale)
+            return;
+        unspentIndexStale = false;
+        unspentIndexKeys = keys;
+        mySignableUnspents.clear();
+        myFrozenUnspents.clear();
+        unspentValue = signableUnspentValue = 0;
+        for (TransactionOutput output : myUnspents)
+            indexUnspent(output);
+        balanceVersion.incrementAndGet();
+    }
+
     @Override
     public String toString() {
         return toString(false, false, null, true, true, null);
@@ -3765,28 +4032,62 @@ public class Wallet extends BaseTaggableObject
     }
 
     /**
-     * Returns the balance of this wallet as calculated by the provided balanceType.
+     * Returns the balance of this wallet as calculated by the provided balanceType. The ESTIMATED balances are kept up
+     * to date as transactions come and go. The AVAILABLE ones are asked of the coin selector of the wallet. For the
+     * built-in {@link DefaultCoinSelector} and {@link AllowUnconfirmedCoinSelector}, whose choice only depends on the
+     * candidates, they are remembered until anything in the wallet changes; any other selector is asked every time.
      */
     public Coin getBalance(BalanceType balanceType) {
         lock.lock();
         try {
-            if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
-                List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
-                CoinSelection selection = coinSelector.select(NetworkParameters.MAX_MONEY, candidates);
-                return selection.valueGathered;
-            } else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
-                List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
-                Coin value = Coin.ZERO;
-                for (TransactionOutput out : all) value = value.add(out.getValue());
-                return value;
-            } else {
-                throw new AssertionError("Unknown balance type");  // Unreachable.
+            if (vUTXOProvider != null)
+                return calculateBalance(balanceType);
+            maybeRebuildUnspentIndex();
+            if (balanceType == BalanceType.ESTIMATED)
+                return Coin.valueOf(unspentValue);
+            if (balanceType == BalanceType.ESTIMATED_SPENDABLE)
+                return Coin.valueOf(signableUnspentValue);
+            if (!isStatelessSelector(coinSelector))
+                return calculateBalance(balanceType);
+            long version = balanceVersion.get();
+            if (version != cachedBalancesVersion || coinSelector != cachedBalancesSelector) {
+                cachedBalances.clear();
+                cachedBalancesVersion = version;
+                cachedBalancesSelector = coinSelector;
+            }
+            Coin balance = cachedBalances.get(balanceType);
+            if (balance == null) {
+                balance = calculateBalance(balanceType);
+                cachedBalances.put(balanceType, balance);
             }
+            return balance;
         } finally {
             lock.unlock();
         }
     }
 
+    // Subclasses may keep state that changes their choice without the wallet knowing, so only the exact classes count.
+    private static boolean isStatelessSelector(CoinSelector selector) {
+        return selector.getClass() == DefaultCoinSelector.class
+                || selector.getClass() == AllowUnconfirmedCoinSelector.class;
+    }
+
+    private Coin calculateBalance(BalanceType balanceType) {
+        checkState(lock.isHeldByCurrentThread());
+        if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
+            List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
+            CoinSelection selection = coinSelector.select(NetworkParameters.MAX_MONEY, candidates);
+            return selection.valueGathered;
+        } else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
+            List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
+            Coin value = Coin.ZERO;
+            for (TransactionOutput out : all) value = value.add(out.getValue());
+            return value;
+        } else {
+            throw new AssertionError("Unknown balance type");  // Unreachable.
+        }
+    }
+
     /**
      * Returns the balance that would be considered spendable by the given coin selector, including watched outputs
      * (i.e. balance includes outputs we don't have the private keys for). Just asks it to select as many coins as
@@ -4535,9 +4836,10 @@ public class Wallet extends BaseTaggableObject
         try {
             List<TransactionOutput> candidates;
             if (vUTXOProvider == null) {
-                candidates = new ArrayList<TransactionOutput>(myUnspents.size());
-                for (TransactionOutput output : myUnspents) {
-                    if (excludeUnsignable && !canSignFor(output.getScriptPubKey())) continue;
+                maybeRebuildUnspentIndex();
+                Set<TransactionOutput> outputs = excludeUnsignable ? mySignableUnspents : myUnspents;
+                candidates = new ArrayList<TransactionOutput>(outputs.size());
+                for (TransactionOutput output : outputs) {
                     Transaction transaction = checkNotNull(output.getParentTransaction());
                     if (excludeImmatureCoinbases && !transaction.isMature())
                         continue;
@@ -4566,9 +4868,10 @@ public class Wallet extends BaseTaggableObject
         try {
             List<TransactionOutput> candidates;
             if (vUTXOProvider == null) {
-                candidates = new ArrayList<TransactionOutput>(myUnspents.size());
-                for (TransactionOutput output : myUnspents) {
-                    if (excludeUnsignable && !canSignFor(output.getScriptPubKey())) continue;
+                maybeRebuildUnspentIndex();
+                Set<TransactionOutput> outputs = excludeUnsignable ? mySignableUnspents : myUnspents;
+                candidates = new ArrayList<TransactionOutput>(outputs.size());
+                for (TransactionOutput output : outputs) {
                     Transaction transaction = checkNotNull(output.getParentTransaction());
                     if (excludeImmatureCoinbases && !transaction.isMature())
                         continue;
@@ -4730,6 +5033,7 @@ public class Wallet extends BaseTaggableObject
         try {
             checkArgument(provider == null || provider.getParams().equals(params));
             this.vUTXOProvider = provider;
+            balanceVersion.incrementAndGet();
         } finally {
             lock.unlock();
         }
@@ -4893,7 +5197,7 @@ public class Wallet extends BaseTaggableObject
                             TransactionInput input = output.getSpentBy();
                             if (input != null) {
                                 if (output.isMineOrWatched(this))
-                                    checkState(myUnspents.add(output));
+                                    checkState(addUnspent(output));
                                 input.disconnect();
                             }
                         }
@@ -4914,7 +5218,7 @@ public class Wallet extends BaseTaggableObject
                 log.info("  ->pending {}", tx.getTxId());
 
                 tx.getConfidence().setConfidenceType(ConfidenceType.PENDING);  // Wipe height/depth/work data.
-                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+                markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
                 addWalletTransaction(Pool.PENDING, tx);
                 updateForSpends(tx, false);
             }
@@ -4954,6 +5258,7 @@ public class Wallet extends BaseTaggableObject
                 notifyNewBestBlock(block);
             }
             isConsistentOrThrow();
+            balanceVersion.incrementAndGet();
             final Coin balance = getBalance();
             log.info("post-reorg balance is {}", balance.toFriendlyString());
             // Inform event listeners that a re-org took place.
@@ -4976,7 +5281,7 @@ public class Wallet extends BaseTaggableObject
         for (Transaction tx : transactions) {
             if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
                 tx.getConfidence().setDepthInBlocks(tx.getConfidence().getDepthInBlocks() - depthToSubtract);
-                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+                markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
             }
         }
     }
@@ -5006,8 +5311,10 @@ public class Wallet extends BaseTaggableObject
         bloomOutPoints.clear();
         Set<Transaction> all = new HashSet<>();
         all.addAll(unspent.values());
-        all.addAll(spent.values());
+        all.addAll(loadedValues(spent));
         all.addAll(pending.values());
+        if (lazyTransactions != null)
+            bloomOutPoints.addAll(lazyTransactions.unloadedBloomOutPoints());
         for (Transaction tx : all) {
             for (TransactionOutput out : tx.getOutputs()) {
                 try {
@@ -5099,7 +5406,7 @@ public class Wallet extends BaseTaggableObject
     }
 
     // Returns true if the output is one that won't be selected by a data element matching in the scriptSig.
-    private boolean isTxOutputBloomFilterable(TransactionOutput out) {
+    boolean isTxOutputBloomFilterable(TransactionOutput out) {
         Script script = out.getScriptPubKey();
         boolean isScriptTypeSupported = ScriptPattern.isP2PK(script) || ScriptPattern.isP2SH(script);
         return (isScriptTypeSupported && out.isMine(this)) || watchedScripts.contains(script);
@@ -5272,8 +5579,9 @@ public class Wallet extends BaseTaggableObject
 
             // Of the coins we could spend, pick some that we actually will spend.
             CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
-            // selector is allowed to modify candidates list.
-            CoinSelection selection = selector.select(valueNeeded, new LinkedList<TransactionOutput>(candidates));
+            // selector is allowed to modify candidates list, so it gets a copy. Selectors may keep what they derived
+            // from the candidates between the rounds of this loop, as long as the copies hold the same outputs.
+            CoinSelection selection = selector.select(valueNeeded, new ArrayList<>(candidates));
             // Can we afford this?
             if (selection.valueGathered.compareTo(valueNeeded) < 0) {
                 valueMissing = valueNeeded.subtract(selection.valueGathered);
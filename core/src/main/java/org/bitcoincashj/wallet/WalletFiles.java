@@ -52,6 +52,7 @@ public class WalletFiles {
     private final Callable<Void> saver;
 
     private volatile Listener vListener;
+    private volatile WalletJournal vJournal;
 
     /**
      * Implementors can do pre/post treatment of the wallet file. Useful for adjusting permissions and other things.
@@ -120,6 +121,23 @@ public class WalletFiles {
         this.vListener = checkNotNull(listener);
     }
 
+    /**
+     * If enabled, saves only append what changed to a journal next to the wallet file, and the wallet file itself is
+     * rewritten once in a while. This makes saving large wallets much cheaper. See {@link WalletJournal} for details.
+     * Off by default. The journal is read by {@link Wallet#loadFromFile(File, WalletExtension...)}, but not by code
+     * that reads wallet files directly with {@link WalletProtobufSerializer}.
+     */
+    public void setJournaling(boolean journaling) {
+        if (journaling == (vJournal != null))
+            return;
+        vJournal = journaling ? new WalletJournal(wallet, file) : null;
+    }
+
+    /** Returns whether saves are journaled, see {@link #setJournaling(boolean)}. */
+    public boolean isJournaling() {
+        return vJournal != null;
+    }
+
     /**
      * Actually write the wallet file to disk, using an atomic rename when possible. Runs on the current thread.
      */
@@ -137,12 +155,23 @@ public class WalletFiles {
 
     private void saveNowInternal() throws IOException {
         final Stopwatch watch = Stopwatch.createStarted();
+        final WalletJournal journal = vJournal;
+        if (journal != null) {
+            journal.save(vListener);
+            watch.stop();
+            log.info("Save completed in {}", watch);
+            return;
+        }
         File directory = file.getAbsoluteFile().getParentFile();
         File temp = File.createTempFile("wallet", null, directory);
         final Listener listener = vListener;
         if (listener != null)
             listener.onBeforeAutoSave(temp);
         wallet.saveToFile(temp, file);
+        // A journal left over from when journaling was enabled doesn't belong to the new file anymore.
+        File journalFile = WalletJournal.getJournalFile(file);
+        if (journalFile.exists() && !journalFile.delete())
+            log.warn("Failed to delete stale wallet journal {}", journalFile);
         if (listener != null)
             listener.onAfterAutoSave(file);
         watch.stop();
@@ -0,0 +1,426 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.wallet;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.bitcoincashj.core.PeerAddress;
+import org.bitcoincashj.core.Sha256Hash;
+import org.bitcoincashj.core.Transaction;
+import org.bitcoincashj.core.TransactionConfidence;
+import org.bitcoincashj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoincashj.core.TransactionInput;
+import org.bitcoincashj.core.TransactionOutput;
+import org.bitcoincashj.core.Utils;
+import org.bitcoincashj.utils.ExchangeRate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Persists a wallet as a protobuf snapshot plus an append-only journal of what changed since, so that saving a wallet
+ * with many transactions doesn't mean serializing and rewriting all of them each time. Enable it with
+ * {@link WalletFiles#setJournaling(boolean)}.</p>
+ *
+ * <p>The journal lives next to the wallet file, see {@link #getJournalFile(File)}. It starts with the SHA-256 of the
+ * snapshot it applies to, followed by length delimited {@link Protos.Wallet} records. Each record carries the current
+ * values of all fields that aren't lists, the transactions that were added or changed, and the keys, watched scripts,
+ * extensions and tags if they changed. A record replaces the transactions with the same hash and the lists it
+ * contains. Depth in blocks isn't journaled as it grows with every block: it is derived from the last seen block
+ * height when the journal is read.</p>
+ *
+ * <p>Whenever a change can't be expressed as a record, such as a removed transaction, or the journal has grown to
+ * half the size of the snapshot, the snapshot is rewritten and the journal is started over. The first save of a
+ * journal always writes a snapshot. A journal whose hash doesn't match the snapshot, e.g. because the wallet was saved
+ * with {@link Wallet#saveToFile(File)} in the meantime, is ignored when reading.</p>
+ *
+ * <p>{@link Wallet#loadFromFile(File, WalletExtension...)} reads the journal automatically. If you parse wallet files
+ * yourself, use {@link #readProto(File)}.</p>
+ */
+public class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final int HEADER_LENGTH = 32;
+    // The journal is compacted into a new snapshot once it reaches this share of the snapshot size.
+    private static final int COMPACTION_PERCENT = 50;
+
+    private final Wallet wallet;
+    private final File file;
+    private final File journalFile;
+
+    // All of the following is guarded by the wallet lock.
+    private final Map<Sha256Hash, Long> written = new HashMap<>();
+    private boolean hasSnapshot;
+    private long snapshotLength;
+    private long snapshotLastModified;
+    private long journalLength;
+    private Protos.Wallet lastHeader;
+    private List<Protos.Key> lastKeys;
+    private List<Protos.Script> lastWatchedScripts;
+    private List<Protos.Extension> lastExtensions;
+    private List<Protos.Tag> lastTags;
+
+    WalletJournal(Wallet wallet, File file) {
+        this.wallet = checkNotNull(wallet);
+        this.file = checkNotNull(file);
+        this.journalFile = getJournalFile(file);
+    }
+
+    /** Returns the journal belonging to the given wallet file. */
+    public static File getJournalFile(File walletFile) {
+        return new File(walletFile.getPath() + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * Saves the changes since the last save to the journal, or writes a new snapshot if that is due. The listener, if
+     * given, is informed like for a normal save, except that {@link WalletFiles.Listener#onBeforeAutoSave(File)} is
+     * only called when a snapshot is written.
+     */
+    void save(@Nullable WalletFiles.Listener listener) throws IOException {
+        wallet.lock.lock();
+        try {
+            if (!appendRecord())
+                compact(listener);
+            if (listener != null)
+                listener.onAfterAutoSave(file);
+        } catch (IOException | RuntimeException e) {
+            // We don't know what made it to disk, so start over with a snapshot next time.
+            hasSnapshot = false;
+            throw e;
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    /** Appends a record of the changes to the journal. Returns false if a snapshot has to be written instead. */
+    private boolean appendRecord() throws IOException {
+        if (!hasSnapshot || file.length() != snapshotLength || file.lastModified() != snapshotLastModified
+                || journalFile.length() != journalLength)
+            return false;
+
+        Protos.Wallet.Builder record = Protos.Wallet.newBuilder();
+        WalletProtobufSerializer.populateHeader(wallet, record);
+        Protos.Wallet header = record.build();
+
+        int height = lastSeenHeight(wallet);
+        Map<Sha256Hash, Long> changed = new HashMap<>();
+        int stillPresent = 0;
+        for (WalletTransaction wtx : wallet.getLoadedWalletTransactions()) {
+            Sha256Hash hash = wtx.getTransaction().getTxId();
+            long fingerprint = fingerprint(wtx, height);
+            Long previous = written.get(hash);
+            if (previous != null)
+                stillPresent++;
+            if (previous != null && previous == fingerprint)
+                continue;
+            changed.put(hash, fingerprint);
+            record.addTransaction(WalletProtobufSerializer.makeTxProto(wtx, wallet.getLazyTransactionIndex()));
+        }
+        if (stillPresent < written.size())
+            return false; // Transactions were removed.
+
+        List<Protos.Key> keys = wallet.serializeKeyChainGroupToProtobuf();
+        List<Protos.Script> watchedScripts = WalletProtobufSerializer.makeWatchedScriptProtos(wallet);
+        List<Protos.Extension> extensions = WalletProtobufSerializer.makeExtensionProtos(wallet);
+        List<Protos.Tag> tags = WalletProtobufSerializer.makeTagProtos(wallet);
+        if (!keys.equals(lastKeys)) {
+            if (keys.isEmpty())
+                return false;
+            record.addAllKey(keys);
+        }
+        if (!watchedScripts.equals(lastWatchedScripts)) {
+            if (watchedScripts.isEmpty())
+                return false;
+            record.addAllWatchedScript(watchedScripts);
+        }
+        if (!extensions.equals(lastExtensions)) {
+            if (extensions.isEmpty())
+                return false;
+            record.addAllExtension(extensions);
+        }
+        if (!tags.equals(lastTags)) {
+            if (tags.isEmpty())
+                return false;
+            record.addAllTags(tags);
+        }
+
+        Protos.Wallet recordProto = record.build();
+        if (recordProto.equals(lastHeader))
+            return true; // Nothing changed at all.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        recordProto.writeDelimitedTo(bytes);
+        if ((journalLength + bytes.size()) * 100 > snapshotLength * COMPACTION_PERCENT)
+            return false;
+
+        try (FileOutputStream stream = new FileOutputStream(journalFile, true)) {
+            bytes.writeTo(stream);
+            stream.flush();
+            stream.getFD().sync();
+        }
+        journalLength += bytes.size();
+        written.putAll(changed);
+        lastHeader = header;
+        lastKeys = keys;
+        lastWatchedScripts = watchedScripts;
+        lastExtensions = extensions;
+        lastTags = tags;
+        log.info("Journaled {} changed transactions, journal is now {} bytes", changed.size(), journalLength);
+        return true;
+    }
+
+    /** Writes a new snapshot of the wallet and starts a new journal for it. */
+    private void compact(@Nullable WalletFiles.Listener listener) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile("wallet", null, directory);
+        if (listener != null)
+            listener.onBeforeAutoSave(temp);
+        MessageDigest digest = Sha256Hash.newDigest();
+        wallet.saveToFile(temp, file, digest);
+        snapshotLength = file.length();
+        snapshotLastModified = file.lastModified();
+
+        File tempJournal = File.createTempFile("wallet", JOURNAL_SUFFIX, directory);
+        try (FileOutputStream stream = new FileOutputStream(tempJournal)) {
+            stream.write(digest.digest());
+            stream.flush();
+            stream.getFD().sync();
+        }
+        rename(tempJournal, journalFile);
+        journalLength = HEADER_LENGTH;
+
+        int height = lastSeenHeight(wallet);
+        written.clear();
+        for (WalletTransaction wtx : wallet.getLoadedWalletTransactions())
+            written.put(wtx.getTransaction().getTxId(), fingerprint(wtx, height));
+        Protos.Wallet.Builder header = Protos.Wallet.newBuilder();
+        WalletProtobufSerializer.populateHeader(wallet, header);
+        lastHeader = header.build();
+        lastKeys = wallet.serializeKeyChainGroupToProtobuf();
+        lastWatchedScripts = WalletProtobufSerializer.makeWatchedScriptProtos(wallet);
+        lastExtensions = WalletProtobufSerializer.makeExtensionProtos(wallet);
+        lastTags = WalletProtobufSerializer.makeTagProtos(wallet);
+        hasSnapshot = true;
+        log.info("Wrote wallet snapshot of {} bytes with {} transactions", snapshotLength, written.size());
+    }
+
+    private static void rename(File temp, File destFile) throws IOException {
+        if (Utils.isWindows()) {
+            // Work around an issue on Windows whereby you can't rename over existing files.
+            File canonical = destFile.getCanonicalFile();
+            if (canonical.exists() && !canonical.delete())
+                throw new IOException("Failed to delete " + canonical + " for replacement");
+            if (!temp.renameTo(canonical))
+                throw new IOException("Failed to rename " + temp + " to " + canonical);
+        } else if (!temp.renameTo(destFile)) {
+            throw new IOException("Failed to rename " + temp + " to " + destFile);
+        }
+    }
+
+    /**
+     * Reads the given wallet file and applies its journal, if there is one and it belongs to this version of the wallet
+     * file. A record that was only partially written, because the process died whilst saving, is ignored.
+     */
+    public static Protos.Wallet readProto(File walletFile) throws IOException {
+        File journalFile = getJournalFile(walletFile);
+        if (!journalFile.exists()) {
+            try (InputStream stream = new BufferedInputStream(new FileInputStream(walletFile))) {
+                return WalletProtobufSerializer.parseToProto(stream);
+            }
+        }
+        MessageDigest digest = Sha256Hash.newDigest();
+        Protos.Wallet snapshot;
+        try (InputStream stream = new DigestInputStream(new BufferedInputStream(new FileInputStream(walletFile)), digest)) {
+            snapshot = WalletProtobufSerializer.parseToProto(stream);
+            // Make sure trailing bytes the parser didn't need end up in the hash too.
+            ByteStreams.exhaust(stream);
+        }
+        List<Protos.Wallet> records = readRecords(journalFile, digest.digest());
+        if (records == null)
+            return snapshot;
+        log.info("Applying {} records of wallet journal {}", records.size(), journalFile);
+        return apply(snapshot, records);
+    }
+
+    /**
+     * Reads the records of the given journal, or returns null if it doesn't belong to the snapshot with the given
+     * SHA-256. A record that was only partially written is ignored.
+     */
+    @Nullable
+    static List<Protos.Wallet> readRecords(File journalFile, byte[] snapshotDigest) throws IOException {
+        List<Protos.Wallet> records = new ArrayList<>();
+        try (InputStream stream = new BufferedInputStream(new FileInputStream(journalFile))) {
+            byte[] header = new byte[HEADER_LENGTH];
+            try {
+                ByteStreams.readFully(stream, header);
+            } catch (EOFException e) {
+                log.warn("Ignoring truncated wallet journal {}", journalFile);
+                return null;
+            }
+            if (!Arrays.equals(header, snapshotDigest)) {
+                log.info("Ignoring wallet journal {} that belongs to a different snapshot", journalFile);
+                return null;
+            }
+            while (true) {
+                Protos.Wallet record;
+                try {
+                    record = Protos.Wallet.parseDelimitedFrom(stream);
+                } catch (InvalidProtocolBufferException e) {
+                    log.warn("Ignoring partially written record at the end of wallet journal {}", journalFile);
+                    break;
+                }
+                if (record == null)
+                    break;
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    /** Applies journal records to a snapshot, see the class documentation. */
+    @VisibleForTesting
+    static Protos.Wallet apply(Protos.Wallet snapshot, List<Protos.Wallet> records) {
+        Map<ByteString, Protos.Transaction> transactions = new LinkedHashMap<>();
+        Map<ByteString, Integer> writtenAtHeight = new HashMap<>();
+        int snapshotHeight = lastSeenHeight(snapshot);
+        for (Protos.Transaction tx : snapshot.getTransactionList()) {
+            transactions.put(tx.getHash(), tx);
+            writtenAtHeight.put(tx.getHash(), snapshotHeight);
+        }
+        Protos.Wallet header = snapshot;
+        List<Protos.Key> keys = snapshot.getKeyList();
+        List<Protos.Script> watchedScripts = snapshot.getWatchedScriptList();
+        List<Protos.Extension> extensions = snapshot.getExtensionList();
+        List<Protos.Tag> tags = snapshot.getTagsList();
+        for (Protos.Wallet record : records) {
+            int height = lastSeenHeight(record);
+            for (Protos.Transaction tx : record.getTransactionList()) {
+                transactions.put(tx.getHash(), tx);
+                writtenAtHeight.put(tx.getHash(), height);
+            }
+            header = record;
+            if (record.getKeyCount() > 0)
+                keys = record.getKeyList();
+            if (record.getWatchedScriptCount() > 0)
+                watchedScripts = record.getWatchedScriptList();
+            if (record.getExtensionCount() > 0)
+                extensions = record.getExtensionList();
+            if (record.getTagsCount() > 0)
+                tags = record.getTagsList();
+        }
+
+        int height = lastSeenHeight(header);
+        Protos.Wallet.Builder wallet = header.toBuilder().clearTransaction().clearKey().clearWatchedScript()
+                .clearExtension().clearTags();
+        for (Protos.Transaction tx : transactions.values()) {
+            int blocksSinceWritten = height - writtenAtHeight.get(tx.getHash());
+            Protos.TransactionConfidence confidence = tx.getConfidence();
+            if (blocksSinceWritten != 0 && confidence.getType() == Protos.TransactionConfidence.Type.BUILDING
+                    && confidence.hasDepth()) {
+                tx = tx.toBuilder().setConfidence(confidence.toBuilder()
+                        .setDepth(confidence.getDepth() + blocksSinceWritten)).build();
+            }
+            wallet.addTransaction(tx);
+        }
+        return wallet.addAllKey(keys).addAllWatchedScript(watchedScripts).addAllExtension(extensions)
+                .addAllTags(tags).build();
+    }
+
+    private static int lastSeenHeight(Protos.Wallet walletProto) {
+        return walletProto.hasLastSeenBlockHeight() ? walletProto.getLastSeenBlockHeight() : -1;
+    }
+
+    // Must match what WalletProtobufSerializer.populateHeader() writes.
+    private static int lastSeenHeight(Wallet wallet) {
+        return wallet.getLastBlockSeenHash() != null ? wallet.getLastBlockSeenHeight() : -1;
+    }
+
+    /**
+     * Returns a hash of everything about a wallet transaction that can change once it is in the wallet. The depth of
+     * transactions in the chain is taken relative to the given height, so that it doesn't count as a change when both
+     * advance together.
+     */
+    private static long fingerprint(WalletTransaction wtx, int height) {
+        Transaction tx = wtx.getTransaction();
+        long h = mix(0xcbf29ce484222325L, wtx.getPool().ordinal());
+        h = mix(h, tx.getUpdateTime().getTime());
+        for (TransactionOutput output : tx.getOutputs()) {
+            TransactionInput spentBy = output.getSpentBy();
+            h = mix(h, output.isFrozen() ? 1 : 0);
+            h = mix(h, spentBy != null ? spentBy.getParentTransaction().getTxId().hashCode() : 0);
+            h = mix(h, spentBy != null ? spentBy.getIndex() : -1);
+        }
+        Map<Sha256Hash, Integer> appearsInHashes = tx.getAppearsInHashes();
+        h = mix(h, appearsInHashes != null ? appearsInHashes.size() : -1);
+        h = mix(h, appearsInHashes != null ? appearsInHashes.hashCode() : 0);
+        if (tx.hasConfidence()) {
+            TransactionConfidence confidence = tx.getConfidence();
+            synchronized (confidence) {
+                ConfidenceType type = confidence.getConfidenceType();
+                h = mix(h, type.getValue());
+                if (type == ConfidenceType.BUILDING) {
+                    h = mix(h, confidence.getAppearedAtChainHeight());
+                    h = mix(h, confidence.getDepthInBlocks() - height);
+                }
+                if (type == ConfidenceType.DEAD) {
+                    Transaction overridingTransaction = confidence.getOverridingTransaction();
+                    h = mix(h, overridingTransaction != null ? overridingTransaction.getTxId().hashCode() : 0);
+                }
+                h = mix(h, confidence.getSource().ordinal());
+                h = mix(h, confidence.numBroadcastPeers());
+            }
+            if (confidence.numBroadcastPeers() > 0) {
+                Set<PeerAddress> broadcastBy = confidence.getBroadcastBy();
+                h = mix(h, broadcastBy.hashCode());
+            }
+            Date lastBroadcastedAt = confidence.getLastBroadcastedAt();
+            h = mix(h, lastBroadcastedAt != null ? lastBroadcastedAt.getTime() : 0);
+        }
+        h = mix(h, tx.getPurpose().ordinal());
+        ExchangeRate exchangeRate = tx.getExchangeRate();
+        h = mix(h, exchangeRate != null ? exchangeRate.hashCode() : 0);
+        h = mix(h, tx.getMemo() != null ? tx.getMemo().hashCode() : 0);
+        return h;
+    }
+
+    private static long mix(long h, long value) {
+        // FNV-1a over the value as a whole, followed by a multiply-xorshift step to spread it over all bits.
+        h = (h ^ value) * 0x100000001b3L;
+        return h ^ (h >>> 29);
+    }
+}
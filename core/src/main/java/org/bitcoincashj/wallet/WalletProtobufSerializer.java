@@ -68,7 +68,7 @@ public class WalletProtobufSerializer {
      */
     public static final int CURRENT_WALLET_VERSION = Protos.Wallet.getDefaultInstance().getVersion();
     // 512 MB
-    private static final int WALLET_SIZE_LIMIT = 512 * 1024 * 1024;
+    static final int WALLET_SIZE_LIMIT = 512 * 1024 * 1024;
     // Used for de-serialization
     protected Map<ByteString, Transaction> txMap;
 
@@ -157,26 +157,32 @@ public class WalletProtobufSerializer {
      */
     public Protos.Wallet walletToProto(Wallet wallet) {
         Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
-        walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
-        if (wallet.getDescription() != null) {
-            walletBuilder.setDescription(wallet.getDescription());
-        }
+        populateHeader(wallet, walletBuilder);
 
-        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
-            Protos.Transaction txProto = makeTxProto(wtx);
+        LazyTransactionIndex lazyTransactions = wallet.getLazyTransactionIndex();
+        for (WalletTransaction wtx : wallet.getLoadedWalletTransactions()) {
+            Protos.Transaction txProto = makeTxProto(wtx, lazyTransactions);
             walletBuilder.addTransaction(txProto);
         }
+        if (lazyTransactions != null)
+            walletBuilder.addAllTransaction(lazyTransactions.unloadedProtos());
 
         walletBuilder.addAllKey(wallet.serializeKeyChainGroupToProtobuf());
+        walletBuilder.addAllWatchedScript(makeWatchedScriptProtos(wallet));
+        walletBuilder.addAllExtension(makeExtensionProtos(wallet));
+        walletBuilder.addAllTags(makeTagProtos(wallet));
 
-        for (Script script : wallet.getWatchedScripts()) {
-            Protos.Script protoScript =
-                    Protos.Script.newBuilder()
-                            .setProgram(ByteString.copyFrom(script.getProgram()))
-                            .setCreationTimestamp(script.getCreationTimeSeconds() * 1000)
-                            .build();
+        return walletBuilder.build();
+    }
 
-            walletBuilder.addWatchedScript(protoScript);
+    /**
+     * Sets the fields of the wallet proto that aren't lists: the network, description, last seen block, encryption,
+     * key rotation time and version.
+     */
+    static void populateHeader(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
+        walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
+        if (wallet.getDescription() != null) {
+            walletBuilder.setDescription(wallet.getDescription());
         }
 
         // Populate the lastSeenBlockHash field.
@@ -210,30 +216,54 @@ public class WalletProtobufSerializer {
             walletBuilder.setKeyRotationTime(timeSecs);
         }
 
-        populateExtensions(wallet, walletBuilder);
-
-        for (Map.Entry<String, ByteString> entry : wallet.getTags().entrySet()) {
-            Protos.Tag.Builder tag = Protos.Tag.newBuilder().setTag(entry.getKey()).setData(entry.getValue());
-            walletBuilder.addTags(tag);
-        }
-
         // Populate the wallet version.
         walletBuilder.setVersion(wallet.getVersion());
+    }
 
-        return walletBuilder.build();
+    static List<Protos.Script> makeWatchedScriptProtos(Wallet wallet) {
+        List<Protos.Script> protoScripts = new ArrayList<>();
+        for (Script script : wallet.getWatchedScripts()) {
+            Protos.Script protoScript =
+                    Protos.Script.newBuilder()
+                            .setProgram(ByteString.copyFrom(script.getProgram()))
+                            .setCreationTimestamp(script.getCreationTimeSeconds() * 1000)
+                            .build();
+
+            protoScripts.add(protoScript);
+        }
+        return protoScripts;
     }
 
-    private static void populateExtensions(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
+    static List<Protos.Extension> makeExtensionProtos(Wallet wallet) {
+        List<Protos.Extension> protoExtensions = new ArrayList<>();
         for (WalletExtension extension : wallet.getExtensions().values()) {
             Protos.Extension.Builder proto = Protos.Extension.newBuilder();
             proto.setId(extension.getWalletExtensionID());
             proto.setMandatory(extension.isWalletExtensionMandatory());
             proto.setData(ByteString.copyFrom(extension.serializeWalletExtension()));
-            walletBuilder.addExtension(proto);
+            protoExtensions.add(proto.build());
+        }
+        return protoExtensions;
+    }
+
+    static List<Protos.Tag> makeTagProtos(Wallet wallet) {
+        List<Protos.Tag> protoTags = new ArrayList<>();
+        for (Map.Entry<String, ByteString> entry : wallet.getTags().entrySet()) {
+            Protos.Tag tag = Protos.Tag.newBuilder().setTag(entry.getKey()).setData(entry.getValue()).build();
+            protoTags.add(tag);
         }
+        return protoTags;
     }
 
-    private static Protos.Transaction makeTxProto(WalletTransaction wtx) {
+    static Protos.Transaction makeTxProto(WalletTransaction wtx) {
+        return makeTxProto(wtx, null);
+    }
+
+    /**
+     * Converts the given wallet transaction to a proto. If the wallet was loaded lazily, outputs spent by transactions
+     * that weren't loaded yet get their spender from the given index.
+     */
+    static Protos.Transaction makeTxProto(WalletTransaction wtx, @Nullable LazyTransactionIndex lazyTransactions) {
         Transaction tx = wtx.getTransaction();
         Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
 
@@ -274,6 +304,8 @@ public class WalletProtobufSerializer {
                 Sha256Hash spendingHash = spentBy.getParentTransaction().getTxId();
                 outputBuilder.setSpentByTransactionHash(hashToByteString(spendingHash))
                         .setSpentByTransactionIndex(spentBy.getIndex());
+            } else if (lazyTransactions != null) {
+                lazyTransactions.writeUnloadedSpender(output, outputBuilder);
             }
             txBuilder.addTransactionOutput(outputBuilder);
         }
@@ -483,6 +515,46 @@ public class WalletProtobufSerializer {
      */
     public Wallet readWallet(NetworkParameters params, @Nullable WalletExtension[] extensions,
                              Protos.Wallet walletProto, boolean forceReset) throws UnreadableWalletException {
+        return readWallet(params, extensions, walletProto, forceReset, null);
+    }
+
+    /**
+     * <p>Loads a wallet from the given file without reading most of its history. The file is memory mapped and only
+     * indexed: the spent and dead transactions, which in a long lived wallet are nearly all of them, are read the first
+     * time something asks for them, e.g. {@link Wallet#getTransaction(Sha256Hash)} or iterating the spent pool. The
+     * unspent and pending transactions, and thus the balance and coin selection, are available right away. A journal
+     * next to the file, see {@link WalletJournal}, is applied.</p>
+     *
+     * <p>The file must not be modified other than by saving this wallet whilst it is in use. On Windows, where a
+     * mapped file can't be replaced, the file is read into memory instead.</p>
+     *
+     * @throws UnreadableWalletException thrown in various error conditions (see {@link #readWallet(InputStream, WalletExtension...)}).
+     */
+    public Wallet readWalletLazily(File file, @Nullable WalletExtension... extensions) throws UnreadableWalletException {
+        try {
+            LazyTransactionIndex lazyTransactions = LazyTransactionIndex.open(file);
+            Protos.Wallet walletProto = lazyTransactions.getHeader();
+            File journalFile = WalletJournal.getJournalFile(file);
+            if (journalFile.exists()) {
+                List<Protos.Wallet> records = WalletJournal.readRecords(journalFile, lazyTransactions.digest());
+                if (records != null) {
+                    log.info("Applying {} records of wallet journal {}", records.size(), journalFile);
+                    walletProto = WalletJournal.apply(walletProto, records);
+                }
+            }
+            final String paramsID = walletProto.getNetworkIdentifier();
+            NetworkParameters params = NetworkParameters.fromID(paramsID);
+            if (params == null)
+                throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+            return readWallet(params, extensions, walletProto, false, lazyTransactions);
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            throw new UnreadableWalletException("Could not read wallet file " + file, e);
+        }
+    }
+
+    private Wallet readWallet(NetworkParameters params, @Nullable WalletExtension[] extensions,
+                              Protos.Wallet walletProto, boolean forceReset,
+                              @Nullable LazyTransactionIndex lazyTransactions) throws UnreadableWalletException {
         if (walletProto.getVersion() > CURRENT_WALLET_VERSION)
             throw new UnreadableWalletException.FutureVersion();
         if (!walletProto.getNetworkIdentifier().equals(params.getId()))
@@ -523,14 +595,23 @@ public class WalletProtobufSerializer {
             wallet.setLastBlockSeenHeight(-1);
             wallet.setLastBlockSeenTimeSecs(0);
         } else {
+            List<Protos.Transaction> txProtos = walletProto.getTransactionList();
+            if (lazyTransactions != null) {
+                // Transactions in the journal replace those of the snapshot, the rest of the snapshot is only indexed.
+                txProtos = new ArrayList<>(txProtos);
+                lazyTransactions.initialize(wallet, this, txProtos);
+                txProtos.addAll(lazyTransactions.eagerProtos(
+                        walletProto.hasLastSeenBlockHeight() ? walletProto.getLastSeenBlockHeight() : -1));
+            }
+
             // Read all transactions and insert into the txMap.
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
+            for (Protos.Transaction txProto : txProtos) {
                 readTransaction(txProto, wallet.getParams());
             }
 
             // Update transaction outputs to point to inputs that spend them
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                WalletTransaction wtx = connectTransactionOutputs(params, txProto);
+            for (Protos.Transaction txProto : txProtos) {
+                WalletTransaction wtx = connectTransactionOutputs(params, txProto, lazyTransactions);
                 wallet.addWalletTransaction(wtx);
             }
 
@@ -619,6 +700,14 @@ public class WalletProtobufSerializer {
     }
 
     private void readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
+        Transaction tx = txFromProto(txProto, params);
+        if (txMap.containsKey(txProto.getHash()))
+            throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(txProto.getHash()));
+        txMap.put(txProto.getHash(), tx);
+    }
+
+    /** Creates the transaction described by the given proto, without connecting it to any other transaction. */
+    static Transaction txFromProto(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
         Transaction tx = new Transaction(params);
 
         tx.setVersion(txProto.getVersion());
@@ -703,13 +792,12 @@ public class WalletProtobufSerializer {
         Sha256Hash protoHash = byteStringToHash(txProto.getHash());
         if (!tx.getTxId().equals(protoHash))
             throw new UnreadableWalletException(String.format(Locale.US, "Transaction did not deserialize completely: %s vs %s", tx.getTxId(), protoHash));
-        if (txMap.containsKey(txProto.getHash()))
-            throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(txProto.getHash()));
-        txMap.put(txProto.getHash(), tx);
+        return tx;
     }
 
     private WalletTransaction connectTransactionOutputs(final NetworkParameters params,
-                                                        final org.bitcoincashj.wallet.Protos.Transaction txProto) throws UnreadableWalletException {
+                                                        final org.bitcoincashj.wallet.Protos.Transaction txProto,
+                                                        @Nullable LazyTransactionIndex lazyTransactions) throws UnreadableWalletException {
         Transaction tx = txMap.get(txProto.getHash());
         final WalletTransaction.Pool pool;
         switch (txProto.getPool()) {
@@ -742,13 +830,15 @@ public class WalletProtobufSerializer {
             if (transactionOutput.hasSpentByTransactionHash()) {
                 final ByteString spentByTransactionHash = transactionOutput.getSpentByTransactionHash();
                 Transaction spendingTx = txMap.get(spentByTransactionHash);
-                if (spendingTx == null) {
+                if (spendingTx != null) {
+                    final int spendingIndex = transactionOutput.getSpentByTransactionIndex();
+                    TransactionInput input = checkNotNull(spendingTx.getInput(spendingIndex));
+                    input.connect(output);
+                } else if (lazyTransactions == null || !lazyTransactions.markSpentByUnloaded(output, transactionOutput)) {
+                    // A spender that wasn't loaded yet connects itself once it is.
                     throw new UnreadableWalletException(String.format(Locale.US, "Could not connect %s to %s",
                             tx.getTxId(), byteStringToHash(spentByTransactionHash)));
                 }
-                final int spendingIndex = transactionOutput.getSpentByTransactionIndex();
-                TransactionInput input = checkNotNull(spendingTx.getInput(spendingIndex));
-                input.connect(output);
             }
 
             if(transactionOutput.hasFrozen()) {
@@ -765,7 +855,7 @@ public class WalletProtobufSerializer {
         return new WalletTransaction(pool, tx);
     }
 
-    private void readConfidence(final NetworkParameters params, final Transaction tx,
+    void readConfidence(final NetworkParameters params, final Transaction tx,
                                 final Protos.TransactionConfidence confidenceProto,
                                 final TransactionConfidence confidence) throws UnreadableWalletException {
         // We are lenient here because tx confidence is not an essential part of the wallet.
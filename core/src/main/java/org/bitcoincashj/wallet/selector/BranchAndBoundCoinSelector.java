@@ -0,0 +1,298 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.wallet.selector;
+
+import org.bitcoincashj.core.Coin;
+import org.bitcoincashj.core.NetworkParameters;
+import org.bitcoincashj.core.Transaction;
+import org.bitcoincashj.core.TransactionOutput;
+import org.bitcoincashj.wallet.CoinSelection;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A {@link CoinSelector} that looks for a set of outputs that pays the target without change, and otherwise picks
+ * outputs the way a knapsack solver would. Unlike the {@link DefaultCoinSelector} it doesn't care about coin age, only
+ * about the fee: every input costs {@link #INPUT_SIZE} bytes, and change costs {@link #CHANGE_OUTPUT_SIZE} bytes now
+ * and an input later.</p>
+ *
+ * <p>The wallet asks its selector again for every fee it tries, with the same candidates. The values of the candidates
+ * are copied into primitive arrays sorted by value once, and kept for as long as the wallet passes the same outputs in
+ * the same order, so that the searches don't sort or touch {@link Coin}s. Outputs that cost more to spend than they
+ * are worth are left out of the search.</p>
+ *
+ * <p>The changeless search walks the tree of include/exclude decisions largest output first, backing out of branches
+ * that can no longer reach the target or already overshoot it by more than change would cost, for at most
+ * {@link #MAX_TRIES} steps. The overshoot is also kept below {@link Transaction#MIN_NONDUST_OUTPUT}, as the wallet
+ * gives back anything more as change, whatever fee rate the selector was made for. Of the sets that fit, it keeps the one that wastes least in fees and excess value. If there
+ * is none, the fallback compares the smallest output that covers the target alone with a set of the smaller outputs,
+ * added up largest first until one more would reach the target.</p>
+ *
+ * <p>The target is what the wallet needs, including the fee for the inputs it expects, so the sets are measured by
+ * their value rather than their value after fees. Instances can be shared between threads.</p>
+ */
+public class BranchAndBoundCoinSelector implements CoinSelector {
+    /** Size of an input spending a pay-to-pubkey-hash output. */
+    public static final int INPUT_SIZE = 148;
+    /** Size of a pay-to-pubkey-hash change output. */
+    public static final int CHANGE_OUTPUT_SIZE = 34;
+    /** How many steps the changeless search may take before it settles for the best set so far. */
+    public static final int MAX_TRIES = 100000;
+
+    private final long inputFee;
+    // How much a set may overshoot the target and still count as paying it without change.
+    private final long maxExcess;
+
+    // The candidates of the last call, sorted.
+    private volatile Index lastIndex;
+
+    private static class Index {
+        // The candidates in the order they were passed in, to tell whether the next call passes the same ones.
+        final TransactionOutput[] candidates;
+        // The candidates and their values, largest value first.
+        final TransactionOutput[] outputs;
+        final long[] values;
+        // Values minus the fee for spending them.
+        final long[] effectiveValues;
+
+        Index(List<TransactionOutput> candidates, long inputFee) {
+            this.candidates = candidates.toArray(new TransactionOutput[0]);
+            this.outputs = this.candidates.clone();
+            Arrays.sort(outputs, new Comparator<TransactionOutput>() {
+                @Override
+                public int compare(TransactionOutput a, TransactionOutput b) {
+                    int c = Long.compare(b.getValue().value, a.getValue().value);
+                    if (c != 0) return c;
+                    // Make the order total, so that the same candidates are always searched the same way.
+                    c = a.getParentTransactionHash().compareTo(b.getParentTransactionHash());
+                    if (c != 0) return c;
+                    return Integer.compare(a.getIndex(), b.getIndex());
+                }
+            });
+            this.values = new long[outputs.length];
+            this.effectiveValues = new long[outputs.length];
+            for (int i = 0; i < outputs.length; i++) {
+                values[i] = outputs[i].getValue().value;
+                effectiveValues[i] = values[i] - inputFee;
+            }
+        }
+
+        boolean isFor(List<TransactionOutput> candidates) {
+            if (candidates.size() != this.candidates.length)
+                return false;
+            int i = 0;
+            for (TransactionOutput candidate : candidates)
+                if (candidate != this.candidates[i++])
+                    return false;
+            return true;
+        }
+    }
+
+    /**
+     * @param feePerKb the fee rate the selections will be paid for with, used to weigh inputs against change. This
+     *                 should be the {@link org.bitcoincashj.wallet.SendRequest#feePerKb} of the requests the selector is
+     *                 used for.
+     */
+    public BranchAndBoundCoinSelector(Coin feePerKb) {
+        checkArgument(feePerKb.signum() >= 0, "Negative fee rate");
+        this.inputFee = feePerKb.value * INPUT_SIZE / 1000;
+        long costOfChange = feePerKb.value * (CHANGE_OUTPUT_SIZE + INPUT_SIZE) / 1000;
+        this.maxExcess = Math.min(costOfChange, Transaction.MIN_NONDUST_OUTPUT.value - 1);
+    }
+
+    @Override
+    public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+        Index index = index(candidates);
+        int n = index.outputs.length;
+        // Confidence changes between calls, so which outputs may be spent is checked every time.
+        int[] selectable = new int[n];
+        int numSelectable = 0;
+        long available = 0;
+        for (int i = 0; i < n; i++) {
+            if (shouldSelect(index.outputs[i].getParentTransaction())) {
+                selectable[numSelectable++] = i;
+                available += index.values[i];
+            }
+        }
+        if (available <= target.value || target.equals(NetworkParameters.MAX_MONEY)) {
+            // Everything we have, which may be lower than the target.
+            return selection(index, selectable, numSelectable);
+        }
+        // Only outputs that are worth more than it costs to spend them take part in the search.
+        int[] pool = new int[numSelectable];
+        int poolSize = 0;
+        for (int i = 0; i < numSelectable; i++)
+            if (index.effectiveValues[selectable[i]] > 0)
+                pool[poolSize++] = selectable[i];
+        int[] chosen = searchChangeless(index, pool, poolSize, target.value);
+        if (chosen == null)
+            chosen = knapsack(index, pool, poolSize, target.value);
+        if (chosen == null) {
+            // The target can only be paid with some of the uneconomical outputs as well.
+            chosen = knapsack(index, selectable, numSelectable, target.value);
+        }
+        return selection(index, chosen, chosen.length);
+    }
+
+    private Index index(List<TransactionOutput> candidates) {
+        Index index = lastIndex;
+        if (index == null || !index.isFor(candidates)) {
+            index = new Index(candidates, inputFee);
+            lastIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * Depth first search for the set of outputs from the pool whose value is at least the target and at most the
+     * target plus the cost of change or the dust limit, wasting the least. Returns the positions of the outputs in the index, or null if
+     * there is no such set or it wasn't found in time.
+     */
+    @Nullable
+    private int[] searchChangeless(Index index, int[] pool, int poolSize, long target) {
+        long[] values = index.values;
+        // What is left to add from each position on.
+        long[] remaining = new long[poolSize + 1];
+        for (int i = poolSize - 1; i >= 0; i--)
+            remaining[i] = remaining[i + 1] + values[pool[i]];
+        if (remaining[0] < target)
+            return null;
+        // The positions in the pool included on the current branch, in order.
+        int[] branch = new int[poolSize];
+        int depth = 0;
+        long value = 0, available = remaining[0];
+        int[] best = null;
+        long bestWaste = Long.MAX_VALUE;
+        int i = 0;
+        for (int tries = 0; tries < MAX_TRIES; tries++, i++) {
+            boolean backtrack = false;
+            long inputsWaste = depth * inputFee;
+            if (value + available < target || value > target + maxExcess || inputsWaste > bestWaste) {
+                backtrack = true;
+            } else if (value >= target) {
+                long waste = inputsWaste + value - target;
+                if (waste < bestWaste) {
+                    bestWaste = waste;
+                    best = new int[depth];
+                    for (int j = 0; j < depth; j++)
+                        best[j] = pool[branch[j]];
+                    if (waste == 0)
+                        break;
+                }
+                backtrack = true;
+            }
+            if (backtrack) {
+                if (depth == 0)
+                    break;
+                // Put the outputs we skipped after the last included one back, then skip that one instead.
+                for (i--; i > branch[depth - 1]; i--)
+                    available += values[pool[i]];
+                value -= values[pool[i]];
+                depth--;
+            } else {
+                long v = values[pool[i]];
+                available -= v;
+                // Excluding an output and including the next one of the same value is a branch we already tried.
+                if (depth == 0 || branch[depth - 1] == i - 1 || values[pool[i - 1]] != v) {
+                    branch[depth++] = i;
+                    value += v;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Picks outputs from the pool that pay the target with change: either the smallest single output that does, or a
+     * set of the smaller ones, whichever wastes less. Returns null if the pool can't pay.
+     */
+    @Nullable
+    private int[] knapsack(Index index, int[] pool, int poolSize, long target) {
+        long[] values = index.values;
+        // The pool is sorted, so the outputs that cover the target on their own come first.
+        int smaller = 0;
+        while (smaller < poolSize && values[pool[smaller]] >= target)
+            smaller++;
+        int[] larger = smaller > 0 ? new int[] { pool[smaller - 1] } : null;
+        // Add up the smaller outputs largest first. Each one that would reach the target finishes a candidate set
+        // instead of being added, and the set closest to the target wins.
+        int[] added = new int[poolSize - smaller];
+        int numAdded = 0;
+        long value = 0;
+        long bestValue = Long.MAX_VALUE;
+        int bestAdded = -1, bestLast = -1;
+        for (int i = smaller; i < poolSize; i++) {
+            long v = values[pool[i]];
+            if (value + v >= target) {
+                if (value + v < bestValue) {
+                    bestValue = value + v;
+                    bestAdded = numAdded;
+                    bestLast = pool[i];
+                }
+            } else {
+                added[numAdded++] = pool[i];
+                value += v;
+            }
+        }
+        if (bestLast < 0)
+            return larger;
+        added[bestAdded] = bestLast;
+        numAdded = bestAdded + 1;
+        value = bestValue;
+        // Drop the outputs that turn out not to be needed, smallest first, as they cost an input each.
+        int kept = 0;
+        for (int i = numAdded - 1; i >= 0; i--) {
+            if (value - values[added[i]] >= target) {
+                value -= values[added[i]];
+                added[i] = -1;
+            } else {
+                kept++;
+            }
+        }
+        int[] subset = new int[kept];
+        for (int i = 0, j = 0; i < numAdded; i++)
+            if (added[i] >= 0)
+                subset[j++] = added[i];
+        if (larger != null && values[larger[0]] - target + inputFee <= value - target + kept * inputFee)
+            return larger;
+        return subset;
+    }
+
+    private static CoinSelection selection(Index index, int[] positions, int count) {
+        ArrayList<TransactionOutput> gathered = new ArrayList<>(count);
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            gathered.add(index.outputs[positions[i]]);
+            total += index.values[positions[i]];
+        }
+        return new CoinSelection(Coin.valueOf(total), gathered);
+    }
+
+    /**
+     * Sub-classes can override this to customize whether transactions are usable.
+     */
+    protected boolean shouldSelect(Transaction tx) {
+        if (tx != null) {
+            return DefaultCoinSelector.isSelectable(tx);
+        }
+        return true;
+    }
+}
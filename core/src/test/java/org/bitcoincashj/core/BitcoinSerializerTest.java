@@ -17,15 +17,22 @@
 
 package org.bitcoincashj.core;
 
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.bitcoincashj.net.MessageWriteTarget;
 import org.bitcoincashj.params.MainNetParams;
 import org.bitcoincashj.params.TestNet3Params;
 import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import static org.bitcoincashj.core.Utils.HEX;
 import static org.junit.Assert.*;
@@ -202,6 +209,18 @@ public class BitcoinSerializerTest {
         assertArrayEquals(headersMessageBytes, serializedBytes);
     }
 
+    @Test
+    public void testFilterAdd() throws Exception {
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        byte[] element = HEX.decode("99108ad8ed9bb6274d3980bab5a85c048f0950c8");
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(new FilterAddMessage(element), bos);
+
+        FilterAddMessage message = (FilterAddMessage) serializer.deserialize(ByteBuffer.wrap(bos.toByteArray()));
+        assertArrayEquals(element, message.getData());
+        assertEquals(1 + element.length, message.getMessageSize());
+    }
+
     @Test(expected = BufferUnderflowException.class)
     public void testBitcoinPacketHeaderTooShort() {
         new BitcoinSerializer.BitcoinPacketHeader(ByteBuffer.wrap(new byte[]{0}));
@@ -237,6 +256,144 @@ public class BitcoinSerializerTest {
         serializer.serialize(unknownMessage, bos);
     }
 
+    @Test
+    public void testBlockParsedFromBackingArray() throws Exception {
+        NetworkParameters testnet = TestNet3Params.get();
+        Context.propagate(new Context(testnet));
+        MessageSerializer serializer = testnet.getDefaultSerializer();
+        Block block = serializer.makeBlock(ByteStreams.toByteArray(getClass().getResourceAsStream("block_testnet700000.dat")));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(block, bos);
+        ByteBuffer buffer = ByteBuffer.wrap(bos.toByteArray());
+
+        // Like PeerSocketHandler does for large messages, hand over a buffer holding just the payload.
+        serializer.seekPastMagicBytes(buffer);
+        BitcoinSerializer.BitcoinPacketHeader header = serializer.deserializeHeader(buffer);
+        ByteBuffer payload = ByteBuffer.wrap(Arrays.copyOfRange(buffer.array(), buffer.position(), buffer.limit()));
+        Block parsed = (Block) serializer.deserializePayload(header, payload);
+        assertEquals(block.getHash(), parsed.getHash());
+        assertEquals(block.getTransactions(), parsed.getTransactions());
+        assertFalse(payload.hasRemaining());
+    }
+
+    @Test
+    public void testMessagesSharingAnArray() throws Exception {
+        MessageSerializer serializer = MAINNET.getSerializer(true);
+        byte[] txBytes = Arrays.copyOfRange(TRANSACTION_MESSAGE_BYTES, 24, TRANSACTION_MESSAGE_BYTES.length);
+        Transaction tx = serializer.makeTransaction(txBytes);
+        InventoryMessage inv = new InventoryMessage(MAINNET);
+        inv.addTransaction(tx);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(tx, bos);
+        serializer.serialize(inv, bos);
+        serializer.serialize(new Ping(42), bos);
+        serializer.serialize(tx, bos);
+        ByteBuffer buffer = ByteBuffer.wrap(bos.toByteArray());
+
+        // The tx and inv messages are parsed in place wherever they are in the array, the ping is copied.
+        assertEquals(tx, serializer.deserialize(buffer));
+        assertEquals(inv, serializer.deserialize(buffer));
+        assertEquals(42, ((Ping) serializer.deserialize(buffer)).getNonce());
+        Transaction last = (Transaction) serializer.deserialize(buffer);
+        assertFalse(buffer.hasRemaining());
+        assertEquals(tx, last);
+        assertArrayEquals(txBytes, last.unsafeBitcoinSerialize());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testPayloadParsedPastItsEnd() throws Exception {
+        BitcoinSerializer serializer = MAINNET.getSerializer(false);
+        byte[] txBytes = Arrays.copyOfRange(TRANSACTION_MESSAGE_BYTES, 24, TRANSACTION_MESSAGE_BYTES.length);
+        // A tx message without its lock time, followed by the lock time and another message in the same array.
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize("tx", Arrays.copyOf(txBytes, txBytes.length - 4), bos);
+        bos.write(txBytes, txBytes.length - 4, 4);
+        serializer.serialize(new Ping(42), bos);
+        serializer.deserialize(ByteBuffer.wrap(bos.toByteArray()));
+    }
+
+    @Test
+    public void testSerializeToBuffers() throws Exception {
+        MessageSerializer serializer = MAINNET.getSerializer(true);
+        Transaction tx = serializer.makeTransaction(Arrays.copyOfRange(TRANSACTION_MESSAGE_BYTES, 24,
+                TRANSACTION_MESSAGE_BYTES.length));
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        serializer.serialize(tx, expected);
+
+        ByteBuffer[] buffers = serializer.serializeToBuffers(tx);
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        for (ByteBuffer buffer : buffers) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            actual.write(bytes);
+        }
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+        assertTrue(buffers[buffers.length - 1].isReadOnly());
+    }
+
+    @Test
+    public void testSerializedMessageSentToSeveralPeers() throws Exception {
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        Transaction tx = serializer.makeTransaction(Arrays.copyOfRange(TRANSACTION_MESSAGE_BYTES, 24,
+                TRANSACTION_MESSAGE_BYTES.length));
+        ByteBuffer[] serialized = serializer.serializeToBuffers(tx);
+        int length = 0;
+        for (ByteBuffer buffer : serialized)
+            length += buffer.remaining();
+
+        // Each peer writes the whole message, through the default that copies the buffers into one array.
+        final List<byte[]> written = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            PeerSocketHandler peer = new PeerSocketHandler(MAINNET, new InetSocketAddress(InetAddress.getLoopbackAddress(), 8333)) {
+                @Override
+                protected void processMessage(Message m) {
+                }
+
+                @Override
+                public void connectionOpened() {
+                }
+
+                @Override
+                public void connectionClosed() {
+                }
+            };
+            peer.setWriteTarget(new MessageWriteTarget() {
+                @Override
+                public ListenableFuture writeBytes(byte[] message) {
+                    written.add(message);
+                    return Futures.immediateFuture(null);
+                }
+
+                @Override
+                public void closeConnection() {
+                }
+            });
+            peer.sendSerializedMessage(serialized);
+        }
+        assertEquals(3, written.size());
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        serializer.serialize(tx, expected);
+        for (byte[] message : written)
+            assertArrayEquals(expected.toByteArray(), message);
+        int remaining = 0;
+        for (ByteBuffer buffer : serialized)
+            remaining += buffer.remaining();
+        assertEquals(length, remaining);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testDummySerializerToBuffers() {
+        DummySerializer.DEFAULT.serializeToBuffers(new Ping(1));
+    }
+
+    @Test(expected = BufferUnderflowException.class)
+    public void testTruncatedPayload() throws Exception {
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(new Ping(42), bos);
+        serializer.deserialize(ByteBuffer.wrap(Arrays.copyOf(bos.toByteArray(), bos.size() - 1)));
+    }
+
     @Test
     public void testEquals() {
         assertTrue(MAINNET.getDefaultSerializer().equals(MAINNET.getDefaultSerializer()));
@@ -153,6 +153,36 @@ public class BlockChainTest {
         assertEquals(chain.getChainHead().getHeader(), b3.cloneAsHeader());
     }
 
+    @Test
+    public void headersVerifiedAhead() throws Exception {
+        Block b1 = getBlock1();
+        Block b2 = getBlock2();
+        // Headers are stored, but the chain head stays behind.
+        assertNull(testNetChain.verifyAndStoreHeader(b2.cloneAsHeader()));
+        assertEquals(1, testNetChain.verifyAndStoreHeader(b1.cloneAsHeader()).getHeight());
+        assertEquals(2, testNetChain.verifyAndStoreHeader(b2.cloneAsHeader()).getHeight());
+        assertEquals(0, testNetChain.getBestChainHeight());
+        // Then the blocks are added as usual.
+        assertTrue(testNetChain.add(b1));
+        assertTrue(testNetChain.add(b2));
+        assertEquals(b2.cloneAsHeader(), testNetChain.getChainHead().getHeader());
+    }
+
+    @Test
+    public void badHeaderVerifiedAhead() throws Exception {
+        Block b1 = getBlock1();
+        Block b2 = getBlock2();
+        b2.setNonce(12345);
+        assertNotNull(testNetChain.verifyAndStoreHeader(b1.cloneAsHeader()));
+        try {
+            testNetChain.verifyAndStoreHeader(b2.cloneAsHeader());
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertNull(testNetChain.getBlockStore().get(b2.getHash()));
+    }
+
     @Test
     public void difficultyTransitions() throws Exception {
         // Add a bunch of blocks in a loop until we reach a difficulty transition point. The unit test params have an
@@ -0,0 +1,514 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.core;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.bitcoincashj.core.BlockDownloadScheduler.Stage;
+import org.bitcoincashj.params.UnitTestParams;
+import org.bitcoincashj.store.BlockStoreException;
+import org.bitcoincashj.store.MemoryBlockStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nullable;
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BlockDownloadSchedulerTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+    private static final int BLOCKS = 10;
+
+    private FakeChain chain;
+    private FakePeerGroup peerGroup;
+    private BlockDownloadScheduler scheduler;
+    private FakePeer downloadPeer, helper;
+    private List<Block> blocks;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(UNITTEST));
+        Utils.setMockClock();
+        chain = new FakeChain();
+        blocks = new ArrayList<>();
+        Address address = Address.fromKey(UNITTEST, new ECKey());
+        Block prev = UNITTEST.getGenesisBlock();
+        for (int i = 0; i < BLOCKS; i++) {
+            prev = prev.createNextBlock(address);
+            // As if they came from the network, so their size is known.
+            blocks.add(UNITTEST.getDefaultSerializer().makeBlock(prev.bitcoinSerialize()));
+        }
+        peerGroup = new FakePeerGroup(chain);
+        downloadPeer = new FakePeer(chain, 1);
+        helper = new FakePeer(chain, 2);
+        peerGroup.peers.add(downloadPeer);
+        peerGroup.peers.add(helper);
+        scheduler = peerGroup.getBlockDownloadScheduler();
+        scheduler.setMaxPeers(2);
+        scheduler.setWindowSize(BLOCKS, BLOCKS / 2);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.stop();
+        peerGroup.executor.shutdownNow();
+        Utils.resetMocking();
+    }
+
+    @Test
+    public void outOfOrderArrivalIsAppliedInOrder() throws Exception {
+        startWithHeaders(blocks);
+        assertEquals(BLOCKS / 2, downloadPeer.requested().size());
+        assertEquals(BLOCKS / 2, helper.requested().size());
+
+        for (int i = BLOCKS - 1; i > 0; i--)
+            answer(blocks.get(i));
+        assertEquals(BLOCKS - 1, scheduler.getStageStats().get(Stage.BLOCKS).queued);
+        assertTrue(chain.applied.isEmpty());
+
+        answer(blocks.get(0));
+        assertEquals(hashes(blocks), chain.awaitApplied(BLOCKS));
+        awaitChainDownload(downloadPeer);
+        assertFalse(scheduler.isRunning());
+        Map<Stage, BlockDownloadScheduler.StageStats> stats = scheduler.getStageStats();
+        assertEquals(BLOCKS, stats.get(Stage.HEADERS).items);
+        assertEquals(BLOCKS, stats.get(Stage.BLOCKS).items);
+        assertEquals(BLOCKS, stats.get(Stage.APPLY).items);
+    }
+
+    @Test(timeout = 10000)
+    public void headersAreCheckedOffTheNetworkThread() throws Exception {
+        chain.headerGate = new CountDownLatch(1);
+        scheduler.start(downloadPeer, 0);
+        SettableFuture<List<Block>> headers = downloadPeer.headerRequests.poll(5, TimeUnit.SECONDS);
+        // The network thread hands the headers over, it doesn't wait for the chain.
+        headers.set(headers(blocks));
+        assertEquals(0, scheduler.getStageStats().get(Stage.HEADERS).items);
+        assertTrue(downloadPeer.requested().isEmpty());
+
+        chain.headerGate.countDown();
+        awaitHeaders(BLOCKS);
+        assertEquals("Block download: headers", chain.headerThread);
+        assertEquals(BLOCKS, downloadPeer.requested().size() + helper.requested().size());
+    }
+
+    @Test(timeout = 10000)
+    public void blocksAreReceivedWhileApplying() throws Exception {
+        startWithHeaders(blocks);
+        chain.applyGate = new CountDownLatch(1);
+        answer(blocks.get(0));
+        // The apply stage is stuck in the chain with the first block, the network threads carry on.
+        for (Block block : blocks.subList(1, BLOCKS))
+            answer(block);
+        assertEquals(BLOCKS, scheduler.getStageStats().get(Stage.BLOCKS).items);
+        assertTrue(chain.applied.isEmpty());
+
+        chain.applyGate.countDown();
+        assertEquals(hashes(blocks), chain.awaitApplied(BLOCKS));
+        assertEquals(BLOCKS, scheduler.getStageStats().get(Stage.APPLY).items);
+    }
+
+    @Test(timeout = 10000)
+    public void failedHeadersRequestFallsBack() throws Exception {
+        scheduler.start(downloadPeer, 0);
+        SettableFuture<List<Block>> headers = downloadPeer.headerRequests.poll(5, TimeUnit.SECONDS);
+        assertNotNull(headers);
+        headers.setException(new Exception("disconnected"));
+        // The download peer carries on alone from the chain head.
+        awaitChainDownload(downloadPeer);
+        assertFalse(scheduler.isRunning());
+        assertTrue(downloadPeer.requested().isEmpty());
+    }
+
+    @Test
+    public void stalledRequestIsCancelledAndRequestedElsewhere() throws Exception {
+        scheduler.setWindowSize(2, 1);
+        startWithHeaders(blocks);
+        SettableFuture<Block> stalled0 = downloadPeer.blockFutures.get(blocks.get(0).getHash());
+        SettableFuture<Block> stalled1 = helper.blockFutures.get(blocks.get(1).getHash());
+        assertNotNull(stalled0);
+        assertNotNull(stalled1);
+
+        Utils.rollMockClockMillis(BlockDownloadScheduler.DEFAULT_STALL_TIMEOUT_MILLIS);
+        scheduler.checkStalls();
+        assertTrue(stalled0.isCancelled());
+        assertTrue(stalled1.isCancelled());
+        // Each block is asked from the peer that didn't stall on it.
+        assertFalse(helper.blockFutures.get(blocks.get(0).getHash()).isDone());
+        assertFalse(downloadPeer.blockFutures.get(blocks.get(1).getHash()).isDone());
+        assertEquals(1, scheduler.getPeerStats().get(downloadPeer).stalls);
+        assertEquals(1, scheduler.getPeerStats().get(helper).stalls);
+        assertEquals(0, scheduler.getPeerStats().get(helper).failures);
+
+        for (Block block : blocks)
+            answer(block);
+        assertEquals(hashes(blocks), chain.awaitApplied(BLOCKS));
+    }
+
+    @Test
+    public void helperDisconnects() throws Exception {
+        scheduler.setWindowSize(BLOCKS, BLOCKS);
+        startWithHeaders(blocks);
+        List<SettableFuture<Block>> helperFutures = new ArrayList<>(helper.blockFutures.values());
+        peerGroup.peers.remove(helper);
+        scheduler.peerDisconnected(helper);
+        for (SettableFuture<Block> future : helperFutures)
+            assertTrue(future.isCancelled());
+        assertEquals(BLOCKS, downloadPeer.requested().size());
+
+        for (Block block : blocks)
+            answer(block);
+        assertEquals(hashes(blocks), chain.awaitApplied(BLOCKS));
+        assertEquals(0, scheduler.getPeerStats().get(downloadPeer).failures);
+    }
+
+    @Test
+    public void downloadPeerDisconnects() throws Exception {
+        startWithHeaders(blocks);
+        List<SettableFuture<Block>> futures = new ArrayList<>(downloadPeer.blockFutures.values());
+        futures.addAll(helper.blockFutures.values());
+        scheduler.peerDisconnected(downloadPeer);
+        assertFalse(scheduler.isRunning());
+        for (SettableFuture<Block> future : futures)
+            assertTrue(future.isCancelled());
+        // The peer group picks another download peer, it's not the scheduler's business.
+        assertFalse(downloadPeer.chainDownloadStarted);
+        assertFalse(helper.chainDownloadStarted);
+    }
+
+    @Test
+    public void filterExhaustionPausesUntilRefreshed() throws Exception {
+        downloadPeer.filter = new BloomFilter(1, 0.001, 0);
+        helper.filter = new BloomFilter(1, 0.001, 0);
+        downloadPeer.exhausting.add(blocks.get(2).getHash());
+        startWithHeaders(blocks);
+        assertTrue(downloadPeer.blockFutures.isEmpty());
+        for (Block block : blocks.subList(0, 3))
+            answer(block);
+
+        SettableFuture<BloomFilter> refresh = peerGroup.filterRecalculations.poll(5, TimeUnit.SECONDS);
+        assertNotNull(refresh);
+        assertEquals(hashes(blocks.subList(0, 2)), chain.awaitApplied(2));
+        // The blocks after the one that exhausted the filter are given up on, and nothing is requested until the new
+        // filter is in place.
+        assertTrue(downloadPeer.requested().isEmpty());
+        assertTrue(helper.requested().isEmpty());
+
+        refresh.set(downloadPeer.filter);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (downloadPeer.requested().size() + helper.requested().size() < BLOCKS - 2) {
+            assertTrue("Blocks weren't requested again", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        for (Block block : blocks.subList(2, BLOCKS))
+            answer(block);
+        assertEquals(hashes(blocks), chain.awaitApplied(BLOCKS));
+        awaitChainDownload(downloadPeer);
+    }
+
+    @Test
+    public void unconnectedHeadersFallBackToSinglePeer() throws Exception {
+        scheduler.start(downloadPeer, 0);
+        downloadPeer.headerRequests.poll(5, TimeUnit.SECONDS).set(headers(blocks.subList(1, BLOCKS)));
+        awaitChainDownload(downloadPeer);
+        assertFalse(scheduler.isRunning());
+        assertTrue(helper.requested().isEmpty());
+    }
+
+    @Test
+    public void unconnectedBlockFallsBackToSinglePeer() throws Exception {
+        startWithHeaders(blocks);
+        chain.rejected.add(blocks.get(1).getHash());
+        answer(blocks.get(0));
+        answer(blocks.get(1));
+        awaitChainDownload(downloadPeer);
+        assertEquals(hashes(blocks.subList(0, 1)), chain.awaitApplied(1));
+        assertFalse(scheduler.isRunning());
+    }
+
+    @Test
+    public void receivedBytesLimitRequests() throws Exception {
+        scheduler.setWindowSize(BLOCKS, 2);
+        scheduler.setMaxReceivedBytes(1);
+        startWithHeaders(blocks);
+        assertEquals(4, downloadPeer.requested().size() + helper.requested().size());
+
+        // A block arrived ahead of the first one, so only the first one may be requested.
+        answer(blocks.get(1));
+        assertEquals(3, downloadPeer.requested().size() + helper.requested().size());
+        answer(blocks.get(3));
+        assertEquals(2, downloadPeer.requested().size() + helper.requested().size());
+
+        answer(blocks.get(0));
+        chain.awaitApplied(2);
+        answer(blocks.get(2));
+        for (Block block : blocks.subList(4, BLOCKS))
+            answer(block);
+        assertEquals(hashes(blocks), chain.awaitApplied(BLOCKS));
+    }
+
+    private void startWithHeaders(List<Block> planned) throws InterruptedException {
+        scheduler.start(downloadPeer, 0);
+        SettableFuture<List<Block>> headers = downloadPeer.headerRequests.poll(5, TimeUnit.SECONDS);
+        assertNotNull(headers);
+        headers.set(headers(planned));
+        awaitHeaders(planned.size());
+    }
+
+    // The headers are checked on the header thread, which then requests the blocks.
+    private void awaitHeaders(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (scheduler.getStageStats().get(Stage.HEADERS).items < count) {
+            assertTrue("Headers weren't checked", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    // Answers the request for the block from whichever peer has it outstanding, waiting for the request if the window
+    // has yet to move on to the block.
+    private void answer(Block block) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            for (FakePeer peer : new FakePeer[] { downloadPeer, helper }) {
+                SettableFuture<Block> future = peer.blockFutures.get(block.getHash());
+                if (future != null && !future.isDone()) {
+                    future.set(block);
+                    return;
+                }
+                SettableFuture<FilteredBlock> filteredFuture = peer.filteredFutures.get(block.getHash());
+                if (filteredFuture != null && !filteredFuture.isDone()) {
+                    FilteredBlock filteredBlock = peer.filter.applyAndUpdate(block);
+                    filteredFuture.set(new FilteredBlock(UNITTEST, filteredBlock.bitcoinSerialize()));
+                    return;
+                }
+            }
+            Thread.sleep(10);
+        }
+        fail("Block " + block.getHashAsString() + " wasn't requested");
+    }
+
+    private static void awaitChainDownload(FakePeer peer) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!peer.chainDownloadStarted) {
+            assertTrue("Chain download wasn't handed back", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static List<Block> headers(List<Block> blocks) {
+        List<Block> headers = new ArrayList<>();
+        for (Block block : blocks)
+            headers.add(block.cloneAsHeader());
+        return headers;
+    }
+
+    private static List<Sha256Hash> hashes(List<Block> blocks) {
+        List<Sha256Hash> hashes = new ArrayList<>();
+        for (Block block : blocks)
+            hashes.add(block.getHash());
+        return hashes;
+    }
+
+    // A chain that takes headers and blocks as long as they connect, without checking them.
+    private static class FakeChain extends BlockChain {
+        final List<Sha256Hash> applied = new CopyOnWriteArrayList<>();
+        final Set<Sha256Hash> rejected = Collections.synchronizedSet(new HashSet<Sha256Hash>());
+        final Map<Sha256Hash, StoredBlock> stored = Collections.synchronizedMap(new HashMap<Sha256Hash, StoredBlock>());
+        volatile StoredBlock head;
+        volatile String headerThread;
+        // If set, checking headers or adding blocks waits for them.
+        volatile CountDownLatch headerGate, applyGate;
+
+        FakeChain() throws BlockStoreException {
+            super(UNITTEST, new MemoryBlockStore(UNITTEST));
+            head = super.getChainHead();
+            stored.put(head.getHeader().getHash(), head);
+        }
+
+        @Override
+        public StoredBlock getChainHead() {
+            return head != null ? head : super.getChainHead();
+        }
+
+        @Nullable
+        @Override
+        public StoredBlock verifyAndStoreHeader(Block header) throws VerificationException {
+            headerThread = Thread.currentThread().getName();
+            await(headerGate);
+            StoredBlock prev = stored.get(header.getPrevBlockHash());
+            if (prev == null)
+                return null;
+            StoredBlock block = prev.build(header);
+            stored.put(header.getHash(), block);
+            return block;
+        }
+
+        @Override
+        public boolean add(Block block) throws VerificationException {
+            return connect(block.cloneAsHeader());
+        }
+
+        @Override
+        public boolean add(FilteredBlock block) throws VerificationException {
+            return connect(block.getBlockHeader());
+        }
+
+        private boolean connect(Block header) throws VerificationException {
+            await(applyGate);
+            if (rejected.contains(header.getHash()) || !header.getPrevBlockHash().equals(head.getHeader().getHash()))
+                return false;
+            head = head.build(header);
+            applied.add(header.getHash());
+            return true;
+        }
+
+        private static void await(@Nullable CountDownLatch gate) {
+            try {
+                if (gate != null)
+                    gate.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        List<Sha256Hash> awaitApplied(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (applied.size() < count) {
+                assertTrue("Blocks weren't applied", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            return new ArrayList<>(applied);
+        }
+    }
+
+    private static class FakePeerGroup extends PeerGroup {
+        final List<Peer> peers = new CopyOnWriteArrayList<>();
+        final BlockingQueue<SettableFuture<BloomFilter>> filterRecalculations = new LinkedBlockingQueue<>();
+
+        FakePeerGroup(AbstractBlockChain chain) {
+            super(UNITTEST, chain);
+        }
+
+        @Override
+        public List<Peer> getConnectedPeers() {
+            return peers;
+        }
+
+        @Override
+        public ListenableFuture<BloomFilter> recalculateFastCatchupAndFilter(FilterRecalculateMode mode) {
+            SettableFuture<BloomFilter> future = SettableFuture.create();
+            filterRecalculations.add(future);
+            return future;
+        }
+    }
+
+    // A peer that has all the blocks and answers when the test says so.
+    private static class FakePeer extends Peer {
+        final VersionMessage version;
+        final BlockingQueue<SettableFuture<List<Block>>> headerRequests = new LinkedBlockingQueue<>();
+        final Map<Sha256Hash, SettableFuture<Block>> blockFutures = Collections.synchronizedMap(
+                new HashMap<Sha256Hash, SettableFuture<Block>>());
+        final Map<Sha256Hash, SettableFuture<FilteredBlock>> filteredFutures = Collections.synchronizedMap(
+                new HashMap<Sha256Hash, SettableFuture<FilteredBlock>>());
+        final Set<Sha256Hash> exhausting = Collections.synchronizedSet(new HashSet<Sha256Hash>());
+        volatile BloomFilter filter;
+        volatile boolean chainDownloadStarted;
+
+        FakePeer(AbstractBlockChain chain, int port) {
+            super(UNITTEST, new VersionMessage(UNITTEST, 0),
+                    new PeerAddress(UNITTEST, InetAddress.getLoopbackAddress(), port), chain);
+            version = new VersionMessage(UNITTEST, BLOCKS);
+            version.localServices = VersionMessage.NODE_NETWORK | VersionMessage.NODE_BLOOM;
+        }
+
+        // The requests that are neither answered nor cancelled.
+        List<Sha256Hash> requested() {
+            List<Sha256Hash> requested = new ArrayList<>();
+            synchronized (blockFutures) {
+                for (Map.Entry<Sha256Hash, SettableFuture<Block>> entry : blockFutures.entrySet())
+                    if (!entry.getValue().isDone())
+                        requested.add(entry.getKey());
+            }
+            synchronized (filteredFutures) {
+                for (Map.Entry<Sha256Hash, SettableFuture<FilteredBlock>> entry : filteredFutures.entrySet())
+                    if (!entry.getValue().isDone())
+                        requested.add(entry.getKey());
+            }
+            return requested;
+        }
+
+        @Override
+        public VersionMessage getPeerVersionMessage() {
+            return version;
+        }
+
+        @Override
+        public long getBestHeight() {
+            return version.bestHeight;
+        }
+
+        @Override
+        public BloomFilter getBloomFilter() {
+            return filter;
+        }
+
+        @Override
+        public ListenableFuture<List<Block>> getBlockHeaders(BlockLocator locator, Sha256Hash stopHash) {
+            SettableFuture<List<Block>> future = SettableFuture.create();
+            headerRequests.add(future);
+            return future;
+        }
+
+        @Override
+        public ListenableFuture<Block> getBlock(Sha256Hash blockHash) {
+            SettableFuture<Block> future = SettableFuture.create();
+            blockFutures.put(blockHash, future);
+            return future;
+        }
+
+        @Override
+        public List<ListenableFuture<FilteredBlock>> getFilteredBlocks(List<Sha256Hash> blockHashes) {
+            List<ListenableFuture<FilteredBlock>> futures = new ArrayList<>();
+            for (Sha256Hash hash : blockHashes) {
+                SettableFuture<FilteredBlock> future = SettableFuture.create();
+                filteredFutures.put(hash, future);
+                futures.add(future);
+            }
+            return futures;
+        }
+
+        @Override
+        boolean checkForFilterExhaustion(FilteredBlock block) {
+            return exhausting.remove(block.getHash());
+        }
+
+        @Override
+        void invokeOnBlocksDownloaded(Block block, @Nullable FilteredBlock fb) {
+        }
+
+        @Override
+        public void startBlockChainDownload() {
+            chainDownloadStarted = true;
+        }
+    }
+}
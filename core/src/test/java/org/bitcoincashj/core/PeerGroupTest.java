@@ -31,6 +31,7 @@ import org.bitcoincashj.testing.InboundMessageQueuer;
 import org.bitcoincashj.testing.TestWithPeerGroup;
 import org.bitcoincashj.utils.Threading;
 import org.bitcoincashj.wallet.Wallet;
+import org.bitcoincashj.wallet.listeners.KeyChainEventListener;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Ignore;
@@ -666,28 +667,70 @@ public class PeerGroupTest extends TestWithPeerGroup {
 
     @Test
     public void testBloomResendOnNewKey() throws Exception {
-        // Check that when we add a new key to the wallet, the Bloom filter is re-calculated and re-sent but only once
-        // we exceed the lookahead threshold.
+        // Check that when we add a new key to the wallet, the Bloom filter is updated but only once we exceed the
+        // lookahead threshold. The new keys are added to the filter of the peers, or once it has no room left for them,
+        // a new filter is sent.
         peerGroup.start();
         // Create a couple of peers.
         InboundMessageQueuer p1 = connectPeer(1);
         InboundMessageQueuer p2 = connectPeer(2);
         peerGroup.waitForJobQueue();
-        BloomFilter f1 = p1.lastReceivedFilter;
-        ECKey key = null;
-        // We have to run ahead of the lookahead zone for this test. There should only be one bloom filter recalc.
-        for (int i = 0; i < wallet.getKeyChainGroupLookaheadSize() + wallet.getKeyChainGroupLookaheadThreshold() + 1; i++) {
-            key = wallet.freshReceiveKey();
-        }
+        BloomFilter f1 = new BloomFilter(UNITTEST, p1.lastReceivedFilter.bitcoinSerialize());
+        final List<ECKey> added = Collections.synchronizedList(new ArrayList<ECKey>());
+        wallet.addKeyChainEventListener(Threading.SAME_THREAD, new KeyChainEventListener() {
+            @Override
+            public void onKeysAdded(List<ECKey> keys) {
+                added.addAll(keys);
+            }
+        });
+        // Keys from within the lookahead zone are already in the filter. One key was issued before it was calculated.
+        for (int i = 0; i < wallet.getKeyChainGroupLookaheadSize() + wallet.getKeyChainGroupLookaheadThreshold(); i++)
+            wallet.freshReceiveKey();
         peerGroup.waitForJobQueue();
-        BloomFilter bf, f2 = null;
-        while ((bf = (BloomFilter) outbound(p1)) != null) {
-            assertEquals(MemoryPoolMessage.class, outbound(p1).getClass());
-            f2 = bf;
+        assertTrue(added.isEmpty());
+        assertNull(outbound(p1));
+        assertNull(outbound(p2));
+
+        // Every time we run ahead of the threshold, the new keys are added to the filter, followed by a mempool query.
+        // Only once the room the filter was sized with is used up, a new and larger filter is sent instead.
+        int additions = 0;
+        ECKey key = null;
+        BloomFilter f2 = null;
+        while (f2 == null) {
+            added.clear();
+            do {
+                key = wallet.freshReceiveKey();
+            } while (added.isEmpty());
+            // Calculating a new filter looks ahead, which queues the keys it derives behind it.
+            peerGroup.waitForJobQueue();
+            peerGroup.waitForJobQueue();
+            BloomFilter[] reloads = new BloomFilter[2];
+            InboundMessageQueuer[] queues = { p1, p2 };
+            for (int i = 0; i < queues.length; i++) {
+                List<Message> update = new ArrayList<>();
+                Message m;
+                while (!((m = waitForOutbound(queues[i])) instanceof MemoryPoolMessage))
+                    update.add(m);
+                assertNull(outbound(queues[i]));
+                if (update.get(0) instanceof BloomFilter) {
+                    assertEquals(1, update.size());
+                    reloads[i] = (BloomFilter) update.get(0);
+                    continue;
+                }
+                assertEquals(added.size() * 2, update.size());
+                for (int j = 0; j < added.size(); j++) {
+                    assertArrayEquals(added.get(j).getPubKey(), ((FilterAddMessage) update.get(j * 2)).getData());
+                    assertArrayEquals(added.get(j).getPubKeyHash(), ((FilterAddMessage) update.get(j * 2 + 1)).getData());
+                }
+            }
+            assertEquals(reloads[0], reloads[1]);
+            f2 = reloads[0];
+            if (f2 == null)
+                additions++;
         }
+        assertTrue(additions > 0);
+        assertTrue(f2.bitcoinSerialize().length > f1.bitcoinSerialize().length);
         assertNotNull(key);
-        assertNotNull(f2);
-        assertNull(outbound(p1));
         // Check the last filter received.
         assertNotEquals(f1, f2);
         assertTrue(f2.contains(key.getPubKey()));
@@ -847,9 +890,8 @@ public class PeerGroupTest extends TestWithPeerGroup {
 
         // Await the new filter.
         peerGroup.waitForJobQueue();
-        BloomFilter newFilter = assertNextMessageIs(p1, BloomFilter.class);
+        BloomFilter newFilter = awaitFilterUpdate(p1);
         assertNotEquals(filter, newFilter);
-        assertNextMessageIs(p1, MemoryPoolMessage.class);
         Ping ping = assertNextMessageIs(p1, Ping.class);
         inbound(p1, new Pong(ping.getNonce()));
 
@@ -863,8 +905,7 @@ public class PeerGroupTest extends TestWithPeerGroup {
 
         // It happened again.
         peerGroup.waitForJobQueue();
-        newFilter = assertNextMessageIs(p1, BloomFilter.class);
-        assertNextMessageIs(p1, MemoryPoolMessage.class);
+        newFilter = awaitFilterUpdate(p1);
         inbound(p1, new Pong(assertNextMessageIs(p1, Ping.class).getNonce()));
         assertNextMessageIs(p1, GetDataMessage.class);
         newBlocks = blocks.subList(6, blocks.size());
@@ -877,6 +918,14 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertEquals(blocks.get(blocks.size() - 1).getHash(), blockChain.getChainHead().getHeader().getHash());
     }
 
+    // Reads a new filter or additions to the last one up to the following mempool query, and returns the filter.
+    private BloomFilter awaitFilterUpdate(InboundMessageQueuer q) throws Exception {
+        Message m;
+        while (!((m = waitForOutbound(q)) instanceof MemoryPoolMessage))
+            assertTrue(m instanceof BloomFilter || m instanceof FilterAddMessage);
+        return new BloomFilter(UNITTEST, q.lastReceivedFilter.bitcoinSerialize());
+    }
+
     private void filterAndSend(InboundMessageQueuer p1, List<Block> blocks, BloomFilter filter) {
         for (Block block : blocks) {
             FilteredBlock fb = filter.applyAndUpdate(block);
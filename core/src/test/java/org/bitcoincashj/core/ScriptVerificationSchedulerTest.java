@@ -0,0 +1,186 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.core;
+
+import org.bitcoincashj.crypto.SchnorrSignature;
+import org.bitcoincashj.crypto.TransactionSignature;
+import org.bitcoincashj.params.UnitTestParams;
+import org.bitcoincashj.script.Script;
+import org.bitcoincashj.script.Script.VerifyFlag;
+import org.bitcoincashj.script.ScriptBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ScriptVerificationSchedulerTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+    private static final Set<VerifyFlag> FLAGS = EnumSet.of(VerifyFlag.P2SH, VerifyFlag.STRICTENC);
+
+    private Context context;
+    private ScriptVerificationScheduler scheduler;
+    private ECKey key;
+    private Script scriptPubKey;
+
+    @Before
+    public void setUp() {
+        context = new Context(UNITTEST);
+        scheduler = new ScriptVerificationScheduler(2, 2);
+        key = new ECKey();
+        scriptPubKey = ScriptBuilder.createOutputScript(Address.fromKey(UNITTEST, key));
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    private Transaction createSpend(int inputs, List<UTXO> prevOuts) {
+        Transaction tx = new Transaction(UNITTEST);
+        tx.addOutput(Coin.COIN, Address.fromKey(UNITTEST, new ECKey()));
+        for (int i = 0; i < inputs; i++) {
+            Sha256Hash prevTxHash = Sha256Hash.of(new byte[] { (byte) i });
+            tx.addInput(prevTxHash, i, new Script(new byte[0]));
+            prevOuts.add(new UTXO(prevTxHash, i, Coin.COIN.add(Coin.valueOf(i)), 1, false, scriptPubKey));
+        }
+        for (int i = 0; i < inputs; i++)
+            sign(tx, i, prevOuts.get(i).getValue());
+        return tx;
+    }
+
+    private void sign(Transaction tx, int index, Coin value) {
+        TransactionSignature signature = tx.calculateWitnessSignature(index, key, scriptPubKey.getProgram(), value,
+                Transaction.SigHash.ALL, false);
+        tx.getInput(index).setScriptSig(ScriptBuilder.createInputScript(signature, key));
+    }
+
+    @Test
+    public void validBlock() throws Exception {
+        ScriptVerificationScheduler.BlockVerification verification = scheduler.startBlock(context, true);
+        for (int inputs : new int[] { 1, 5, 2 }) {
+            List<UTXO> prevOuts = new ArrayList<>();
+            Transaction tx = createSpend(inputs, prevOuts);
+            verification.add(tx, prevOuts, FLAGS);
+        }
+        verification.await();
+        assertEquals(1, scheduler.getBlocksVerified());
+        assertEquals(0, scheduler.getQueueDepth());
+    }
+
+    @Test
+    public void invalidInputInLargeTransaction() throws Exception {
+        ScriptVerificationScheduler.BlockVerification verification = scheduler.startBlock(context, true);
+        List<UTXO> prevOuts = new ArrayList<>();
+        Transaction tx = createSpend(7, prevOuts);
+        // Sign input 5 for the wrong amount, so that only its signature check fails.
+        sign(tx, 5, Coin.FIFTY_COINS);
+        verification.add(tx, prevOuts, FLAGS);
+        try {
+            verification.await();
+            fail();
+        } catch (VerificationException e) {
+            // expected
+        }
+        assertEquals(1, scheduler.getBlocksVerified());
+    }
+
+    @Test
+    public void schnorrSignaturesAreBatched() throws Exception {
+        SignatureCache previousCache = SignatureCache.get();
+        SignatureCache.set(new SignatureCache(0));
+        try {
+            List<UTXO> prevOuts = new ArrayList<>();
+            Transaction tx = createSpend(4, prevOuts);
+            for (int i = 0; i < 4; i++)
+                signSchnorr(tx, i, i == 2 ? Coin.FIFTY_COINS : prevOuts.get(i).getValue());
+
+            ScriptVerificationScheduler.BlockVerification verification = scheduler.startBlock(context, true);
+            verification.add(tx, prevOuts, FLAGS);
+            try {
+                verification.await();
+                fail();
+            } catch (VerificationException e) {
+                // expected, found by checking individually after the batch failed
+            }
+
+            signSchnorr(tx, 2, prevOuts.get(2).getValue());
+            verification = scheduler.startBlock(context, true);
+            verification.add(tx, prevOuts, FLAGS);
+            verification.await();
+        } finally {
+            SignatureCache.set(previousCache);
+        }
+    }
+
+    private void signSchnorr(Transaction tx, int index, Coin value) {
+        SchnorrSignature signature = tx.calculateSchnorrSignature(index, key, scriptPubKey.getProgram(), value,
+                Transaction.SigHash.ALL, false);
+        tx.getInput(index).setScriptSig(new ScriptBuilder().data(signature.encodeToBitcoin()).data(key.getPubKey()).build());
+    }
+
+    @Test
+    public void inputsOfOneTransactionOnSeveralThreads() throws Exception {
+        ScriptVerificationScheduler oneInputPerTask = new ScriptVerificationScheduler(4, 1);
+        try {
+            List<UTXO> prevOuts = new ArrayList<>();
+            Transaction tx = createSpend(40, prevOuts);
+            byte[] serialized = tx.bitcoinSerialize();
+            for (int i = 0; i < 20; i++) {
+                ScriptVerificationScheduler.BlockVerification verification = oneInputPerTask.startBlock(context, false);
+                verification.add(tx, prevOuts, FLAGS);
+                verification.await();
+            }
+            // The transaction isn't changed by verifying it.
+            assertArrayEquals(serialized, tx.bitcoinSerialize());
+        } finally {
+            oneInputPerTask.shutdown();
+        }
+    }
+
+    @Test
+    public void defaultSchedulerSurvivesShutdown() throws Exception {
+        ScriptVerificationScheduler.getDefault().shutdown();
+        assertSame(ScriptVerificationScheduler.getDefault(), ScriptVerificationScheduler.getDefault());
+        ScriptVerificationScheduler.BlockVerification verification =
+                ScriptVerificationScheduler.getDefault().startBlock(context, false);
+        List<UTXO> prevOuts = new ArrayList<>();
+        verification.add(createSpend(2, prevOuts), prevOuts, FLAGS);
+        verification.await();
+    }
+
+    @Test
+    public void cancel() {
+        ScriptVerificationScheduler.BlockVerification verification = scheduler.startBlock(context, false);
+        List<UTXO> prevOuts = new ArrayList<>();
+        verification.add(createSpend(3, prevOuts), prevOuts, FLAGS);
+        verification.cancel();
+        verification.cancel();
+        assertEquals(1, scheduler.getBlocksVerified());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void scriptCountMustMatchInputs() {
+        List<UTXO> prevOuts = new ArrayList<>();
+        Transaction tx = createSpend(2, prevOuts);
+        prevOuts.remove(0);
+        scheduler.startBlock(context, false).add(tx, prevOuts, FLAGS);
+    }
+}
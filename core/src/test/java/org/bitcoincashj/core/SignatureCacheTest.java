@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.core;
+
+import org.bitcoincashj.crypto.SchnorrSignature;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SignatureCacheTest {
+    private SignatureCache previous;
+    private SignatureCache cache;
+
+    @Before
+    public void setUp() {
+        previous = SignatureCache.get();
+        cache = new SignatureCache(10);
+        SignatureCache.set(cache);
+    }
+
+    @After
+    public void tearDown() {
+        SignatureCache.set(previous);
+    }
+
+    @Test
+    public void ecdsaSignatureIsVerifiedOnce() {
+        ECKey key = new ECKey();
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+        ECKey.ECDSASignature signature = key.sign(hash);
+
+        assertTrue(ECKey.verify(hash.getBytes(), signature, key.getPubKey()));
+        assertEquals(0, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.size());
+
+        assertTrue(ECKey.verify(hash.getBytes(), signature, key.getPubKey()));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void schnorrSignatureIsVerifiedOnce() {
+        ECKey key = new ECKey();
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 2 });
+        SchnorrSignature signature = new SchnorrSignature(SchnorrSignature.schnorr_sign(hash.getBytes(), key.getPrivKey()),
+                Transaction.SigHash.ALL, false, true);
+
+        assertTrue(key.verifySchnorr(hash, signature));
+        assertTrue(key.verifySchnorr(hash, signature));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void invalidSignaturesAreNotCached() {
+        ECKey key = new ECKey();
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 3 });
+        ECKey.ECDSASignature signature = key.sign(hash);
+        Sha256Hash otherHash = Sha256Hash.of(new byte[] { 4 });
+
+        assertFalse(ECKey.verify(otherHash.getBytes(), signature, key.getPubKey()));
+        assertFalse(ECKey.verify(otherHash.getBytes(), signature, key.getPubKey()));
+        assertEquals(0, cache.getHitCount());
+        assertEquals(0, cache.size());
+        // A valid signature over one hash must not make the same signature valid for another.
+        assertTrue(ECKey.verify(hash.getBytes(), signature, key.getPubKey()));
+        assertFalse(ECKey.verify(otherHash.getBytes(), signature, key.getPubKey()));
+        assertFalse(new ECKey().verify(hash, signature));
+    }
+
+    @Test
+    public void partsDontRunIntoEachOther() {
+        byte[] sigHash = new byte[32];
+        byte[] pubKey = new byte[33];
+        byte[] signature = new byte[71];
+        pubKey[0] = 2;
+        signature[0] = 0x30;
+        signature[1] = 68;
+        cache.addVerifiedEcdsa(sigHash, signature, pubKey);
+        assertTrue(cache.isVerifiedEcdsa(sigHash, signature, pubKey));
+
+        // The same bytes in a row, split up differently: the hash takes in the public key, whose length is then read
+        // from the signature.
+        byte[] longerSigHash = new byte[sigHash.length + 1 + pubKey.length];
+        longerSigHash[sigHash.length] = (byte) pubKey.length;
+        System.arraycopy(pubKey, 0, longerSigHash, sigHash.length + 1, pubKey.length);
+        byte[] otherPubKey = new byte[signature[0]];
+        System.arraycopy(signature, 1, otherPubKey, 0, otherPubKey.length);
+        byte[] otherSignature = new byte[signature.length - 1 - otherPubKey.length];
+        System.arraycopy(signature, 1 + otherPubKey.length, otherSignature, 0, otherSignature.length);
+        assertFalse(cache.isVerifiedEcdsa(longerSigHash, otherSignature, otherPubKey));
+    }
+
+    @Test
+    public void bounded() {
+        ECKey key = new ECKey();
+        for (int i = 0; i < 20; i++) {
+            Sha256Hash hash = Sha256Hash.of(new byte[] { (byte) i });
+            assertTrue(ECKey.verify(hash.getBytes(), key.sign(hash), key.getPubKey()));
+        }
+        assertTrue(cache.size() <= 10);
+    }
+}
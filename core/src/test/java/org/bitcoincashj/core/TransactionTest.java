@@ -18,6 +18,7 @@
 package org.bitcoincashj.core;
 
 import org.bitcoincashj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoincashj.crypto.TransactionSignature;
 import org.bitcoincashj.params.TestNet3Params;
 import org.bitcoincashj.params.UnitTestParams;
 import org.bitcoincashj.script.Script;
@@ -428,4 +429,71 @@ public class TransactionTest {
         tx = serializer.withProtocolVersion(protoVersionNoWitness).makeTransaction(HEX.decode(txHex));
         assertEquals(txHex, tx.toHexString());
     }
+
+    private static Sha256Hash uncachedSigHash(Transaction tx, int inputIndex, Script scriptCode, Transaction.SigHash type) {
+        Transaction copy = UNITTEST.getDefaultSerializer().makeTransaction(tx.bitcoinSerialize());
+        return copy.hashForSignatureWitness(inputIndex, scriptCode, Coin.COIN, type, false);
+    }
+
+    @Test
+    public void witnessSigHashFollowsMutations() {
+        Script scriptCode = ScriptBuilder.createOutputScript(ADDRESS);
+        Transaction tx = new Transaction(UNITTEST);
+        for (int i = 0; i < 3; i++)
+            tx.addInput(Sha256Hash.of(new byte[] { (byte) i }), i, new Script(new byte[0]));
+        tx.addOutput(Coin.COIN, ADDRESS);
+
+        Sha256Hash before = tx.hashForSignatureWitness(0, scriptCode, Coin.COIN, Transaction.SigHash.ALL, false);
+        assertEquals(uncachedSigHash(tx, 0, scriptCode, Transaction.SigHash.ALL), before);
+
+        tx.getInput(1).setSequenceNumber(0);
+        Sha256Hash afterSequence = tx.hashForSignatureWitness(0, scriptCode, Coin.COIN, Transaction.SigHash.ALL, false);
+        assertNotEquals(before, afterSequence);
+        assertEquals(uncachedSigHash(tx, 0, scriptCode, Transaction.SigHash.ALL), afterSequence);
+
+        tx.addOutput(Coin.CENT, ADDRESS);
+        Sha256Hash afterOutput = tx.hashForSignatureWitness(0, scriptCode, Coin.COIN, Transaction.SigHash.ALL, false);
+        assertNotEquals(afterSequence, afterOutput);
+        assertEquals(uncachedSigHash(tx, 0, scriptCode, Transaction.SigHash.ALL), afterOutput);
+
+        tx.getOutput(1).setValue(Coin.MILLICOIN);
+        Sha256Hash afterValue = tx.hashForSignatureWitness(0, scriptCode, Coin.COIN, Transaction.SigHash.ALL, false);
+        assertNotEquals(afterOutput, afterValue);
+        assertEquals(uncachedSigHash(tx, 0, scriptCode, Transaction.SigHash.ALL), afterValue);
+
+        tx.getInputs().remove(2);
+        Sha256Hash afterRemove = tx.hashForSignatureWitness(0, scriptCode, Coin.COIN, Transaction.SigHash.ALL, false);
+        assertNotEquals(afterValue, afterRemove);
+        assertEquals(uncachedSigHash(tx, 0, scriptCode, Transaction.SigHash.ALL), afterRemove);
+
+        tx.getInputs().set(1, new TransactionInput(UNITTEST, tx, new byte[0],
+                new TransactionOutPoint(UNITTEST, 7, Sha256Hash.of(new byte[] { 7 }))));
+        Sha256Hash afterReplace = tx.hashForSignatureWitness(0, scriptCode, Coin.COIN, Transaction.SigHash.ALL, false);
+        assertNotEquals(afterRemove, afterReplace);
+        assertEquals(uncachedSigHash(tx, 0, scriptCode, Transaction.SigHash.ALL), afterReplace);
+
+        tx.getInput(1).getOutpoint().setIndex(8);
+        Sha256Hash afterOutpoint = tx.hashForSignatureWitness(0, scriptCode, Coin.COIN, Transaction.SigHash.ALL, false);
+        assertNotEquals(afterReplace, afterOutpoint);
+        assertEquals(uncachedSigHash(tx, 0, scriptCode, Transaction.SigHash.ALL), afterOutpoint);
+    }
+
+    @Test
+    public void witnessSigHashUnaffectedBySigningOtherInputs() {
+        ECKey key = new ECKey();
+        Script scriptCode = ScriptBuilder.createOutputScript(ADDRESS);
+        Transaction tx = new Transaction(UNITTEST);
+        for (int i = 0; i < 3; i++)
+            tx.addInput(Sha256Hash.of(new byte[] { (byte) i }), i, new Script(new byte[0]));
+        tx.addOutput(Coin.COIN, ADDRESS);
+
+        for (int i = 0; i < 3; i++) {
+            for (Transaction.SigHash type : new Transaction.SigHash[] { Transaction.SigHash.ALL, Transaction.SigHash.SINGLE, Transaction.SigHash.NONE })
+                assertEquals(uncachedSigHash(tx, i, scriptCode, type),
+                        tx.hashForSignatureWitness(i, scriptCode, Coin.COIN, type, false));
+            TransactionSignature signature = tx.calculateWitnessSignature(i, key, scriptCode.getProgram(), Coin.COIN,
+                    Transaction.SigHash.ALL, false);
+            tx.getInput(i).setScriptSig(ScriptBuilder.createInputScript(signature, key));
+        }
+    }
 }
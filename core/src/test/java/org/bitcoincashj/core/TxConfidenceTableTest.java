@@ -24,6 +24,11 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import static org.bitcoincashj.core.Coin.COIN;
 import static org.easymock.EasyMock.*;
@@ -136,4 +141,52 @@ public class TxConfidenceTableTest {
         assertEquals(3, tx2.getConfidence().numBroadcastPeers());
         assertEquals(3, table.numBroadcastPeers(tx1.getTxId()));
     }
+
+    @Test
+    public void sizeIsBoundedAcrossShards() throws Exception {
+        TxConfidenceTable table = new TxConfidenceTable(64, 4);
+        List<TransactionConfidence> confidences = new ArrayList<>();
+        for (int i = 0; i < 200; i++)
+            confidences.add(table.seen(Sha256Hash.of(new byte[] { (byte) i }), address1));
+        assertTrue(table.size() <= 64);
+        int tracked = 0;
+        for (TransactionConfidence confidence : confidences)
+            if (table.get(confidence.getTransactionHash()) != null)
+                tracked++;
+        assertEquals(table.size(), tracked);
+        // The most recently seen hash is never the one evicted.
+        assertSame(confidences.get(199), table.get(confidences.get(199).getTransactionHash()));
+    }
+
+    @Test
+    public void broadcastPeers() throws Exception {
+        TransactionConfidence confidence = table.seen(tx1.getTxId(), address1);
+        table.seen(tx1.getTxId(), address3);
+        table.seen(tx1.getTxId(), address1);
+        assertEquals(2, confidence.numBroadcastPeers());
+        assertTrue(confidence.wasBroadcastBy(address1));
+        assertFalse(confidence.wasBroadcastBy(address2));
+        assertEquals(new HashSet<>(Arrays.asList(address1, address3)), confidence.getBroadcastBy());
+
+        TransactionConfidence copy = confidence.duplicate();
+        assertEquals(confidence.getBroadcastBy(), copy.getBroadcastBy());
+        copy.markBroadcastBy(address2);
+        assertEquals(3, copy.numBroadcastPeers());
+        assertEquals(2, confidence.numBroadcastPeers());
+
+        // Many peers, each announcing twice.
+        Set<PeerAddress> peers = new HashSet<>();
+        for (int i = 0; i < 50; i++)
+            peers.add(new PeerAddress(UNITTEST, InetAddress.getByAddress(new byte[]{10, 0, 0, (byte) i}), 8333));
+        for (PeerAddress peer : peers) {
+            assertTrue(copy.markBroadcastBy(peer));
+            assertFalse(copy.markBroadcastBy(peer));
+        }
+        assertEquals(53, copy.numBroadcastPeers());
+        assertTrue(copy.getBroadcastBy().containsAll(peers));
+        copy.setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+        copy.clearBroadcastBy();
+        assertEquals(0, copy.numBroadcastPeers());
+        assertFalse(copy.wasBroadcastBy(address1));
+    }
 }
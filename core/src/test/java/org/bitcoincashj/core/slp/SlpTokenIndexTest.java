@@ -0,0 +1,102 @@
+package org.bitcoincashj.core.slp;
+
+import org.bitcoincashj.core.Coin;
+import org.bitcoincashj.core.ECKey;
+import org.bitcoincashj.core.NetworkParameters;
+import org.bitcoincashj.core.Transaction;
+import org.bitcoincashj.core.TransactionOutput;
+import org.bitcoincashj.params.UnitTestParams;
+import org.bitcoincashj.script.Script;
+import org.bitcoincashj.script.ScriptBuilder;
+import org.bitcoincashj.script.ScriptChunk;
+import org.bitcoincashj.script.ScriptOpCodes;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.*;
+
+public class SlpTokenIndexTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+    private static final String TOKEN_A = "aa";
+    private static final String TOKEN_B = "bb";
+
+    private SlpTokenIndex index;
+    private Transaction tx;
+
+    @Before
+    public void setUp() {
+        index = new SlpTokenIndex();
+        tx = new Transaction(UNITTEST);
+        for (int i = 0; i < 4; i++)
+            tx.addOutput(Coin.valueOf(546), new ECKey());
+    }
+
+    private SlpUTXO utxo(String tokenId, long amount, int outputIndex) {
+        TransactionOutput output = tx.getOutput(outputIndex);
+        return new SlpUTXO(tokenId, amount, output, SlpUTXO.SlpUtxoType.NORMAL);
+    }
+
+    @Test
+    public void addAndRemoveTrackBalances() {
+        assertTrue(index.add(utxo(TOKEN_A, 100, 0)));
+        assertTrue(index.add(utxo(TOKEN_A, 50, 1)));
+        assertTrue(index.add(utxo(TOKEN_B, 7, 2)));
+        assertEquals(3, index.size());
+        assertEquals(BigInteger.valueOf(150), index.getRawBalance(TOKEN_A));
+        assertEquals(BigInteger.valueOf(7), index.getRawBalance(TOKEN_B));
+        assertEquals(2, index.getUtxos(TOKEN_A).size());
+
+        assertNotNull(index.remove(tx.getOutput(0).getOutPointFor()));
+        assertEquals(BigInteger.valueOf(50), index.getRawBalance(TOKEN_A));
+        assertNull(index.remove(tx.getOutput(0).getOutPointFor()));
+
+        index.remove(tx.getOutput(2).getOutPointFor());
+        assertFalse(index.hasToken(TOKEN_B));
+        assertEquals(BigInteger.ZERO, index.getRawBalance(TOKEN_B));
+        assertEquals(1, index.getTokenIds().size());
+    }
+
+    @Test
+    public void duplicateOutpointIgnored() {
+        assertTrue(index.add(utxo(TOKEN_A, 100, 0)));
+        assertFalse(index.add(utxo(TOKEN_A, 100, 0)));
+        assertEquals(BigInteger.valueOf(100), index.getRawBalance(TOKEN_A));
+    }
+
+    @Test
+    public void balancesAreExact() {
+        index.add(utxo(TOKEN_A, Long.MAX_VALUE, 0));
+        index.add(utxo(TOKEN_A, Long.MAX_VALUE, 1));
+        assertEquals(BigInteger.valueOf(Long.MAX_VALUE).shiftLeft(1), index.getRawBalance(TOKEN_A));
+    }
+
+    @Test
+    public void amountsAreUnsigned() {
+        // A SEND of the two largest amounts a uint64 can hold to the first two outputs.
+        String tokenId = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+        Transaction send = new Transaction(UNITTEST);
+        Script opReturn = new ScriptBuilder().op(ScriptOpCodes.OP_RETURN)
+                .data(Hex.decode(SlpOpReturn.slpProtocolId))
+                .addChunk(new ScriptChunk(1, Hex.decode(SlpOpReturn.tokenType1Id)))
+                .data(Hex.decode(SlpOpReturn.sendTxTypeId))
+                .data(Hex.decode(tokenId))
+                .data(Hex.decode("ffffffffffffffff"))
+                .data(Hex.decode("fffffffffffffffe"))
+                .build();
+        send.addOutput(Coin.ZERO, opReturn);
+        send.addOutput(Coin.valueOf(546), new ECKey());
+        send.addOutput(Coin.valueOf(546), new ECKey());
+        SlpOpReturn slpOpReturn = new SlpOpReturn(send);
+        assertEquals(-2L, slpOpReturn.getRawAmountOfUtxo(1));
+
+        for (SlpUTXO utxo : new SlpTransaction(send).getSlpUtxos())
+            index.add(utxo);
+        BigInteger max = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+        assertEquals(max.shiftLeft(1).subtract(BigInteger.ONE), index.getRawBalance(tokenId));
+        index.remove(send.getOutput(1).getOutPointFor());
+        assertEquals(max.subtract(BigInteger.ONE), index.getRawBalance(tokenId));
+    }
+}
@@ -22,6 +22,8 @@ import org.bouncycastle.crypto.params.KeyParameter;
 import org.junit.Test;
 
 import java.math.BigInteger;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.junit.Assert.*;
 
@@ -133,4 +135,24 @@ public class HDKeyDerivationTest {
         assertEquals(EXPECTED_CHILD_PRIVATE_KEY, fromPublicWithInversion.getPrivateKeyAsHex());
         assertEquals(EXPECTED_CHILD_PUBLIC_KEY, fromPublicWithInversion.getPublicKeyAsHex());
     }
+
+    @Test
+    public void testDeriveChildKeysFromPublic() {
+        DeterministicKey parent = new DeterministicKey(HDPath.M(), new byte[32], BigInteger.TEN, null);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            List<DeterministicKey> keys = HDKeyDerivation.deriveChildKeysFromPublic(parent, 5, 100, pool);
+            assertEquals(100, keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                DeterministicKey expected = HDKeyDerivation.deriveChildKey(parent, 5 + i).dropPrivateBytes();
+                DeterministicKey key = keys.get(i);
+                assertEquals(expected, key);
+                assertEquals(new ChildNumber(5 + i), key.getChildNumber());
+                assertSame(parent, key.getParent());
+            }
+            assertTrue(HDKeyDerivation.deriveChildKeysFromPublic(parent, 0, 0, pool).isEmpty());
+        } finally {
+            pool.shutdown();
+        }
+    }
 }
@@ -0,0 +1,72 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.crypto;
+
+import org.bitcoincashj.core.ECKey;
+import org.bouncycastle.math.ec.ECPoint;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LazyECPointTest {
+    @Test
+    public void fromPointsNormalizesTogether() {
+        ECPoint[] points = new ECPoint[10];
+        for (int i = 0; i < points.length; i++) {
+            ECPoint g = ECKey.publicPointFromPrivate(BigInteger.valueOf(i + 1));
+            // A sum is in projective coordinates until it is normalized.
+            points[i] = g.add(ECKey.CURVE.getG());
+        }
+        assertFalse(points[0].isNormalized());
+        List<LazyECPoint> lazyPoints = LazyECPoint.fromPoints(points, true);
+        assertEquals(points.length, lazyPoints.size());
+        for (int i = 0; i < points.length; i++) {
+            LazyECPoint lazyPoint = lazyPoints.get(i);
+            assertTrue(lazyPoint.get().isNormalized());
+            assertEquals(points[i].normalize(), lazyPoint.get());
+            assertArrayEquals(points[i].getEncoded(true), lazyPoint.getEncoded());
+        }
+        // The given array is left alone.
+        assertFalse(points[0].isNormalized());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fromPointsRejectsInfinity() {
+        LazyECPoint.fromPoints(new ECPoint[] { ECKey.CURVE.getCurve().getInfinity() }, true);
+    }
+
+    @Test
+    public void decodedPointsAreShared() {
+        byte[] bits = new ECKey().getPubKey();
+        ECPoint first = new LazyECPoint(ECKey.CURVE.getCurve(), bits).get();
+        ECPoint second = new LazyECPoint(ECKey.CURVE.getCurve(), bits.clone()).get();
+        assertSame(first, second);
+    }
+
+    @Test
+    public void encodingIsKept() {
+        LazyECPoint lazyPoint = new LazyECPoint(ECKey.publicPointFromPrivate(BigInteger.TEN), true);
+        byte[] encoded = lazyPoint.getEncoded();
+        assertArrayEquals(encoded, lazyPoint.getEncoded());
+        assertArrayEquals(encoded, lazyPoint.getEncoded(true));
+        // Callers get copies they may modify.
+        encoded[0] = 0;
+        assertNotEquals(0, lazyPoint.getEncoded()[0]);
+        assertEquals(65, lazyPoint.getEncoded(false).length);
+    }
+}
@@ -0,0 +1,113 @@
+package org.bitcoincashj.crypto;
+
+import org.bitcoincashj.core.ECKey;
+import org.bitcoincashj.core.Sha256Hash;
+import org.bitcoincashj.core.SignatureCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Scanner;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class SchnorrBatchVerifierTest {
+    private SignatureCache previousCache;
+
+    @Before
+    public void setUp() {
+        previousCache = SignatureCache.get();
+        SignatureCache.set(new SignatureCache(0));
+    }
+
+    @After
+    public void tearDown() {
+        SignatureCache.set(previousCache);
+    }
+
+    private static List<String[]> readVectors() throws Exception {
+        List<String[]> vectors = new ArrayList<>();
+        try (Scanner scanner = new Scanner(new File(SchnorrBatchVerifierTest.class.getResource("schnorr-test-vectors.csv").getPath()))) {
+            scanner.nextLine(); // heading
+            while (scanner.hasNextLine())
+                vectors.add(scanner.nextLine().split(",", -1));
+        }
+        return vectors;
+    }
+
+    // The vectors whose signature isn't even a whole number of bytes, which the batch can't take.
+    private static final Set<String> MALFORMED = Collections.singleton("9");
+
+    private static boolean add(SchnorrBatchVerifier batch, String[] vector) {
+        if (vector[4].length() % 2 != 0)
+            return false;
+        return batch.add(SchnorrSignature.hexStringToByteArray(vector[3]), SchnorrSignature.hexStringToByteArray(vector[2]),
+                SchnorrSignature.hexStringToByteArray(vector[4]));
+    }
+
+    @Test
+    public void emptyBatch() {
+        assertTrue(new SchnorrBatchVerifier().verify());
+    }
+
+    @Test
+    public void testVectors() throws Exception {
+        List<String[]> vectors = readVectors();
+        SchnorrBatchVerifier valid = new SchnorrBatchVerifier();
+        for (String[] vector : vectors)
+            if (vector[5].equals("TRUE"))
+                assertTrue(add(valid, vector));
+        assertTrue(valid.verify());
+
+        for (String[] vector : vectors) {
+            SchnorrBatchVerifier batch = new SchnorrBatchVerifier();
+            batch.addAll(valid);
+            boolean malformed = MALFORMED.contains(vector[0]);
+            assertEquals("vector " + vector[0], !malformed, add(batch, vector));
+            if (malformed)
+                assertEquals("vector " + vector[0], "FALSE", vector[5]);
+            else
+                assertEquals("vector " + vector[0], vector[5].equals("TRUE"), batch.verify());
+        }
+    }
+
+    @Test
+    public void oneBadSignatureFailsTheBatch() {
+        SchnorrBatchVerifier batch = new SchnorrBatchVerifier();
+        byte[][] sigs = new byte[20][];
+        for (int i = 0; i < 20; i++) {
+            ECKey key = new ECKey();
+            byte[] msg = Sha256Hash.of(new byte[] { (byte) i }).getBytes();
+            sigs[i] = SchnorrSignature.schnorr_sign(msg, key.getPrivKey());
+            assertTrue(batch.add(msg, key.getPubKey(), sigs[i]));
+        }
+        assertEquals(20, batch.size());
+        assertTrue(batch.verify());
+
+        sigs[7][40] ^= 1;
+        assertFalse(batch.verify());
+    }
+
+    @Test
+    public void verifiedSignaturesAreCached() {
+        SignatureCache cache = new SignatureCache(10);
+        SignatureCache.set(cache);
+        ECKey key = new ECKey();
+        byte[] msg = Sha256Hash.of(new byte[] { 1 }).getBytes();
+        byte[] sig = SchnorrSignature.schnorr_sign(msg, key.getPrivKey());
+
+        SchnorrBatchVerifier batch = new SchnorrBatchVerifier();
+        assertTrue(batch.add(msg, key.getPubKey(), sig));
+        assertTrue(batch.verify());
+        assertTrue(cache.isVerifiedSchnorr(msg, sig, key.getPubKey()));
+
+        SchnorrBatchVerifier next = new SchnorrBatchVerifier();
+        assertTrue(next.add(msg, key.getPubKey(), sig));
+        assertEquals(0, next.size());
+    }
+}
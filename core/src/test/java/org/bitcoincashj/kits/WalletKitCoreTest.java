@@ -0,0 +1,218 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.kits;
+
+import org.bitcoincashj.core.*;
+import org.bitcoincashj.core.slp.SlpOpReturn;
+import org.bitcoincashj.core.slp.SlpValidationCache;
+import org.bitcoincashj.core.slp.opreturn.SlpOpReturnOutputSend;
+import org.bitcoincashj.net.SlpDbProcessor;
+import org.bitcoincashj.net.SlpValidationService;
+import org.bitcoincashj.script.Script;
+import org.bitcoincashj.testing.TestWithWallet;
+import org.bitcoincashj.wallet.Wallet;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class WalletKitCoreTest extends TestWithWallet {
+    private static final String TOKEN_ID = "aa00000000000000000000000000000000000000000000000000000000000001";
+    private static final Coin DUST = Coin.valueOf(546);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeSlpDb slpDb;
+    private TestKit kit;
+    private int inputs;
+
+    // Answers validity and token queries from memory instead of asking SLPDB.
+    private static class FakeSlpDb extends SlpDbProcessor {
+        final Set<String> valid = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final AtomicInteger validityQueries = new AtomicInteger();
+        final AtomicInteger tokenQueries = new AtomicInteger();
+        volatile boolean knowsToken = true;
+        volatile CountDownLatch validationGate = new CountDownLatch(0);
+
+        @Override
+        public Set<String> getValidSlpTxs(List<String> txIds, int tries) throws IOException {
+            validityQueries.incrementAndGet();
+            try {
+                validationGate.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            Set<String> result = new HashSet<>(txIds);
+            result.retainAll(valid);
+            return result;
+        }
+
+        @Override
+        public JSONObject getTokenData(String base64Query) {
+            tokenQueries.incrementAndGet();
+            return knowsToken ? new JSONObject().put("decimals", 0).put("ticker", "TT") : null;
+        }
+    }
+
+    private class TestKit extends WalletKitCore {
+        TestKit(Wallet wallet) throws IOException {
+            this.params = UNITTEST;
+            this.directory = folder.getRoot();
+            this.filePrefix = "test";
+            this.tokensFile = new File(directory, "test.tokens");
+            this.nftsFile = new File(directory, "test.nfts");
+            this.vWallet = wallet;
+            this.slpDbProcessor = slpDb;
+            this.slpValidationService = new SlpValidationService(slpDb, new SlpValidationCache(new File(directory, "test.txs")));
+            this.slpRetryDelayMillis = 20;
+        }
+
+        @Override
+        public Wallet wallet() {
+            return vWallet;
+        }
+    }
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        slpDb = new FakeSlpDb();
+        kit = new TestKit(wallet);
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        kit.stopSlpIndexing();
+        super.tearDown();
+    }
+
+    // A valid SEND of the token, paying the amounts to the given address.
+    private Transaction tokenTx(Address to, long amount, long change, TransactionOutPoint... spends) {
+        Transaction tx = new Transaction(UNITTEST);
+        tx.addInput(Sha256Hash.of(new byte[] { (byte) inputs++ }), 0, new Script(new byte[0]));
+        for (TransactionOutPoint outPoint : spends)
+            tx.addInput(outPoint.getHash(), outPoint.getIndex(), new Script(new byte[0]));
+        tx.addOutput(Coin.ZERO, new SlpOpReturnOutputSend(TOKEN_ID, amount, change).getScript());
+        tx.addOutput(DUST, to);
+        if (change > 0)
+            tx.addOutput(DUST, to);
+        slpDb.valid.add(tx.getTxId().toString());
+        return tx;
+    }
+
+    private void awaitBalance(long balance) throws InterruptedException {
+        BigInteger expected = BigInteger.valueOf(balance);
+        for (int i = 0; i < 500 && !expected.equals(kit.getRawTokenBalance(SlpOpReturn.SlpTokenType.SLP, TOKEN_ID)); i++)
+            Thread.sleep(10);
+        assertEquals(expected, kit.getRawTokenBalance(SlpOpReturn.SlpTokenType.SLP, TOKEN_ID));
+    }
+
+    @Test(timeout = 10000)
+    public void scanRunsInTheBackgroundAndKeepsTransactionsReceivedMeanwhile() throws Exception {
+        sendMoneyToWallet(null, tokenTx(myAddress, 100, 50));
+        slpDb.validationGate = new CountDownLatch(1);
+        kit.startSlpIndexing();
+        // Returns while the scan waits for SLPDB.
+        assertTrue(kit.getSlpUtxos().isEmpty());
+        sendMoneyToWallet(null, tokenTx(myAddress, 7, 0));
+        slpDb.validationGate.countDown();
+        awaitBalance(157);
+        assertEquals(3, kit.getSlpUtxos().size());
+        assertEquals(3, kit.slpUtxos.size());
+        assertEquals(1, kit.slpBalances.size());
+    }
+
+    @Test(timeout = 10000)
+    public void deadTransactionGivesBackTheTokensItSpent() throws Exception {
+        kit.startSlpIndexing();
+        Transaction received = sendMoneyToWallet(null, tokenTx(myAddress, 100, 50));
+        awaitBalance(150);
+
+        // Spend the 100 tokens together with an output that isn't ours.
+        Address other = Address.fromKey(UNITTEST, new ECKey());
+        Transaction spend = tokenTx(other, 100, 0, received.getOutput(1).getOutPointFor());
+        sendMoneyToWallet(null, spend);
+        awaitBalance(50);
+
+        // Something else spends the output that isn't ours in a block, which kills the spend.
+        Transaction doubleSpend = new Transaction(UNITTEST);
+        TransactionInput foreign = spend.getInput(0);
+        doubleSpend.addInput(foreign.getOutpoint().getHash(), foreign.getOutpoint().getIndex(), new Script(new byte[0]));
+        doubleSpend.addOutput(DUST, other);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, doubleSpend);
+        assertEquals(TransactionConfidence.ConfidenceType.DEAD, spend.getConfidence().getConfidenceType());
+        awaitBalance(150);
+        assertEquals(2, kit.getSlpUtxos().size());
+    }
+
+    @Test(timeout = 10000)
+    public void missingTokenDetailsAreLookedUpAgain() throws Exception {
+        slpDb.knowsToken = false;
+        kit.startSlpIndexing();
+        sendMoneyToWallet(null, tokenTx(myAddress, 100, 0));
+        while (slpDb.tokenQueries.get() < 3)
+            Thread.sleep(10);
+        assertTrue(kit.getSlpUtxos().isEmpty());
+        slpDb.knowsToken = true;
+        awaitBalance(100);
+        assertNotNull(kit.getSlpToken(TOKEN_ID));
+    }
+
+    @Test(timeout = 10000)
+    public void transactionsUnknownToSlpDbAreAskedAboutAgain() throws Exception {
+        kit.startSlpIndexing();
+        Transaction tx = tokenTx(myAddress, 100, 0);
+        slpDb.valid.remove(tx.getTxId().toString());
+        sendMoneyToWallet(null, tx);
+        while (slpDb.validityQueries.get() < 3)
+            Thread.sleep(10);
+        assertTrue(kit.getSlpUtxos().isEmpty());
+        slpDb.valid.add(tx.getTxId().toString());
+        awaitBalance(100);
+    }
+
+    @Test(timeout = 10000)
+    public void nothingChangesAfterStopping() throws Exception {
+        slpDb.validationGate = new CountDownLatch(1);
+        kit.startSlpIndexing();
+        sendMoneyToWallet(null, tokenTx(myAddress, 100, 0));
+        while (slpDb.validityQueries.get() == 0)
+            Thread.sleep(10);
+        kit.stopSlpIndexing();
+        slpDb.validationGate.countDown();
+        sendMoneyToWallet(null, tokenTx(myAddress, 7, 0));
+        Thread.sleep(200);
+        assertTrue(kit.getSlpUtxos().isEmpty());
+        assertEquals(0, slpDb.tokenQueries.get());
+    }
+}
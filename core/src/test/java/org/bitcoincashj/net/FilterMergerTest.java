@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.net;
+
+import com.google.common.collect.ImmutableList;
+import org.bitcoincashj.core.Context;
+import org.bitcoincashj.core.ECKey;
+import org.bitcoincashj.core.NetworkParameters;
+import org.bitcoincashj.core.PeerFilterProvider;
+import org.bitcoincashj.params.UnitTestParams;
+import org.bitcoincashj.script.Script;
+import org.bitcoincashj.wallet.Wallet;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FilterMergerTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private Wallet wallet1, wallet2;
+    private ImmutableList<PeerFilterProvider> providers;
+    private FilterMerger merger;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(UNITTEST));
+        wallet1 = Wallet.createDeterministic(UNITTEST, Script.ScriptType.P2PKH);
+        wallet2 = Wallet.createDeterministic(UNITTEST, Script.ScriptType.P2PKH);
+        providers = ImmutableList.<PeerFilterProvider>of(wallet1, wallet2);
+        merger = new FilterMerger(0.0005);
+    }
+
+    @Test
+    public void calculateMergesAllProviders() {
+        ECKey key1 = wallet1.currentReceiveKey();
+        ECKey key2 = wallet2.currentReceiveKey();
+        FilterMerger.Result result = merger.calculate(providers);
+        assertTrue(result.changed);
+        assertTrue(result.filter.contains(key1.getPubKeyHash()));
+        assertTrue(result.filter.contains(key2.getPubKey()));
+        assertSame(result.filter, merger.getLastFilter());
+
+        assertFalse(merger.calculate(providers).changed);
+    }
+
+    @Test
+    public void insertedElementsNeedNoNewFilter() {
+        assertFalse(merger.insert(new ArrayList<byte[]>()));
+        merger.calculate(providers);
+        ECKey key = new ECKey();
+        wallet1.importKey(key);
+
+        assertTrue(merger.insert(ImmutableList.of(key.getPubKey(), key.getPubKeyHash())));
+        assertTrue(merger.getLastFilter().contains(key.getPubKey()));
+        assertTrue(merger.getLastFilter().contains(key.getPubKeyHash()));
+        // The calculated filter is the same as the one the key was inserted into.
+        assertFalse(merger.calculate(providers).changed);
+    }
+
+    @Test
+    public void saturatedFilterIsCalculatedAgain() {
+        merger.calculate(providers);
+        List<byte[]> elements = new ArrayList<>();
+        List<ECKey> keys = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            ECKey key = new ECKey();
+            keys.add(key);
+            elements.add(key.getPubKey());
+            elements.add(key.getPubKeyHash());
+        }
+        wallet2.importKeys(keys);
+
+        assertFalse(merger.insert(elements));
+        FilterMerger.Result result = merger.calculate(providers);
+        assertTrue(result.changed);
+        for (byte[] element : elements)
+            assertTrue(result.filter.contains(element));
+        assertTrue(result.filter.contains(wallet1.currentReceiveKey().getPubKey()));
+    }
+}
@@ -0,0 +1,188 @@
+package org.bitcoincashj.net;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.bitcoincashj.core.slp.SlpValidationCache;
+import org.bouncycastle.util.encoders.Base64;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SlpValidationServiceTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private final Set<String> validOnServer = new HashSet<>();
+    private final AtomicInteger queries = new AtomicInteger();
+    private volatile CountDownLatch answer = new CountDownLatch(0);
+    private String slpDbUrl;
+
+    @Before
+    public void setUp() throws Exception {
+        // Minimal stand-in for SLPDB that answers batched validity queries.
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/q/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                queries.incrementAndGet();
+                try {
+                    answer.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                String encoded = exchange.getRequestURI().getRawPath().substring("/q/".length());
+                JSONObject query = new JSONObject(new String(Base64.decode(encoded), StandardCharsets.UTF_8));
+                JSONArray txIds = query.getJSONObject("q").getJSONObject("find").getJSONObject("tx.h").getJSONArray("$in");
+                JSONArray confirmed = new JSONArray();
+                for (int i = 0; i < txIds.length(); i++) {
+                    String txId = txIds.getString(i);
+                    if (validOnServer.contains(txId))
+                        confirmed.put(new JSONObject().put("txid", txId).put("valid", true));
+                }
+                byte[] response = new JSONObject().put("c", confirmed).put("u", new JSONArray()).toString().getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, response.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(response);
+                }
+            }
+        });
+        server.start();
+        slpDbUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        answer.countDown();
+        server.stop(0);
+    }
+
+    private static String txId(int i) {
+        return String.format("%064x", i);
+    }
+
+    @Test
+    public void batchesLookupsAndCachesValidResults() throws Exception {
+        List<String> txIds = new ArrayList<>();
+        for (int i = 0; i < 120; i++) {
+            txIds.add(txId(i));
+            if (i % 3 == 0)
+                validOnServer.add(txId(i));
+        }
+        File cacheFile = new File(folder.getRoot(), "test.txs");
+        SlpValidationCache cache = new SlpValidationCache(cacheFile);
+        SlpValidationService service = new SlpValidationService(new SlpDbProcessor(slpDbUrl), cache, 50, 2, 1);
+
+        Set<String> valid = service.validate(txIds).get();
+        assertEquals(validOnServer, valid);
+        assertEquals(3, queries.get());
+        assertEquals(40, cache.size());
+
+        // Everything valid is answered from the cache; only the 80 unknown ones are asked again, in two batches.
+        assertEquals(validOnServer, service.validate(txIds).get());
+        assertEquals(5, queries.get());
+        assertTrue(service.isKnownValid(txId(3)));
+        assertFalse(service.isKnownValid(txId(4)));
+        service.shutdown();
+        cache.close();
+
+        SlpValidationCache reopened = new SlpValidationCache(cacheFile);
+        assertEquals(40, reopened.size());
+        assertTrue(reopened.contains(txId(117)));
+        reopened.close();
+    }
+
+    @Test
+    public void unreachableServerReportsNothingValid() throws Exception {
+        server.stop(0);
+        SlpValidationCache cache = new SlpValidationCache(new File(folder.getRoot(), "test.txs"));
+        SlpValidationService service = new SlpValidationService(new SlpDbProcessor(slpDbUrl), cache, 50, 1, 1);
+        List<String> txIds = new ArrayList<>();
+        txIds.add(txId(1));
+        assertTrue(service.validate(txIds).get().isEmpty());
+        assertEquals(0, cache.size());
+        service.shutdown();
+        cache.close();
+    }
+
+    @Test
+    public void shutdownCancelsUnansweredLookups() throws Exception {
+        answer = new CountDownLatch(1);
+        validOnServer.add(txId(1));
+        SlpValidationCache cache = new SlpValidationCache(new File(folder.getRoot(), "test.txs"));
+        SlpValidationService service = new SlpValidationService(new SlpDbProcessor(slpDbUrl), cache, 50, 1, 1);
+        List<String> txIds = new ArrayList<>();
+        txIds.add(txId(1));
+        Future<Set<String>> result = service.validate(txIds);
+        while (queries.get() == 0)
+            Thread.sleep(10);
+        service.shutdown();
+        assertTrue(result.isCancelled());
+        assertTrue(service.validate(txIds).isCancelled());
+        answer.countDown();
+        assertEquals(0, cache.size());
+        cache.close();
+    }
+
+    @Test
+    public void unrecordedResultsAreNotReportedValid() throws Exception {
+        answer = new CountDownLatch(1);
+        validOnServer.add(txId(1));
+        SlpValidationCache cache = new SlpValidationCache(new File(folder.getRoot(), "test.txs"));
+        SlpValidationService service = new SlpValidationService(new SlpDbProcessor(slpDbUrl), cache, 50, 1, 1);
+        List<String> txIds = new ArrayList<>();
+        txIds.add(txId(1));
+        Future<Set<String>> result = service.validate(txIds);
+        while (queries.get() == 0)
+            Thread.sleep(10);
+        cache.close();
+        answer.countDown();
+        try {
+            result.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        service.shutdown();
+    }
+
+    @Test
+    public void cacheIsReadOnFirstLookup() throws Exception {
+        File cacheFile = new File(folder.getRoot(), "test.txs");
+        Files.write(cacheFile.toPath(), (txId(1) + "\n").getBytes(StandardCharsets.UTF_8));
+        SlpValidationCache cache = new SlpValidationCache(cacheFile);
+        // Opening doesn't read the file yet, so what is written meanwhile is still seen.
+        Files.write(cacheFile.toPath(), (txId(2) + "\n").getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        assertTrue(cache.contains(txId(1)));
+        assertTrue(cache.contains(txId(2)));
+        assertTrue(cache.add(txId(3)));
+        assertFalse(cache.add(txId(1)));
+        cache.close();
+        SlpValidationCache reopened = new SlpValidationCache(cacheFile);
+        assertEquals(3, reopened.size());
+        reopened.close();
+    }
+}
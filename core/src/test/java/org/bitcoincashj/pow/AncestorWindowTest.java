@@ -0,0 +1,110 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.pow;
+
+import org.bitcoincashj.core.*;
+import org.bitcoincashj.params.UnitTestParams;
+import org.bitcoincashj.store.BlockStoreException;
+import org.bitcoincashj.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AncestorWindowTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private CountingBlockStore store;
+    private List<StoredBlock> blocks;
+
+    private static class CountingBlockStore extends MemoryBlockStore {
+        int gets;
+
+        CountingBlockStore(NetworkParameters params) {
+            super(params);
+        }
+
+        @Override
+        public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+            gets++;
+            return super.get(hash);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(UNITTEST));
+        store = new CountingBlockStore(UNITTEST);
+        blocks = new ArrayList<>();
+        StoredBlock prev = store.getChainHead();
+        blocks.add(prev);
+        for (int i = 0; i < 300; i++) {
+            prev = prev.build(prev.getHeader().createNextBlock(null).cloneAsHeader());
+            store.put(prev);
+            blocks.add(prev);
+        }
+        store.gets = 0;
+    }
+
+    @Test
+    public void ancestorsAreLookedUpOnce() throws Exception {
+        long medianTime = AbstractBlockChain.getMedianTimestampOfRecentBlocks(blocks.get(201), store);
+        store.gets = 0;
+        AncestorWindow window = new AncestorWindow(store);
+        window.add(blocks.get(200));
+        assertEquals(blocks.get(56), walkBack(blocks.get(200), 144, window));
+        assertEquals(144, store.gets);
+        // The next block finds all its ancestors in the window.
+        store.gets = 0;
+        window.add(blocks.get(201));
+        assertEquals(blocks.get(57), walkBack(blocks.get(201), 144, window));
+        assertEquals(medianTime, AbstractBlockChain.getMedianTimestampOfRecentBlocks(blocks.get(201), window));
+        assertEquals(0, store.gets);
+    }
+
+    @Test
+    public void oldestBlocksAreEvicted() throws Exception {
+        AncestorWindow window = new AncestorWindow(store, 4);
+        for (int i = 1; i <= 6; i++)
+            window.add(blocks.get(i));
+        assertEquals(blocks.get(6), window.get(blocks.get(6).getHeader().getHash()));
+        assertEquals(blocks.get(3), window.get(blocks.get(3).getHeader().getHash()));
+        assertEquals(0, store.gets);
+        // Blocks 1 and 2 were evicted, so they come from the store.
+        assertEquals(blocks.get(2), window.get(blocks.get(2).getHeader().getHash()));
+        assertEquals(1, store.gets);
+        assertNull(window.get(Sha256Hash.ZERO_HASH));
+    }
+
+    @Test
+    public void putGoesToTheStore() throws Exception {
+        AncestorWindow window = new AncestorWindow(store);
+        StoredBlock last = blocks.get(blocks.size() - 1);
+        StoredBlock next = last.build(last.getHeader().createNextBlock(null).cloneAsHeader());
+        window.put(next);
+        assertEquals(next, window.get(next.getHeader().getHash()));
+        assertEquals(0, store.gets);
+        assertEquals(next, store.get(next.getHeader().getHash()));
+    }
+
+    private static StoredBlock walkBack(StoredBlock block, int depth, AncestorWindow window) throws Exception {
+        for (int i = 0; i < depth; i++)
+            block = block.getPrev(window);
+        return block;
+    }
+}
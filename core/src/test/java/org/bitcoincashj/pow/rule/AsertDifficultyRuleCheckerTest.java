@@ -0,0 +1,101 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.pow.rule;
+
+import org.bitcoincashj.core.Block;
+import org.bitcoincashj.core.Context;
+import org.bitcoincashj.core.Sha256Hash;
+import org.bitcoincashj.core.StoredBlock;
+import org.bitcoincashj.core.Transaction;
+import org.bitcoincashj.params.UnitTestParams;
+import org.bitcoincashj.store.BlockStore;
+import org.bitcoincashj.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class AsertDifficultyRuleCheckerTest {
+    // Unit test parameters without a fixed reference block, where ASERT activates a while after genesis, and which
+    // remember the target the checker calculated instead of comparing it with the block.
+    private static class RecordingParams extends UnitTestParams {
+        BigInteger target;
+
+        RecordingParams() {
+            genesisBlock.setTime(getAsertUpdateTime() - 100000);
+        }
+
+        @Override
+        public void verifyAsertDifficulty(BigInteger newTarget, Block nextBlock) {
+            target = newTarget;
+        }
+    }
+
+    private RecordingParams params;
+    private BlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        params = new RecordingParams();
+        Context.propagate(new Context(params));
+        store = new MemoryBlockStore(params);
+    }
+
+    @Test
+    public void referenceFollowsForks() throws Exception {
+        long activation = params.getAsertUpdateTime();
+        StoredBlock common = store.getChainHead();
+        StoredBlock forkPoint = null;
+        for (int i = 1; i <= 20; i++) {
+            common = extend(common, activation - 100000 + 600 * i);
+            if (i == 10)
+                forkPoint = common;
+        }
+        // Both forks activate ASERT on their own, at different heights and times.
+        StoredBlock tipA = common;
+        for (int i = 1; i <= 25; i++)
+            tipA = extend(tipA, activation + 60 * i);
+        StoredBlock tipB = forkPoint;
+        for (int i = 1; i <= 25; i++)
+            tipB = extend(tipB, activation + 30 * i);
+        assertTrue(tipB.getHeight() > 26);
+
+        AsertDifficultyRuleChecker checker = new AsertDifficultyRuleChecker(params);
+        BigInteger targetA = check(checker, tipA);
+        BigInteger targetB = check(checker, tipB);
+        assertNotEquals(targetA, targetB);
+        assertEquals(check(new AsertDifficultyRuleChecker(params), tipB), targetB);
+        assertEquals(targetA, check(checker, tipA));
+    }
+
+    private StoredBlock extend(StoredBlock prev, long time) throws Exception {
+        // Below the maximum target, so that the targets calculated from it differ. The store doesn't check the work.
+        Block header = new Block(params, Block.BLOCK_VERSION_GENESIS, prev.getHeader().getHash(), Sha256Hash.ZERO_HASH,
+                time, 0x1c00ffffL, 0, Collections.<Transaction>emptyList());
+        StoredBlock block = prev.build(header);
+        store.put(block);
+        return block;
+    }
+
+    private BigInteger check(AsertDifficultyRuleChecker checker, StoredBlock storedPrev) throws Exception {
+        params.target = null;
+        checker.checkRules(storedPrev, null, store, null);
+        assertNotNull(params.target);
+        return params.target;
+    }
+}
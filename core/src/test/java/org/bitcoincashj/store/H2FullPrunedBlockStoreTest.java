@@ -0,0 +1,190 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.store;
+
+import org.bitcoincashj.core.Address;
+import org.bitcoincashj.core.Block;
+import org.bitcoincashj.core.Coin;
+import org.bitcoincashj.core.Context;
+import org.bitcoincashj.core.ECKey;
+import org.bitcoincashj.core.NetworkParameters;
+import org.bitcoincashj.core.Sha256Hash;
+import org.bitcoincashj.core.StoredBlock;
+import org.bitcoincashj.core.UTXO;
+import org.bitcoincashj.params.UnitTestParams;
+import org.bitcoincashj.script.ScriptBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+
+public class H2FullPrunedBlockStoreTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String path;
+    private H2FullPrunedBlockStore store;
+    private List<ECKey> keys;
+    private List<UTXO> outputs;
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(UNITTEST);
+        // Two addresses per query, so five keys take three queries.
+        path = folder.getRoot().getAbsolutePath() + "/test";
+        store = new H2FullPrunedBlockStore(UNITTEST, path, 10) {
+            @Override
+            protected int getMaxAddressesPerQuery() {
+                return 2;
+            }
+        };
+        keys = new ArrayList<>();
+        outputs = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            ECKey key = new ECKey();
+            keys.add(key);
+            for (int j = 0; j < 2; j++)
+                outputs.add(addOutput(key, i * 2 + j));
+        }
+        addOutput(new ECKey(), 10);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+    }
+
+    private UTXO addOutput(ECKey key, int i) throws BlockStoreException {
+        UTXO output = new UTXO(Sha256Hash.of(new byte[] { (byte) i }), i, Coin.valueOf(i + 1), 1, false,
+                ScriptBuilder.createP2PKHOutputScript(key), Address.fromKey(UNITTEST, key).toString());
+        store.addUnspentTransactionOutput(output);
+        return output;
+    }
+
+    @Test
+    public void outputsOfAllKeysAreFound() throws Exception {
+        List<ECKey> requested = new ArrayList<>(keys);
+        // Keys given twice don't return their outputs twice.
+        requested.add(keys.get(0));
+        List<UTXO> found = store.getOpenTransactionOutputs(requested);
+        assertEquals(outputs.size(), found.size());
+        assertEquals(new HashSet<>(outputs), new HashSet<>(found));
+        assertTrue(store.getOpenTransactionOutputs(new ArrayList<ECKey>()).isEmpty());
+    }
+
+    @Test
+    public void outputsAreStreamed() throws Exception {
+        final AtomicInteger count = new AtomicInteger();
+        store.forEachOpenTransactionOutput(keys.subList(1, 4), new Consumer<UTXO>() {
+            @Override
+            public void accept(UTXO output) {
+                count.incrementAndGet();
+            }
+        });
+        assertEquals(6, count.get());
+    }
+
+    @Test
+    public void addressesBecomeInList() {
+        assertEquals("SELECT hash, value, scriptbytes, height, index, coinbase, toaddress, addresstargetable "
+                + "FROM openoutputs where toaddress IN (?, ?, ?)", store.getTransactionOutputSelectSQL(3));
+    }
+
+    @Test
+    public void outputsSpentBeforeFlushNeverReachTheDatabase() throws Exception {
+        store.setWriteBehindLimits(3, Long.MAX_VALUE);
+        long flushes = store.getFlushCount();
+        ECKey key = keys.get(0);
+        store.beginDatabaseBatchWrite();
+        UTXO spentSoon = addOutput(key, 20);
+        UTXO kept = addOutput(key, 21);
+        store.commitDatabaseBatchWrite();
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(spentSoon);
+        store.removeUnspentTransactionOutput(outputs.get(0));
+        store.commitDatabaseBatchWrite();
+        assertEquals(1, store.getCoalescedOutputCount());
+        assertEquals(flushes, store.getFlushCount());
+
+        // Reads see the changes that wait in memory.
+        assertNull(store.getTransactionOutput(spentSoon.getHash(), spentSoon.getIndex()));
+        assertNull(store.getTransactionOutput(outputs.get(0).getHash(), outputs.get(0).getIndex()));
+        assertEquals(kept, store.getTransactionOutput(kept.getHash(), kept.getIndex()));
+        assertTrue(store.hasUnspentOutputs(kept.getHash(), 22));
+        assertFalse(store.hasUnspentOutputs(spentSoon.getHash(), 21));
+        assertFalse(store.hasUnspentOutputs(outputs.get(0).getHash(), 1));
+        List<UTXO> expected = new ArrayList<>(outputs.subList(1, 2));
+        expected.add(kept);
+        assertEquals(new HashSet<>(expected), new HashSet<>(store.getOpenTransactionOutputs(keys.subList(0, 1))));
+        assertEquals(BigInteger.valueOf(2 + 22), store.calculateBalanceForAddress(Address.fromKey(UNITTEST, key)));
+
+        store.beginDatabaseBatchWrite();
+        store.commitDatabaseBatchWrite();
+        assertEquals(flushes + 1, store.getFlushCount());
+        assertEquals(kept, store.getTransactionOutput(kept.getHash(), kept.getIndex()));
+        assertNull(store.getTransactionOutput(spentSoon.getHash(), spentSoon.getIndex()));
+        assertEquals(new HashSet<>(expected), new HashSet<>(store.getOpenTransactionOutputs(keys.subList(0, 1))));
+    }
+
+    @Test
+    public void abortDropsBufferedOutputs() throws Exception {
+        store.setWriteBehindLimits(10, Long.MAX_VALUE);
+        store.beginDatabaseBatchWrite();
+        UTXO added = addOutput(keys.get(0), 20);
+        store.removeUnspentTransactionOutput(outputs.get(0));
+        store.abortDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(added.getHash(), added.getIndex()));
+        assertEquals(outputs.get(0), store.getTransactionOutput(outputs.get(0).getHash(), outputs.get(0).getIndex()));
+    }
+
+    @Test
+    public void verifiedChainHeadIsWrittenWithTheOutputs() throws Exception {
+        store.setWriteBehindLimits(10, Long.MAX_VALUE);
+        StoredBlock genesis = store.getVerifiedChainHead();
+        Block next = genesis.getHeader().createNextBlock(Address.fromKey(UNITTEST, new ECKey()));
+        StoredBlock block = genesis.build(next.cloneAsHeader());
+        store.put(block);
+        store.beginDatabaseBatchWrite();
+        UTXO added = addOutput(keys.get(0), 20);
+        store.setVerifiedChainHead(block);
+        store.commitDatabaseBatchWrite();
+        assertEquals(block, store.getVerifiedChainHead());
+
+        // Another store on the same database sees what a restart after a crash would.
+        H2FullPrunedBlockStore other = new H2FullPrunedBlockStore(UNITTEST, path, 10);
+        assertEquals(genesis, other.getVerifiedChainHead());
+        assertNull(other.getTransactionOutput(added.getHash(), added.getIndex()));
+        other.close();
+
+        store.flushUnspentOutputs();
+        other = new H2FullPrunedBlockStore(UNITTEST, path, 10);
+        assertEquals(block, other.getVerifiedChainHead());
+        assertEquals(added, other.getTransactionOutput(added.getHash(), added.getIndex()));
+        other.close();
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.store;
+
+import org.bitcoincashj.core.Coin;
+import org.bitcoincashj.core.Context;
+import org.bitcoincashj.core.NetworkParameters;
+import org.bitcoincashj.core.Sha256Hash;
+import org.bitcoincashj.core.TransactionOutPoint;
+import org.bitcoincashj.core.UTXO;
+import org.bitcoincashj.params.UnitTestParams;
+import org.bitcoincashj.script.Script;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LevelDBFullPrunedBlockStoreTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+    private static final int OUTPUTS = 200;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String path;
+    private LevelDBFullPrunedBlockStore store;
+    private List<UTXO> outputs;
+    private List<TransactionOutPoint> outPoints;
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(UNITTEST);
+        path = folder.newFolder().getAbsolutePath();
+        store = openStore();
+        outputs = new ArrayList<>();
+        outPoints = new ArrayList<>();
+        store.beginDatabaseBatchWrite();
+        for (int i = 0; i < OUTPUTS; i++) {
+            UTXO output = new UTXO(Sha256Hash.of(new byte[] { (byte) i, (byte) (i >> 8) }), i % 3,
+                    Coin.valueOf(i + 1), 1, false, new Script(new byte[0]));
+            store.addUnspentTransactionOutput(output);
+            outputs.add(output);
+            outPoints.add(new TransactionOutPoint(UNITTEST, output.getIndex(), output.getHash()));
+        }
+        store.commitDatabaseBatchWrite();
+    }
+
+    // An output cache of one entry, so almost all outputs have to come from the database.
+    private LevelDBFullPrunedBlockStore openStore() {
+        LevelDBFullPrunedBlockStore store = new LevelDBFullPrunedBlockStore(UNITTEST, path, 10,
+                LevelDBFullPrunedBlockStore.LEVELDB_READ_CACHE_DEFAULT,
+                LevelDBFullPrunedBlockStore.LEVELDB_WRITE_CACHE_DEFAULT, 1, false, Integer.MAX_VALUE);
+        store.setPrefetchThreads(4);
+        return store;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+    }
+
+    @Test
+    public void prefetchedOutputsAnswerLookups() throws Exception {
+        List<TransactionOutPoint> requested = new ArrayList<>(outPoints);
+        requested.add(new TransactionOutPoint(UNITTEST, 0, Sha256Hash.of(new byte[] { 1, 2, 3 })));
+
+        store.beginDatabaseBatchWrite();
+        store.prefetchTransactionOutputs(requested);
+        for (UTXO output : outputs)
+            assertEquals(output, store.getTransactionOutput(output.getHash(), output.getIndex()));
+        UTXO spent = outputs.get(0);
+        store.removeUnspentTransactionOutput(spent);
+        assertNull(store.getTransactionOutput(spent.getHash(), spent.getIndex()));
+        store.commitDatabaseBatchWrite();
+
+        LevelDBFullPrunedBlockStore.BlockCacheStats stats = store.getLastBlockCacheStats();
+        assertEquals(OUTPUTS + 1, stats.getPrefetchRequested());
+        // The last output added is still in the output cache.
+        assertEquals(OUTPUTS - 1, stats.getPrefetchRead());
+        assertEquals(OUTPUTS - 1, stats.getPrefetchHits());
+        assertEquals(2, stats.getCacheHits());
+        assertEquals(0, stats.getMisses());
+
+        // The prefetched outputs are gone with the block.
+        assertNull(store.getTransactionOutput(spent.getHash(), spent.getIndex()));
+        assertEquals(outputs.get(1), store.getTransactionOutput(outputs.get(1).getHash(), outputs.get(1).getIndex()));
+    }
+
+    @Test
+    public void abortDropsPrefetchedOutputs() throws Exception {
+        LevelDBFullPrunedBlockStore.BlockCacheStats committed = store.getLastBlockCacheStats();
+        store.beginDatabaseBatchWrite();
+        store.prefetchTransactionOutputs(outPoints);
+        store.removeUnspentTransactionOutput(outputs.get(0));
+        store.abortDatabaseBatchWrite();
+        assertSame(committed, store.getLastBlockCacheStats());
+
+        store.beginDatabaseBatchWrite();
+        assertEquals(outputs.get(0), store.getTransactionOutput(outputs.get(0).getHash(), outputs.get(0).getIndex()));
+        store.commitDatabaseBatchWrite();
+        LevelDBFullPrunedBlockStore.BlockCacheStats stats = store.getLastBlockCacheStats();
+        assertEquals(0, stats.getPrefetchRequested());
+        assertEquals(1, stats.getMisses());
+    }
+
+    @Test
+    public void bloomFilterIsKeptAcrossRestarts() throws Exception {
+        assertEquals(1, store.getBloomFilterStats().getRebuilds());
+        assertEquals(OUTPUTS, store.getBloomFilterStats().getOutputs());
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(outputs.get(0));
+        store.commitDatabaseBatchWrite();
+        store.close();
+
+        store = openStore();
+        LevelDBFullPrunedBlockStore.BloomFilterStats stats = store.getBloomFilterStats();
+        assertEquals(0, stats.getRebuilds());
+        assertEquals(OUTPUTS - 1, stats.getOutputs());
+        for (UTXO output : outputs.subList(1, OUTPUTS))
+            assertTrue(store.hasUnspentOutputs(output.getHash(), 3));
+        assertFalse(store.hasUnspentOutputs(Sha256Hash.of(new byte[] { 1, 2, 3 }), 1));
+        assertEquals(OUTPUTS, store.getBloomFilterStats().getQueries());
+    }
+}
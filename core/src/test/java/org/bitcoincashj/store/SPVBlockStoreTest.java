@@ -28,6 +28,7 @@ import java.io.File;
 import java.math.BigInteger;
 import java.util.Collections;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.*;
 
@@ -162,6 +163,72 @@ public class SPVBlockStoreTest {
         store.close();
     }
 
+    private static StoredBlock createBlock(int nonce) {
+        Block block = new Block(UNITTEST, 0, Sha256Hash.ZERO_HASH, Sha256Hash.ZERO_HASH, 0, 0, nonce,
+                Collections.<Transaction>emptyList());
+        return new StoredBlock(block, BigInteger.ZERO, nonce);
+    }
+
+    @Test
+    public void lookupsAfterWrapAndReopen() throws Exception {
+        final int capacity = 10;
+        SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile, capacity, false);
+        StoredBlock[] blocks = new StoredBlock[25];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = createBlock(i);
+            store.put(blocks[i]);
+        }
+        store.setChainHead(blocks[blocks.length - 1]);
+        store.close();
+
+        // Only the most recent records survive in the ring, and the index is rebuilt from them on open.
+        store = new SPVBlockStore(UNITTEST, blockStoreFile, capacity, false);
+        for (int i = 0; i < blocks.length; i++) {
+            StoredBlock found = store.get(blocks[i].getHeader().getHash());
+            if (i < blocks.length - capacity)
+                assertNull("block " + i, found);
+            else
+                assertEquals("block " + i, blocks[i], found);
+        }
+        assertNull(store.get(UNITTEST.getGenesisBlock().getHash()));
+        assertEquals(blocks[blocks.length - 1], store.getChainHead());
+        store.close();
+    }
+
+    @Test
+    public void concurrentReadsDuringWrites() throws Exception {
+        final SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile);
+        final StoredBlock[] blocks = new StoredBlock[3000];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = createBlock(i);
+            store.put(blocks[i]);
+        }
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 20000; i++) {
+                            StoredBlock block = blocks[i % blocks.length];
+                            assertEquals(block, store.get(block.getHeader().getHash()));
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            readers[t].start();
+        }
+        for (int i = 0; i < 5000; i++)
+            store.put(createBlock(blocks.length + i));
+        for (Thread reader : readers)
+            reader.join();
+        assertNull(String.valueOf(failure.get()), failure.get());
+        store.close();
+    }
+
     @Test
     public void oneStoreDelete() throws Exception {
         SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile);
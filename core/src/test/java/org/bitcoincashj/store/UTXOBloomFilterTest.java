@@ -0,0 +1,82 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.store;
+
+import org.bitcoincashj.core.Sha256Hash;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class UTXOBloomFilterTest {
+    private static final Sha256Hash CHAIN_HEAD = Sha256Hash.of(new byte[] { 42 });
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Sha256Hash hash(int i) {
+        return Sha256Hash.of(new byte[] { (byte) i, (byte) (i >> 8), (byte) (i >> 16) });
+    }
+
+    @Test
+    public void addedHashesAreFound() throws Exception {
+        UTXOBloomFilter filter = UTXOBloomFilter.create(folder.newFile(), 1000);
+        for (int i = 0; i < 1000; i++)
+            filter.add(hash(i));
+        int falsePositives = 0;
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(filter.mightContain(hash(i)));
+            if (filter.mightContain(hash(i + 1000)))
+                falsePositives++;
+        }
+        assertTrue(falsePositives < 10);
+        assertFalse(filter.needsRebuild());
+        filter.close(null);
+    }
+
+    @Test
+    public void savedFilterIsLoaded() throws Exception {
+        File file = folder.newFile();
+        UTXOBloomFilter filter = UTXOBloomFilter.create(file, 10);
+        filter.add(hash(1));
+        filter.setOutputs(1);
+        filter.close(CHAIN_HEAD);
+
+        assertNull(UTXOBloomFilter.load(file, Sha256Hash.ZERO_HASH));
+        filter = UTXOBloomFilter.load(file, CHAIN_HEAD);
+        assertNotNull(filter);
+        assertTrue(filter.mightContain(hash(1)));
+        assertEquals(1, filter.getOutputs());
+        // Loading marks the file as in use, so a crash before the next close forces a rebuild.
+        assertNull(UTXOBloomFilter.load(file, CHAIN_HEAD));
+        filter.close(null);
+        assertNull(UTXOBloomFilter.load(file, CHAIN_HEAD));
+    }
+
+    @Test
+    public void overfilledFilterNeedsRebuild() throws Exception {
+        UTXOBloomFilter filter = UTXOBloomFilter.create(folder.newFile(), 0);
+        int added = 0;
+        while (!filter.needsRebuild())
+            filter.add(hash(added++));
+        assertTrue(filter.estimatedFalsePositiveRate() > UTXOBloomFilter.REBUILD_FALSE_POSITIVE_RATE);
+        // Sized for at least a million bits, it takes many more hashes than ten bits each to get there.
+        assertTrue(added > filter.getSizeInBytes() * 8 / UTXOBloomFilter.BITS_PER_OUTPUT);
+        filter.close(null);
+    }
+}
@@ -59,6 +59,9 @@ public abstract class InboundMessageQueuer extends PeerSocketHandler {
         }
         if (m instanceof BloomFilter) {
             lastReceivedFilter = (BloomFilter) m;
+        } else if (m instanceof FilterAddMessage && lastReceivedFilter != null) {
+            // Like a remote node, apply the element to the loaded filter.
+            lastReceivedFilter.insert(((FilterAddMessage) m).getData());
         }
         inboundMessages.offer(m);
     }
@@ -0,0 +1,143 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.wallet;
+
+import org.bitcoincashj.core.*;
+import org.bitcoincashj.params.UnitTestParams;
+import org.bitcoincashj.wallet.selector.BranchAndBoundCoinSelector;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BranchAndBoundCoinSelectorTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+    private static final Coin FEE_PER_KB = Coin.valueOf(1000);
+    private static final long INPUT_FEE = 148;
+
+    private Address address;
+    private BranchAndBoundCoinSelector selector;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(UNITTEST));
+        address = Address.fromKey(UNITTEST, new ECKey());
+        selector = new BranchAndBoundCoinSelector(FEE_PER_KB);
+    }
+
+    private List<TransactionOutput> outputs(TransactionConfidence.ConfidenceType type, long... values) {
+        Transaction tx = new Transaction(UNITTEST);
+        for (long value : values)
+            tx.addOutput(Coin.valueOf(value), address);
+        tx.getConfidence().setConfidenceType(type);
+        return new ArrayList<>(tx.getOutputs());
+    }
+
+    private List<TransactionOutput> outputs(long... values) {
+        return outputs(TransactionConfidence.ConfidenceType.BUILDING, values);
+    }
+
+    private static long[] values(CoinSelection selection) {
+        long[] values = new long[selection.gathered.size()];
+        int i = 0;
+        for (TransactionOutput output : selection.gathered)
+            values[i++] = output.getValue().value;
+        Arrays.sort(values);
+        return values;
+    }
+
+    @Test
+    public void exactMatchWithoutChange() {
+        List<TransactionOutput> candidates = outputs(50000, 30000, 20000, 7000, 5000, 3000);
+        CoinSelection selection = selector.select(Coin.valueOf(28000), candidates);
+        // 20000 + 5000 + 3000 pays exactly, any set with the larger outputs would leave change.
+        assertEquals(Coin.valueOf(28000), selection.valueGathered);
+        assertArrayEquals(new long[] { 3000, 5000, 20000 }, values(selection));
+    }
+
+    @Test
+    public void fewerInputsWasteLess() {
+        List<TransactionOutput> candidates = outputs(10000, 6000, 4000);
+        // Both 10000 and 6000 + 4000 pay exactly; the single input is cheaper to spend.
+        CoinSelection selection = selector.select(Coin.valueOf(10000), candidates);
+        assertArrayEquals(new long[] { 10000 }, values(selection));
+    }
+
+    @Test
+    public void excessBelowCostOfChangeIsAccepted() {
+        List<TransactionOutput> candidates = outputs(100000, 20100, 900);
+        // 20100 overshoots by 100 satoshis, less than a change output would cost.
+        CoinSelection selection = selector.select(Coin.valueOf(20000), candidates);
+        assertArrayEquals(new long[] { 20100 }, values(selection));
+    }
+
+    @Test
+    public void excessBelowDustLimitAtHighFeeRates() {
+        // At 10 satoshis a byte change costs 1820 satoshis, but the wallet would give back 1000 as change.
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(Coin.valueOf(10000));
+        List<TransactionOutput> candidates = outputs(21000, 15000, 5000);
+        CoinSelection selection = selector.select(Coin.valueOf(20000), candidates);
+        assertArrayEquals(new long[] { 5000, 15000 }, values(selection));
+    }
+
+    @Test
+    public void knapsackFallback() {
+        List<TransactionOutput> candidates = outputs(100000, 40000, 30000, 15000);
+        // No set pays 50000 without change. 40000 + 15000 is the least excess among the smaller outputs.
+        CoinSelection selection = selector.select(Coin.valueOf(50000), candidates);
+        assertArrayEquals(new long[] { 15000, 40000 }, values(selection));
+        // Nothing adds up to 90000 but the large output.
+        selection = selector.select(Coin.valueOf(90000), candidates);
+        assertArrayEquals(new long[] { 100000 }, values(selection));
+    }
+
+    @Test
+    public void uneconomicalOutputsOnlyWhenNeeded() {
+        List<TransactionOutput> candidates = outputs(10000, INPUT_FEE, INPUT_FEE - 1);
+        CoinSelection selection = selector.select(Coin.valueOf(10000), candidates);
+        assertArrayEquals(new long[] { 10000 }, values(selection));
+        // Short of 100 satoshis, the smallest output that makes up for it is added.
+        selection = selector.select(Coin.valueOf(10100), candidates);
+        assertEquals(Coin.valueOf(10000 + INPUT_FEE - 1), selection.valueGathered);
+    }
+
+    @Test
+    public void insufficientOrEverything() {
+        List<TransactionOutput> candidates = outputs(10000, 20000);
+        candidates.addAll(outputs(TransactionConfidence.ConfidenceType.PENDING, 40000));
+        // The pending output isn't ours, so it can't be spent.
+        assertEquals(Coin.valueOf(30000), selector.select(Coin.valueOf(50000), candidates).valueGathered);
+        assertEquals(Coin.valueOf(30000), selector.select(NetworkParameters.MAX_MONEY, candidates).valueGathered);
+    }
+
+    @Test
+    public void sameResultForCopiesOfTheCandidates() {
+        List<TransactionOutput> candidates = new ArrayList<>();
+        for (int i = 0; i < 200; i++)
+            candidates.addAll(outputs(1000 + i * 37L));
+        CoinSelection first = selector.select(Coin.valueOf(123456), new ArrayList<>(candidates));
+        CoinSelection second = selector.select(Coin.valueOf(123456), new ArrayList<>(candidates));
+        assertEquals(first.valueGathered, second.valueGathered);
+        assertEquals(new ArrayList<>(first.gathered), new ArrayList<>(second.gathered));
+        assertTrue(first.valueGathered.value >= 123456);
+        // A different list of candidates is searched afresh.
+        CoinSelection fewer = selector.select(Coin.valueOf(123456), candidates.subList(0, 10));
+        assertTrue(fewer.valueGathered.value < 123456);
+    }
+}
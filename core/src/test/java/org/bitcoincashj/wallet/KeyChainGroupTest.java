@@ -19,6 +19,7 @@ package org.bitcoincashj.wallet;
 
 import com.google.common.collect.ImmutableList;
 import org.bitcoincashj.core.*;
+import org.bitcoincashj.crypto.ChildNumber;
 import org.bitcoincashj.crypto.DeterministicKey;
 import org.bitcoincashj.crypto.KeyCrypterException;
 import org.bitcoincashj.crypto.KeyCrypterScrypt;
@@ -655,4 +656,50 @@ public class KeyChainGroupTest {
         group.encrypt(KEY_CRYPTER, AES_KEY);
         group.decrypt(AES_KEY);
     }
+
+    @Test
+    public void findKeyAcrossManyChains() throws Exception {
+        DeterministicSeed seed = new DeterministicSeed(ENTROPY, "", 0);
+        KeyChainGroup group = KeyChainGroup.builder(MAINNET).lookaheadSize(LOOKAHEAD_SIZE).build();
+        for (int account = 0; account < 40; account++)
+            group.addAndActivateHDChain(DeterministicKeyChain.builder().seed(seed)
+                    .accountPath(ImmutableList.of(new ChildNumber(account, true))).build());
+        DeterministicKeyChain first = group.getActiveKeyChains(0).get(0);
+        // Keys that come from the lookahead after the chain joined the group are found too.
+        List<DeterministicKey> keys = first.getKeys(KeyPurpose.RECEIVE_FUNDS, LOOKAHEAD_SIZE * 3);
+        DeterministicKey key = keys.get(keys.size() - 1);
+        assertEquals(key, group.findKeyFromPubKeyHash(key.getPubKeyHash(), Script.ScriptType.P2PKH));
+        assertEquals(key, group.findKeyFromPubKey(key.getPubKey()));
+        assertTrue(group.hasKey(key));
+        assertNull(group.findKeyFromPubKeyHash(key.getPubKeyHash(), Script.ScriptType.P2SH));
+        assertNull(group.findKeyFromPubKeyHash(new ECKey().getPubKeyHash(), null));
+
+        group.removeHDChainByIndex(0);
+        assertNull(group.findKeyFromPubKey(key.getPubKey()));
+    }
+
+    @Test
+    public void removedImportedKeyIsNotFound() throws Exception {
+        ECKey key = new ECKey();
+        group.importKeys(key);
+        assertEquals(key, group.findKeyFromPubKeyHash(key.getPubKeyHash(), null));
+        assertTrue(group.removeImportedKey(key));
+        assertNull(group.findKeyFromPubKeyHash(key.getPubKeyHash(), null));
+        assertFalse(group.hasKey(key));
+    }
+
+    @Test
+    public void encryptedKeysAreFound() throws Exception {
+        ECKey imported = new ECKey();
+        group.importKeys(imported);
+        group.encrypt(KEY_CRYPTER, AES_KEY);
+        ECKey found = group.findKeyFromPubKey(imported.getPubKey());
+        assertTrue(found.isEncrypted());
+        DeterministicKey fresh = group.freshKey(KeyPurpose.RECEIVE_FUNDS);
+        assertEquals(fresh, group.findKeyFromPubKeyHash(fresh.getPubKeyHash(), null));
+        group.decrypt(AES_KEY);
+        assertFalse(group.findKeyFromPubKey(imported.getPubKey()).isEncrypted());
+        fresh = group.freshKey(KeyPurpose.RECEIVE_FUNDS);
+        assertFalse(((DeterministicKey) group.findKeyFromPubKey(fresh.getPubKey())).isEncrypted());
+    }
 }
@@ -0,0 +1,201 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.wallet;
+
+import org.bitcoincashj.core.Address;
+import org.bitcoincashj.core.BlockChain;
+import org.bitcoincashj.core.Coin;
+import org.bitcoincashj.core.Context;
+import org.bitcoincashj.core.ECKey;
+import org.bitcoincashj.core.NetworkParameters;
+import org.bitcoincashj.core.StoredBlock;
+import org.bitcoincashj.core.Transaction;
+import org.bitcoincashj.core.TransactionOutput;
+import org.bitcoincashj.params.UnitTestParams;
+import org.bitcoincashj.script.Script;
+import org.bitcoincashj.store.MemoryBlockStore;
+import org.bitcoincashj.testing.FakeTxBuilder;
+import org.bitcoincashj.wallet.WalletTransaction.Pool;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LazyWalletLoadingTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Wallet wallet;
+    private Address myAddress;
+    private Address otherAddress;
+    private MemoryBlockStore blockStore;
+    private File file;
+    // t1 pays us, t2 spends it, t3 spends the change of t2.
+    private Transaction t1, t2, t3;
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(UNITTEST);
+        wallet = new Wallet(UNITTEST, KeyChainGroup.builder(UNITTEST).fromRandom(Script.ScriptType.P2PKH).build());
+        myAddress = wallet.freshReceiveAddress();
+        otherAddress = Address.fromKey(UNITTEST, new ECKey());
+        blockStore = new MemoryBlockStore(UNITTEST);
+        file = new File(folder.getRoot(), "test.wallet");
+
+        t1 = FakeTxBuilder.createFakeTx(UNITTEST, Coin.COIN, myAddress);
+        confirm(t1);
+        t2 = wallet.createSend(otherAddress, Coin.CENT.multiply(50));
+        confirm(t2);
+        t3 = wallet.createSend(otherAddress, Coin.CENT.multiply(10));
+        confirm(t3);
+        emptyBlocks(wallet, 2);
+        assertEquals(2, wallet.getPoolSize(Pool.SPENT));
+        assertEquals(1, wallet.getPoolSize(Pool.UNSPENT));
+        wallet.saveToFile(file);
+    }
+
+    private void confirm(Transaction tx) throws Exception {
+        StoredBlock block = FakeTxBuilder.createFakeBlock(blockStore, blockStore.getChainHead().getHeight() + 1, tx).storedBlock;
+        wallet.receiveFromBlock(tx, block, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(block);
+    }
+
+    private void emptyBlocks(Wallet wallet, int count) throws Exception {
+        for (int i = 0; i < count; i++)
+            wallet.notifyNewBestBlock(FakeTxBuilder.createFakeBlock(blockStore, blockStore.getChainHead().getHeight() + 1).storedBlock);
+    }
+
+    private static int unloaded(Wallet wallet) {
+        LazyTransactionIndex index = wallet.getLazyTransactionIndex();
+        return index == null ? 0 : index.unloadedCount(null);
+    }
+
+    @Test
+    public void spentTransactionsAreLoadedWhenAskedFor() throws Exception {
+        Wallet loaded = Wallet.loadFromFileLazily(file);
+        assertEquals(2, unloaded(loaded));
+        assertEquals(wallet.getBalance(), loaded.getBalance());
+        assertEquals(2, loaded.getPoolSize(Pool.SPENT));
+        assertEquals(1, loaded.getPoolSize(Pool.UNSPENT));
+        assertTrue(loaded.getTransactionPool(Pool.SPENT).containsKey(t1.getTxId()));
+        assertEquals(2, unloaded(loaded));
+
+        Transaction loadedT2 = loaded.getTransaction(t2.getTxId());
+        assertEquals(1, unloaded(loaded));
+        Transaction loadedT3 = loaded.getTransaction(t3.getTxId());
+        // t3 was read eagerly and is now connected to t2, t2 is still waiting for t1.
+        assertSame(loadedT2, loadedT3.getInput(0).getConnectedTransaction());
+        assertNull(loadedT2.getInput(0).getConnectedOutput());
+
+        Transaction loadedT1 = loaded.getTransaction(t1.getTxId());
+        assertEquals(0, unloaded(loaded));
+        assertSame(loadedT1, loadedT2.getInput(0).getConnectedTransaction());
+        assertEquals(t1.getConfidence().getDepthInBlocks(), loadedT1.getConfidence().getDepthInBlocks());
+        assertEquals(wallet.getTotalReceived(), loaded.getTotalReceived());
+        assertTrue(loaded.isConsistent());
+    }
+
+    @Test
+    public void depthFollowsNewBlocks() throws Exception {
+        // Transactions share their confidence with the original wallet through the context, so remember the depths.
+        int depth1 = t1.getConfidence().getDepthInBlocks();
+        int depth3 = t3.getConfidence().getDepthInBlocks();
+        Wallet loaded = Wallet.loadFromFileLazily(file);
+        emptyBlocks(loaded, 3);
+        assertEquals(depth3 + 3, loaded.getTransaction(t3.getTxId()).getConfidence().getDepthInBlocks());
+        assertEquals(depth1 + 3, loaded.getTransaction(t1.getTxId()).getConfidence().getDepthInBlocks());
+    }
+
+    @Test
+    public void savingKeepsUnloadedTransactions() throws Exception {
+        int depth2 = t2.getConfidence().getDepthInBlocks();
+        Wallet loaded = Wallet.loadFromFileLazily(file);
+        // t1 is loaded, but the output it is spent by still comes from the file.
+        Transaction loadedT1 = loaded.getTransaction(t1.getTxId());
+        TransactionOutput output = loadedT1.getOutput(t2.getInput(0).getOutpoint().getIndex());
+        assertFalse(output.isAvailableForSpending());
+        assertNull(output.getSpentBy());
+        emptyBlocks(loaded, 1);
+
+        File copy = new File(folder.getRoot(), "copy.wallet");
+        loaded.saveToFile(copy);
+        assertEquals(1, unloaded(loaded));
+
+        Wallet reloaded = Wallet.loadFromFile(copy);
+        assertEquals(3, reloaded.getTransactions(true).size());
+        assertEquals(2, reloaded.getPoolSize(Pool.SPENT));
+        assertEquals(wallet.getBalance(), reloaded.getBalance());
+        Transaction reloadedT2 = reloaded.getTransaction(t2.getTxId());
+        assertSame(reloaded.getTransaction(t1.getTxId()), reloadedT2.getInput(0).getConnectedTransaction());
+        assertEquals(depth2 + 1, reloadedT2.getConfidence().getDepthInBlocks());
+    }
+
+    @Test
+    public void doubleSpendOfUnloadedTransaction() throws Exception {
+        Wallet loaded = Wallet.loadFromFileLazily(file);
+        // t1 spends an output that isn't ours, so only the double spend makes this relevant.
+        Transaction doubleSpend = new Transaction(UNITTEST);
+        doubleSpend.addInput(t1.getInput(0).getOutpoint().getHash(), t1.getInput(0).getOutpoint().getIndex(),
+                t1.getInput(0).getScriptSig());
+        doubleSpend.addOutput(Coin.COIN, otherAddress);
+        assertTrue(loaded.getLazyTransactionIndex().isUnloaded(t1.getTxId(), Pool.SPENT));
+        assertTrue(loaded.isPendingTransactionRelevant(doubleSpend));
+        assertFalse(loaded.getLazyTransactionIndex().isUnloaded(t1.getTxId(), null));
+        assertTrue(loaded.getLazyTransactionIndex().isUnloaded(t2.getTxId(), null));
+    }
+
+    @Test
+    public void journalIsApplied() throws Exception {
+        WalletFiles files = wallet.autosaveToFile(file, 1, TimeUnit.HOURS, null);
+        files.setJournaling(true);
+        try {
+            files.saveNow();
+            t1.setMemo("first");
+            Transaction t4 = FakeTxBuilder.createFakeTx(UNITTEST, Coin.CENT, myAddress);
+            confirm(t4);
+            files.saveNow();
+            emptyBlocks(wallet, 3);
+            files.saveNow();
+            assertTrue(WalletJournal.getJournalFile(file).length() > 32);
+            int depth2 = t2.getConfidence().getDepthInBlocks();
+            int depth3 = t3.getConfidence().getDepthInBlocks();
+            int depth4 = t4.getConfidence().getDepthInBlocks();
+
+            // A context of its own, so that the loaded transactions don't share their confidence with the originals.
+            Context.propagate(new Context(UNITTEST));
+            Wallet loaded = Wallet.loadFromFileLazily(file);
+            assertEquals(wallet.getBalance(), loaded.getBalance());
+            assertEquals(2, loaded.getPoolSize(Pool.UNSPENT));
+            assertEquals("first", loaded.getTransaction(t1.getTxId()).getMemo());
+            assertEquals(wallet.getLastBlockSeenHeight(), loaded.getLastBlockSeenHeight());
+            // t3 is unspent and read from the file right away, t4 comes from the journal, t2 is loaded when asked for.
+            assertEquals(depth3, loaded.getTransaction(t3.getTxId()).getConfidence().getDepthInBlocks());
+            assertEquals(depth4, loaded.getTransaction(t4.getTxId()).getConfidence().getDepthInBlocks());
+            assertEquals(depth2, loaded.getTransaction(t2.getTxId()).getConfidence().getDepthInBlocks());
+            Context.propagate(new Context(UNITTEST));
+            assertEquals(depth3, Wallet.loadFromFile(file).getTransaction(t3.getTxId()).getConfidence()
+                    .getDepthInBlocks());
+        } finally {
+            wallet.shutdownAutosaveAndWait();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoincashj.wallet;
+
+import com.google.protobuf.ByteString;
+import org.bitcoincashj.core.Address;
+import org.bitcoincashj.core.BlockChain;
+import org.bitcoincashj.core.Coin;
+import org.bitcoincashj.core.Context;
+import org.bitcoincashj.core.NetworkParameters;
+import org.bitcoincashj.core.StoredBlock;
+import org.bitcoincashj.core.Transaction;
+import org.bitcoincashj.params.UnitTestParams;
+import org.bitcoincashj.script.Script;
+import org.bitcoincashj.store.MemoryBlockStore;
+import org.bitcoincashj.testing.FakeTxBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class WalletJournalTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Wallet wallet;
+    private Address myAddress;
+    private File file;
+    private File journalFile;
+    private WalletFiles files;
+    private MemoryBlockStore blockStore;
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(UNITTEST);
+        wallet = new Wallet(UNITTEST, KeyChainGroup.builder(UNITTEST).fromRandom(Script.ScriptType.P2PKH).build());
+        myAddress = wallet.freshReceiveAddress();
+        blockStore = new MemoryBlockStore(UNITTEST);
+        file = new File(folder.getRoot(), "test.wallet");
+        journalFile = WalletJournal.getJournalFile(file);
+        files = wallet.autosaveToFile(file, 1, TimeUnit.HOURS, null);
+        files.setJournaling(true);
+    }
+
+    @After
+    public void tearDown() {
+        wallet.shutdownAutosaveAndWait();
+    }
+
+    private Transaction receiveInBlock(Coin value) throws Exception {
+        Transaction tx = FakeTxBuilder.createFakeTx(UNITTEST, value, myAddress);
+        StoredBlock block = FakeTxBuilder.createFakeBlock(blockStore, blockStore.getChainHead().getHeight() + 1, tx).storedBlock;
+        wallet.receiveFromBlock(tx, block, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(block);
+        return tx;
+    }
+
+    private void emptyBlocks(int count) throws Exception {
+        for (int i = 0; i < count; i++)
+            wallet.notifyNewBestBlock(FakeTxBuilder.createFakeBlock(blockStore, blockStore.getChainHead().getHeight() + 1).storedBlock);
+    }
+
+    @Test
+    public void changesAreAppendedAndReplayed() throws Exception {
+        Transaction t1 = receiveInBlock(Coin.COIN);
+        files.saveNow();
+        long snapshotLength = file.length();
+        assertEquals(32, journalFile.length());
+
+        Transaction t2 = receiveInBlock(Coin.CENT);
+        t1.setMemo("first");
+        wallet.setTag("tag", ByteString.copyFromUtf8("value"));
+        files.saveNow();
+        assertEquals(snapshotLength, file.length());
+        assertTrue(journalFile.length() > 32);
+
+        // Saving without changes doesn't write anything.
+        long journalLength = journalFile.length();
+        files.saveNow();
+        assertEquals(journalLength, journalFile.length());
+
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertEquals(2, loaded.getTransactions(true).size());
+        assertEquals("first", loaded.getTransaction(t1.getTxId()).getMemo());
+        assertNotNull(loaded.getTransaction(t2.getTxId()));
+        assertEquals(wallet.getBalance(), loaded.getBalance());
+        assertEquals(wallet.getLastBlockSeenHash(), loaded.getLastBlockSeenHash());
+        assertEquals("value", loaded.getTag("tag").toStringUtf8());
+    }
+
+    @Test
+    public void depthFollowsLastSeenBlock() throws Exception {
+        Transaction t1 = receiveInBlock(Coin.COIN);
+        files.saveNow();
+        emptyBlocks(5);
+        files.saveNow();
+        assertEquals(6, t1.getConfidence().getDepthInBlocks());
+
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertEquals(t1.getConfidence().getDepthInBlocks(),
+                loaded.getTransaction(t1.getTxId()).getConfidence().getDepthInBlocks());
+        assertEquals(wallet.getLastBlockSeenHeight(), loaded.getLastBlockSeenHeight());
+    }
+
+    @Test
+    public void freshKeysAreJournaled() throws Exception {
+        files.saveNow();
+        Address address = wallet.freshReceiveAddress();
+        assertEquals(address, Wallet.loadFromFile(file).currentReceiveAddress());
+    }
+
+    @Test
+    public void partialRecordIsIgnored() throws Exception {
+        Transaction t1 = receiveInBlock(Coin.COIN);
+        files.saveNow();
+        receiveInBlock(Coin.CENT);
+        files.saveNow();
+        long journalLength = journalFile.length();
+        Transaction t3 = receiveInBlock(Coin.SATOSHI.multiply(1000));
+        files.saveNow();
+        try (RandomAccessFile raf = new RandomAccessFile(journalFile, "rw")) {
+            raf.setLength(journalLength + 10);
+        }
+
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertEquals(2, loaded.getTransactions(true).size());
+        assertNotNull(loaded.getTransaction(t1.getTxId()));
+        assertNull(loaded.getTransaction(t3.getTxId()));
+    }
+
+    @Test
+    public void staleJournalIsIgnored() throws Exception {
+        receiveInBlock(Coin.COIN);
+        files.saveNow();
+        receiveInBlock(Coin.CENT);
+        files.saveNow();
+        Wallet other = new Wallet(UNITTEST, KeyChainGroup.builder(UNITTEST).fromRandom(Script.ScriptType.P2PKH).build());
+        other.saveToFile(file);
+        assertTrue(journalFile.length() > 32);
+        assertEquals(0, Wallet.loadFromFile(file).getTransactions(true).size());
+
+        // The journal no longer matches the file, so the next save starts over with a snapshot.
+        files.saveNow();
+        assertEquals(32, journalFile.length());
+        assertEquals(2, Wallet.loadFromFile(file).getTransactions(true).size());
+    }
+
+    @Test
+    public void removedTransactionsCompact() throws Exception {
+        receiveInBlock(Coin.COIN);
+        files.saveNow();
+        long snapshotLength = file.length();
+        wallet.clearTransactions(0);
+        files.saveNow();
+        assertNotEquals(snapshotLength, file.length());
+        assertEquals(32, journalFile.length());
+        assertEquals(0, Wallet.loadFromFile(file).getTransactions(true).size());
+    }
+
+    @Test
+    public void disablingJournalingRemovesJournal() throws Exception {
+        receiveInBlock(Coin.COIN);
+        files.saveNow();
+        files.setJournaling(false);
+        receiveInBlock(Coin.CENT);
+        files.saveNow();
+        assertFalse(journalFile.exists());
+        assertEquals(2, Wallet.loadFromFile(file).getTransactions(true).size());
+    }
+}
@@ -44,6 +44,7 @@ import org.bitcoincashj.wallet.listeners.KeyChainEventListener;
 import org.bitcoincashj.wallet.listeners.WalletChangeEventListener;
 import org.bitcoincashj.wallet.listeners.WalletCoinsReceivedEventListener;
 import org.bitcoincashj.wallet.listeners.WalletCoinsSentEventListener;
+import org.bitcoincashj.wallet.selector.CoinSelector;
 import org.bitcoincashj.wallet.selector.DefaultCoinSelector;
 import org.bitcoincashj.wallet.selector.KeyTimeCoinSelector;
 import org.bouncycastle.crypto.params.KeyParameter;
@@ -572,6 +573,56 @@ public class WalletTest extends TestWithWallet {
         assertEquals(Coin.COIN.plus(Coin.COIN), wallet.getBalance(BalanceType.ESTIMATED));
     }
 
+    @Test
+    public void balanceFollowsFrozenOutputs() throws Exception {
+        Transaction tx1 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT);
+        assertEquals(COIN.add(CENT), wallet.getBalance());
+        TransactionOutput output = tx1.getWalletOutputs(wallet).get(0);
+        wallet.setOutputFrozen(output, true);
+        assertEquals(CENT, wallet.getBalance());
+        assertEquals(CENT, wallet.getBalance(BalanceType.ESTIMATED));
+        assertEquals(1, wallet.calculateAllSpendCandidates().size());
+        wallet.setOutputFrozen(output, false);
+        assertEquals(COIN.add(CENT), wallet.getBalance());
+        assertEquals(COIN.add(CENT), wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+    }
+
+    @Test
+    public void spendableBalanceFollowsKeys() throws Exception {
+        ECKey priv = new ECKey();
+        ECKey pub = ECKey.fromPublicOnly(priv);
+        wallet.importKey(pub);
+        Transaction tx = new Transaction(UNITTEST);
+        tx.addOutput(Coin.COIN, Address.fromKey(UNITTEST, pub));
+        wallet.addWalletTransaction(new WalletTransaction(Pool.UNSPENT, tx));
+        assertEquals(Coin.COIN, wallet.getBalance(BalanceType.ESTIMATED));
+        assertEquals(Coin.ZERO, wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+        assertTrue(wallet.calculateAllSpendCandidates(false, true).isEmpty());
+        // Swapping the watched key for the private one keeps the number of keys the same.
+        assertTrue(wallet.removeKey(pub));
+        wallet.importKey(priv);
+        assertEquals(Coin.COIN, wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+        assertEquals(1, wallet.calculateAllSpendCandidates(false, true).size());
+    }
+
+    @Test
+    public void balanceAsksCustomSelectorEveryTime() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        final AtomicBoolean selectNothing = new AtomicBoolean();
+        wallet.coinSelector = new CoinSelector() {
+            @Override
+            public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+                if (selectNothing.get())
+                    return new CoinSelection(Coin.ZERO, Collections.<TransactionOutput>emptyList());
+                return DefaultCoinSelector.get().select(target, candidates);
+            }
+        };
+        assertEquals(COIN, wallet.getBalance());
+        selectNothing.set(true);
+        assertEquals(Coin.ZERO, wallet.getBalance());
+    }
+
     // Intuitively you'd expect to be able to create a transaction with identical inputs and outputs and get an
     // identical result to Bitcoin Core. However the signatures are not deterministic - signing the same data
     // with the same key twice gives two different outputs. So we cannot prove bit-for-bit compatibility in this test